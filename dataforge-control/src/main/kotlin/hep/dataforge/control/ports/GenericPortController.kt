@@ -24,7 +24,7 @@ import hep.dataforge.exceptions.PortException
 import hep.dataforge.utils.ReferenceRegistry
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
-import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
 import java.nio.charset.Charset
 import java.time.Duration
 import java.util.concurrent.CompletableFuture
@@ -34,20 +34,28 @@ import java.util.concurrent.TimeUnit
 /**
  * A port controller helper that allows both synchronous and asynchronous operations on port
  * @property port the port associated with this controller
+ * @param framer splits incoming bytes into phrases
+ * @param charset the charset used to decode phrases
  */
-open class GenericPortController(
+open class GenericPortController @JvmOverloads constructor(
         override val context: Context,
         val port: Port,
-        private val phraseCondition: (String) -> Boolean = { it.endsWith("\n") }
+        private val framer: PhraseFramer = PhraseFramer.delimiter("\n"),
+        private val charset: Charset = Charsets.UTF_8
 ) : PortController, AutoCloseable, ContextAware {
 
+    /**
+     * Controller with phrases defined by a condition on the whole accumulated string. Delimiter or size based framing
+     * should be used instead whenever possible.
+     */
+    constructor(context: Context, port: Port, phraseCondition: (String) -> Boolean) :
+            this(context, port, PhraseFramer.condition(Charsets.UTF_8, phraseCondition))
 
-    constructor(context: Context, port: Port, delimiter: String) : this(context, port, { it.endsWith(delimiter) })
+    constructor(context: Context, port: Port, delimiter: String) : this(context, port, PhraseFramer.delimiter(delimiter))
 
     private val waiters = ReferenceRegistry<FuturePhrase>()
     private val listeners = ReferenceRegistry<PhraseListener>()
     private val exceptionListeners = ReferenceRegistry<ErrorListener>()
-    private val buffer = ByteArrayOutputStream();
 
 
     fun open() {
@@ -65,14 +73,18 @@ open class GenericPortController(
         get() = LoggerFactory.getLogger("${context.name}.$port")
 
     override fun accept(byte: Byte) {
-        synchronized(port) {
-            buffer.write(byte.toInt())
-            val string = buffer.toString("UTF8")
-            if (phraseCondition(string)) {
-                acceptPhrase(string)
-                buffer.reset()
-            }
+        accept(ByteBuffer.wrap(byteArrayOf(byte)))
+    }
+
+    /**
+     * Frame incoming bytes under the framer lock and dispatch complete phrases outside of it
+     */
+    override fun accept(buffer: ByteBuffer) {
+        val phrases = ArrayList<ByteArray>(1)
+        synchronized(framer) {
+            framer.accept(buffer) { phrases.add(it) }
         }
+        phrases.forEach { acceptPhrase(String(it, charset)) }
     }
 
     private fun acceptPhrase(message: String) {
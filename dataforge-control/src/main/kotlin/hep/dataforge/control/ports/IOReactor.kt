@@ -0,0 +1,211 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.control.ports
+
+import org.slf4j.LoggerFactory
+import java.nio.channels.SelectableChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * A single-threaded event loop multiplexing non-blocking channels with a [Selector]. Ready channels are dispatched
+ * to their [Handler] immediately on the reactor thread, so handlers must not block. The reactor also runs submitted
+ * and scheduled tasks on the same thread, so all state touched only from handlers and tasks does not need locking.
+ *
+ * All ports share the [default] reactor unless a different one is provided.
+ *
+ * @author Alexander Nozik
+ */
+class IOReactor(val name: String) : AutoCloseable {
+
+    /**
+     * Reaction to channel readiness
+     */
+    interface Handler {
+        fun ready(key: SelectionKey)
+    }
+
+    /**
+     * A scheduled task which could be cancelled
+     */
+    inner class Task internal constructor(
+            internal var deadline: Long,
+            private val period: Long,
+            private val action: () -> Unit
+    ) : Comparable<Task> {
+
+        @Volatile
+        var isCancelled = false
+            private set
+
+        @Volatile
+        var isDone = false
+            private set
+
+        override fun compareTo(other: Task): Int = deadline.compareTo(other.deadline)
+
+        internal fun run() {
+            if (!isCancelled) {
+                try {
+                    action()
+                } catch (ex: Exception) {
+                    logger.error("Reactor task failed", ex)
+                }
+                if (period > 0 && !isCancelled) {
+                    deadline += period
+                    timers.add(this)
+                } else {
+                    isDone = true
+                }
+            }
+        }
+
+        fun cancel() {
+            isCancelled = true
+            isDone = true
+        }
+    }
+
+    private val logger = LoggerFactory.getLogger("reactor[$name]")
+
+    private val selector = Selector.open()
+
+    private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+
+    /**
+     * Timers are accessed only from reactor thread
+     */
+    private val timers = PriorityQueue<Task>()
+
+    @Volatile
+    private var running = true
+
+    private val thread = Thread(this::run, "reactor::$name").apply {
+        isDaemon = true
+        priority = Thread.MAX_PRIORITY
+        start()
+    }
+
+    val inReactorThread: Boolean
+        get() = Thread.currentThread() === thread
+
+    /**
+     * Run the action on reactor thread
+     */
+    fun execute(action: () -> Unit) {
+        if (!running) {
+            throw IllegalStateException("Reactor $name is closed")
+        }
+        tasks.add(action)
+        selector.wakeup()
+    }
+
+    /**
+     * Run the action on reactor thread after given delay and then with given period if it is positive
+     */
+    fun schedule(delay: Duration, period: Duration = Duration.ZERO, action: () -> Unit): Task {
+        val task = Task(System.nanoTime() + delay.toNanos(), period.toNanos(), action)
+        execute { timers.add(task) }
+        return task
+    }
+
+    /**
+     * Register a channel in the selector. Could be called only from reactor thread.
+     */
+    fun register(channel: SelectableChannel, ops: Int, handler: Handler): SelectionKey {
+        if (!inReactorThread) {
+            throw IllegalStateException("Channel registration is allowed only from reactor thread")
+        }
+        channel.configureBlocking(false)
+        return channel.register(selector, ops, handler)
+    }
+
+    private fun runTasks() {
+        while (true) {
+            val task = tasks.poll() ?: break
+            try {
+                task()
+            } catch (ex: Exception) {
+                logger.error("Reactor task failed", ex)
+            }
+        }
+    }
+
+    /**
+     * Run expired timers
+     * @return time in milliseconds to the next timer or -1 if there are no timers
+     */
+    private fun runTimers(): Long {
+        while (true) {
+            val next = timers.peek() ?: return -1
+            val remaining = next.deadline - System.nanoTime()
+            if (next.isCancelled) {
+                timers.poll()
+            } else if (remaining <= 0) {
+                timers.poll()
+                next.run()
+            } else {
+                return maxOf(1, remaining / 1_000_000)
+            }
+        }
+    }
+
+    private fun run() {
+        while (running) {
+            try {
+                runTasks()
+                val timeout = runTimers()
+                when {
+                    !tasks.isEmpty() -> selector.selectNow()
+                    timeout < 0 -> selector.select()
+                    else -> selector.select(timeout)
+                }
+                val iterator = selector.selectedKeys().iterator()
+                while (iterator.hasNext()) {
+                    val key = iterator.next()
+                    iterator.remove()
+                    if (key.isValid) {
+                        try {
+                            (key.attachment() as Handler).ready(key)
+                        } catch (ex: Exception) {
+                            logger.error("Channel handler failed", ex)
+                        }
+                    }
+                }
+            } catch (ex: Exception) {
+                logger.error("Reactor loop error", ex)
+            }
+        }
+        selector.keys().forEach { it.channel().close() }
+        selector.close()
+    }
+
+    override fun close() {
+        running = false
+        selector.wakeup()
+    }
+
+    companion object {
+        /**
+         * Shared reactor for all ports
+         */
+        val default: IOReactor by lazy { IOReactor("default") }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.control.ports
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.CharBuffer
+import java.nio.charset.Charset
+
+/**
+ * Splits incoming byte stream into phrases. Framer keeps incomplete phrase between calls and scans only newly arrived
+ * bytes. Framers are not thread safe.
+ */
+interface PhraseFramer {
+
+    /**
+     * Consume all remaining bytes of the buffer and pass each complete phrase to [emit]
+     */
+    fun accept(buffer: ByteBuffer, emit: (ByteArray) -> Unit)
+
+    /**
+     * Drop incomplete phrase
+     */
+    fun reset()
+
+    companion object {
+        /**
+         * Phrases ending with given delimiter. The delimiter is included into the phrase.
+         */
+        fun delimiter(delimiter: ByteArray): PhraseFramer = DelimiterFramer(delimiter)
+
+        fun delimiter(delimiter: String, charset: Charset = Charsets.UTF_8): PhraseFramer =
+                DelimiterFramer(delimiter.toByteArray(charset))
+
+        /**
+         * Phrases of fixed size in bytes
+         */
+        fun fixedSize(size: Int): PhraseFramer = FixedSizeFramer(size)
+
+        /**
+         * Default limit for the full length of length prefixed phrases
+         */
+        const val DEFAULT_MAX_LENGTH = 1024 * 1024
+
+        /**
+         * Phrases with a length prefix of given size (1, 2 or 4 bytes). The prefix is included into the phrase.
+         * A header with invalid length drops the incomplete phrase and throws [IllegalStateException], the framer
+         * could be used for the following bytes.
+         *
+         * @param headerSize the size of the length field
+         * @param order byte order of the length field
+         * @param adjustment the difference between the length of the phrase without prefix and the value of the field
+         * @param maxLength the maximum full length of the phrase including prefix
+         */
+        fun lengthPrefixed(
+                headerSize: Int,
+                order: ByteOrder = ByteOrder.BIG_ENDIAN,
+                adjustment: Int = 0,
+                maxLength: Int = DEFAULT_MAX_LENGTH
+        ): PhraseFramer = LengthPrefixedFramer(headerSize, order, adjustment, maxLength)
+
+        /**
+         * Legacy framer checking the whole accumulated string after each byte. Bytes are decoded only once, but the
+         * condition is still evaluated on the whole phrase, so delimiter or size based framers should be preferred.
+         */
+        fun condition(charset: Charset = Charsets.UTF_8, condition: (String) -> Boolean): PhraseFramer =
+                ConditionFramer(charset, condition)
+    }
+}
+
+/**
+ * Growable byte accumulator for incomplete phrases
+ */
+private class PhraseBuffer(initialCapacity: Int = 256) {
+    var bytes = ByteArray(initialCapacity)
+        private set
+    var size = 0
+        private set
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity > bytes.size) {
+            bytes = bytes.copyOf(maxOf(capacity, bytes.size * 2))
+        }
+    }
+
+    fun put(byte: Byte) {
+        ensureCapacity(size + 1)
+        bytes[size++] = byte
+    }
+
+    fun put(buffer: ByteBuffer, length: Int) {
+        ensureCapacity(size + length)
+        buffer.get(bytes, size, length)
+        size += length
+    }
+
+    fun take(): ByteArray = bytes.copyOf(size).also { size = 0 }
+
+    fun clear() {
+        size = 0
+    }
+}
+
+private class DelimiterFramer(private val delimiter: ByteArray) : PhraseFramer {
+    init {
+        require(delimiter.isNotEmpty()) { "Delimiter must not be empty" }
+    }
+
+    private val phrase = PhraseBuffer()
+    private val last = delimiter.last()
+
+    private fun endsWithDelimiter(): Boolean {
+        val bytes = phrase.bytes
+        val offset = phrase.size - delimiter.size
+        if (offset < 0) return false
+        for (i in delimiter.indices) {
+            if (bytes[offset + i] != delimiter[i]) return false
+        }
+        return true
+    }
+
+    override fun accept(buffer: ByteBuffer, emit: (ByteArray) -> Unit) {
+        while (buffer.hasRemaining()) {
+            val byte = buffer.get()
+            phrase.put(byte)
+            if (byte == last && endsWithDelimiter()) {
+                emit(phrase.take())
+            }
+        }
+    }
+
+    override fun reset() = phrase.clear()
+}
+
+private class FixedSizeFramer(private val size: Int) : PhraseFramer {
+    init {
+        require(size > 0) { "Phrase size must be positive" }
+    }
+
+    private val phrase = PhraseBuffer(size)
+
+    override fun accept(buffer: ByteBuffer, emit: (ByteArray) -> Unit) {
+        while (buffer.hasRemaining()) {
+            phrase.put(buffer, minOf(size - phrase.size, buffer.remaining()))
+            if (phrase.size == size) {
+                emit(phrase.take())
+            }
+        }
+    }
+
+    override fun reset() = phrase.clear()
+}
+
+private class LengthPrefixedFramer(
+        private val headerSize: Int,
+        private val order: ByteOrder,
+        private val adjustment: Int,
+        private val maxLength: Int
+) : PhraseFramer {
+    private val phrase = PhraseBuffer()
+
+    /**
+     * Full length of current phrase or -1 if header is not yet read
+     */
+    private var length = -1
+
+    init {
+        require(headerSize == 1 || headerSize == 2 || headerSize == 4) { "Unsupported length field size: $headerSize" }
+        require(maxLength >= headerSize) { "Maximum phrase length is less than the length field size" }
+    }
+
+    /**
+     * Read the full length of the phrase from the header. Invalid header resets the framer, so the following bytes
+     * are treated as the start of a new phrase.
+     */
+    private fun readLength(): Int {
+        val header = ByteBuffer.wrap(phrase.bytes, 0, headerSize).order(order)
+        val value: Long = when (headerSize) {
+            1 -> header.get().toLong() and 0xff
+            2 -> header.short.toLong() and 0xffff
+            else -> header.int.toLong()
+        }
+        val res = headerSize + value + adjustment
+        if (res < headerSize || res > maxLength) {
+            reset()
+            throw IllegalStateException("Invalid phrase length: $value")
+        }
+        return res.toInt()
+    }
+
+    override fun accept(buffer: ByteBuffer, emit: (ByteArray) -> Unit) {
+        while (buffer.hasRemaining()) {
+            val target = if (length < 0) headerSize else length
+            phrase.put(buffer, minOf(target - phrase.size, buffer.remaining()))
+            if (phrase.size == target) {
+                if (length < 0) {
+                    length = readLength()
+                }
+                if (phrase.size == length) {
+                    emit(phrase.take())
+                    length = -1
+                }
+            }
+        }
+    }
+
+    override fun reset() {
+        phrase.clear()
+        length = -1
+    }
+}
+
+private class ConditionFramer(charset: Charset, private val condition: (String) -> Boolean) : PhraseFramer {
+    private val decoder = charset.newDecoder()
+    private val bytes = PhraseBuffer()
+    private val phrase = StringBuilder()
+    private val chars = CharBuffer.allocate(2)
+
+    /**
+     * Start of bytes not yet decoded into characters
+     */
+    private var pending = 0
+
+    override fun accept(buffer: ByteBuffer, emit: (ByteArray) -> Unit) {
+        while (buffer.hasRemaining()) {
+            bytes.put(buffer.get())
+            val input = ByteBuffer.wrap(bytes.bytes, pending, bytes.size - pending)
+            chars.clear()
+            decoder.reset()
+            val result = decoder.decode(input, chars, false)
+            // wait for the rest of multi-byte character
+            if (result.isError || !input.hasRemaining()) {
+                if (result.isError) {
+                    phrase.append('\uFFFD')
+                } else {
+                    chars.flip()
+                    phrase.append(chars)
+                }
+                pending = bytes.size
+                if (condition(phrase.toString())) {
+                    phrase.setLength(0)
+                    pending = 0
+                    emit(bytes.take())
+                }
+            }
+        }
+    }
+
+    override fun reset() {
+        bytes.clear()
+        phrase.setLength(0)
+        pending = 0
+    }
+}
@@ -24,6 +24,7 @@ import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.launch
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+import java.nio.ByteBuffer
 import java.time.Duration
 import java.util.concurrent.Executors
 import java.util.concurrent.locks.ReentrantLock
@@ -38,9 +39,17 @@ interface PortController {
 
     fun accept(byte: Byte)
 
-    fun accept(bytes: ByteArray){
-        //TODO improve performance using byte buffers
-        bytes.forEach { accept(it) }
+    fun accept(bytes: ByteArray) {
+        accept(ByteBuffer.wrap(bytes))
+    }
+
+    /**
+     * Accept all remaining bytes of the buffer
+     */
+    fun accept(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            accept(buffer.get())
+        }
     }
 
     fun error(errorMessage: String, error: Throwable) {
@@ -138,6 +147,13 @@ abstract class Port : AutoCloseable, MetaID, Named, CoroutineScope {
         controller?.accept(bytes)
     }
 
+    /**
+     * Receive all remaining bytes of the buffer
+     */
+    fun receive(buffer: ByteBuffer) {
+        controller?.accept(buffer)
+    }
+
     /**
      * send the message to the port
      *
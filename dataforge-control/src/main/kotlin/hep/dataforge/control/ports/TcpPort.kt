@@ -18,90 +18,241 @@ package hep.dataforge.control.ports
 import hep.dataforge.exceptions.PortException
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.buildMeta
-import kotlinx.coroutines.Job
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import java.io.IOException
 import java.net.InetSocketAddress
+import java.net.StandardSocketOptions
 import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
 import java.nio.channels.SocketChannel
+import java.time.Duration
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
+ * A TCP port driven by [IOReactor]. Incoming data is copied and passed to the controller on the port thread, so
+ * framing and listeners do not block the shared reactor thread. Outgoing
+ * messages are queued and written when the socket is ready. The queue is bounded by `maxQueue` bytes, [send] waits
+ * at most `sendTimeout` milliseconds for free space. Broken connection is restored with exponential backoff between
+ * `reconnect.delay` and `reconnect.maxDelay` milliseconds, messages queued meanwhile are sent after reconnect.
+ *
  * @author Alexander Nozik
  */
-class TcpPort(val ip: String, val port: Int, val config: Meta = Meta.empty()) : Port() {
+class TcpPort @JvmOverloads constructor(
+        val ip: String,
+        val port: Int,
+        val config: Meta = Meta.empty(),
+        private val reactor: IOReactor = IOReactor.default
+) : Port(), IOReactor.Handler {
+
+    override val name = String.format("tcp::%s:%d", ip, port)
+
+    private val readBuffer = ByteBuffer.allocateDirect(config.getInt("bufferSize", 8192))
+
+    private val maxQueuedBytes = config.getInt("maxQueue", 1 shl 20)
+    private val sendTimeout = config.getInt("sendTimeout", 1000).toLong()
+    private val minReconnectDelay = config.getInt("reconnect.delay", 100).toLong()
+    private val maxReconnectDelay = config.getInt("reconnect.maxDelay", 30000).toLong()
+
+    private val writeLock = ReentrantLock()
+    private val queueSpace = writeLock.newCondition()
+    private val writeQueue = ArrayDeque<ByteBuffer>()
+    private var queuedBytes = 0
+
+    //accessed only from reactor thread
+    private var channel: SocketChannel? = null
+    private var key: SelectionKey? = null
+    private var reconnectDelay = minReconnectDelay
+    private var reconnectTask: IOReactor.Task? = null
 
-    private var channel: SocketChannel = SocketChannel.open()
+    @Volatile
+    private var connected = false
+
+    @Volatile
+    private var active = false
 
     override val isOpen: Boolean
-        get() = channel.isConnected
+        get() = connected
 
-    override val name = String.format("tcp::%s:%d", ip, port)
+    @Synchronized
+    @Throws(PortException::class)
+    override fun open() {
+        if (!active) {
+            active = true
+            reactor.execute { connect() }
+        }
+    }
 
-    private var listenerJob: Job? = null
+    private fun connect() {
+        if (!active || channel != null) {
+            return
+        }
+        try {
+            val channel = SocketChannel.open().apply {
+                configureBlocking(false)
+                setOption(StandardSocketOptions.TCP_NODELAY, true)
+            }
+            this.channel = channel
+            if (channel.connect(InetSocketAddress(ip, port))) {
+                onConnected(reactor.register(channel, SelectionKey.OP_READ, this))
+            } else {
+                key = reactor.register(channel, SelectionKey.OP_CONNECT, this)
+            }
+        } catch (ex: Exception) {
+            //unresolved or unsupported address is not an IOException, but must be retried as well
+            onFailure(ex)
+        }
+    }
+
+    private fun onConnected(key: SelectionKey) {
+        this.key = key
+        connected = true
+        reconnectDelay = minReconnectDelay
+        logger.debug("Connected to {}", name)
+        updateInterest()
+    }
 
-    private fun openChannel(): SocketChannel{
-        return SocketChannel.open(InetSocketAddress(ip, port)).apply {
-            this.configureBlocking(false)
+    private fun updateInterest() {
+        val key = this.key ?: return
+        val hasData = writeLock.withLock { writeQueue.isNotEmpty() }
+        if (connected && key.isValid) {
+            key.interestOps(if (hasData) SelectionKey.OP_READ or SelectionKey.OP_WRITE else SelectionKey.OP_READ)
         }
     }
 
-    @Throws(PortException::class)
-    override fun open() {
-        launch {
-            if (!channel.isConnected && !channel.isConnectionPending) {
-                channel = openChannel()
-                startListener()
+    override fun ready(key: SelectionKey) {
+        val channel = key.channel() as SocketChannel
+        try {
+            if (key.isConnectable && channel.finishConnect()) {
+                onConnected(key)
             }
+            if (key.isValid && key.isReadable) {
+                read(channel)
+            }
+            if (key.isValid && key.isWritable) {
+                write(channel)
+            }
+        } catch (ex: IOException) {
+            onFailure(ex)
         }
     }
 
-    @Synchronized
-    @Throws(Exception::class)
-    override fun close() {
+    private fun read(channel: SocketChannel) {
+        do {
+            val num = channel.read(readBuffer)
+            if (num < 0) {
+                throw IOException("Connection closed by remote host")
+            } else if (num > 0) {
+                readBuffer.flip()
+                val bytes = ByteArray(readBuffer.remaining())
+                readBuffer.get(bytes)
+                readBuffer.clear()
+                dispatch(bytes)
+            }
+        } while (num > 0)
+    }
+
+    /**
+     * Pass received bytes to the controller on the port thread. The port executor is single threaded, so the order
+     * of chunks is preserved.
+     */
+    private fun dispatch(bytes: ByteArray) {
         launch {
-            if(isOpen) {
-                listenerJob?.cancel()
-                channel.shutdownInput()
-                channel.shutdownOutput()
-                channel.close()
-                super.close()
+            try {
+                receive(bytes)
+            } catch (ex: Exception) {
+                logger.error("Failed to process data received from $name", ex)
             }
         }
     }
 
-    private fun startListener() {
-        listenerJob = launch {
-            val buffer = ByteBuffer.allocate(1024)
-            while (true) {
-                try {
-                    //read all content
-                    do {
-                        val num = channel.read(buffer)
-                        if (num > 0) {
-                            receive(buffer.toArray(num))
-                        }
-                        buffer.rewind()
-                    } while (num > 0)
-                    delay(50)
-                } catch (ex: Exception) {
-                    logger.error("Channel read error", ex)
-                    logger.info("Reconnecting")
-                    channel = openChannel()
+    private fun write(channel: SocketChannel) {
+        writeLock.withLock {
+            while (writeQueue.isNotEmpty()) {
+                val head = writeQueue.first
+                queuedBytes -= channel.write(head)
+                if (head.hasRemaining()) {
+                    break
                 }
+                writeQueue.removeFirst()
+            }
+            queueSpace.signalAll()
+        }
+        updateInterest()
+    }
+
+    private fun onFailure(ex: Exception) {
+        connected = false
+        key?.cancel()
+        key = null
+        try {
+            channel?.close()
+        } catch (ignored: IOException) {
+        }
+        channel = null
+        //partially written message could not be resumed on a new connection
+        writeLock.withLock {
+            val head = writeQueue.peekFirst()
+            if (head != null && head.position() > 0) {
+                writeQueue.removeFirst()
+                queuedBytes -= head.remaining()
+                queueSpace.signalAll()
+            }
+        }
+        if (active) {
+            logger.warn("Connection to {} failed: {}. Reconnecting in {} ms", name, ex.message, reconnectDelay)
+            reconnectTask = reactor.schedule(Duration.ofMillis(reconnectDelay)) { connect() }
+            reconnectDelay = minOf(reconnectDelay * 2, maxReconnectDelay)
+        }
+    }
+
+    @Synchronized
+    @Throws(Exception::class)
+    override fun close() {
+        if (active) {
+            active = false
+            reactor.execute {
+                reconnectTask?.cancel()
+                key?.cancel()
+                channel?.close()
+                key = null
+                channel = null
+                connected = false
+            }
+            //messages queued for the closed connection are dropped and blocked senders are released
+            writeLock.withLock {
+                writeQueue.clear()
+                queuedBytes = 0
+                queueSpace.signalAll()
             }
         }
+        super.close()
     }
 
+    /**
+     * Queue the message. Blocks while the queue is full, but not longer than `sendTimeout`
+     */
     @Throws(PortException::class)
     public override fun send(message: ByteArray) {
-        launch {
-            try {
-                channel.write(ByteBuffer.wrap(message))
-                logger.debug("SEND: ${String(message)}")
-            } catch (ex: Exception) {
-                throw RuntimeException(ex)
+        if (!active) {
+            throw PortException("Port $name is not open")
+        }
+        writeLock.withLock {
+            var remaining = TimeUnit.MILLISECONDS.toNanos(sendTimeout)
+            while (queuedBytes > 0 && queuedBytes + message.size > maxQueuedBytes) {
+                //waiting on reactor thread would block the writer itself
+                if (remaining <= 0 || reactor.inReactorThread) {
+                    throw PortException("Write queue of port $name is full")
+                }
+                remaining = queueSpace.awaitNanos(remaining)
             }
+            writeQueue.addLast(ByteBuffer.wrap(message))
+            queuedBytes += message.size
         }
+        logger.debug("SEND: ${String(message)}")
+        reactor.execute { updateInterest() }
     }
 
     override fun toMeta(): Meta = buildMeta {
@@ -19,17 +19,25 @@ import hep.dataforge.exceptions.PortException
 import hep.dataforge.meta.Configurable
 import hep.dataforge.meta.Configuration
 import hep.dataforge.meta.Meta
-import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 import java.time.Duration
 import java.util.concurrent.CopyOnWriteArraySet
 import java.util.function.Supplier
 
 /**
+ * A local stand-in for a device port. Planned responses are scheduled on [reactor] and delivered on the port thread the
+ * same way as data from real TCP ports.
+ *
  * @author Alexander Nozik
  */
 abstract class VirtualPort protected constructor(meta: Meta) : Port(), Configurable {
 
+    /**
+     * The reactor used to deliver responses
+     */
+    protected open val reactor: IOReactor
+        get() = IOReactor.default
+
     private val futures = CopyOnWriteArraySet<TaggedFuture>()
     override var isOpen = false
     var meta = Configuration(meta)
@@ -68,7 +76,7 @@ abstract class VirtualPort protected constructor(meta: Meta) : Port(), Configura
 
     @Synchronized
     protected fun clearCompleted() {
-        futures.stream().filter { future -> future.future.isCompleted }.forEach { futures.remove(it) }
+        futures.stream().filter { future -> future.future.isDone }.forEach { futures.remove(it) }
     }
 
     @Synchronized
@@ -86,9 +94,8 @@ abstract class VirtualPort protected constructor(meta: Meta) : Port(), Configura
     @Synchronized
     protected fun planResponse(response: String, delay: Duration, vararg tags: String) {
         clearCompleted()
-        val future = launch {
-            kotlinx.coroutines.time.delay(delay)
-            receive((response + delimeter).toByteArray())
+        val future = reactor.schedule(delay) {
+            dispatch { response }
         }
         this.futures.add(TaggedFuture(future, *tags))
     }
@@ -96,24 +103,34 @@ abstract class VirtualPort protected constructor(meta: Meta) : Port(), Configura
     @Synchronized
     protected fun planRegularResponse(responseBuilder: Supplier<String>, delay: Duration, period: Duration, vararg tags: String) {
         clearCompleted()
-        val future = launch {
-            kotlinx.coroutines.time.delay(delay)
-            while (true) {
-                receive((responseBuilder.get() + delimeter).toByteArray())
-                kotlinx.coroutines.time.delay(period)
-            }
+        val future = reactor.schedule(delay, period) {
+            dispatch { responseBuilder.get() }
         }
         this.futures.add(TaggedFuture(future, *tags))
     }
 
+    /**
+     * Build the response and pass it to the controller on the port thread
+     */
+    private fun dispatch(response: () -> String) {
+        launch {
+            try {
+                receive((response() + delimeter).toByteArray())
+            } catch (ex: Exception) {
+                logger.error("Failed to deliver virtual response from $name", ex)
+            }
+        }
+    }
+
     @Throws(Exception::class)
     override fun close() {
+        futures.forEach { it.cancel() }
         futures.clear()
         isOpen = false
         super.close()
     }
 
-    private inner class TaggedFuture(internal val future: Job, vararg tags: String) {
+    private inner class TaggedFuture(internal val future: IOReactor.Task, vararg tags: String) {
         internal val tags = setOf(*tags)
 
         fun hasTag(tag: String): Boolean {
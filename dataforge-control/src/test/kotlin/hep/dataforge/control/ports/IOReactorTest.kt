@@ -0,0 +1,122 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.control.ports
+
+import hep.dataforge.meta.Meta
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class IOReactorTest {
+    private val reactor = IOReactor("test")
+    private val server: ServerSocketChannel = ServerSocketChannel.open()
+        .bind(InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+
+    @After
+    fun tearDown() {
+        server.close()
+        reactor.close()
+    }
+
+    /**
+     * Collects received bytes and names of the threads they are delivered on
+     */
+    private class Recorder(private val expected: Int) : PortController {
+        private val bytes = ByteArrayOutputStream()
+        private val latch = CountDownLatch(1)
+        val threads: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+        val string: String
+            get() = synchronized(bytes) { bytes.toString(Charsets.US_ASCII) }
+
+        override fun accept(byte: Byte) {
+            accept(ByteBuffer.wrap(byteArrayOf(byte)))
+        }
+
+        override fun accept(buffer: ByteBuffer) {
+            threads.add(Thread.currentThread().name)
+            synchronized(bytes) {
+                while (buffer.hasRemaining()) {
+                    bytes.write(buffer.get().toInt())
+                }
+                if (bytes.size() >= expected) {
+                    latch.countDown()
+                }
+            }
+        }
+
+        fun await() {
+            assertTrue("Data is not received", latch.await(5, TimeUnit.SECONDS))
+        }
+    }
+
+    private inner class EchoVirtualPort : VirtualPort(Meta.empty()) {
+        override val name = "virtual::echo"
+
+        override val reactor: IOReactor
+            get() = this@IOReactorTest.reactor
+
+        override fun evaluateRequest(request: String) {
+            planResponse(request.trim(), Duration.ZERO)
+        }
+    }
+
+    @Test
+    fun testDeliveryOnPortThread() {
+        // a single echo exchange on loopback
+        thread(isDaemon = true) {
+            server.accept().use { client ->
+                val buffer = ByteBuffer.allocate(64)
+                client.read(buffer)
+                buffer.flip()
+                client.write(buffer)
+            }
+        }
+
+        val tcp = TcpPort("127.0.0.1", server.socket().localPort, Meta.empty(), reactor)
+        val virtual = EchoVirtualPort()
+        val tcpRecorder = Recorder(4)
+        val virtualRecorder = Recorder(5)
+        tcp.holdBy(tcpRecorder)
+        virtual.holdBy(virtualRecorder)
+
+        tcp.send(tcpRecorder, "ping".toByteArray())
+        virtual.send(virtualRecorder, "pong".toByteArray())
+        tcpRecorder.await()
+        virtualRecorder.await()
+
+        assertEquals("ping", tcpRecorder.string)
+        assertEquals("pong\n", virtualRecorder.string)
+        // controllers are never called from the shared reactor thread
+        assertEquals(setOf("port::${tcp.name}"), tcpRecorder.threads)
+        assertEquals(setOf("port::${virtual.name}"), virtualRecorder.threads)
+
+        tcp.close()
+        virtual.close()
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.control.ports
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.random.Random
+
+class PhraseFramerTest {
+
+    /**
+     * Feed the bytes to the framer in chunks of given size and collect emitted phrases
+     */
+    private fun PhraseFramer.feed(bytes: ByteArray, chunk: Int = bytes.size): List<String> {
+        val res = ArrayList<String>()
+        bytes.asList().chunked(maxOf(chunk, 1)).forEach {
+            accept(ByteBuffer.wrap(it.toByteArray())) { phrase -> res.add(String(phrase, Charsets.ISO_8859_1)) }
+        }
+        return res
+    }
+
+    private fun PhraseFramer.feed(string: String, chunk: Int = string.length): List<String> =
+            feed(string.toByteArray(Charsets.ISO_8859_1), chunk)
+
+    /**
+     * Feed the same input whole, byte by byte and in random chunks and check that the result does not depend on split
+     */
+    private fun checkSplit(framer: () -> PhraseFramer, input: ByteArray, expected: List<String>) {
+        val random = Random(42)
+        listOf(input.size, 1, 2, 3, random.nextInt(1, 8)).forEach { chunk ->
+            assertEquals("Chunk size $chunk", expected, framer().feed(input, chunk))
+        }
+    }
+
+    private fun PhraseFramer.assertInvalid(bytes: ByteArray) {
+        try {
+            feed(bytes)
+            fail("Invalid phrase accepted")
+        } catch (ex: IllegalStateException) {
+            // expected
+        }
+    }
+
+    private fun lengthPrefixed(headerSize: Int, value: Long, body: String, order: ByteOrder = ByteOrder.BIG_ENDIAN): ByteArray {
+        val buffer = ByteBuffer.allocate(headerSize + body.length).order(order)
+        when (headerSize) {
+            1 -> buffer.put(value.toByte())
+            2 -> buffer.putShort(value.toShort())
+            else -> buffer.putInt(value.toInt())
+        }
+        buffer.put(body.toByteArray(Charsets.ISO_8859_1))
+        return buffer.array()
+    }
+
+    @Test
+    fun testDelimiterSplit() {
+        val input = "first\r\nsecond\r\n\r\nthird\r\rfourth\r\ntail".toByteArray()
+        checkSplit({ PhraseFramer.delimiter("\r\n") }, input, listOf("first\r\n", "second\r\n", "\r\n", "third\r\rfourth\r\n"))
+    }
+
+    @Test
+    fun testDelimiterGarbage() {
+        val framer = PhraseFramer.delimiter("\r\n")
+        val garbage = Random(1).nextBytes(1000).map { if (it == '\n'.code.toByte()) 0.toByte() else it }.toByteArray()
+        assertTrue(framer.feed(garbage, 7).isEmpty())
+        // garbage stays in the phrase until delimiter arrives
+        assertEquals(listOf(String(garbage, Charsets.ISO_8859_1) + "ok\r\n"), framer.feed("ok\r\n", 1))
+        framer.feed("incomplete\r")
+        framer.reset()
+        assertEquals(listOf("next\r\n"), framer.feed("next\r\n"))
+    }
+
+    @Test
+    fun testFixedSizeSplit() {
+        checkSplit({ PhraseFramer.fixedSize(4) }, "abcdefghij".toByteArray(), listOf("abcd", "efgh"))
+    }
+
+    @Test
+    fun testFixedSizeGarbage() {
+        val framer = PhraseFramer.fixedSize(4)
+        assertEquals(listOf("abcd"), framer.feed("abcdef"))
+        framer.reset()
+        assertEquals(listOf("1234"), framer.feed("1234"))
+        val garbage = Random(2).nextBytes(4001)
+        assertEquals(1000, framer.feed(garbage, 13).size)
+    }
+
+    @Test
+    fun testLengthPrefixedSplit() {
+        listOf(1, 2, 4).forEach { headerSize ->
+            listOf(ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN).forEach { order ->
+                val first = lengthPrefixed(headerSize, 5, "hello", order)
+                val second = lengthPrefixed(headerSize, 0, "", order)
+                val third = lengthPrefixed(headerSize, 3, "bye", order)
+                val input = first + second + third + third.copyOf(headerSize + 1)
+                checkSplit(
+                        { PhraseFramer.lengthPrefixed(headerSize, order) },
+                        input,
+                        listOf(first, second, third).map { String(it, Charsets.ISO_8859_1) }
+                )
+            }
+        }
+    }
+
+    @Test
+    fun testLengthPrefixedAdjustment() {
+        // the field contains the length of the whole phrase including the prefix
+        val phrase = lengthPrefixed(2, 7, "hello")
+        checkSplit({ PhraseFramer.lengthPrefixed(2, adjustment = -2) }, phrase + phrase, List(2) { String(phrase, Charsets.ISO_8859_1) })
+    }
+
+    @Test
+    fun testLengthPrefixedGarbage() {
+        val framer = PhraseFramer.lengthPrefixed(4, maxLength = 100)
+        val valid = lengthPrefixed(4, 2, "ok")
+
+        // negative length
+        framer.assertInvalid(lengthPrefixed(4, -10, ""))
+        assertEquals(listOf("\u0000\u0000\u0000\u0002ok"), framer.feed(valid, 1))
+
+        // length above the limit
+        framer.assertInvalid(lengthPrefixed(4, 0x7fff_ffff, ""))
+        assertEquals(1, framer.feed(valid).size)
+
+        // adjusted length less than header
+        val adjusted = PhraseFramer.lengthPrefixed(1, adjustment = -5)
+        adjusted.assertInvalid(lengthPrefixed(1, 2, ""))
+        assertEquals(1, adjusted.feed(lengthPrefixed(1, 7, "ab")).size)
+
+        // incomplete phrase is dropped on reset
+        framer.feed(valid.copyOf(5))
+        framer.reset()
+        assertEquals(1, framer.feed(valid).size)
+    }
+
+    @Test
+    fun testConditionSplit() {
+        val input = "привет\nмир\nхвост".toByteArray(Charsets.UTF_8)
+        val res = ArrayList<String>()
+        val framer = PhraseFramer.condition { it.endsWith("\n") }
+        input.forEach { framer.accept(ByteBuffer.wrap(byteArrayOf(it))) { phrase -> res.add(String(phrase, Charsets.UTF_8)) } }
+        assertEquals(listOf("привет\n", "мир\n"), res)
+    }
+
+    @Test
+    fun testConditionGarbage() {
+        val framer = PhraseFramer.condition { it.endsWith("\n") }
+        val garbage = byteArrayOf(0xff.toByte(), 0xfe.toByte(), 0xc3.toByte())
+        assertTrue(framer.feed(garbage, 1).isEmpty())
+        assertEquals(1, framer.feed("a\n").size)
+        framer.feed("incomplete")
+        framer.reset()
+        assertEquals(listOf("b\n"), framer.feed("b\n", 1))
+    }
+}
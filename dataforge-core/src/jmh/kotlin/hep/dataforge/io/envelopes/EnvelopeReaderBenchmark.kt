@@ -0,0 +1,71 @@
+package hep.dataforge.io.envelopes
+
+import hep.dataforge.data.binary.MappedFiles
+import org.openjdk.jmh.annotations.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.*
+
+/**
+ * Reading a directory of small point envelopes, like numass set loading: each envelope is read from file and its meta
+ * and data are accessed. Compares the mapped file reader with the stream reader.
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+open class EnvelopeReaderBenchmark {
+
+    @Param("2000")
+    var envelopes: Int = 2000
+
+    @Param("1024", "65536")
+    var dataSize: Int = 1024
+
+    private lateinit var directory: Path
+    private lateinit var files: List<Path>
+
+    private val reader = DefaultEnvelopeReader.INSTANCE
+
+    @Setup
+    fun setup() {
+        directory = Files.createTempDirectory("envelope-benchmark")
+        val writer = DefaultEnvelopeWriter(DefaultEnvelopeType.INSTANCE, xmlMetaType)
+        val random = Random(0)
+        files = (0 until envelopes).map { index ->
+            val data = ByteArray(dataSize).also { random.nextBytes(it) }
+            val envelope = EnvelopeBuilder()
+                    .meta {
+                        "index" to index
+                        "voltage" to 14000 + index
+                        "acquisition_time" to 30
+                    }
+                    .data(data)
+                    .build()
+            directory.resolve("p$index").also { file ->
+                Files.newOutputStream(file).use { writer.write(it, envelope) }
+            }
+        }
+    }
+
+    @TearDown
+    fun tearDown() {
+        MappedFiles.invalidate()
+        files.forEach { Files.deleteIfExists(it) }
+        Files.deleteIfExists(directory)
+    }
+
+    private fun consume(envelope: Envelope): Long {
+        return envelope.meta.getInt("index") + envelope.data.buffer.remaining().toLong()
+    }
+
+    @Benchmark
+    fun mapped(): Long {
+        return files.sumOf { consume(reader.read(it)) }
+    }
+
+    @Benchmark
+    fun stream(): Long {
+        return files.sumOf { file -> Files.newInputStream(file).use { consume(reader.read(it)) } }
+    }
+}
@@ -0,0 +1,90 @@
+package hep.dataforge.io.envelopes
+
+import hep.dataforge.data.binary.MappedFiles
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.MetaUtils
+import hep.dataforge.meta.buildMeta
+import org.openjdk.jmh.annotations.*
+import java.io.ByteArrayOutputStream
+import java.io.ObjectOutputStream
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Instant
+
+/**
+ * Encoding and decoding of a typical numass point meta with XML, compact binary and legacy object stream binary
+ * formats, and reading meta of an envelope file with and without [MetaCache].
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+open class MetaCodecBenchmark {
+
+    private lateinit var meta: Meta
+
+    private lateinit var xml: ByteBuffer
+    private lateinit var binary: ByteBuffer
+    private lateinit var legacy: ByteBuffer
+
+    private lateinit var file: Path
+
+    @Setup
+    fun setup() {
+        meta = buildMeta("point") {
+            "index" to 12
+            "start_time" to Instant.parse("2018-04-12T10:15:30Z")
+            "acquisition_time" to 30.0
+            "voltage" to 14000
+            "description" to "Regular point of the set"
+            "iteration_info" to {
+                "iteration" to 3
+                "reverse" to false
+            }
+            (0 until 7).forEach { index ->
+                +buildMeta("channel") {
+                    "id" to index
+                    "threshold" to 12.5 * index
+                    "gain" to listOf(1.0, 0.95, 1.05)
+                }
+            }
+        }
+        xml = ByteBuffer.wrap(ByteArrayOutputStream().also { xmlMetaType.writer.write(it, meta) }.toByteArray())
+        binary = ByteBuffer.wrap(ByteArrayOutputStream().also { binaryMetaType.writer.write(it, meta) }.toByteArray())
+        legacy = ByteBuffer.wrap(ByteArrayOutputStream().also { MetaUtils.writeMeta(ObjectOutputStream(it), meta) }.toByteArray())
+
+        file = Files.createTempFile("meta-benchmark", ".df")
+        Files.newOutputStream(file).use {
+            DefaultEnvelopeWriter(DefaultEnvelopeType.INSTANCE, xmlMetaType).write(it, SimpleEnvelope(meta))
+        }
+    }
+
+    @TearDown
+    fun tearDown() {
+        MetaCache.clear()
+        MappedFiles.invalidate()
+        Files.deleteIfExists(file)
+    }
+
+    @Benchmark
+    fun decodeXml(): Meta = xmlMetaType.reader.readBuffer(xml)
+
+    @Benchmark
+    fun decodeBinary(): Meta = binaryMetaType.reader.readBuffer(binary)
+
+    @Benchmark
+    fun decodeLegacyBinary(): Meta = binaryMetaType.reader.readBuffer(legacy)
+
+    @Benchmark
+    fun encodeXml(): Int = ByteArrayOutputStream().also { xmlMetaType.writer.write(it, meta) }.size()
+
+    @Benchmark
+    fun encodeBinary(): Int = ByteArrayOutputStream().also { binaryMetaType.writer.write(it, meta) }.size()
+
+    @Benchmark
+    fun fileMetaXml(): Meta = Files.newInputStream(file).use { DefaultEnvelopeReader.INSTANCE.read(it).meta }
+
+    @Benchmark
+    fun fileMetaCached(): Meta = DefaultEnvelopeReader.INSTANCE.read(file).meta
+}
@@ -0,0 +1,58 @@
+package hep.dataforge.utils
+
+import org.openjdk.jmh.annotations.*
+import java.util.*
+import java.util.concurrent.ThreadLocalRandom
+import kotlin.math.exp
+
+/**
+ * Contention of a shared cache under multi-threaded model evaluation: each call looks up a value for one of a
+ * limited set of parameter values and computes it on miss, like loss probabilities in numass spectrum.
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Threads(8)
+@State(Scope.Benchmark)
+open class LRUCacheBenchmark {
+
+    @Param("100", "1000")
+    var keys: Int = 100
+
+    private lateinit var synchronizedCache: MutableMap<Double, Double>
+    private lateinit var lruCache: MutableMap<Double, Double>
+
+    @Setup
+    fun setup() {
+        synchronizedCache = Collections.synchronizedMap(object : LinkedHashMap<Double, Double>(16, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Double, Double>?): Boolean = size > CAPACITY
+        })
+        lruCache = LRUCache(CAPACITY)
+    }
+
+    private fun nextKey(): Double = ThreadLocalRandom.current().nextInt(keys) * 0.01
+
+    private fun compute(x: Double): Double {
+        var res = 0.0
+        for (i in 1..50) {
+            res += exp(-x * i)
+        }
+        return res
+    }
+
+    @Benchmark
+    fun synchronizedMap(): Double {
+        val key = nextKey()
+        return synchronizedCache.getOrPut(key) { compute(key) }
+    }
+
+    @Benchmark
+    fun lru(): Double {
+        val key = nextKey()
+        return lruCache.getOrPut(key) { compute(key) }
+    }
+
+    companion object {
+        private const val CAPACITY = 200
+    }
+}
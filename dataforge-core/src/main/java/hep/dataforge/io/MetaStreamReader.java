@@ -81,7 +81,20 @@ public interface MetaStreamReader {
         return read(bais, bytes.length);
     }
 
+    /**
+     * Read Meta from the remaining part of the buffer. Heap, direct and mapped
+     * buffers are read without copying. The position of the buffer is not changed.
+     *
+     * @param buffer
+     * @return
+     * @throws IOException
+     * @throws ParseException
+     */
     default MetaBuilder readBuffer(ByteBuffer buffer) throws IOException, ParseException {
-        return read(new ByteArrayInputStream(buffer.array()), buffer.limit());
+        if (buffer.hasArray()) {
+            return read(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()), buffer.remaining());
+        } else {
+            return read(new ByteBufferInputStream(buffer), buffer.remaining());
+        }
     }
 }
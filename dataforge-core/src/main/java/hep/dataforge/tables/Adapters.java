@@ -110,6 +110,46 @@ public class Adapters {
         return adapter.optComponent(point, Y_ERROR_KEY).map(Value::getDouble);
     }
 
+    /**
+     * Get the values of adapter component for all rows as an array. If the source is a {@link Table} with
+     * {@link NumericColumn} for the component and the adapter is a plain {@link BasicAdapter}, column content is used
+     * directly without creating row views. The resulting array could be shared with the column and must not be modified.
+     *
+     * @param adapter
+     * @param component
+     * @param source
+     * @return
+     */
+    public static double[] getDoubles(ValuesAdapter adapter, String component, NavigableValuesSource source) {
+        if (source instanceof Table && adapter.getClass() == BasicAdapter.class) {
+            Table table = (Table) source;
+            String name = adapter.getComponentName(component);
+            if (table.getFormat().getNames().contains(name)) {
+                Column column = table.getColumn(name);
+                if (column instanceof NumericColumn) {
+                    return ((NumericColumn) column).asDoubleArray();
+                }
+            }
+        }
+        double[] res = new double[source.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = adapter.getComponent(source.getRow(i), component).getDouble();
+        }
+        return res;
+    }
+
+    public static double[] getXDoubles(ValuesAdapter adapter, NavigableValuesSource source) {
+        return getDoubles(adapter, X_VALUE_KEY, source);
+    }
+
+    public static double[] getYDoubles(ValuesAdapter adapter, NavigableValuesSource source) {
+        return getDoubles(adapter, Y_VALUE_KEY, source);
+    }
+
+    public static double[] getYErrors(ValuesAdapter adapter, NavigableValuesSource source) {
+        return getDoubles(adapter, Y_ERROR_KEY, source);
+    }
+
     public static Values buildXYDataPoint(ValuesAdapter adapter, double x, double y, double yErr) {
         return ValueMap.Companion.of(new String[]{
                 adapter.getComponentName(X_VALUE_KEY),
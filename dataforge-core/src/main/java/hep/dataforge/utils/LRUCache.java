@@ -0,0 +1,376 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package hep.dataforge.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * A thread-safe least-recently-used cache. The cache is split into segments by key hash, each segment is an
+ * access-ordered map guarded by its own lock, so threads working with different keys do not contend. Entries could be
+ * weighted, in this case the cache is bounded by total weight instead of number of entries.
+ * <p>
+ * The bound is global: segments are not limited individually, so skewed key hashes do not cause evictions while
+ * the cache is not full. When the total weight exceeds the limit, least recently used entries are evicted from the
+ * segments holding more than their share of the limit. An entry is never evicted by its own insertion unless it
+ * alone is heavier than the whole cache, such entries are not stored at all.
+ * </p>
+ * <p>
+ * Null keys and values are not allowed. Views ({@link #entrySet()}, {@link #keySet()}, {@link #values()}) are
+ * snapshots and do not reflect subsequent changes.
+ * </p>
+ *
+ * @author Alexander Nozik
+ */
+public class LRUCache<K, V> extends AbstractMap<K, V> {
+
+    private static final int DEFAULT_CONCURRENCY = 16;
+
+    /**
+     * Minimal capacity of a segment. Small caches use less segments so that LRU order is not too coarse.
+     */
+    private static final long MIN_SEGMENT_WEIGHT = 16;
+
+    private final Segment[] segments;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    private final long maxWeight;
+    private final long segmentShare;
+    private final AtomicLong totalWeight = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxWeight        maximum total weight of the cache
+     * @param concurrencyLevel expected number of concurrently accessing threads
+     * @param weigher          weight of an entry. If null, each entry has weight 1
+     */
+    @SuppressWarnings("unchecked")
+    public LRUCache(long maxWeight, int concurrencyLevel, ToLongBiFunction<? super K, ? super V> weigher) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        long limit = Math.max(1, Math.min(concurrencyLevel, maxWeight / MIN_SEGMENT_WEIGHT));
+        int segmentCount = Integer.highestOneBit((int) Math.min(limit, 1 << 16));
+        this.segmentShare = (maxWeight + segmentCount - 1) / segmentCount;
+        this.segments = (Segment[]) new LRUCache.Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public LRUCache(long maxWeight, ToLongBiFunction<? super K, ? super V> weigher) {
+        this(maxWeight, DEFAULT_CONCURRENCY, weigher);
+    }
+
+    /**
+     * A cache bounded by number of entries
+     *
+     * @param maxItems
+     */
+    public LRUCache(int maxItems) {
+        this(maxItems, DEFAULT_CONCURRENCY, null);
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    private long weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
+        } else {
+            long weight = weigher.applyAsLong(key, value);
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative entry weight");
+            }
+            return weight;
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        V res = segmentFor(Objects.requireNonNull(key)).get(key);
+        if (res == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return res;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return segmentFor(Objects.requireNonNull(key)).containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        Segment segment = segmentFor(Objects.requireNonNull(key));
+        long weight = weigh(key, value);
+        if (weight > maxWeight) {
+            // the entry does not fit the cache, it replaces the old one and is evicted immediately
+            evictions.increment();
+            return segment.remove(key);
+        }
+        V res = segment.put(key, value, weight, false);
+        evict(segment, key);
+        return res;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Objects.requireNonNull(value);
+        Segment segment = segmentFor(Objects.requireNonNull(key));
+        long weight = weigh(key, value);
+        if (weight > maxWeight) {
+            V existing = segment.get(key);
+            if (existing == null) {
+                evictions.increment();
+            }
+            return existing;
+        }
+        V res = segment.put(key, value, weight, true);
+        if (res == null) {
+            evict(segment, key);
+        }
+        return res;
+    }
+
+    /**
+     * The segment with the largest weight
+     */
+    private Segment heaviest() {
+        Segment res = segments[0];
+        long max = res.getWeight();
+        for (int i = 1; i < segments.length; i++) {
+            long weight = segments[i].getWeight();
+            if (weight > max) {
+                max = weight;
+                res = segments[i];
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Evict least recently used entries until the total weight fits the limit. The segment of inserted entry is
+     * evicted first if it holds more than its share, otherwise the heaviest segment is evicted. Segment locks are
+     * acquired one at a time.
+     *
+     * @param origin   the segment the entry was inserted into
+     * @param inserted the key of inserted entry, it is never evicted here
+     */
+    private void evict(Segment origin, K inserted) {
+        while (totalWeight.get() > maxWeight) {
+            Segment victim = origin.getWeight() > segmentShare ? origin : heaviest();
+            if (victim.evictEldest(inserted)) {
+                continue;
+            }
+            boolean evicted = false;
+            for (Segment segment : segments) {
+                if (segment != victim && segment.evictEldest(inserted)) {
+                    evicted = true;
+                    break;
+                }
+            }
+            if (!evicted) {
+                // only the inserted entry is left
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the cached value or compute it. The computation is performed outside of the segment lock, so a value
+     * could be computed more than once by concurrent threads, but only the first one is stored and returned.
+     *
+     * @param key
+     * @param mappingFunction
+     * @return
+     */
+    @Override
+    public V computeIfAbsent(K key, @NotNull Function<? super K, ? extends V> mappingFunction) {
+        V res = get(key);
+        if (res == null) {
+            V value = mappingFunction.apply(key);
+            if (value == null) {
+                return null;
+            }
+            V existing = putIfAbsent(key, value);
+            res = existing == null ? value : existing;
+        }
+        return res;
+    }
+
+    @Override
+    public V remove(Object key) {
+        return segmentFor(Objects.requireNonNull(key)).remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int res = 0;
+        for (Segment segment : segments) {
+            res += segment.size();
+        }
+        return res;
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> res = new LinkedHashSet<>();
+        for (Segment segment : segments) {
+            segment.collect(res);
+        }
+        return Collections.unmodifiableSet(res);
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Current total weight of the cache
+     *
+     * @return
+     */
+    public long getWeight() {
+        return totalWeight.get();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LRUCache[size=%d, weight=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                size(), getWeight(), maxWeight, getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final long weight;
+
+        Node(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight = 0;
+
+        private void addWeight(long delta) {
+            weight += delta;
+            totalWeight.addAndGet(delta);
+        }
+
+        synchronized V get(Object key) {
+            Node<V> node = map.get(key);
+            return node == null ? null : node.value;
+        }
+
+        synchronized boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        synchronized V put(K key, V value, long entryWeight, boolean onlyIfAbsent) {
+            Node<V> old = map.get(key);
+            if (old != null && onlyIfAbsent) {
+                return old.value;
+            }
+            map.put(key, new Node<>(value, entryWeight));
+            addWeight(entryWeight - (old == null ? 0 : old.weight));
+            return old == null ? null : old.value;
+        }
+
+        synchronized V remove(Object key) {
+            Node<V> old = map.remove(key);
+            if (old == null) {
+                return null;
+            } else {
+                addWeight(-old.weight);
+                return old.value;
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            addWeight(-weight);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long getWeight() {
+            return weight;
+        }
+
+        synchronized void collect(Set<Entry<K, V>> target) {
+            map.forEach((key, node) -> target.add(new SimpleImmutableEntry<>(key, node.value)));
+        }
+
+        /**
+         * Remove the least recently used entry except the one with the given key
+         *
+         * @return true if an entry was removed
+         */
+        synchronized boolean evictEldest(Object except) {
+            Iterator<Map.Entry<K, Node<V>>> iterator = map.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, Node<V>> entry = iterator.next();
+                if (!entry.getKey().equals(except)) {
+                    iterator.remove();
+                    addWeight(-entry.getValue().weight);
+                    evictions.increment();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
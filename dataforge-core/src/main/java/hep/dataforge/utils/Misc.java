@@ -7,8 +7,6 @@ package hep.dataforge.utils;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
 
@@ -19,20 +17,17 @@ public class Misc {
     public static final Charset UTF = StandardCharsets.UTF_8;
 
     /**
-     * A synchronized lru cache
+     * A thread-safe lru cache
      *
      * @param <K>
      * @param <V>
      * @param maxItems
      * @return
+     * @deprecated use {@link LRUCache} directly
      */
+    @Deprecated
     public static <K, V> Map<K, V> getLRUCache(int maxItems) {
-        return Collections.synchronizedMap(new LinkedHashMap<K, V>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-                return super.size() > maxItems;
-            }
-        });
+        return new LRUCache<>(maxItems);
     }
 
     /**
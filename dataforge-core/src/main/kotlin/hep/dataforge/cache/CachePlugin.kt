@@ -32,7 +32,10 @@ import hep.dataforge.data.NamedData
 import hep.dataforge.goals.Goal
 import hep.dataforge.goals.GoalListener
 import hep.dataforge.meta.Meta
+import hep.dataforge.meta.digestString
 import hep.dataforge.names.Name
+import hep.dataforge.tables.Table
+import hep.dataforge.values.Values
 import java.io.Serializable
 import java.util.concurrent.CompletableFuture
 import java.util.stream.Stream
@@ -72,7 +75,7 @@ class CachePlugin(meta: Meta) : BasicPlugin(meta) {
 
 
     fun <V> cache(cacheName: String, data: Data<V>, id: Meta): Data<V> {
-        if (bypass(data) || !Serializable::class.java.isAssignableFrom(data.type)) {
+        if (bypass(data) || !isCacheable(data.type)) {
             return data
         } else {
             val cache = getCache(cacheName, data.type)
@@ -92,7 +95,7 @@ class CachePlugin(meta: Meta) : BasicPlugin(meta) {
                     when {
                         data.goal.isDone -> data.future.thenAccept { result.complete(it) }
                         cache.containsKey(id) -> {
-                            logger.info("Cached result found. Restoring data from cache for id {}", id.hashCode())
+                            logger.info("Cached result found. Restoring data from cache for id {}", id.digestString())
                             CompletableFuture.supplyAsync { cache.get(id) }.whenComplete { res, err ->
                                 if (res != null) {
                                     result.complete(res)
@@ -172,7 +175,10 @@ class CachePlugin(meta: Meta) : BasicPlugin(meta) {
         return builder.build()
     }
 
-    private fun <V> getCache(name: String, type: Class<V>): Cache<Meta, V> {
+    /**
+     * Get or create a cache with given name and value type
+     */
+    fun <V> getCache(name: String, type: Class<V>): Cache<Meta, V> {
         return manager.getCache(name, Meta::class.java, type)
             ?: manager.createCache(name, MetaCacheConfiguration(meta, type))
     }
@@ -187,6 +193,25 @@ class CachePlugin(meta: Meta) : BasicPlugin(meta) {
     //        super.applyConfig(config);
     //    }
 
+    private fun isCacheable(type: Class<*>): Boolean =
+        Serializable::class.java.isAssignableFrom(type) ||
+                Table::class.java.isAssignableFrom(type) ||
+                Values::class.java.isAssignableFrom(type)
+
+    /**
+     * Hit rate and latency metrics for caches. Available only for the default cache implementation.
+     */
+    val statistics: List<CacheStatistics>
+        get() = (manager as? DefaultCacheManager)?.statistics ?: emptyList()
+
+    /**
+     * Register additional serializer for the default cache implementation
+     */
+    fun registerSerializer(serializer: CacheSerializer) {
+        (manager as? DefaultCacheManager)?.serializers?.add(0, serializer)
+            ?: logger.warn("Custom serializers are not supported by cache manager $manager")
+    }
+
     fun invalidate(cacheName: String) {
         manager.destroyCache(cacheName)
     }
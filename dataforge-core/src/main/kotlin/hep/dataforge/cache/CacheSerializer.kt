@@ -0,0 +1,135 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.cache
+
+import hep.dataforge.io.envelopes.binaryMetaType
+import hep.dataforge.tables.ColumnarTable
+import hep.dataforge.tables.MetaTableFormat
+import hep.dataforge.tables.Table
+import hep.dataforge.values.*
+import java.io.*
+
+/**
+ * A serializer for values stored in the file tier of [DefaultCache]
+ */
+interface CacheSerializer {
+    /**
+     * The name of the serializer stored alongside the data
+     */
+    val name: String
+
+    /**
+     * The type of objects produced by [read] or null if the object is restored with its original type. The serializer
+     * is used only by caches which value type is assignable from it.
+     */
+    val readType: Class<*>? get() = null
+
+    fun accepts(value: Any): Boolean
+
+    fun write(stream: OutputStream, value: Any)
+
+    fun read(stream: InputStream): Any
+}
+
+/**
+ * Default serializer for any [Serializable] object
+ */
+object JavaCacheSerializer : CacheSerializer {
+    override val name: String = "java"
+
+    override fun accepts(value: Any): Boolean = value is Serializable
+
+    override fun write(stream: OutputStream, value: Any) {
+        ObjectOutputStream(stream).apply {
+            writeObject(value)
+            flush()
+        }
+    }
+
+    override fun read(stream: InputStream): Any = ObjectInputStream(stream).readObject()
+}
+
+/**
+ * Compact binary serializer for [Values]
+ */
+object ValuesCacheSerializer : CacheSerializer {
+    override val name: String = "values"
+
+    override val readType: Class<*> = ValueMap::class.java
+
+    override fun accepts(value: Any): Boolean = value is Values
+
+    override fun write(stream: OutputStream, value: Any) {
+        val values = value as Values
+        val out = DataOutputStream(stream)
+        val names = values.names.asList()
+        out.writeInt(names.size)
+        names.forEach { name ->
+            out.writeUTF(name)
+            out.writeValue(values.getValue(name))
+        }
+        out.flush()
+    }
+
+    override fun read(stream: InputStream): Any {
+        val input = DataInputStream(stream)
+        val map = LinkedHashMap<String, Value>()
+        repeat(input.readInt()) {
+            map[input.readUTF()] = input.readValue()
+        }
+        return ValueMap(map)
+    }
+}
+
+/**
+ * Compact binary serializer for [Table]. Table format is stored as binary meta, rows are stored as values
+ * in the order of format columns.
+ */
+object TableCacheSerializer : CacheSerializer {
+    override val name: String = "table"
+
+    override val readType: Class<*> = ColumnarTable::class.java
+
+    override fun accepts(value: Any): Boolean = value is Table
+
+    override fun write(stream: OutputStream, value: Any) {
+        val table = value as Table
+        val out = DataOutputStream(stream)
+        val formatBytes = ByteArrayOutputStream().also { binaryMetaType.writer.write(it, table.format.toMeta()) }
+        out.writeInt(formatBytes.size())
+        formatBytes.writeTo(out)
+
+        val names = table.format.namesAsArray()
+        out.writeInt(table.size())
+        table.forEach { row ->
+            names.forEach { name -> out.writeValue(row.optValue(name).orElse(Value.NULL)) }
+        }
+        out.flush()
+    }
+
+    override fun read(stream: InputStream): Any {
+        val input = DataInputStream(stream)
+        val formatBytes = ByteArray(input.readInt()).also { input.readFully(it) }
+        val format = MetaTableFormat(binaryMetaType.reader.read(ByteArrayInputStream(formatBytes), -1))
+        val names = format.namesAsArray()
+        val builder = ColumnarTable.Builder(format)
+        repeat(input.readInt()) {
+            builder.row(*Array<Any>(names.size) { input.readValue() })
+        }
+        return builder.buildUnsafe()
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.cache
+
+/**
+ * Usage metrics of a single cache
+ *
+ * @property hits number of values found in memory
+ * @property fileHits number of values restored from files
+ * @property misses number of requests for absent values
+ * @property getNanos total time spent in get requests
+ * @property putNanos total time spent in put requests
+ * @property fileCacheSize total size of cache files in bytes
+ */
+data class CacheStatistics(
+        val name: String,
+        val hits: Long,
+        val fileHits: Long,
+        val misses: Long,
+        val getNanos: Long,
+        val puts: Long,
+        val putNanos: Long,
+        val evictions: Long,
+        val fileCacheSize: Long
+) {
+    val gets: Long get() = hits + fileHits + misses
+
+    val hitRate: Double get() = if (gets == 0L) 0.0 else (hits + fileHits).toDouble() / gets
+
+    val averageGetMillis: Double get() = if (gets == 0L) 0.0 else getNanos / 1e6 / gets
+
+    val averagePutMillis: Double get() = if (puts == 0L) 0.0 else putNanos / 1e6 / puts
+}
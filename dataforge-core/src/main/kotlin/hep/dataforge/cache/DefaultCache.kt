@@ -16,21 +16,20 @@
 
 package hep.dataforge.cache
 
-import hep.dataforge.Named
 import hep.dataforge.context.Context
 import hep.dataforge.context.ContextAware
 import hep.dataforge.io.envelopes.*
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.MetaHolder
 import hep.dataforge.meta.MetaMorph
-import hep.dataforge.nullable
-import hep.dataforge.utils.Misc
+import hep.dataforge.meta.buildMeta
+import hep.dataforge.meta.digestString
+import hep.dataforge.utils.LRUCache
 import java.io.*
 import java.nio.file.Files
 import java.nio.file.Path
-import java.nio.file.StandardOpenOption.CREATE
-import java.nio.file.StandardOpenOption.WRITE
-import java.util.*
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.atomic.AtomicLong
 import javax.cache.Cache
 import javax.cache.configuration.CacheEntryListenerConfiguration
 import javax.cache.configuration.Configuration
@@ -40,7 +39,13 @@ import javax.cache.processor.EntryProcessorException
 import javax.cache.processor.EntryProcessorResult
 
 /**
- * Default implementation for jCache caching
+ * Default implementation for jCache caching.
+ *
+ * The cache has two tiers: an in-memory LRU cache and a file cache. Entries are identified by [digestString] of the key meta,
+ * which is also used as a file name. The list of cached files is kept in an index file, so the directory is scanned only
+ * if the index is missing. File cache size and age are limited by `fileCache.maxSize` (in bytes) and
+ * `fileCache.maxAge` (in seconds), the least recently accessed entries are evicted first.
+ *
  * Created by darksnake on 10-Feb-17.
  */
 class DefaultCache<K, V>(
@@ -49,43 +54,148 @@ class DefaultCache<K, V>(
         private val keyType: Class<K>,
         private val valueType: Class<V>) : MetaHolder(manager.meta), Cache<K, V>, ContextAware {
 
-    private val softCache: MutableMap<K, V> by lazy {
-        Misc.getLRUCache<K, V>(meta.getInt("softCache.size", 500))
+    private class SoftEntry<K, V>(val key: K, val value: V)
+
+    private val softCache: MutableMap<String, SoftEntry<K, V>> by lazy {
+        LRUCache<String, SoftEntry<K, V>>(meta.getInt("softCache.size", 500))
     }
 
-    private val hardCache = HashMap<Meta, Path>()
+    private class IndexEntry(val file: String, val serializer: String, val size: Long, val created: Long, var accessed: Long)
+
+    /**
+     * Index of the file cache. Loaded on first access to the file cache.
+     */
+    private val indexDelegate = lazy { loadIndex() }
+    private val index: MutableMap<String, IndexEntry> by indexDelegate
+
     private val cacheDir: Path = manager.rootCacheDir.resolve(name)
         get() {
             Files.createDirectories(field)
             return field
         }
 
-    init {
-        scanDirectory()
+    private val indexFile: Path
+        get() = cacheDir.resolve(INDEX_FILE)
+
+    private val hits = AtomicLong(0)
+    private val fileHits = AtomicLong(0)
+    private val misses = AtomicLong(0)
+    private val getNanos = AtomicLong(0)
+    private val puts = AtomicLong(0)
+    private val putNanos = AtomicLong(0)
+    private val evictions = AtomicLong(0)
+
+    /**
+     * Current cache usage metrics
+     */
+    val statistics: CacheStatistics
+        get() = CacheStatistics(
+                name,
+                hits.get(),
+                fileHits.get(),
+                misses.get(),
+                getNanos.get(),
+                puts.get(),
+                putNanos.get(),
+                evictions.get(),
+                synchronized(this) { if (indexDelegate.isInitialized()) index.values.sumOf { it.size } else 0L }
+        )
+
+    private fun loadIndex(): MutableMap<String, IndexEntry> {
+        val res = LinkedHashMap<String, IndexEntry>(16, 0.75f, true)
+        if (!hardCacheEnabled()) return res
+        if (Files.exists(indexFile)) {
+            try {
+                DataInputStream(Files.newInputStream(indexFile).buffered()).use { input ->
+                    if (input.readInt() == INDEX_MAGIC) {
+                        repeat(input.readInt()) {
+                            val digest = input.readUTF()
+                            val entry = IndexEntry(input.readUTF(), input.readUTF(), input.readLong(), input.readLong(), input.readLong())
+                            if (Files.exists(cacheDir.resolve(entry.file))) {
+                                res[digest] = entry
+                            }
+                        }
+                        return res
+                    }
+                }
+            } catch (e: IOException) {
+                logger.error("Failed to read cache index {}. Rebuilding index.", indexFile)
+            }
+        }
+        scanDirectory(res)
+        return res
     }
 
-    //    private Envelope read(Path file) {
-    //        return reader.read(file);
-    //    }
+    /**
+     * Build index from cache files. Used only when the index file is missing or corrupted.
+     */
+    private fun scanDirectory(res: MutableMap<String, IndexEntry>) {
+        try {
+            Files.list(cacheDir).filter { it.fileName.toString().endsWith(".df") }.forEach { file ->
+                try {
+                    val envelope = reader.read(file)
+                    val (id, serializer) = if (envelope.meta.hasMeta(ID_KEY)) {
+                        Pair(envelope.meta.getMeta(ID_KEY), envelope.meta.getString(SERIALIZER_KEY, JavaCacheSerializer.name))
+                    } else {
+                        //legacy cache file with key as envelope meta
+                        Pair(envelope.meta, JavaCacheSerializer.name)
+                    }
+                    val modified = Files.getLastModifiedTime(file).toMillis()
+                    res[id.digestString()] = IndexEntry(file.fileName.toString(), serializer, Files.size(file), modified, modified)
+                } catch (e: Exception) {
+                    logger.error("Failed to read cache file {}. Deleting corrupted file.", file.toString())
+                    file.toFile().delete()
+                }
+            }
+        } catch (e: IOException) {
+            throw RuntimeException("Can't list contents of" + cacheDir.toString())
+        }
+    }
 
     @Synchronized
-    private fun scanDirectory() {
-        if (hardCacheEnabled()) {
-            hardCache.clear()
-            try {
-                Files.list(cacheDir).filter { it -> it.endsWith("df") }.forEach { file ->
-                    try {
-                        val envelope = reader.read(file)
-                        hardCache[envelope.meta] = file
-                    } catch (e: Exception) {
-                        logger.error("Failed to read cache file {}. Deleting corrupted file.", file.toString())
-                        file.toFile().delete()
-                    }
+    private fun writeIndex() {
+        try {
+            val tmp = Files.createTempFile(cacheDir, INDEX_FILE, ".tmp")
+            DataOutputStream(Files.newOutputStream(tmp).buffered()).use { out ->
+                out.writeInt(INDEX_MAGIC)
+                out.writeInt(index.size)
+                index.forEach { (digest, entry) ->
+                    out.writeUTF(digest)
+                    out.writeUTF(entry.file)
+                    out.writeUTF(entry.serializer)
+                    out.writeLong(entry.size)
+                    out.writeLong(entry.created)
+                    out.writeLong(entry.accessed)
                 }
-            } catch (e: IOException) {
-                throw RuntimeException("Can't list contents of" + cacheDir.toString())
             }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (ex: IOException) {
+            logger.error("Failed to write cache index {}", indexFile, ex)
+        }
+    }
 
+    /**
+     * Remove expired entries and least recently used entries exceeding size limit from the file cache
+     */
+    @Synchronized
+    private fun evict() {
+        val maxAge = meta.getDouble("fileCache.maxAge", -1.0)
+        val maxSize = meta.getDouble("fileCache.maxSize", DEFAULT_MAX_SIZE)
+        val now = System.currentTimeMillis()
+        var totalSize = index.values.sumOf { it.size }
+        //index iterates from least recently accessed entries
+        val iterator = index.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next().value
+            val expired = maxAge > 0 && now - entry.created > maxAge * 1000
+            if (expired || (maxSize > 0 && totalSize > maxSize)) {
+                iterator.remove()
+                totalSize -= entry.size
+                evictions.incrementAndGet()
+                Files.deleteIfExists(cacheDir.resolve(entry.file))
+            } else if (maxAge <= 0) {
+                break
+            }
         }
     }
 
@@ -97,23 +207,52 @@ class DefaultCache<K, V>(
         }
     }
 
-    override fun get(key: K): V? {
-        val id: Meta = getID(key)
+    private fun serializer(name: String): CacheSerializer =
+            manager.serializers.find { it.name == name }
+                    ?: JavaCacheSerializer.takeIf { it.name == name }
+                    ?: throw DataCacheException("Cache serializer $name not found")
 
-        return softCache[key] ?: getFromHardCache(id).map<V> { cacheFile ->
-            try {
-                ObjectInputStream(reader.read(cacheFile).data.stream).use { ois ->
-                    (valueType.cast(ois.readObject())).also {
-                        softCache[key] = it
-                    }
+    /**
+     * The first serializer which accepts the value and reads back an object of [valueType].
+     * [JavaCacheSerializer] is used if there is no such serializer.
+     */
+    private fun serializerFor(value: Any): CacheSerializer? =
+            manager.serializers.find { serializer ->
+                serializer.accepts(value) && serializer.readType.let { it == null || valueType.isAssignableFrom(it) }
+            } ?: JavaCacheSerializer.takeIf { it.accepts(value) }
+
+    override fun get(key: K): V? {
+        val start = System.nanoTime()
+        val digest = getID(key).digestString()
+        val res = softCache[digest]?.value?.also { hits.incrementAndGet() } ?: getFromHardCache(key, digest)
+        if (res == null) {
+            misses.incrementAndGet()
+        }
+        getNanos.addAndGet(System.nanoTime() - start)
+        return res
+    }
+
+    private fun getFromHardCache(key: K, digest: String): V? {
+        if (!hardCacheEnabled()) return null
+        val entry = synchronized(this) {
+            index[digest]?.also { it.accessed = System.currentTimeMillis() }
+        } ?: return null
+        val cacheFile = cacheDir.resolve(entry.file)
+        return try {
+            reader.read(cacheFile).data.stream.use { stream ->
+                valueType.cast(serializer(entry.serializer).read(stream)).also {
+                    softCache[digest] = SoftEntry(key, it)
+                    fileHits.incrementAndGet()
                 }
-            } catch (ex: Exception) {
-                logger.error("Failed to read cached object with id '{}' from file with message: {}. Deleting corrupted file.", id.toString(), ex.message)
-                hardCache.remove(id)
-                cacheFile.toFile().delete()
-                null
             }
-        }.nullable
+        } catch (ex: Exception) {
+            logger.error("Failed to read cached object with id '{}' from file with message: {}. Deleting corrupted file.", digest, ex.message)
+            synchronized(this) {
+                index.remove(digest)
+            }
+            cacheFile.toFile().delete()
+            null
+        }
     }
 
 
@@ -122,13 +261,8 @@ class DefaultCache<K, V>(
     }
 
     override fun containsKey(key: K): Boolean {
-        val id: Meta = getID(key)
-        return softCache.containsKey(key) || getFromHardCache(id).isPresent
-    }
-
-    private fun getFromHardCache(id: Meta): Optional<Path> {
-        //work around for meta numeric hashcode inequality
-        return hardCache.entries.stream().filter { entry -> entry.key == id }.findFirst().map { it.value }
+        val digest = getID(key).digestString()
+        return softCache.containsKey(digest) || hardCacheEnabled() && synchronized(this) { index.containsKey(digest) }
     }
 
     override fun loadAll(keys: Set<K>, replaceExistingValues: Boolean, completionListener: CompletionListener) {
@@ -141,32 +275,35 @@ class DefaultCache<K, V>(
 
     @Synchronized
     override fun put(key: K, data: V) {
+        val start = System.nanoTime()
         val id: Meta = getID(key)
-        softCache[key] = data
-        if (hardCacheEnabled() && data is Serializable) {
-            var fileName = data.javaClass.simpleName
-            if (data is Named) {
-                fileName += "[" + (data as Named).name + "]"
-            }
-            fileName += Integer.toUnsignedLong(id.hashCode()).toString() + ".df"
-
+        val digest = id.digestString()
+        softCache[digest] = SoftEntry(key, data)
+        val serializer = data?.let { serializerFor(it) }
+        if (hardCacheEnabled() && data != null && serializer != null) {
+            val fileName = "$digest.df"
             val file = cacheDir.resolve(fileName)
 
             try {
-                Files.newOutputStream(file, WRITE, CREATE).use { fos ->
-                    val baos = ByteArrayOutputStream()
-                    val oos = ObjectOutputStream(baos)
-                    oos.writeObject(data)
-                    val builder = EnvelopeBuilder().meta(id).data(baos.toByteArray())
-                    baos.close()
-                    writer.write(fos, builder.build())
-                    hardCache.put(id, file)
+                val bytes = ByteArrayOutputStream().also { serializer.write(it, data) }.toByteArray()
+                val envelopeMeta = buildMeta {
+                    SERIALIZER_KEY to serializer.name
+                    putNode(ID_KEY, id)
+                }
+                Files.newOutputStream(file).use { fos ->
+                    writer.write(fos, EnvelopeBuilder().meta(envelopeMeta).data(bytes).build())
                 }
+                val now = System.currentTimeMillis()
+                index[digest] = IndexEntry(fileName, serializer.name, Files.size(file), now, now)
+                evict()
+                writeIndex()
             } catch (ex: IOException) {
-                logger.error("Failed to write data with id hashcode '{}' to file with message: {}", id.hashCode(), ex.message)
+                logger.error("Failed to write data with id '{}' to file with message: {}", digest, ex.message)
             }
 
         }
+        puts.incrementAndGet()
+        putNanos.addAndGet(System.nanoTime() - start)
     }
 
     override fun getAndPut(key: K, value: V): V {
@@ -218,6 +355,11 @@ class DefaultCache<K, V>(
         //TODO add uninitialized check
         softCache.clear()
         try {
+            synchronized(this) {
+                if (hardCacheEnabled()) {
+                    index.clear()
+                }
+            }
             if (hardCacheEnabled() && Files.exists(cacheDir)) {
                 cacheDir.toFile().deleteRecursively()
             }
@@ -245,7 +387,11 @@ class DefaultCache<K, V>(
     }
 
     override fun close() {
-
+        synchronized(this) {
+            if (indexDelegate.isInitialized() && Files.exists(manager.rootCacheDir.resolve(name))) {
+                writeIndex()
+            }
+        }
     }
 
     override fun isClosed(): Boolean {
@@ -265,7 +411,7 @@ class DefaultCache<K, V>(
     }
 
     override fun iterator(): MutableIterator<Cache.Entry<K, V>> {
-        return softCache.entries.stream()
+        return softCache.values.toList().stream()
                 .map { entry -> DefaultEntry(entry.key) { entry.value } }
                 .iterator()
     }
@@ -293,6 +439,11 @@ class DefaultCache<K, V>(
     }
 
     companion object {
+        private const val INDEX_FILE = "index"
+        private const val INDEX_MAGIC = 0x44464349 // DFCI
+        private const val ID_KEY = "id"
+        private const val SERIALIZER_KEY = "serializer"
+        private const val DEFAULT_MAX_SIZE = 1024.0 * 1024 * 1024
 
         private val reader = DefaultEnvelopeReader()
         private val writer = DefaultEnvelopeWriter(DefaultEnvelopeType.INSTANCE, xmlMetaType)
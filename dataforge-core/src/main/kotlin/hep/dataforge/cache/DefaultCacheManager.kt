@@ -25,6 +25,7 @@ import java.net.URI
 import java.nio.file.Path
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
 import javax.cache.CacheManager
 import javax.cache.Caching
 import javax.cache.configuration.Configuration
@@ -39,6 +40,20 @@ class DefaultCacheManager(override val context: Context, cfg: Meta) : MetaHolder
     val rootCacheDir: Path
         get() = context.tmpDir.resolve("cache")
 
+    /**
+     * Serializers for the file cache. The first serializer accepting the value is used, so more specific serializers
+     * should be added to the beginning of the list.
+     */
+    val serializers: MutableList<CacheSerializer> = CopyOnWriteArrayList(
+            listOf(TableCacheSerializer, ValuesCacheSerializer, JavaCacheSerializer)
+    )
+
+    /**
+     * Usage metrics for all caches
+     */
+    val statistics: List<CacheStatistics>
+        get() = map.values.map { it.statistics }
+
     override fun getCachingProvider(): CachingProvider {
         return DefaultCachingProvider(context)
     }
@@ -88,6 +88,12 @@ interface Binary : Serializable {
         return read(start, (size - start).toInt())
     }
 
+    /**
+     * A part of this binary with given offset and size. Implementations could return a view without copying data,
+     * by default the part is read into memory.
+     */
+    fun slice(offset: Long, size: Long): Binary = BufferedBinary(read(offset.toInt(), size.toInt()))
+
     companion object {
         val EMPTY: Binary = BufferedBinary(ByteArray(0))
     }
@@ -5,40 +5,96 @@
  */
 package hep.dataforge.data.binary
 
+import hep.dataforge.io.ByteBufferInputStream
 import java.io.IOException
 import java.io.InputStream
 import java.io.ObjectStreamException
 import java.io.WriteAbortedException
 import java.nio.ByteBuffer
-import java.nio.channels.ByteChannel
+import java.nio.channels.Channels
 import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
 import java.nio.file.Files
 import java.nio.file.Path
-import java.nio.file.StandardOpenOption
 import java.nio.file.StandardOpenOption.READ
 
 /**
+ * A binary backed by a file. The file is read via shared mapping from [MappedFiles], so binaries for different parts
+ * of the same file do not open new file handles and [read], [buffer] and [slice] do not copy data.
  *
  * @param file File to create binary from
  * @param dataOffset  dataOffset form beginning of file
+ * @param mappable checked on each access. If it returns false, the file is read via channels and not mapped. Used for
+ * files open for writing, since a live mapping prevents truncation or deletion of the file on some platforms.
  */
 class FileBinary(
-        private val file: Path,
-        private val dataOffset: Long = 0,
-        private val _size: Long = -1
+        val file: Path,
+        val dataOffset: Long = 0,
+        private val _size: Long = -1,
+        private val mappable: () -> Boolean = { true }
 ) : Binary {
 
+    /**
+     * A read-only view of the data block or null if file could not be mapped. The view ends at the end of file if
+     * the declared size exceeds it (the file is truncated or still being written).
+     */
+    private fun mapped(): ByteBuffer? {
+        if (!mappable()) return null
+        return MappedFiles.map(file)?.let { whole ->
+            val capacity = whole.capacity().toLong()
+            val end = if (_size >= 0) minOf(dataOffset + _size, capacity) else capacity
+            whole.limit(end.toInt())
+            whole.position(minOf(dataOffset, end).toInt())
+            whole.slice()
+        }
+    }
+
     override val stream: InputStream
-        get() = Files.newInputStream(file, READ).also { it.skip(dataOffset) }
+        get() = mapped()?.let { ByteBufferInputStream(it) } ?: Channels.newInputStream(openChannel())
+
+    /**
+     * A channel for files which could not be mapped. The channel is limited to the data block.
+     */
+    private fun openChannel(): ReadableByteChannel {
+        val channel = FileChannel.open(file, READ).position(dataOffset)
+        return if (_size < 0) {
+            channel
+        } else {
+            object : ReadableByteChannel by channel {
+                private var remaining = _size
+
+                override fun read(dst: ByteBuffer): Int {
+                    if (remaining <= 0) return -1
+                    val limit = dst.limit()
+                    if (dst.remaining() > remaining) {
+                        dst.limit(dst.position() + remaining.toInt())
+                    }
+                    val count = try {
+                        channel.read(dst)
+                    } finally {
+                        dst.limit(limit)
+                    }
+                    if (count > 0) remaining -= count
+                    return count
+                }
+            }
+        }
+    }
 
-    override val channel: ByteChannel
-        get() = FileChannel.open(file, READ).position(dataOffset)
+    override val channel: ReadableByteChannel
+        get() = Channels.newChannel(stream)
 
     override val buffer: ByteBuffer
-        get() = read(0, size.toInt())
+        get() = mapped() ?: run {
+            if (size > Int.MAX_VALUE) {
+                throw IOException("Binary of $size bytes could not be represented as a single buffer, use stream or slice instead")
+            }
+            read(0, size.toInt())
+        }
 
     /**
-     * Read a buffer with given dataOffset in respect to data block start and given size. If data size w
+     * Read a buffer with given dataOffset in respect to data block start and given size. The buffer is a read-only
+     * view of the shared file mapping. The buffer is shorter than [size] if the end of file is reached.
      *
      * @param offset
      * @param size
@@ -46,16 +102,26 @@ class FileBinary(
      * @throws IOException
      */
     override fun read(offset: Int, size: Int): ByteBuffer {
-        return FileChannel.open(file, StandardOpenOption.READ).use { it.map(FileChannel.MapMode.READ_ONLY, dataOffset + offset, size.toLong())}
+        val mapped = mapped()
+        return if (mapped != null) {
+            mapped.limit(minOf(offset.toLong() + size, mapped.limit().toLong()).toInt())
+            mapped.position(minOf(offset, mapped.limit()))
+            mapped.slice()
+        } else {
+            MappedFiles.read(file, dataOffset + offset, size)
+        }
     }
 
+    override fun slice(offset: Long, size: Long): Binary = FileBinary(file, dataOffset + offset, size, mappable)
+
     override val size: Long
         get() = if (_size >= 0) _size else Files.size(file) - dataOffset
 
     @Throws(ObjectStreamException::class)
     private fun writeReplace(): Any {
         try {
-            return BufferedBinary(buffer.array())
+            val buffer = this.buffer
+            return BufferedBinary(ByteArray(buffer.remaining()).also { buffer.get(it) })
         } catch (e: IOException) {
             throw WriteAbortedException("Failed to get byte buffer", e)
         }
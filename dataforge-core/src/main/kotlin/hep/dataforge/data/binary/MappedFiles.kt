@@ -0,0 +1,190 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.data.binary
+
+import hep.dataforge.utils.LRUCache
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.ToLongBiFunction
+
+/**
+ * Shared read-only file mappings and a bounded pool of open file channels.
+ *
+ * A file is mapped once and the mapping is shared by all binaries reading it. The mapping is replaced when file size
+ * or modification time changes. Mappings are kept in LRU order bounded by total mapped size, evicted mappings are
+ * released by GC. Files which could not be mapped in a single buffer are read via pooled channels.
+ *
+ * The number of pooled channels could be configured via `dataforge.binary.maxOpenFiles` system property, the
+ * total size of cached mappings via `dataforge.binary.maxMappedBytes`.
+ *
+ * @author Alexander Nozik
+ */
+object MappedFiles {
+
+    private class Mapping(val size: Long, val modified: FileTime, val buffer: ByteBuffer)
+
+    private class PooledChannel(val channel: FileChannel) {
+        var leases = 0
+    }
+
+    private val maxOpenChannels: Int = Integer.getInteger("dataforge.binary.maxOpenFiles", 32)
+
+    private val maxMappedBytes: Long = java.lang.Long.getLong("dataforge.binary.maxMappedBytes", 4L shl 30)
+
+    /**
+     * Single segment is used so that large files are not evicted by segment size limit
+     */
+    private val mappings = LRUCache<Path, Mapping>(maxMappedBytes, 1, ToLongBiFunction { _, mapping -> mapping.size })
+
+    private val channels = LinkedHashMap<Path, PooledChannel>(16, 0.75f, true)
+
+    private val openedChannels = AtomicLong()
+
+    /**
+     * The number of currently open pooled channels
+     */
+    val openChannelCount: Int
+        @Synchronized get() = channels.size
+
+    /**
+     * The total number of channels opened by the pool
+     */
+    val totalOpenedChannels: Long
+        get() = openedChannels.get()
+
+    /**
+     * The number of files with cached mapping
+     */
+    val mappedFileCount: Int
+        get() = mappings.size
+
+    /**
+     * Total size of cached mappings in bytes
+     */
+    val mappedBytes: Long
+        get() = mappings.weight
+
+    /**
+     * Get a read-only buffer with the whole content of the file. The buffer is an independent view of the shared
+     * mapping. Returns null if the file is too large to be mapped into a single buffer.
+     */
+    fun map(file: Path): ByteBuffer? {
+        val path = file.toAbsolutePath().normalize()
+        val attributes = Files.readAttributes(path, BasicFileAttributes::class.java)
+        if (attributes.size() > Int.MAX_VALUE) {
+            return null
+        }
+        val cached = mappings[path]
+        val mapping = if (cached != null && cached.size == attributes.size() && cached.modified == attributes.lastModifiedTime()) {
+            cached
+        } else {
+            val buffer = useChannel(path) { it.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size()) }
+            Mapping(attributes.size(), attributes.lastModifiedTime(), buffer).also { mappings[path] = it }
+        }
+        return mapping.buffer.asReadOnlyBuffer()
+    }
+
+    /**
+     * Drop the cached mapping of the file, so it is not kept alive by the cache. Used before the file is modified.
+     */
+    fun unmap(file: Path) {
+        mappings.remove(file.toAbsolutePath().normalize())
+    }
+
+    /**
+     * Perform an action with a pooled read-only channel. The channel is shared between threads, so only positional
+     * reads are allowed. The channel must not be closed by the action.
+     */
+    fun <R> useChannel(file: Path, action: (FileChannel) -> R): R {
+        val pooled = acquire(file.toAbsolutePath().normalize())
+        try {
+            return action(pooled.channel)
+        } finally {
+            release(pooled)
+        }
+    }
+
+    /**
+     * Read a block of file into a heap buffer using pooled channel
+     */
+    fun read(file: Path, position: Long, size: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(size)
+        useChannel(file) { channel ->
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    break
+                }
+            }
+        }
+        return buffer.also { it.flip() }
+    }
+
+    @Synchronized
+    private fun acquire(path: Path): PooledChannel {
+        val pooled = channels.getOrPut(path) {
+            openedChannels.incrementAndGet()
+            PooledChannel(FileChannel.open(path, StandardOpenOption.READ))
+        }
+        pooled.leases++
+        trim()
+        return pooled
+    }
+
+    @Synchronized
+    private fun release(pooled: PooledChannel) {
+        pooled.leases--
+        trim()
+    }
+
+    /**
+     * Close least recently used idle channels above the limit
+     */
+    private fun trim() {
+        if (channels.size > maxOpenChannels) {
+            val iterator = channels.values.iterator()
+            while (channels.size > maxOpenChannels && iterator.hasNext()) {
+                val pooled = iterator.next()
+                if (pooled.leases == 0) {
+                    iterator.remove()
+                    pooled.channel.close()
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all idle channels and drop cached mappings
+     */
+    @Synchronized
+    fun invalidate() {
+        mappings.clear()
+        val iterator = channels.values.iterator()
+        while (iterator.hasNext()) {
+            val pooled = iterator.next()
+            if (pooled.leases == 0) {
+                iterator.remove()
+                pooled.channel.close()
+            }
+        }
+    }
+}
@@ -25,7 +25,7 @@ import hep.dataforge.meta.Meta
 import hep.dataforge.meta.MetaBuilder
 import hep.dataforge.meta.buildMeta
 import hep.dataforge.providers.Path
-import hep.dataforge.utils.Misc
+import hep.dataforge.utils.LRUCache
 import hep.dataforge.values.ValueFactory
 import org.slf4j.LoggerFactory
 import java.io.IOException
@@ -42,7 +42,7 @@ import kotlin.reflect.full.memberProperties
 
 object Descriptors {
 
-    private val descriptorCache = Misc.getLRUCache<Any, NodeDescriptor>(1000)
+    private val descriptorCache = LRUCache<Any, NodeDescriptor>(1000)
 
     private fun buildMetaFromResource(name: String, resource: String): MetaBuilder {
         try {
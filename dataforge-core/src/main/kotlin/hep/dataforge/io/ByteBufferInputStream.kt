@@ -0,0 +1,53 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.io
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * An input stream reading from the remaining part of a buffer. The buffer is duplicated, so the position of the
+ * original buffer is not affected. Works equally with heap, direct and mapped buffers without copying them.
+ */
+class ByteBufferInputStream(buffer: ByteBuffer) : InputStream() {
+
+    private val buffer: ByteBuffer = buffer.duplicate()
+
+    override fun read(): Int {
+        return if (buffer.hasRemaining()) {
+            buffer.get().toInt() and 0xFF
+        } else {
+            -1
+        }
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        if (!buffer.hasRemaining()) return -1
+        val count = minOf(len, buffer.remaining())
+        buffer.get(b, off, count)
+        return count
+    }
+
+    override fun skip(n: Long): Long {
+        val count = minOf(n, buffer.remaining().toLong()).coerceAtLeast(0).toInt()
+        buffer.position(buffer.position() + count)
+        return count.toLong()
+    }
+
+    override fun available(): Int = buffer.remaining()
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.io.envelopes
+
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.MetaBuilder
+import hep.dataforge.values.*
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.math.BigDecimal
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.time.Instant
+import kotlin.streams.toList
+
+/**
+ * Compact binary meta encoding.
+ *
+ * The encoding starts with `DM` and format version followed by root node name and node body. Node body is a list of
+ * named values and a list of named node groups. All counts and integers are variable length (zig-zag for signed
+ * values). Value and node names are written once and then referenced by index, so repeated names take one or two
+ * bytes and are decoded without allocation.
+ */
+internal object BinaryMetaCodec {
+    private const val MAGIC_0 = 'D'.code.toByte()
+    private const val MAGIC_1 = 'M'.code.toByte()
+    private const val VERSION: Byte = 1
+
+    const val HEADER_SIZE = 3
+
+    /**
+     * Check if the buffer starts with this encoding
+     */
+    fun accepts(buffer: ByteBuffer): Boolean = buffer.remaining() >= HEADER_SIZE &&
+            buffer.get(buffer.position()) == MAGIC_0 && buffer.get(buffer.position() + 1) == MAGIC_1
+
+    fun isMagic(first: Int): Boolean = first == MAGIC_0.toInt()
+
+    fun encode(meta: Meta): ByteArray = Encoder().apply { writeRoot(meta) }.toByteArray()
+
+    fun decode(buffer: ByteBuffer): MetaBuilder = BufferDecoder(buffer.duplicate()).readRoot()
+
+    /**
+     * Decode from stream reading exactly the encoded meta and nothing more.
+     * @param skipFirst true if the first byte of the header was already consumed
+     */
+    fun decode(stream: InputStream, skipFirst: Boolean = false): MetaBuilder = StreamDecoder(stream, skipFirst).readRoot()
+
+    private class Encoder : ByteArrayOutputStream(256) {
+        private val names = HashMap<String, Int>()
+
+        fun writeRoot(meta: Meta) {
+            write(MAGIC_0.toInt())
+            write(MAGIC_1.toInt())
+            write(VERSION.toInt())
+            writeString(meta.name)
+            writeNode(meta)
+        }
+
+        private fun writeVarLong(value: Long) {
+            var v = value
+            while (v and 0x7FL.inv() != 0L) {
+                write(((v and 0x7F) or 0x80).toInt())
+                v = v ushr 7
+            }
+            write(v.toInt())
+        }
+
+        private fun writeVarInt(value: Int) = writeVarLong(value.toLong() and 0xFFFFFFFFL)
+
+        private fun writeSigned(value: Long) = writeVarLong((value shl 1) xor (value shr 63))
+
+        private fun writeBytes(bytes: ByteArray) {
+            writeVarInt(bytes.size)
+            write(bytes, 0, bytes.size)
+        }
+
+        private fun writeString(string: String) = writeBytes(string.toByteArray(Charsets.UTF_8))
+
+        private fun writeName(name: String) {
+            val index = names[name]
+            if (index == null) {
+                writeVarInt(0)
+                writeString(name)
+                names[name] = names.size + 1
+            } else {
+                writeVarInt(index)
+            }
+        }
+
+        private fun writeNode(meta: Meta) {
+            val valueNames = meta.getValueNames(true).toList()
+            writeVarInt(valueNames.size)
+            valueNames.forEach {
+                writeName(it)
+                writeValue(meta.getValue(it))
+            }
+            val nodeNames = meta.getNodeNames(true).toList()
+            writeVarInt(nodeNames.size)
+            nodeNames.forEach { name ->
+                writeName(name)
+                val nodes = meta.getMetaList(name)
+                writeVarInt(nodes.size)
+                nodes.forEach { writeNode(it) }
+            }
+        }
+
+        private fun writeValue(value: Value) {
+            if (value.isList) {
+                write('*'.code)
+                writeVarInt(value.list.size)
+                value.list.forEach { writeValue(it) }
+                return
+            }
+            when (value.type) {
+                ValueType.NULL -> write('0'.code)
+                ValueType.BOOLEAN -> write(if (value.boolean) '+'.code else '-'.code)
+                ValueType.TIME -> {
+                    write('T'.code)
+                    writeSigned(value.time.epochSecond)
+                    writeVarInt(value.time.nano)
+                }
+                ValueType.STRING -> {
+                    write('S'.code)
+                    writeString(value.string)
+                }
+                ValueType.BINARY -> {
+                    write('X'.code)
+                    val binary = value.binary.duplicate()
+                    writeVarInt(binary.remaining())
+                    while (binary.hasRemaining()) {
+                        write(binary.get().toInt())
+                    }
+                }
+                ValueType.NUMBER -> when (val num = value.number) {
+                    is Int, is Short, is Byte -> {
+                        write('I'.code)
+                        writeSigned(num.toLong())
+                    }
+                    is Long -> {
+                        write('L'.code)
+                        writeSigned(num)
+                    }
+                    is Double, is Float -> {
+                        write('D'.code)
+                        val bits = java.lang.Double.doubleToRawLongBits(num.toDouble())
+                        for (shift in 56 downTo 0 step 8) {
+                            write((bits ushr shift).toInt())
+                        }
+                    }
+                    else -> {
+                        write('N'.code)
+                        val decimal = num.toBigDecimal()
+                        writeBytes(decimal.unscaledValue().toByteArray())
+                        writeSigned(decimal.scale().toLong())
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decoder state shared by buffer and stream sources
+     */
+    private abstract class Decoder {
+        private var names = arrayOfNulls<String>(16)
+        private var nameCount = 0
+
+        private var scratchBytes = ByteArray(64)
+
+        protected abstract fun readByte(): Int
+
+        /**
+         * Read a string of given length in bytes
+         */
+        protected abstract fun readString(length: Int): String
+
+        protected abstract fun readBytes(length: Int): ByteArray
+
+        private fun readVarLong(): Long {
+            var result = 0L
+            var shift = 0
+            while (shift < 64) {
+                val b = readByte()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) {
+                    return result
+                }
+                shift += 7
+            }
+            throw IOException("Malformed variable length number")
+        }
+
+        private fun readVarInt(): Int = readVarLong().toInt()
+
+        private fun readSigned(): Long {
+            val raw = readVarLong()
+            return (raw ushr 1) xor -(raw and 1)
+        }
+
+        private fun readString(): String = readString(readVarInt())
+
+        private fun readName(): String {
+            val index = readVarInt()
+            return if (index == 0) {
+                readString().also {
+                    if (nameCount == names.size) {
+                        names = names.copyOf(nameCount * 2)
+                    }
+                    names[nameCount++] = it
+                }
+            } else {
+                names.getOrNull(index - 1) ?: throw IOException("Unknown name reference $index")
+            }
+        }
+
+        private fun readDouble(): Double {
+            var bits = 0L
+            repeat(8) {
+                bits = (bits shl 8) or readByte().toLong()
+            }
+            return java.lang.Double.longBitsToDouble(bits)
+        }
+
+        private fun readValue(): Value {
+            return when (val type = readByte().toChar()) {
+                '*' -> {
+                    val size = readVarInt()
+                    Value.of(List(size) { readValue() })
+                }
+                '0' -> Value.NULL
+                '+' -> BooleanValue.TRUE
+                '-' -> BooleanValue.FALSE
+                'T' -> {
+                    val seconds = readSigned()
+                    Instant.ofEpochSecond(seconds, readVarInt().toLong()).asValue()
+                }
+                'S' -> readString().asValue()
+                'I' -> readSigned().toInt().asValue()
+                'L' -> readSigned().asValue()
+                'D' -> readDouble().asValue()
+                'N' -> {
+                    val unscaled = BigInteger(readBytes(readVarInt()))
+                    BigDecimal(unscaled, readSigned().toInt()).asValue()
+                }
+                'X' -> BinaryValue(ByteBuffer.wrap(readBytes(readVarInt())))
+                else -> throw IOException("Wrong value serialization format. Designation $type is unexpected")
+            }
+        }
+
+        private fun readNode(node: MetaBuilder): MetaBuilder {
+            repeat(readVarInt()) {
+                val name = readName()
+                node.setValue(name, readValue(), false)
+            }
+            repeat(readVarInt()) {
+                val name = readName()
+                val nodes = List(readVarInt()) { readNode(MetaBuilder(name)) }
+                node.setNode(name, nodes, false)
+            }
+            return node
+        }
+
+        protected open fun readHeader() {
+            if (readByte().toByte() != MAGIC_0) {
+                throw IOException("Wrong binary meta header")
+            }
+            readHeaderTail()
+        }
+
+        protected fun readHeaderTail() {
+            if (readByte().toByte() != MAGIC_1) {
+                throw IOException("Wrong binary meta header")
+            }
+            val version = readByte()
+            if (version != VERSION.toInt()) {
+                throw IOException("Unsupported binary meta version $version")
+            }
+        }
+
+        fun readRoot(): MetaBuilder {
+            readHeader()
+            return readNode(MetaBuilder(readString()))
+        }
+
+        /**
+         * Reusable array for string decoding
+         */
+        protected fun scratch(length: Int): ByteArray {
+            if (scratchBytes.size < length) {
+                scratchBytes = ByteArray(maxOf(length, scratchBytes.size * 2))
+            }
+            return scratchBytes
+        }
+    }
+
+    /**
+     * Decode directly from buffer. Heap buffers are decoded without copying, direct and mapped buffers are copied
+     * string by string into reusable scratch array.
+     */
+    private class BufferDecoder(private val buffer: ByteBuffer) : Decoder() {
+        override fun readByte(): Int {
+            if (!buffer.hasRemaining()) {
+                throw EOFException("Unexpected end of binary meta")
+            }
+            return buffer.get().toInt() and 0xFF
+        }
+
+        private fun checkRemaining(length: Int) {
+            if (length < 0 || length > buffer.remaining()) {
+                throw EOFException("Unexpected end of binary meta")
+            }
+        }
+
+        override fun readString(length: Int): String {
+            checkRemaining(length)
+            return if (buffer.hasArray()) {
+                String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8).also {
+                    buffer.position(buffer.position() + length)
+                }
+            } else {
+                val bytes = scratch(length)
+                buffer.get(bytes, 0, length)
+                String(bytes, 0, length, Charsets.UTF_8)
+            }
+        }
+
+        override fun readBytes(length: Int): ByteArray {
+            checkRemaining(length)
+            return ByteArray(length).also { buffer.get(it) }
+        }
+    }
+
+    /**
+     * Decode from stream without reading beyond the end of meta, so the rest of the stream could be read further
+     */
+    private class StreamDecoder(private val stream: InputStream, private val skipFirst: Boolean) : Decoder() {
+        override fun readByte(): Int {
+            val b = stream.read()
+            if (b < 0) {
+                throw EOFException("Unexpected end of binary meta")
+            }
+            return b
+        }
+
+        private fun readFully(bytes: ByteArray, length: Int) {
+            if (length < 0 || stream.readNBytes(bytes, 0, length) < length) {
+                throw EOFException("Unexpected end of binary meta")
+            }
+        }
+
+        override fun readString(length: Int): String {
+            val bytes = scratch(length)
+            readFully(bytes, length)
+            return String(bytes, 0, length, Charsets.UTF_8)
+        }
+
+        override fun readBytes(length: Int): ByteArray {
+            return ByteArray(length).also { readFully(it, length) }
+        }
+
+        override fun readHeader() {
+            if (skipFirst) {
+                readHeaderTail()
+            } else {
+                super.readHeader()
+            }
+        }
+    }
+}
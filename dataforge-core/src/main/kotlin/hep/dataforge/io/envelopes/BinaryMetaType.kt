@@ -16,11 +16,14 @@
 
 package hep.dataforge.io.envelopes
 
+import hep.dataforge.io.ByteBufferInputStream
 import hep.dataforge.io.MetaStreamReader
 import hep.dataforge.io.MetaStreamWriter
 import hep.dataforge.meta.Meta
+import hep.dataforge.meta.MetaBuilder
 import hep.dataforge.meta.MetaUtils
 import java.io.*
+import java.nio.ByteBuffer
 import java.util.*
 
 
@@ -39,23 +42,40 @@ class BinaryMetaType : MetaType {
     override val fileNameFilter: (String)->Boolean = { str -> str.lowercase(Locale.getDefault()).endsWith(".meta") }
 
 
-    override val reader: MetaStreamReader = MetaStreamReader { stream, length ->
-        val actualStream = if (length > 0) {
-            val bytes = ByteArray(length.toInt())
-            stream.read(bytes)
-            ByteArrayInputStream(bytes)
-        } else {
-            stream
+    /**
+     * Reads compact [BinaryMetaCodec] encoding. Legacy meta written via object streams is recognized by its header
+     * and read as before.
+     */
+    override val reader: MetaStreamReader = object : MetaStreamReader {
+        override fun read(stream: InputStream, length: Long): MetaBuilder {
+            return if (length > 0) {
+                val bytes = stream.readNBytes(length.toInt())
+                readBuffer(ByteBuffer.wrap(bytes))
+            } else {
+                val first = stream.read()
+                if (BinaryMetaCodec.isMagic(first)) {
+                    BinaryMetaCodec.decode(stream, skipFirst = true)
+                } else {
+                    val legacy = PushbackInputStream(stream, 1).apply { if (first >= 0) unread(first) }
+                    MetaUtils.readMeta(ObjectInputStream(legacy))
+                }
+            }
+        }
+
+        override fun readBuffer(buffer: ByteBuffer): MetaBuilder {
+            return if (BinaryMetaCodec.accepts(buffer)) {
+                BinaryMetaCodec.decode(buffer)
+            } else {
+                MetaUtils.readMeta(ObjectInputStream(ByteBufferInputStream(buffer)))
+            }
         }
-        val ois = ObjectInputStream(actualStream)
-        MetaUtils.readMeta(ois)
     }
 
     override val writer = object : MetaStreamWriter {
 
         @Throws(IOException::class)
         override fun write(stream: OutputStream, meta: Meta) {
-            MetaUtils.writeMeta(ObjectOutputStream(stream), meta)
+            stream.write(BinaryMetaCodec.encode(meta))
             stream.write('\r'.code)
             stream.write('\n'.code)
         }
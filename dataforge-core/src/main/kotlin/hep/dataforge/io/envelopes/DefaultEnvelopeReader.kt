@@ -18,15 +18,17 @@ package hep.dataforge.io.envelopes
 import hep.dataforge.data.binary.Binary
 import hep.dataforge.data.binary.BufferedBinary
 import hep.dataforge.data.binary.FileBinary
+import hep.dataforge.data.binary.MappedFiles
 import hep.dataforge.exceptions.EnvelopeFormatException
+import hep.dataforge.io.ByteBufferInputStream
 import hep.dataforge.io.envelopes.DefaultEnvelopeType.Companion.SEPARATOR
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.MetaNode.DEFAULT_META_NAME
 import org.slf4j.LoggerFactory
 import java.io.ByteArrayOutputStream
+import java.io.EOFException
 import java.io.IOException
 import java.io.InputStream
-import java.nio.ByteBuffer
 import java.nio.channels.Channels
 import java.nio.channels.ReadableByteChannel
 import java.nio.file.Files
@@ -63,70 +65,109 @@ open class DefaultEnvelopeReader : EnvelopeReader {
 
         }
 
-        val binary: Binary
-        val dataLength = tag.dataSize
         //skipping separator for automatic meta reading
         if (metaLength == -1) {
             stream.skip(separator().size.toLong())
         }
-        binary = readData(stream, dataLength)
+        val binary: Binary = readData(stream, tag.dataLength)
 
         return SimpleEnvelope(meta, binary)
     }
 
     /**
-     * The envelope is lazy meaning it will be calculated on demand. If the
-     * stream will be closed before that, than an error will be thrown. In order
-     * to avoid this problem, it is wise to call `getData` after read.
+     * The file is mapped once via [MappedFiles]. Tag and meta are parsed directly from the mapping and the data is a
+     * lazy slice of the same mapping, so nothing is copied. Parsed meta is shared via [MetaCache]. Files too large to
+     * be mapped are read via pooled channel, the data is still lazy. Undefined data length means that data lasts till
+     * the end of file.
      *
      * @return
      */
     override fun read(file: Path): Envelope {
-        val channel = Files.newByteChannel(file, READ)
-        val tag = newTag().read(channel)
+        val mapping = MappedFiles.map(file)
+        val tag = newTag()
+        if (mapping != null) {
+            tag.read(mapping)
+        } else {
+            tag.read(MappedFiles.read(file, 0, tag.length))
+        }
         val metaLength = tag.metaSize
-        val dataLength = tag.dataSize
-        if (metaLength < 0 || dataLength < 0) {
-            LoggerFactory.getLogger(javaClass).error("Can't lazy read infinite data or meta. Returning non-lazy envelope")
-            return read(Files.newInputStream(file))
+        if (metaLength < 0) {
+            LoggerFactory.getLogger(javaClass).warn("Can't lazy read meta with undefined length. Returning non-lazy envelope")
+            return read(mapping?.let { ByteBufferInputStream(it) } ?: Files.newInputStream(file, READ))
         }
 
-        val metaBuffer = ByteBuffer.allocate(metaLength)
-        channel.position(tag.length.toLong())
-        channel.read(metaBuffer)
-        val parser = tag.metaType.reader
+        val dataOffset = tag.length.toLong() + metaLength
+        val fileSize = mapping?.capacity()?.toLong() ?: Files.size(file)
+        if (dataOffset > fileSize) {
+            throw EnvelopeFormatException("Envelope meta is truncated in $file")
+        }
 
         val meta: Meta = if (metaLength == 0) {
             Meta.buildEmpty(DEFAULT_META_NAME)
         } else {
-            try {
-                parser.readBuffer(metaBuffer)
-            } catch (ex: ParseException) {
-                throw EnvelopeFormatException("Error parsing annotation", ex)
-            }
+            MetaCache.get(file) {
+                val metaBuffer = if (mapping != null) {
+                    mapping.position(tag.length)
+                    mapping.limit(dataOffset.toInt())
+                    mapping.slice()
+                } else {
+                    MappedFiles.read(file, tag.length.toLong(), metaLength)
+                }
+                try {
+                    tag.metaType.reader.readBuffer(metaBuffer)
+                } catch (ex: ParseException) {
+                    throw EnvelopeFormatException("Error parsing annotation", ex)
+                }
+            }!!
+        }
 
+        val available = fileSize - dataOffset
+        val dataLength = tag.dataLength.let { declared ->
+            if (declared > available) {
+                LoggerFactory.getLogger(javaClass).warn("Envelope data in {} is truncated: {} bytes declared, {} available", file, declared, available)
+                available
+            } else {
+                declared
+            }
         }
-        channel.close()
 
-        return SimpleEnvelope(meta, FileBinary(file, (tag.length + metaLength).toLong()))
+        return SimpleEnvelope(meta, FileBinary(file, dataOffset, dataLength))
     }
 
     protected fun separator(): ByteArray {
         return SEPARATOR
     }
 
+    /**
+     * Read data into memory. Data of undefined length is read in chunks while the stream has available bytes.
+     */
     @Throws(IOException::class)
-    private fun readData(stream: InputStream, length: Int): Binary {
-        return if (length == -1) {
-            val baos = ByteArrayOutputStream()
-            while (stream.available() > 0) {
-                baos.write(stream.read())
+    private fun readData(stream: InputStream, length: Long): Binary {
+        return when {
+            length < 0 -> {
+                val baos = ByteArrayOutputStream()
+                val chunk = ByteArray(DEFAULT_BUFFER_SIZE)
+                while (true) {
+                    val available = stream.available()
+                    if (available <= 0) {
+                        break
+                    }
+                    val count = stream.read(chunk, 0, minOf(available, chunk.size))
+                    if (count < 0) {
+                        break
+                    }
+                    baos.write(chunk, 0, count)
+                }
+                BufferedBinary(baos.toByteArray())
+            }
+            length > Int.MAX_VALUE -> throw EnvelopeFormatException("Envelope data of $length bytes could not be read from stream into memory")
+            else -> {
+                val bytes = stream.readNBytes(length.toInt())
+                if (bytes.size < length) {
+                    throw EOFException("Envelope data is truncated: $length bytes declared, ${bytes.size} read")
+                }
+                BufferedBinary(bytes)
             }
-            BufferedBinary(baos.toByteArray())
-        } else {
-            val buffer = ByteBuffer.allocate(length)
-            Channels.newChannel(stream).read(buffer)
-            BufferedBinary(buffer)
         }
     }
 
@@ -71,7 +71,12 @@ class DefaultEnvelopeWriter(private val envelopeType: EnvelopeType, private val
             stream.write(SEPARATOR)
         }
 
-        Channels.newChannel(stream).write(envelope.data.buffer)
+        val data = envelope.data
+        if (data.size > Int.MAX_VALUE) {
+            data.stream.use { it.transferTo(stream) }
+        } else {
+            Channels.newChannel(stream).write(data.buffer)
+        }
     }
 
 //    companion object {
@@ -58,6 +58,26 @@ open class EnvelopeTag {
             values[Envelope.DATA_LENGTH_PROPERTY] = value.asValue()
         }
 
+    /**
+     * Data length as unsigned header field, so data up to 4 GB could be declared. -1 means undefined length, in this
+     * case data lasts till the end of file or stream.
+     */
+    val dataLength: Long
+        get() = lengthOf(values[Envelope.DATA_LENGTH_PROPERTY])
+
+    private fun lengthOf(value: Value?): Long {
+        val length = value?.long ?: 0
+        return if (length == UNDEFINED_LENGTH || length < 0) -1 else length
+    }
+
+    /**
+     * Header field for given length. Lengths not fitting into unsigned int are written as undefined.
+     */
+    private fun lengthField(value: Value?): Int {
+        val length = value?.long ?: 0
+        return if (length < 0 || length >= UNDEFINED_LENGTH) -1 else length.toInt()
+    }
+
     /**
      * Read header line
      *
@@ -168,11 +188,26 @@ open class EnvelopeTag {
         return this
     }
 
+    /**
+     * Read tag from the remaining part of the buffer. The position of the buffer is not changed.
+     */
+    @Throws(IOException::class)
+    fun read(buffer: ByteBuffer): EnvelopeTag {
+        if (buffer.remaining() < length) {
+            throw IOException("Envelope tag is truncated")
+        }
+        val header = buffer.duplicate().apply { limit(position() + length) }.slice().order(ByteOrder.BIG_ENDIAN)
+        setValues(readHeader(header))
+        return this
+    }
+
     @Throws(IOException::class)
     fun read(stream: InputStream): EnvelopeTag {
         val header: Map<String, Value>
-        val body = ByteArray(length)
-        stream.read(body)
+        val body = stream.readNBytes(length)
+        if (body.size < length) {
+            throw IOException("Envelope tag is truncated")
+        }
         header = readHeader(ByteBuffer.wrap(body).order(ByteOrder.BIG_ENDIAN))
         setValues(header)
         return this
@@ -184,11 +219,17 @@ open class EnvelopeTag {
 
         buffer.putInt(envelopeType.code)
         buffer.putShort(metaType.codes[0])
-        buffer.putInt(values[Envelope.META_LENGTH_PROPERTY]!!.long.toInt())
-        buffer.putInt(values[Envelope.DATA_LENGTH_PROPERTY]!!.long.toInt())
+        buffer.putInt(lengthField(values[Envelope.META_LENGTH_PROPERTY]))
+        buffer.putInt(lengthField(values[Envelope.DATA_LENGTH_PROPERTY]))
         buffer.put(endSequence)
         buffer.position(0)
         return buffer
     }
 
+    companion object {
+        /**
+         * Unsigned value of the length field meaning undefined length
+         */
+        const val UNDEFINED_LENGTH = 0xFFFFFFFFL
+    }
 }
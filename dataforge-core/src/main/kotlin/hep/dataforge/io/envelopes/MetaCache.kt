@@ -0,0 +1,87 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.io.envelopes
+
+import hep.dataforge.meta.Meta
+import hep.dataforge.utils.LRUCache
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A cache of parsed file meta. Entries are keyed by file identity (the file key of the file system if it is available
+ * or normalized absolute path otherwise) and are invalidated when file size or modification time changes.
+ *
+ * Cached meta is sealed, so it could be safely shared. The number of entries could be configured via
+ * `dataforge.meta.cacheSize` system property.
+ *
+ * @author Alexander Nozik
+ */
+object MetaCache {
+
+    private class Entry(val size: Long, val modified: FileTime, val meta: Meta)
+
+    private val entries = LRUCache<Any, Entry>(Integer.getInteger("dataforge.meta.cacheSize", 4096))
+
+    private val hitCounter = LongAdder()
+    private val missCounter = LongAdder()
+
+    val hits: Long get() = hitCounter.sum()
+
+    val misses: Long get() = missCounter.sum()
+
+    val size: Int get() = entries.size
+
+    private fun key(file: Path, attributes: BasicFileAttributes): Any =
+            attributes.fileKey() ?: file.toAbsolutePath().normalize()
+
+    /**
+     * Get cached meta of the file or read it with [reader]. Null results are not cached.
+     */
+    fun get(file: Path, reader: (Path) -> Meta?): Meta? {
+        val attributes = try {
+            Files.readAttributes(file, BasicFileAttributes::class.java)
+        } catch (ex: IOException) {
+            return reader(file)
+        }
+        val key = key(file, attributes)
+        val cached = entries[key]
+        if (cached != null && cached.size == attributes.size() && cached.modified == attributes.lastModifiedTime()) {
+            hitCounter.increment()
+            return cached.meta
+        }
+        missCounter.increment()
+        return reader(file)?.sealed?.also {
+            entries[key] = Entry(attributes.size(), attributes.lastModifiedTime(), it)
+        }
+    }
+
+    fun invalidate(file: Path) {
+        try {
+            entries.remove(key(file, Files.readAttributes(file, BasicFileAttributes::class.java)))
+        } catch (ex: IOException) {
+            entries.remove(file.toAbsolutePath().normalize())
+        }
+    }
+
+    fun clear() {
+        entries.clear()
+    }
+}
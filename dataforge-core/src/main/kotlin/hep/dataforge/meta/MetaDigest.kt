@@ -0,0 +1,64 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.meta
+
+import hep.dataforge.values.Value
+import hep.dataforge.values.ValueType
+import hep.dataforge.values.writeValue
+import java.io.ByteArrayOutputStream
+import java.io.DataOutput
+import java.io.DataOutputStream
+import java.security.MessageDigest
+import kotlin.streams.toList
+
+/**
+ * SHA-256 digest of the canonical binary form of the meta. The digest does not depend on the order of values and nodes
+ * or on the representation of numbers (all numbers are compared as doubles), so it could be used as a stable
+ * identity of configuration in persistent caches, unlike [Meta.hashCode].
+ */
+fun Meta.digest(): ByteArray {
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use { out ->
+        MetaUtils.valueStream(this).toList()
+            .sortedBy { it.first.toString() }
+            .forEach { (name, value) ->
+                out.writeUTF(name.toString())
+                out.writeCanonical(value)
+            }
+    }
+    return MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray())
+}
+
+/**
+ * Hexadecimal string representation of [digest]
+ */
+fun Meta.digestString(): String = digest().joinToString("") { String.format("%02x", it) }
+
+private fun DataOutput.writeCanonical(value: Value) {
+    when {
+        value.isList -> {
+            writeByte('*'.code)
+            writeShort(value.list.size)
+            value.list.forEach { writeCanonical(it) }
+        }
+        value.type == ValueType.NUMBER -> {
+            writeByte('D'.code)
+            writeDouble(value.double)
+        }
+        else -> writeValue(value)
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.tables
+
+import hep.dataforge.exceptions.NameNotFoundException
+import hep.dataforge.exceptions.NamingException
+import hep.dataforge.names.NameList
+import hep.dataforge.values.*
+import java.time.Instant
+import java.util.Objects
+import java.util.Optional
+import java.util.stream.IntStream
+import java.util.stream.Stream
+
+/**
+ * A column which could provide its content as primitive doubles without creating [Value] objects
+ */
+interface NumericColumn : Column {
+    fun getDouble(n: Int): Double
+
+    /**
+     * The content of the column as array. If column is backed by a double array, the array itself is returned,
+     * so it must not be modified.
+     */
+    fun asDoubleArray(): DoubleArray
+}
+
+/**
+ * An immutable column-based table. Numeric columns are stored in primitive `long` or `double` arrays, time columns
+ * as epoch nanoseconds, all other columns as arrays of [Value]. Column and cell access is O(1) and [Value] objects
+ * are created only when requested. Rows are lightweight views over the columns.
+ *
+ * Tables are created via [ColumnarTable.Builder] which mirrors [ListTable.Builder].
+ *
+ * @author Alexander Nozik
+ */
+class ColumnarTable private constructor(
+    override val format: TableFormat,
+    private val columnMap: Map<String, Column>,
+    private val size: Int
+) : Table {
+
+    override val columns: Collection<Column>
+        get() = columnMap.values
+
+    @Throws(NameNotFoundException::class)
+    override fun getColumn(name: String): Column = columnMap[name] ?: throw NameNotFoundException(name)
+
+    override fun getRow(i: Int): Values {
+        if (i < 0 || i >= size) throw IndexOutOfBoundsException("Row $i is out of table bounds")
+        return Row(i)
+    }
+
+    override fun get(name: String, index: Int): Value = getColumn(name)[index]
+
+    override fun getDouble(name: String, index: Int): Double {
+        val column = getColumn(name)
+        return if (column is NumericColumn) column.getDouble(index) else column[index].double
+    }
+
+    override fun size(): Int = size
+
+    override val rows: Stream<Values>
+        get() = IntStream.range(0, size).mapToObj { Row(it) }
+
+    override fun iterator(): Iterator<Values> = (0 until size).asSequence().map<Int, Values> { Row(it) }.iterator()
+
+    override fun equals(other: Any?): Boolean {
+        return other != null && javaClass == other.javaClass && (other as ColumnarTable).toMeta() == this.toMeta()
+    }
+
+    override fun hashCode(): Int = Objects.hash(format, size)
+
+    private inner class Row(private val index: Int) : Values {
+        override fun getNames(): NameList = format.names
+
+        override fun hasValue(path: String): Boolean = columnMap.containsKey(path)
+
+        override fun optValue(path: String): Optional<Value> =
+            Optional.ofNullable(columnMap[path]?.get(index)?.takeUnless { it.isNull })
+
+        override fun toString(): String = names.joinToString(prefix = "[", postfix = "]") { "$it:${getValue(it).string}" }
+    }
+
+    private abstract class ArrayColumn(override val format: ColumnFormat, private val size: Int) : Column {
+        override fun size(): Int = size
+
+        override fun asList(): List<Value> = object : AbstractList<Value>() {
+            override val size: Int get() = this@ArrayColumn.size
+            override fun get(index: Int): Value = this@ArrayColumn[index]
+        }
+
+        override fun iterator(): Iterator<Value> = asList().iterator()
+    }
+
+    private class LongColumn(format: ColumnFormat, private val data: LongArray) : ArrayColumn(format, data.size), NumericColumn {
+        override fun get(n: Int): Value = Value.of(data[n])
+        override fun getDouble(n: Int): Double = data[n].toDouble()
+        override fun asDoubleArray(): DoubleArray = DoubleArray(data.size) { data[it].toDouble() }
+    }
+
+    private class DoubleColumn(format: ColumnFormat, private val data: DoubleArray) : ArrayColumn(format, data.size), NumericColumn {
+        override fun get(n: Int): Value = Value.of(data[n])
+        override fun getDouble(n: Int): Double = data[n]
+        override fun asDoubleArray(): DoubleArray = data
+    }
+
+    private class TimeColumn(format: ColumnFormat, private val nanos: LongArray) : ArrayColumn(format, nanos.size) {
+        override fun get(n: Int): Value = Value.of(Instant.ofEpochSecond(0, nanos[n]))
+    }
+
+    private class ValueColumn(format: ColumnFormat, private val data: Array<Value>) : ArrayColumn(format, data.size) {
+        override fun get(n: Int): Value = data[n]
+    }
+
+    /**
+     * Accumulates values of a single column choosing the most compact storage. A numeric column starts with
+     * `long` storage, switches to `double` on the first non-integral number and falls back to [Value] storage on
+     * the first non-numeric value or null.
+     */
+    private class ColumnAccumulator(val format: ColumnFormat) {
+        private enum class Kind { LONG, DOUBLE, TIME, VALUE }
+
+        private var kind = when (format.primaryType) {
+            ValueType.NUMBER -> Kind.LONG
+            ValueType.TIME -> Kind.TIME
+            else -> Kind.VALUE
+        }
+
+        private var longs = LongArray(if (kind == Kind.VALUE) 0 else INITIAL_CAPACITY)
+        private var doubles = DoubleArray(0)
+        private var values = ArrayList<Value>()
+
+        var size = 0
+            private set
+
+        fun add(obj: Any?) {
+            val raw = if (obj is Value) {
+                when (obj.type) {
+                    ValueType.NUMBER -> obj.number
+                    ValueType.TIME -> obj.time
+                    ValueType.NULL -> null
+                    else -> obj
+                }
+            } else {
+                obj
+            }
+            if (kind == Kind.LONG && raw.isPrimitiveNumber() && raw !is Double && raw !is Float) {
+                longs = longs.ensureCapacity(size)
+                longs[size] = (raw as Number).toLong()
+            } else if ((kind == Kind.LONG || kind == Kind.DOUBLE) && raw.isPrimitiveNumber()) {
+                if (kind == Kind.LONG) switchToDoubles()
+                doubles = doubles.ensureCapacity(size)
+                doubles[size] = (raw as Number).toDouble()
+            } else if (kind == Kind.TIME && raw is Instant) {
+                longs = longs.ensureCapacity(size)
+                longs[size] = raw.epochSecond * NANOS_IN_SECOND + raw.nano
+            } else {
+                if (kind != Kind.VALUE) switchToValues()
+                values.add(Value.of(obj))
+            }
+            size++
+        }
+
+        private fun Any?.isPrimitiveNumber() = this is Double || this is Long || this is Int ||
+                this is Float || this is Short || this is Byte
+
+        private fun switchToDoubles() {
+            doubles = DoubleArray(longs.size) { longs[it].toDouble() }
+            longs = LongArray(0)
+            kind = Kind.DOUBLE
+        }
+
+        private fun switchToValues() {
+            values = ArrayList(maxOf(size, INITIAL_CAPACITY))
+            for (i in 0 until size) {
+                values.add(
+                    when (kind) {
+                        Kind.LONG -> Value.of(longs[i])
+                        Kind.DOUBLE -> Value.of(doubles[i])
+                        Kind.TIME -> Value.of(Instant.ofEpochSecond(0, longs[i]))
+                        Kind.VALUE -> values[i]
+                    }
+                )
+            }
+            longs = LongArray(0)
+            doubles = DoubleArray(0)
+            kind = Kind.VALUE
+        }
+
+        fun build(): Column = when (kind) {
+            Kind.LONG -> LongColumn(format, longs.copyOf(size))
+            Kind.DOUBLE -> DoubleColumn(format, doubles.copyOf(size))
+            Kind.TIME -> TimeColumn(format, longs.copyOf(size))
+            Kind.VALUE -> ValueColumn(format, values.toTypedArray())
+        }
+
+        private fun LongArray.ensureCapacity(index: Int): LongArray =
+            if (index < this.size) this else copyOf(maxOf(INITIAL_CAPACITY, this.size * 2))
+
+        private fun DoubleArray.ensureCapacity(index: Int): DoubleArray =
+            if (index < this.size) this else copyOf(maxOf(INITIAL_CAPACITY, this.size * 2))
+    }
+
+    /**
+     * A builder for [ColumnarTable] with the same API as [ListTable.Builder]. Values which are not declared in the
+     * format are ignored.
+     */
+    class Builder(private var _format: TableFormat? = null) {
+
+        private var accumulators: List<ColumnAccumulator>? = null
+
+        private var size = 0
+
+        private var incomplete = false
+
+        var format: TableFormat
+            get() = _format ?: throw RuntimeException("Format not defined")
+            set(value) {
+                if (size > 0) throw IllegalStateException("Can't change format of non-empty table builder")
+                _format = value
+                accumulators = null
+            }
+
+        constructor(format: Iterable<String>) : this(MetaTableFormat.forNames(format))
+
+        constructor(vararg format: String) : this(MetaTableFormat.forNames(*format))
+
+        private fun accumulators(): List<ColumnAccumulator> {
+            return accumulators ?: format.map { ColumnAccumulator(it) }.also { accumulators = it }
+        }
+
+        /**
+         * If format is not defined, it is inferred from the first row
+         */
+        fun row(e: Values): Builder {
+            if (_format == null) {
+                _format = MetaTableFormat.forValues(e)
+            }
+            accumulators().forEach { acc ->
+                val value = e.optValue(acc.format.name).orElse(null)
+                if (value == null) incomplete = true
+                acc.add(value)
+            }
+            size++
+            return this
+        }
+
+        /**
+         * Add new row constructed from a list of objects using current table format
+         */
+        @Throws(NamingException::class)
+        fun row(vararg values: Any): Builder {
+            val accumulators = accumulators()
+            if (values.size != accumulators.size) {
+                throw NamingException("The number of values does not match table format ${format.names}")
+            }
+            accumulators.forEachIndexed { i, acc -> acc.add(values[i]) }
+            size++
+            return this
+        }
+
+        fun row(values: ValueProvider): Builder {
+            accumulators().forEach { acc -> acc.add(values.getValue(acc.format.name)) }
+            size++
+            return this
+        }
+
+        fun row(vararg values: NamedValue): Builder = row(ValueMap.of(*values))
+
+        fun row(vararg values: Pair<String, Any>): Builder =
+            row(ValueMap.of(values.map { NamedValue.of(it.first, it.second) }))
+
+        fun row(map: Map<String, Any>): Builder = row(ValueMap.ofMap(map))
+
+        fun rows(points: Iterable<Values>): Builder {
+            for (point in points) {
+                row(point)
+            }
+            return this
+        }
+
+        fun rows(stream: Stream<out Values>): Builder {
+            stream.forEach { this.row(it) }
+            return this
+        }
+
+        fun build(): ColumnarTable {
+            if (incomplete) {
+                throw NamingException("Some of the rows do not contain all off the fields declared in ${format.names}")
+            }
+            return buildUnsafe()
+        }
+
+        /**
+         * Build table without points name check. Missing values are replaced by [Value.NULL]
+         */
+        fun buildUnsafe(): ColumnarTable {
+            val columns = LinkedHashMap<String, Column>()
+            accumulators().forEach { columns[it.format.name] = it.build() }
+            return ColumnarTable(format, columns, size)
+        }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 16
+        private const val NANOS_IN_SECOND = 1_000_000_000L
+
+        /**
+         * Create a columnar copy of given table
+         */
+        fun copy(table: Table): ColumnarTable {
+            return table as? ColumnarTable ?: Builder(table.format).rows(table).build()
+        }
+    }
+}
+
+fun buildColumnarTable(format: TableFormat? = null, builder: ColumnarTable.Builder.() -> Unit): Table {
+    return ColumnarTable.Builder(format).apply(builder).build()
+}
@@ -67,7 +67,7 @@ class ListTable @JvmOverloads constructor(override val format: TableFormat, poin
             override val format: ColumnFormat = this@ListTable.format.getColumn(name)
 
             override fun get(n: Int): Value {
-                return asList()[n]
+                return this@ListTable.get(name, n)
             }
 
             override fun asList(): List<Value> {
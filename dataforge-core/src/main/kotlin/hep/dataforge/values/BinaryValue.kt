@@ -29,5 +29,8 @@ class BinaryValue(override val value: ByteBuffer): AbstractValue(){
     override val string: String
         get() = TODO("not implemented") //To change initializer of created properties use File | Settings | File Templates.
 
+    override val binary: ByteBuffer
+        get() = value.duplicate()
+
     override val type: ValueType = ValueType.BINARY
 }
\ No newline at end of file
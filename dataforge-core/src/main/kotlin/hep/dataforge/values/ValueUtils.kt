@@ -144,7 +144,7 @@ fun DataOutput.writeValue(value: Value) {
         }
     } else {
         when (value.type) {
-            ValueType.NULL -> writeChar('0'.code) // null
+            ValueType.NULL -> writeByte('0'.code) // null
             ValueType.TIME -> {
                 writeByte('T'.code)//Instant
                 writeLong(value.time.epochSecond)
@@ -0,0 +1,84 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.cache
+
+import hep.dataforge.context.Global
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.buildMeta
+import hep.dataforge.tables.ColumnarTable
+import hep.dataforge.tables.ListTable
+import hep.dataforge.tables.MetaTableFormat
+import hep.dataforge.tables.Table
+import hep.dataforge.values.ValueMap
+import hep.dataforge.values.Values
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.*
+
+class DefaultCacheTest {
+    private val name = "default-cache-test-${UUID.randomUUID()}"
+    private val format = MetaTableFormat.forNames("a", "b")
+    private val key = buildMeta { "id" to 1 }.build()
+
+    private val table: ListTable = ListTable.Builder(format)
+        .row(1, "first")
+        .row(2, "second")
+        .build()
+
+    @After
+    fun tearDown() {
+        DefaultCacheManager(Global, Meta.empty()).rootCacheDir.resolve(name).toFile().deleteRecursively()
+    }
+
+    /**
+     * Put the value and read it back from the file tier using another cache manager
+     */
+    private fun <V> roundTrip(type: Class<V>, value: V): V? {
+        DefaultCacheManager(Global, Meta.empty()).getCache(name, Meta::class.java, type).put(key, value)
+        val cache = DefaultCacheManager(Global, Meta.empty()).getCache(name, Meta::class.java, type)
+        return cache.get(key).also {
+            assertEquals(1, cache.statistics.fileHits)
+            assertEquals(0, cache.statistics.misses)
+        }
+    }
+
+    private fun Iterable<Values>.strings(): List<List<String>> =
+        map { row -> row.names.asList().map { row.getValue(it).string } }
+
+    @Test
+    fun testListTableCache() {
+        val res = roundTrip(ListTable::class.java, table)
+        assertTrue(res is ListTable)
+        assertEquals(table.strings(), res!!.strings())
+    }
+
+    @Test
+    fun testTableCache() {
+        val res = roundTrip(Table::class.java, table)
+        // compact table serializer is used for the interface type
+        assertTrue(res is ColumnarTable)
+        assertEquals(table.strings(), res!!.strings())
+    }
+
+    @Test
+    fun testValuesCache() {
+        val values = ValueMap.ofPairs("a" to 1, "b" to "first")
+        val res = roundTrip(Values::class.java, values)
+        assertEquals(listOf<Values>(values).strings(), listOf(res!!).strings())
+    }
+}
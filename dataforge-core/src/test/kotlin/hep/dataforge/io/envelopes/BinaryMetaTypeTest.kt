@@ -0,0 +1,164 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.io.envelopes
+
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.MetaBuilder
+import hep.dataforge.meta.MetaUtils
+import hep.dataforge.values.BinaryValue
+import hep.dataforge.values.Value
+import hep.dataforge.values.ValueType
+import hep.dataforge.values.asValue
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.ObjectOutputStream
+import java.math.BigDecimal
+import java.nio.ByteBuffer
+import java.time.Instant
+import kotlin.streams.toList
+
+class BinaryMetaTypeTest {
+
+    private val meta: Meta = MetaBuilder("root")
+            .putValue("nullValue", Value.NULL)
+            .putValue("yes", true)
+            .putValue("no", false)
+            .putValue("time", Instant.ofEpochSecond(1_500_000_000L, 123_456_789))
+            .putValue("beforeEpoch", Instant.ofEpochSecond(-1000L, 1))
+            .putValue("string", "Всем привет!".asValue())
+            .putValue("empty", "".asValue())
+            .putValue("binary", BinaryValue(ByteBuffer.wrap(byteArrayOf(0, 1, -1, 127, -128))))
+            .putValue("int", -42)
+            .putValue("maxInt", Int.MAX_VALUE)
+            .putValue("long", Long.MIN_VALUE)
+            .putValue("double", -2.5e-300)
+            .putValue("nan", Double.NaN)
+            .putValue("decimal", BigDecimal("-12345678901234567890.000123"))
+            .putValue("list", Value.of(listOf(1, "two", 3.0, true)))
+            .putNode(MetaBuilder("child")
+                    .putValue("int", 1)
+                    .putNode(MetaBuilder("grandChild").putValue("string", "deep"))
+            )
+            .putNode(MetaBuilder("channel").putValue("id", 1).putValue("int", 10))
+            .putNode(MetaBuilder("channel").putValue("id", 2).putValue("time", Instant.EPOCH))
+            .putNode(MetaBuilder("channel").putValue("id", 3).putNode(MetaBuilder("child")))
+
+    private fun assertValueEquals(path: String, expected: Value, actual: Value) {
+        if (expected.isList) {
+            assertTrue(path, actual.isList)
+            assertEquals(path, expected.list.size, actual.list.size)
+            expected.list.zip(actual.list).forEachIndexed { i, (e, a) -> assertValueEquals("$path[$i]", e, a) }
+            return
+        }
+        assertEquals(path, expected.type, actual.type)
+        when (expected.type) {
+            ValueType.NULL -> {
+            }
+            ValueType.BOOLEAN -> assertEquals(path, expected.boolean, actual.boolean)
+            ValueType.TIME -> assertEquals(path, expected.time, actual.time)
+            ValueType.STRING -> assertEquals(path, expected.string, actual.string)
+            ValueType.BINARY -> assertEquals(path, expected.binary.duplicate(), actual.binary.duplicate())
+            // the exact number type is preserved
+            ValueType.NUMBER -> assertEquals(path, expected.number, actual.number)
+        }
+    }
+
+    private fun assertMetaEquals(expected: Meta, actual: Meta, path: String = expected.name) {
+        assertEquals(path, expected.name, actual.name)
+        assertEquals(path, expected.getValueNames(true).toList(), actual.getValueNames(true).toList())
+        expected.getValueNames(true).forEach { assertValueEquals("$path.$it", expected.getValue(it), actual.getValue(it)) }
+        assertEquals(path, expected.getNodeNames(true).toList(), actual.getNodeNames(true).toList())
+        expected.getNodeNames(true).forEach { name ->
+            val expectedNodes = expected.getMetaList(name)
+            val actualNodes = actual.getMetaList(name)
+            assertEquals("$path.$name", expectedNodes.size, actualNodes.size)
+            expectedNodes.zip(actualNodes).forEach { (e, a) -> assertMetaEquals(e, a, "$path.$name") }
+        }
+    }
+
+    private fun write(meta: Meta): ByteArray = ByteArrayOutputStream().also {
+        binaryMetaType.writer.write(it, meta)
+    }.toByteArray()
+
+    private fun writeLegacy(meta: Meta): ByteArray = ByteArrayOutputStream().also { baos ->
+        ObjectOutputStream(baos).use { MetaUtils.writeMeta(it, meta) }
+    }.toByteArray()
+
+    @Test
+    fun testBufferRoundTrip() {
+        val bytes = write(meta)
+        assertMetaEquals(meta, binaryMetaType.reader.readBuffer(ByteBuffer.wrap(bytes)))
+
+        val direct = ByteBuffer.allocateDirect(bytes.size).put(bytes).flip()
+        assertMetaEquals(meta, binaryMetaType.reader.readBuffer(direct))
+    }
+
+    @Test
+    fun testBufferWithOffset() {
+        val bytes = write(meta)
+        val padded = ByteArray(bytes.size + 10).also { System.arraycopy(bytes, 0, it, 7, bytes.size) }
+        val buffer = ByteBuffer.wrap(padded, 7, bytes.size).slice()
+        assertMetaEquals(meta, binaryMetaType.reader.readBuffer(buffer))
+    }
+
+    @Test
+    fun testStreamRoundTrip() {
+        val bytes = write(meta)
+        assertMetaEquals(meta, binaryMetaType.reader.read(ByteArrayInputStream(bytes), bytes.size.toLong()))
+
+        // without declared length the reader stops exactly at the end of meta
+        val stream = ByteArrayInputStream(bytes + "data".toByteArray())
+        assertMetaEquals(meta, binaryMetaType.reader.read(stream))
+        assertEquals("\r\ndata", String(stream.readAllBytes()))
+    }
+
+    @Test
+    fun testEmptyMeta() {
+        val empty = MetaBuilder("")
+        val bytes = write(empty)
+        assertMetaEquals(empty, binaryMetaType.reader.readBuffer(ByteBuffer.wrap(bytes)))
+        assertMetaEquals(empty, binaryMetaType.reader.read(ByteArrayInputStream(bytes)))
+    }
+
+    @Test
+    fun testLegacyMeta() {
+        val bytes = writeLegacy(meta)
+        assertMetaEquals(meta, binaryMetaType.reader.readBuffer(ByteBuffer.wrap(bytes)))
+        assertMetaEquals(meta, binaryMetaType.reader.read(ByteArrayInputStream(bytes), bytes.size.toLong()))
+        assertMetaEquals(meta, binaryMetaType.reader.read(ByteArrayInputStream(bytes)))
+    }
+
+    @Test
+    fun testTruncatedMeta() {
+        val bytes = write(meta)
+        val truncated = bytes.copyOf(bytes.size / 2)
+        try {
+            binaryMetaType.reader.readBuffer(ByteBuffer.wrap(truncated))
+            fail("Truncated meta is accepted")
+        } catch (ex: Exception) {
+            // expected
+        }
+        try {
+            binaryMetaType.reader.read(ByteArrayInputStream(truncated))
+            fail("Truncated meta is accepted")
+        } catch (ex: Exception) {
+            // expected
+        }
+    }
+}
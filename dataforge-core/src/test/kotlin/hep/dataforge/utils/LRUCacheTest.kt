@@ -0,0 +1,117 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.utils
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class LRUCacheTest {
+
+    @Test
+    fun testSkewedKeysFitCapacity() {
+        // small integral doubles have zero low bits and fall into few segments
+        val cache = LRUCache<Double, Int>(100)
+        (0 until 100).forEach { cache[it.toDouble()] = it }
+        assertEquals(100, cache.size)
+        assertEquals(0, cache.evictionCount)
+        (0 until 100).forEach { assertEquals(it, cache[it.toDouble()]) }
+    }
+
+    @Test
+    fun testSkewedWeightedKeys() {
+        val cache = LRUCache<Long, Int>(1000, 16) { _, value -> value.toLong() }
+        // all keys in the same segment
+        (0 until 100).forEach { cache[it.toLong() shl 20] = 10 }
+        assertEquals(100, cache.size)
+        assertEquals(1000, cache.weight)
+        assertEquals(0, cache.evictionCount)
+    }
+
+    @Test
+    fun testCapacity() {
+        val cache = LRUCache<Int, Int>(100)
+        (0 until 1000).forEach { cache[it] = it }
+        assertEquals(100, cache.size)
+        assertEquals(100, cache.weight)
+        assertEquals(900, cache.evictionCount)
+        // the last inserted entry is always kept
+        assertEquals(999, cache[999])
+    }
+
+    @Test
+    fun testEvictionOrder() {
+        // small cache has a single segment, so the order is strict
+        val cache = LRUCache<Int, String>(10)
+        (1..10).forEach { cache[it] = it.toString() }
+        cache[1]
+        cache[11] = "11"
+        assertTrue(cache.containsKey(1))
+        assertFalse(cache.containsKey(2))
+        cache[12] = "12"
+        assertFalse(cache.containsKey(3))
+        assertEquals(10, cache.size)
+    }
+
+    @Test
+    fun testHeavyEntry() {
+        val cache = LRUCache<String, Int>(100, 16) { _, value -> value.toLong() }
+        (0 until 10).forEach { cache["k$it"] = 5 }
+        // heavier than the share of any segment, but fits the cache
+        cache["heavy"] = 60
+        assertEquals(60, cache["heavy"])
+        assertTrue(cache.weight <= 100)
+
+        // heavier than the whole cache, not stored and does not evict others
+        val size = cache.size
+        cache["huge"] = 200
+        assertNull(cache["huge"])
+        assertEquals(size, cache.size)
+    }
+
+    @Test
+    fun testWeightAccounting() {
+        val cache = LRUCache<String, Int>(100, 16) { _, value -> value.toLong() }
+        cache["a"] = 10
+        cache["b"] = 20
+        cache["a"] = 30
+        assertEquals(50, cache.weight)
+        cache.remove("b")
+        assertEquals(30, cache.weight)
+        cache.clear()
+        assertEquals(0, cache.weight)
+        assertEquals(0, cache.size)
+    }
+
+    @Test
+    fun testConcurrentAccess() {
+        val cache = LRUCache<Int, Int>(500)
+        val executor = Executors.newFixedThreadPool(8)
+        repeat(8) { thread ->
+            executor.submit {
+                (0 until 10_000).forEach { cache.computeIfAbsent(thread * 10_000 + it) { key -> key } }
+            }
+        }
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES))
+        // concurrent evictions could remove slightly more than needed, but never leave the cache overfilled
+        assertTrue(cache.size in 450..500)
+        assertEquals(cache.size.toLong(), cache.weight)
+        cache.forEach { (key, value) -> assertEquals(key, value) }
+    }
+}
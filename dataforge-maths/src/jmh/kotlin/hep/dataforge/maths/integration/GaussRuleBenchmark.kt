@@ -0,0 +1,44 @@
+package hep.dataforge.maths.integration
+
+import org.apache.commons.math3.analysis.UnivariateFunction
+import org.apache.commons.math3.analysis.integration.gauss.GaussIntegratorFactory
+import org.openjdk.jmh.annotations.*
+import kotlin.math.exp
+
+/**
+ * Nested integration similar to trans-res convolution in numass spectrum: outer integral over an inner one
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+open class GaussRuleBenchmark {
+
+    @Param("100", "300")
+    var nodes: Int = 100
+
+    private val factory = GaussIntegratorFactory()
+
+    private val function = UnivariateFunction { x -> exp(-x * x / 2) }
+
+    @Benchmark
+    fun commonsMath(): Double {
+        return factory.legendre(nodes, 0.0, 10.0).integrate { y ->
+            factory.legendre(nodes, 0.0, y).integrate(function)
+        }
+    }
+
+    @Benchmark
+    fun cachedRule(): Double {
+        val rule = GaussRule.legendre(nodes)
+        return rule.integrate({ y -> rule.integrate(function, 0.0, y) }, 0.0, 10.0)
+    }
+
+    @Benchmark
+    fun cachedRuleBatch(): DoubleArray {
+        val rule = GaussRule.legendre(nodes)
+        val lower = DoubleArray(nodes)
+        val upper = DoubleArray(nodes) { 10.0 * (it + 1) / nodes }
+        return rule.integrate(function, lower, upper)
+    }
+}
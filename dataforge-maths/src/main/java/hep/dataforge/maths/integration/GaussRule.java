@@ -0,0 +1,148 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package hep.dataforge.maths.integration;
+
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.integration.gauss.GaussIntegrator;
+import org.apache.commons.math3.analysis.integration.gauss.GaussIntegratorFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable Gauss quadrature rule on the reference interval [-1, 1]. The rule is applied to an arbitrary interval
+ * via affine mapping of nodes, so integration does not allocate memory. Legendre rules are cached by the number of
+ * nodes.
+ *
+ * @author Alexander Nozik
+ */
+public final class GaussRule {
+
+    private static final GaussIntegratorFactory factory = new GaussIntegratorFactory();
+
+    private static final Map<Integer, GaussRule> legendreCache = new ConcurrentHashMap<>();
+    private static final Map<Integer, GaussRule> legendreHPCache = new ConcurrentHashMap<>();
+
+    /**
+     * Gauss-Legendre rule with given number of nodes
+     *
+     * @param numPoints
+     * @return
+     */
+    public static GaussRule legendre(int numPoints) {
+        return legendreCache.computeIfAbsent(numPoints, n -> of(factory.legendre(n, -1, 1)));
+    }
+
+    /**
+     * Gauss-Legendre rule with given number of nodes computed with high precision
+     *
+     * @param numPoints
+     * @return
+     */
+    public static GaussRule legendreHighPrecision(int numPoints) {
+        return legendreHPCache.computeIfAbsent(numPoints, n -> of(factory.legendreHighPrecision(n, -1, 1)));
+    }
+
+    private static GaussRule of(GaussIntegrator integrator) {
+        int n = integrator.getNumberOfPoints();
+        double[] nodes = new double[n];
+        double[] weights = new double[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = integrator.getPoint(i);
+            weights[i] = integrator.getWeight(i);
+        }
+        return new GaussRule(nodes, weights);
+    }
+
+    private final double[] nodes;
+    private final double[] weights;
+
+    /**
+     * @param nodes   nodes on [-1, 1]
+     * @param weights weights for [-1, 1]
+     */
+    public GaussRule(double[] nodes, double[] weights) {
+        if (nodes.length != weights.length) {
+            throw new IllegalArgumentException("The number of nodes does not match the number of weights");
+        }
+        this.nodes = nodes.clone();
+        this.weights = weights.clone();
+    }
+
+    public int getNumberOfPoints() {
+        return nodes.length;
+    }
+
+    /**
+     * Integrate function over [lower, upper]
+     *
+     * @param function
+     * @param lower
+     * @param upper
+     * @return
+     */
+    public double integrate(UnivariateFunction function, double lower, double upper) {
+        double halfLength = (upper - lower) / 2;
+        double middle = (upper + lower) / 2;
+        double sum = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            sum += weights[i] * function.value(middle + halfLength * nodes[i]);
+        }
+        return sum * halfLength;
+    }
+
+    /**
+     * Integrate function over a set of intervals. The result for interval {@code [lower[i], upper[i]]} is stored in
+     * {@code result[i]}. Node mapping is done in a separate loop over primitive arrays which could be vectorized by JIT.
+     *
+     * @param function
+     * @param lower    lower borders of intervals
+     * @param upper    upper borders of intervals
+     * @param result   an array for results, could be the same as one of borders
+     */
+    public void integrate(UnivariateFunction function, double[] lower, double[] upper, double[] result) {
+        if (lower.length != upper.length || result.length < lower.length) {
+            throw new IllegalArgumentException("Interval arrays have different sizes");
+        }
+        double[] x = new double[nodes.length];
+        for (int k = 0; k < lower.length; k++) {
+            double halfLength = (upper[k] - lower[k]) / 2;
+            double middle = (upper[k] + lower[k]) / 2;
+            for (int i = 0; i < x.length; i++) {
+                x[i] = middle + halfLength * nodes[i];
+            }
+            double sum = 0;
+            for (int i = 0; i < x.length; i++) {
+                sum += weights[i] * function.value(x[i]);
+            }
+            result[k] = sum * halfLength;
+        }
+    }
+
+    /**
+     * Integrate function over a set of intervals
+     *
+     * @param function
+     * @param lower    lower borders of intervals
+     * @param upper    upper borders of intervals
+     * @return integrals over each interval
+     */
+    public double[] integrate(UnivariateFunction function, double[] lower, double[] upper) {
+        double[] result = new double[lower.length];
+        integrate(function, lower, upper, result);
+        return result;
+    }
+}
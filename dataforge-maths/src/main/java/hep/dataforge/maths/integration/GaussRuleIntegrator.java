@@ -17,7 +17,6 @@ package hep.dataforge.maths.integration;
 
 import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.apache.commons.math3.analysis.integration.gauss.GaussIntegrator;
-import org.apache.commons.math3.analysis.integration.gauss.GaussIntegratorFactory;
 import org.apache.commons.math3.util.Pair;
 
 import java.util.function.Predicate;
@@ -30,9 +29,9 @@ import java.util.function.Predicate;
  */
 public class GaussRuleIntegrator extends UnivariateIntegrator<CMIntegrand> {
 
-    private static final GaussIntegratorFactory factory = new GaussIntegratorFactory();
     private final int numpoints;
     private IntegratorType type = IntegratorType.LEGANDRE;
+    private volatile GaussRule rule;
 
     /**
      * <p>Constructor for GaussRuleIntegrator.</p>
@@ -72,22 +71,67 @@ public class GaussRuleIntegrator extends UnivariateIntegrator<CMIntegrand> {
      * @return  */
     @Override
     public CMIntegrand evaluate(CMIntegrand integrand, Predicate<CMIntegrand> condition) {
-        GaussIntegrator integrator = getIntegrator(integrand.getLower(), integrand.getUpper());
-        double res = integrator.integrate(integrand.getFunction());
+        double res = integrate(integrand.getFunction(), integrand.getLower(), integrand.getUpper());
         return new CMIntegrand(integrand.getAbsoluteAccuracy(), integrand.getRelativeAccuracy(), 1, numpoints, res, integrand);
     }
 
-    private GaussIntegrator getIntegrator(double lower, double upper) {
-        switch (type) {
-            case LEGANDRE:
-                return factory.legendre(numpoints, lower, upper);
-            case LEGANDREHP:
-                return factory.legendreHighPrecision(numpoints, lower, upper);
-            case UNIFORM:
-                return new GaussIntegrator(getUniformRule(lower, upper, numpoints));
-            default:
-                throw new Error();
+    /**
+     * Integrate without creating intermediate integrand
+     */
+    @Override
+    public Double integrate(Double lower, Double upper, UnivariateFunction function) {
+        return integrate(function, lower, upper);
+    }
+
+    /**
+     * Integrate over a set of intervals
+     *
+     * @param function
+     * @param lower    lower borders of intervals
+     * @param upper    upper borders of intervals
+     * @return integrals over each interval
+     */
+    public double[] integrate(UnivariateFunction function, double[] lower, double[] upper) {
+        GaussRule rule = getRule();
+        if (rule != null) {
+            return rule.integrate(function, lower, upper);
+        } else {
+            double[] res = new double[lower.length];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = integrate(function, lower[i], upper[i]);
+            }
+            return res;
+        }
+    }
+
+    private double integrate(UnivariateFunction function, double lower, double upper) {
+        GaussRule rule = getRule();
+        if (rule != null) {
+            return rule.integrate(function, lower, upper);
+        } else {
+            return new GaussIntegrator(getUniformRule(lower, upper, numpoints)).integrate(function);
+        }
+    }
+
+    /**
+     * Cached reference rule or null if the rule depends on the interval
+     */
+    private GaussRule getRule() {
+        if (rule == null) {
+            switch (type) {
+                case LEGANDRE:
+                    rule = GaussRule.legendre(numpoints);
+                    break;
+                case LEGANDREHP:
+                    rule = GaussRule.legendreHighPrecision(numpoints);
+                    break;
+                case UNIFORM:
+                    return null;
+                default:
+                    throw new Error();
+            }
         }
+        return rule;
     }
 
     private Pair<double[], double[]> getUniformRule(double min, double max, int numPoints) {
@@ -69,15 +69,16 @@ public class MINUITFitter implements Fitter {
     @NotNull
     @Override
     public FitResult run(@NotNull FitState state, @Nullable History parentLog, @NotNull Meta meta) {
+        FitState fitState = Fitter.Companion.prepareState(state, meta);
         Chronicle log = new Chronicle("MINUIT", parentLog);
         String action = meta.getString("action", TASK_RUN);
         log.report("MINUIT fit engine started action '{}'", action);
         switch (action) {
             case TASK_COVARIANCE:
-                return runHesse(state, log, meta);
+                return runHesse(fitState, log, meta);
             case TASK_SINGLE:
             case TASK_RUN:
-                return runFit(state, log, meta);
+                return runFit(fitState, log, meta);
             default:
                 throw new IllegalArgumentException("Unknown task");
         }
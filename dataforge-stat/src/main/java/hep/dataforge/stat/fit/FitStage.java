@@ -38,6 +38,10 @@ public class FitStage extends SimpleMetaMorph {
     public static final String FREE_PARAMETERS = "freePars";
     public static final String ENGINE_NAME = "engine";
     public static final String METHOD_NAME = "method";
+    /**
+     * Evaluate data points in parallel (the model must be thread safe)
+     */
+    public static final String PARALLEL_KEY = "parallel";
     public static final String DEFAULT_METHOD_NAME = "default";
 
 
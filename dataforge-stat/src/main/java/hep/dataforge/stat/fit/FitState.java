@@ -19,6 +19,7 @@ import hep.dataforge.maths.NamedMatrix;
 import hep.dataforge.stat.likelihood.LogLikelihood;
 import hep.dataforge.stat.models.Model;
 import hep.dataforge.stat.parametric.DerivativeCalculator;
+import hep.dataforge.stat.parametric.ParameterVector;
 import hep.dataforge.stat.parametric.ParametricValue;
 import hep.dataforge.tables.NavigableValuesSource;
 import hep.dataforge.tables.Table;
@@ -27,6 +28,8 @@ import org.apache.commons.math3.linear.DiagonalMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 
 import java.util.Optional;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
 
 import static org.apache.commons.math3.util.MathArrays.ebeMultiply;
 
@@ -53,6 +56,11 @@ public class FitState {
 
     private final ParamSet pars;
 
+    /**
+     * Evaluate model in different data points in parallel
+     */
+    private final boolean parallel;
+
     public FitState(NavigableValuesSource points, Model model, ParamSet pars) {
         this.points = points;
         this.model = model;
@@ -60,16 +68,23 @@ public class FitState {
         this.pars = pars;
         this.covariance = null;
         this.interval = null;
+        this.parallel = false;
     }
 
     public FitState(NavigableValuesSource points, Model model, ParamSet pars,
                     NamedMatrix covariance, IntervalEstimate interval, ParametricValue prior) {
+        this(points, model, pars, covariance, interval, prior, false);
+    }
+
+    public FitState(NavigableValuesSource points, Model model, ParamSet pars,
+                    NamedMatrix covariance, IntervalEstimate interval, ParametricValue prior, boolean parallel) {
         this.points = points;
         this.model = model;
         this.prior = prior;
         this.covariance = covariance;
         this.interval = interval;
         this.pars = pars;
+        this.parallel = parallel;
     }
 
     /**
@@ -84,6 +99,7 @@ public class FitState {
         this.covariance = state.covariance;
         this.pars = state.pars;
         this.interval = state.interval;
+        this.parallel = state.parallel;
     }
 
     public static Builder builder() {
@@ -161,14 +177,38 @@ public class FitState {
      * @return a double.
      */
     public double getChi2(ParamSet set) {
-        int i;
+        ParameterVector compiled = ParameterVector.of(set);
+        double[] chi2 = evaluate(i -> {
+            double d = this.getDis(i, compiled);
+            double s = this.getDispersion(i, compiled);
+            return d * d / s;
+        });
+        return sum(chi2);
+    }
+
+    /**
+     * Evaluate given function for each data point index. If the state is {@link #isParallel()}, points are
+     * evaluated in fork-join pool. The result is always ordered by point index, so the reduction of the result
+     * does not depend on evaluation order.
+     *
+     * @param function a function of point index
+     * @return
+     */
+    public double[] evaluate(IntToDoubleFunction function) {
+        IntStream indices = IntStream.range(0, getDataSize());
+        if (parallel) {
+            indices = indices.parallel();
+        }
+        return indices.mapToDouble(function).toArray();
+    }
+
+    /**
+     * Sequential sum in the order of points
+     */
+    private static double sum(double[] values) {
         double res = 0;
-        double d;
-        double s;
-        for (i = 0; i < this.getDataSize(); i++) {
-            d = this.getDis(i, set);
-            s = this.getDispersion(i, set);
-            res += d * d / s;
+        for (double value : values) {
+            res += value;
         }
         return res;
     }
@@ -179,10 +219,10 @@ public class FitState {
      * описыватьеся как спектр-данные.
      *
      * @param i    a int.
-     * @param pars a {@link hep.dataforge.stat.fit.ParamSet} object.
+     * @param pars parameter values. Could be compiled via {@link ParameterVector#of(Values)} to avoid parameter lookup
      * @return a double.
      */
-    public double getDis(int i, ParamSet pars) {
+    public double getDis(int i, Values pars) {
         return model.distance(points.getRow(i), pars);
     }
 
@@ -212,10 +252,10 @@ public class FitState {
      * зависимость веса от параметров.
      *
      * @param i    a int.
-     * @param pars a {@link hep.dataforge.stat.fit.ParamSet} object.
+     * @param pars parameter values
      * @return a double.
      */
-    public double getDispersion(int i, ParamSet pars) {
+    public double getDispersion(int i, Values pars) {
         double res = model.dispersion(points.getRow(i), pars);
         if (res > 0) {
             return res;
@@ -235,9 +275,8 @@ public class FitState {
         if (!model.providesProb()) {
             res = -getChi2(set) / 2;
         } else {
-            for (Values dp : points) {
-                res += model.getLogProb(dp, set);
-            }
+            ParameterVector compiled = ParameterVector.of(set);
+            res = sum(evaluate(i -> model.getLogProb(points.getRow(i), compiled)));
         }
         if (getPrior() != null) {
             //логарифм произведения равен сумме логарифмов
@@ -255,20 +294,16 @@ public class FitState {
      */
     public double getLogProbDeriv(String parName, ParamSet set) {
         double res = 0;
+        ParameterVector compiled = ParameterVector.of(set);
         if (!model.providesProbDeriv(parName)) {
-            double d;
-            double s;
-            double deriv;
-            for (int i = 0; i < getDataSize(); i++) {
-                d = getDis(i, set);
-                s = getDispersion(i, set);
-                deriv = getDisDeriv(parName, i, set);
-                res -= d * deriv / s;
-            }
+            res = -sum(evaluate(i -> {
+                double d = getDis(i, compiled);
+                double s = getDispersion(i, compiled);
+                double deriv = getDisDeriv(parName, i, set);
+                return d * deriv / s;
+            }));
         } else {
-            for (Values dp : points) {
-                res += model.getLogProbDeriv(parName, dp, set);
-            }
+            res = sum(evaluate(i -> model.getLogProbDeriv(parName, points.getRow(i), compiled)));
         }
         if ((getPrior() != null) && (getPrior().getNames().contains(parName))) {
             return res += getPrior().derivValue(parName, set) / getPrior().value(set);
@@ -327,6 +362,10 @@ public class FitState {
         return points.size();
     }
 
+    public boolean isParallel() {
+        return parallel;
+    }
+
     /**
      *
      */
@@ -338,6 +377,7 @@ public class FitState {
         private ParamSet pars;
         private NamedMatrix covariance;
         private ParametricValue prior;
+        private boolean parallel;
 
         public Builder(FitState state) {
             this.covariance = state.covariance;
@@ -346,6 +386,7 @@ public class FitState {
             this.model = state.model;
             this.pars = state.pars;
             this.prior = state.prior;
+            this.parallel = state.parallel;
         }
 
         public Builder() {
@@ -392,11 +433,22 @@ public class FitState {
             return this;
         }
 
+        /**
+         * Evaluate model in data points in parallel. The model must be thread safe.
+         *
+         * @param parallel
+         * @return
+         */
+        public Builder setParallel(boolean parallel) {
+            this.parallel = parallel;
+            return this;
+        }
+
         public FitState build() {
             if (dataSet == null || model == null || pars == null) {
                 throw new IllegalStateException("Can't builder FitState, data, model and starting parameters must be provided.");
             }
-            return new FitState(dataSet, model, pars, covariance, interval, prior);
+            return new FitState(dataSet, model, pars, covariance, interval, prior, parallel);
         }
 
     }
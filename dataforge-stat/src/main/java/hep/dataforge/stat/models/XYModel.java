@@ -17,6 +17,7 @@ package hep.dataforge.stat.models;
 
 import hep.dataforge.exceptions.NotDefinedException;
 import hep.dataforge.meta.Meta;
+import hep.dataforge.stat.parametric.ParameterVector;
 import hep.dataforge.stat.parametric.ParametricFunction;
 import hep.dataforge.tables.Adapters;
 import hep.dataforge.tables.ValuesAdapter;
@@ -162,7 +163,11 @@ public class XYModel extends AbstractModel {
      * @return a double.
      */
     public double value(double x, Values set) {
-        return source.value(x, set);
+        if (set instanceof ParameterVector) {
+            return source.value(x, (ParameterVector) set);
+        } else {
+            return source.value(x, set);
+        }
     }
 
     /**
@@ -60,6 +60,50 @@ public abstract class AbstractParametric extends AbstractNamedSet {
     protected double getParameter(String name, Values set) {
         //FIXME add default value
         return set.getDouble(name);
-    }    
-    
+    }
+
+    /**
+     * Slots of this function parameters in the last used layout
+     */
+    private static final class Slots {
+        private final ParameterLayout layout;
+        private final int[] slots;
+
+        private Slots(ParameterLayout layout, int[] slots) {
+            this.layout = layout;
+            this.slots = slots;
+        }
+    }
+
+    private volatile Slots slots;
+
+    /**
+     * Resolve parameters of this function (in the order of {@link #getNames()}) to slots of given layout.
+     * The resolution is cached for the last used layout, so in a loop with the same layout no name lookup is done.
+     *
+     * @param layout
+     * @return
+     */
+    protected int[] getSlots(ParameterLayout layout) {
+        Slots cached = this.slots;
+        if (cached == null || cached.layout != layout) {
+            cached = new Slots(layout, layout.resolve(getNames()));
+            this.slots = cached;
+        }
+        return cached.slots;
+    }
+
+    /**
+     * Extract value of parameter number {@code index} of this function from compiled parameter vector using
+     * default value if parameter is not presented in the vector
+     *
+     * @param index the number of parameter in {@link #getNames()}
+     * @param pars
+     * @return
+     */
+    protected double getParameter(int index, ParameterVector pars) {
+        int slot = getSlots(pars.getLayout())[index];
+        return slot >= 0 ? pars.getDouble(slot) : getDefaultParameter(getNames().get(index));
+    }
+
 }
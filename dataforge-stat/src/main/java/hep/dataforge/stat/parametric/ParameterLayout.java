@@ -0,0 +1,111 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package hep.dataforge.stat.parametric;
+
+import hep.dataforge.names.NameList;
+import hep.dataforge.names.NameSetContainer;
+import hep.dataforge.values.Values;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable mapping of parameter names to slots of a {@code double[]} array. Parametric functions resolve their
+ * parameter names against the layout once and then access parameters by index.
+ *
+ * @author Alexander Nozik
+ */
+public final class ParameterLayout implements NameSetContainer {
+
+    private final NameList names;
+    private final Map<String, Integer> slots;
+
+    public ParameterLayout(NameList names) {
+        this.names = names;
+        this.slots = new HashMap<>(names.size() * 2);
+        for (int i = 0; i < names.size(); i++) {
+            if (slots.putIfAbsent(names.get(i), i) != null) {
+                throw new IllegalArgumentException("Duplicate parameter name " + names.get(i));
+            }
+        }
+    }
+
+    public ParameterLayout(String... names) {
+        this(new NameList(names));
+    }
+
+    public static ParameterLayout of(NameSetContainer set) {
+        return new ParameterLayout(set.getNames());
+    }
+
+    @Override
+    public NameList getNames() {
+        return names;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * The slot for given parameter name or -1 if parameter is not presented in the layout
+     *
+     * @param name
+     * @return
+     */
+    public int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Resolve given names to slots of this layout. Missing names are resolved to -1.
+     *
+     * @param names
+     * @return
+     */
+    public int[] resolve(NameList names) {
+        int[] res = new int[names.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = indexOf(names.get(i));
+        }
+        return res;
+    }
+
+    /**
+     * Pack parameter values into an array according to this layout
+     *
+     * @param set
+     * @return
+     */
+    public double[] pack(Values set) {
+        double[] res = new double[size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = set.getDouble(names.get(i));
+        }
+        return res;
+    }
+
+    /**
+     * Wrap an array of parameter values
+     *
+     * @param values
+     * @return
+     */
+    public ParameterVector wrap(double[] values) {
+        return new ParameterVector(this, values);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package hep.dataforge.stat.parametric;
+
+import hep.dataforge.exceptions.NameNotFoundException;
+import hep.dataforge.names.NameList;
+import hep.dataforge.values.Value;
+import hep.dataforge.values.ValueFactory;
+import hep.dataforge.values.Values;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Optional;
+
+/**
+ * A compiled set of parameters: a {@code double[]} array with a {@link ParameterLayout}. Could be used everywhere
+ * {@link Values} are expected, but parametric functions could access parameters by slot via {@link #getDouble(int)}.
+ *
+ * @author Alexander Nozik
+ */
+public final class ParameterVector implements Values {
+
+    /**
+     * Compile given parameter set. If the set is already compiled, it is returned as is.
+     *
+     * @param set
+     * @return
+     */
+    public static ParameterVector of(Values set) {
+        if (set instanceof ParameterVector) {
+            return (ParameterVector) set;
+        } else {
+            ParameterLayout layout = ParameterLayout.of(set);
+            return new ParameterVector(layout, layout.pack(set));
+        }
+    }
+
+    private final ParameterLayout layout;
+    private final double[] values;
+
+    public ParameterVector(ParameterLayout layout, double[] values) {
+        if (layout.size() != values.length) {
+            throw new IllegalArgumentException("The size of parameter array does not match layout");
+        }
+        this.layout = layout;
+        this.values = values;
+    }
+
+    public ParameterLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Parameter value in given slot
+     *
+     * @param slot
+     * @return
+     */
+    public double getDouble(int slot) {
+        return values[slot];
+    }
+
+    @Override
+    public double getDouble(@NotNull String name) {
+        int slot = layout.indexOf(name);
+        if (slot < 0) {
+            throw new NameNotFoundException(name);
+        }
+        return values[slot];
+    }
+
+    @Override
+    public boolean hasValue(@NotNull String path) {
+        return layout.indexOf(path) >= 0;
+    }
+
+    @NotNull
+    @Override
+    public Optional<Value> optValue(@NotNull String path) {
+        int slot = layout.indexOf(path);
+        return slot < 0 ? Optional.empty() : Optional.of(ValueFactory.of(values[slot]));
+    }
+
+    @Override
+    public NameList getNames() {
+        return layout.getNames();
+    }
+}
@@ -20,6 +20,19 @@ public interface ParametricBiFunction extends NameSetContainer {
 
     double value(double x, double y, Values set);
 
+    /**
+     * Value for compiled parameters. Implementations could use {@link ParameterVector#getDouble(int)} to avoid
+     * parameter lookup by name. By default delegates to {@link #value(double, double, Values)}.
+     *
+     * @param x
+     * @param y
+     * @param pars
+     * @return
+     */
+    default double value(double x, double y, ParameterVector pars) {
+        return value(x, y, (Values) pars);
+    }
+
     boolean providesDeriv(String name);
 
     default ParametricBiFunction derivative(String parName) {
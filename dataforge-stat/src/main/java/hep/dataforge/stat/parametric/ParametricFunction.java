@@ -33,6 +33,18 @@ public interface ParametricFunction extends NameSetContainer {
 
     double value(double x, Values set);
 
+    /**
+     * Value for compiled parameters. Implementations could use {@link ParameterVector#getDouble(int)} to avoid
+     * parameter lookup by name. By default delegates to {@link #value(double, Values)}.
+     *
+     * @param x
+     * @param pars
+     * @return
+     */
+    default double value(double x, ParameterVector pars) {
+        return value(x, (Values) pars);
+    }
+
     boolean providesDeriv(String name);
 
     default ParametricFunction derivative(String parName) {
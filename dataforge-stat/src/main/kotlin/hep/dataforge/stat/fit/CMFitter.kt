@@ -67,7 +67,7 @@ object CMFitter : Fitter {
         val log = Chronicle("CM", parentLog)
         val action = meta.getString("action", TASK_RUN)
         when (action) {
-            TASK_SINGLE, TASK_RUN -> return makeRun(state, log, meta)
+            TASK_SINGLE, TASK_RUN -> return makeRun(Fitter.prepareState(state, meta), log, meta)
             else -> throw IllegalArgumentException(String.format("Action '%s' is not supported by CMFitter", action))
         }
     }
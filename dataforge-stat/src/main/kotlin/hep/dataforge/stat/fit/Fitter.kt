@@ -21,6 +21,7 @@ import hep.dataforge.meta.KMetaBuilder
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.buildMeta
 import hep.dataforge.stat.fit.FitStage.FREE_PARAMETERS
+import hep.dataforge.stat.fit.FitStage.PARALLEL_KEY
 
 /**
  *
@@ -51,5 +52,16 @@ interface Fitter : Named {
         fun getFitPars(state: FitState, meta: Meta): Array<String> {
             return meta.getStringArray(FREE_PARAMETERS, state.model.namesAsArray())
         }
+
+        /**
+         * Apply parallel evaluation setting from fit stage meta to the state
+         */
+        fun prepareState(state: FitState, meta: Meta): FitState {
+            return if (meta.hasValue(PARALLEL_KEY) && meta.getBoolean(PARALLEL_KEY) != state.isParallel) {
+                state.edit().setParallel(meta.getBoolean(PARALLEL_KEY)).build()
+            } else {
+                state
+            }
+        }
     }
 }
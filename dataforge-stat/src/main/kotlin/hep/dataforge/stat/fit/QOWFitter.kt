@@ -60,14 +60,9 @@ internal class QOWeight(val source: FitState, val fitPars: Array<String>, theta:
             throw IllegalStateException("The state does not contain data")
         }
 
-        dispersion = DoubleArray(source.dataSize)
-        derivs = Array(names.size()) { DoubleArray(source.dataSize) }
-
-        (0 until source.dataSize).forEach { i ->
-            this.dispersion[i] = source.getDispersion(i, theta)
-            (0 until names.size()).forEach { k ->
-                derivs[k][i] = source.getDisDeriv(this.names.get(k), i, theta)
-            }
+        dispersion = source.evaluate { i -> source.getDispersion(i, theta) }
+        derivs = Array(names.size()) { k ->
+            source.evaluate { i -> source.getDisDeriv(this.names.get(k), i, theta) }
         }
 
     }
@@ -172,14 +167,15 @@ object QOWFitter : Fitter {
     }
 
     override fun run(state: FitState, parentLog: History?, meta: Meta): FitResult {
+        val fitState = Fitter.prepareState(state, meta)
         val log = Chronicle("QOW", parentLog)
         val action = meta.getString(FIT_STAGE_TYPE, TASK_RUN)
         log.report("QOW fit engine started task '{}'", action)
         return when (action) {
-            TASK_SINGLE -> makeRun(state, log, meta)
-            TASK_COVARIANCE -> generateErrors(state, log, meta)
+            TASK_SINGLE -> makeRun(fitState, log, meta)
+            TASK_COVARIANCE -> generateErrors(fitState, log, meta)
             TASK_RUN -> {
-                var res = makeRun(state, log, meta)
+                var res = makeRun(fitState, log, meta)
                 res = makeRun(res.optState().get(), log, meta)
                 generateErrors(res.optState().get(), log, meta)
             }
@@ -16,6 +16,7 @@
 package hep.dataforge.stat.fit
 
 import hep.dataforge.maths.NamedVector
+import hep.dataforge.stat.parametric.ParameterVector
 import org.apache.commons.math3.linear.Array2DRowRealMatrix
 import org.apache.commons.math3.linear.RealMatrix
 import java.util.logging.Logger
@@ -95,11 +96,13 @@ internal object QOWUtils {
         var i: Int
         var k: Int
         var l: Int
+        val compiled = ParameterVector.of(set)
+        val diss = source.evaluate { source.getDis(it, compiled) }
         l = 0
         while (l < fitDim) {
             i = 0
             while (i < source.dataSize) {
-                eqvalues[i][l] = source.getDis(i, set) * weight.derivs[l][i] / weight.dispersion[i]
+                eqvalues[i][l] = diss[i] * weight.derivs[l][i] / weight.dispersion[i]
                 i++
             }
             l++
@@ -165,9 +168,11 @@ internal object QOWUtils {
         var l: Int// номер параметра, по короторому берется производная
         l = 0
         while (l < fitDim) {
+            val parName = fitPars[l]
+            val column = source.evaluate { source.getDisDeriv(parName, it, set) }
             i = 0
             while (i < source.dataSize) {
-                sderiv[i][l] = source.getDisDeriv(fitPars[l], i, set)
+                sderiv[i][l] = column[i]
                 i++
 
             }
@@ -274,14 +279,8 @@ internal object QOWUtils {
         var k: Int
         var summ: Double
 
-        val diss = DoubleArray(source.dataSize)
-
-        i = 0
-        while (i < diss.size) {
-            diss[i] = source.getDis(i, set)
-            i++
-
-        }
+        val compiled = ParameterVector.of(set)
+        val diss = source.evaluate { source.getDis(it, compiled) }
 
         k = 0
         while (k < fitPars.size) {
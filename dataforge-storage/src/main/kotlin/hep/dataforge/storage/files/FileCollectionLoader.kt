@@ -67,6 +67,12 @@ abstract class FileCollectionLoader<T : Any>(
         readAll().forEach { operation(it.index, it.value) }
     }
 
+    /**
+     * Sequence of entries with their indices starting from given one
+     */
+    fun indexedSequence(startIndex: Int = 0): Sequence<IndexedValue<T>> =
+            readAll(startIndex).map { IndexedValue(it.index, it.value) }
+
     override fun close() {
         envelope = null
     }
@@ -18,9 +18,11 @@ package hep.dataforge.storage.files
 
 import hep.dataforge.data.binary.Binary
 import hep.dataforge.data.binary.FileBinary
+import hep.dataforge.data.binary.MappedFiles
 import hep.dataforge.exceptions.NameNotFoundException
 import hep.dataforge.io.envelopes.*
 import hep.dataforge.meta.Meta
+import hep.dataforge.values.asValue
 import java.nio.ByteBuffer
 import java.nio.channels.FileChannel
 import java.nio.file.Files
@@ -29,26 +31,55 @@ import java.nio.file.StandardOpenOption
 
 abstract class FileEnvelope(val path: Path): Envelope, AutoCloseable{
     protected abstract val dataOffset: Long
-    protected abstract val dataLength: Int
+    protected abstract val dataLength: Long
 
-    protected open val channel by lazy { FileChannel.open(path, StandardOpenOption.READ)}
+    /**
+     * If false, the file is not memory mapped. Checked on each access to the data.
+     */
+    protected open val mappable: Boolean get() = true
+
+    /**
+     * Open the channel of this envelope. The channel is opened lazily on first access
+     */
+    protected open fun openChannel(): FileChannel = FileChannel.open(path, StandardOpenOption.READ)
+
+    private val channelDelegate = lazy { openChannel() }
+
+    protected val channel: FileChannel by channelDelegate
+
+    /**
+     * True if the channel of this envelope is open
+     */
+    protected val channelOpened: Boolean get() = channelDelegate.isInitialized()
 
     /**
      * Read the whole data block
      */
     override val data: Binary by lazy {
-        FileBinary(path, dataOffset)
+        FileBinary(path, dataOffset) { mappable }
     }
 
     /**
-     * Read data block in given position
+     * Read a block of file in given position. Uses pooled read-only channel, so the channel of this envelope is not
+     * opened for reading.
      */
     fun read(pos: Long, length: Int): ByteBuffer {
-        return ByteBuffer.allocate(length).also { channel.read(it, pos) }
+        return MappedFiles.read(path, pos, length)
+    }
+
+    /**
+     * Read the tag from the beginning of the file. The shared mapping of the file is used if the file could be mapped,
+     * so no channel is opened for the tag.
+     */
+    protected fun <T : EnvelopeTag> readTag(tag: T): T {
+        tag.read((if (mappable) MappedFiles.map(path) else null) ?: read(0, tag.length))
+        return tag
     }
 
     override fun close() {
-        channel.close()
+        if (channelDelegate.isInitialized()) {
+            channel.close()
+        }
     }
 
 
@@ -59,9 +90,17 @@ abstract class FileEnvelope(val path: Path): Envelope, AutoCloseable{
  */
 abstract class MutableFileEnvelope(path: Path) : FileEnvelope(path), AutoCloseable {
 
-    abstract override var dataLength: Int
+    abstract override var dataLength: Long
 
-    override val channel by lazy { FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)}
+    /**
+     * The file is not mapped after it is opened for writing. A live mapping prevents [clearData] on some platforms.
+     */
+    override val mappable: Boolean get() = !channelOpened
+
+    override fun openChannel(): FileChannel {
+        MappedFiles.unmap(path)
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+    }
 
     /**
      * Append data to the end of envelope file and update tag
@@ -75,7 +114,7 @@ abstract class MutableFileEnvelope(path: Path) : FileEnvelope(path), AutoCloseab
     fun appendAll(buffers: Iterable<ByteBuffer>) {
         synchronized(this) {
             channel.position(dataOffset + dataLength)
-            val size = buffers.map { channel.write(it) }.sum()
+            val size = buffers.sumOf { channel.write(it).toLong() }
             dataLength += size
         }
     }
@@ -137,17 +176,18 @@ abstract class MutableFileEnvelope(path: Path) : FileEnvelope(path), AutoCloseab
 
 class TaggedFileEnvelope(path: Path) : MutableFileEnvelope(path) {
 
-    private val tag by lazy { Files.newByteChannel(path, StandardOpenOption.READ).use { EnvelopeTag().read(it) } }
+    private val tag by lazy { readTag(EnvelopeTag()) }
 
     override val dataOffset: Long by lazy { (tag.length + tag.metaSize).toLong() }
 
-    override var dataLength: Int
-        get() = tag.dataSize
+    /**
+     * Declared data length. Lengths not fitting the tag are written as undefined, in this case data lasts till the
+     * end of file.
+     */
+    override var dataLength: Long
+        get() = tag.dataLength.takeIf { it >= 0 } ?: (Files.size(path) - dataOffset)
         set(value) {
-            if (value > Int.MAX_VALUE) {
-                throw RuntimeException("Too large data block")
-            }
-            tag.dataSize = value
+            tag.values[Envelope.DATA_LENGTH_PROPERTY] = value.asValue()
             if (channel.write(tag.toBytes(), 0L) < tag.length) {
                 throw error("Tag is not overwritten.")
             }
@@ -155,9 +195,9 @@ class TaggedFileEnvelope(path: Path) : MutableFileEnvelope(path) {
 
 
     override val meta: Meta by lazy {
-        val buffer = ByteBuffer.allocate(tag.metaSize).also {
-            channel.read(it, tag.length.toLong())
-        }
-        tag.metaType.reader.readBuffer(buffer)
+        MetaCache.get(path) {
+            val buffer = read(tag.length.toLong(), tag.metaSize)
+            tag.metaType.reader.readBuffer(buffer)
+        }!!
     }
 }
\ No newline at end of file
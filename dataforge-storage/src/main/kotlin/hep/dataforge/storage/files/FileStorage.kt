@@ -25,6 +25,7 @@ import hep.dataforge.description.ValueDefs
 import hep.dataforge.io.envelopes.Envelope
 import hep.dataforge.io.envelopes.EnvelopeBuilder
 import hep.dataforge.io.envelopes.EnvelopeType
+import hep.dataforge.io.envelopes.MetaCache
 import hep.dataforge.io.envelopes.TaglessEnvelopeType
 import hep.dataforge.meta.Meta
 import hep.dataforge.nullable
@@ -82,7 +83,7 @@ class FileStorage(
     override fun getConnectionHelper(): ConnectionHelper = _connectionHelper
 
     override fun getChildren(): Collection<StorageElement> = runBlocking {
-        Files.list(path).toList().map { path ->
+        Files.list(path).toList().filterNot { it.fileName.toString().endsWith(TABLE_INDEX_EXTENSION) }.map { path ->
             async {
                 type.read(context, path, this@FileStorage).also {
                     if (it == null) {
@@ -124,7 +125,7 @@ class FileStorage(
          */
         fun resolveMeta(
             path: Path,
-            metaReader: (Path) -> Meta? = { EnvelopeType.infer(it)?.reader?.read(it)?.meta },
+            metaReader: (Path) -> Meta? = { file -> MetaCache.get(file) { EnvelopeType.infer(it)?.reader?.read(it)?.meta } },
         ): Meta? = if (Files.isDirectory(path)) {
             Files.list(path).asSequence()
                 .find { it.fileName.toString() == "meta.df" || it.fileName.toString() == "meta" }
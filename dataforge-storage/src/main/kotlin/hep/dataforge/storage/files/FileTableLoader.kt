@@ -17,6 +17,8 @@
 package hep.dataforge.storage.files
 
 import hep.dataforge.context.Context
+import hep.dataforge.data.binary.FileBinary
+import hep.dataforge.data.binary.MappedFiles
 import hep.dataforge.io.envelopes.*
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.buildMeta
@@ -33,11 +35,14 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import java.io.ByteArrayOutputStream
 import java.io.DataOutputStream
+import java.nio.BufferUnderflowException
 import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.StandardOpenOption
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListSet
 
 
 /**
@@ -65,27 +70,161 @@ open class FileTableLoader internal constructor(
         }
     }
 
-    protected val defaultIndex by lazy { TreeMap<Value, Long>().apply { fillIndex(this) } }
+    /**
+     * The file offset of table data or -1 if the data is not backed by the table file
+     */
+    private val dataOffset: Long by lazy {
+        (data as? FileBinary)?.dataOffset ?: -1L
+    }
+
+    /**
+     * Sparse index of row offsets. The index is stored in a sidecar file and updated incrementally
+     */
+    private val rowIndex: RowOffsetIndex by lazy {
+        RowOffsetIndex.load(indexFile(null), FileStamp.of(path)).also { index ->
+            updateRows(index)
+            fillKeys(index.rowCount)
+        }
+    }
 
+    private val rowKeys = ConcurrentSkipListSet<Value>()
 
-    protected fun getOffset(index: Int): Long? {
-        if (index == 0) {
-            return 0
-        } else if (index >= defaultIndex.size) {
-            updateIndex()
+    private var keyCount = 0
+
+    private val secondaryIndices = ConcurrentHashMap<String, IndexedFileTableLoader>()
+
+    /**
+     * The number of indexed rows
+     */
+    val rowCount: Int
+        get() = rowIndex.rowCount
+
+    /**
+     * Sidecar index file for this table
+     * @param field the name of indexed field or null for row index
+     */
+    internal fun indexFile(field: String?): Path {
+        val suffix = if (field == null) TABLE_INDEX_EXTENSION else ".$field$TABLE_INDEX_EXTENSION"
+        return path.resolveSibling(path.fileName.toString() + suffix)
+    }
+
+    /**
+     * The size of table data for given state of the file. For file backed data it includes rows appended after the
+     * envelope was read.
+     */
+    private fun dataSize(stamp: FileStamp): Long = if (dataOffset >= 0) stamp.size - dataOffset else data.size
+
+    /**
+     * Read a block of table data. The table file is read via pooled channel with long offsets, so it is not mapped
+     * as a whole and could be larger than 2 GB.
+     */
+    private fun readData(offset: Long, size: Int): ByteBuffer = if (dataOffset >= 0) {
+        MappedFiles.read(path, dataOffset + offset, size)
+    } else {
+        data.read(offset.toInt(), size)
+    }
+
+    private fun cursor(offset: Long, end: Long, window: Int = RowCursor.DEFAULT_WINDOW) =
+            RowCursor(::readData, end, offset, window)
+
+    /**
+     * Index rows appended since the last update. Only the tail of the data after the last indexed row is read.
+     */
+    private fun updateRows(index: RowOffsetIndex) {
+        val stamp = FileStamp.of(path)
+        val end = dataSize(stamp)
+        index.update(stamp, end) { from ->
+            sequence {
+                val cursor = cursor(from, end)
+                while (cursor.hasNext && cursor.next { reader(it, format) } != null) {
+                    yield(cursor.offset)
+                }
+            }
+        }
+    }
+
+    @Synchronized
+    private fun fillKeys(count: Int) {
+        if (count < keyCount) {
+            rowKeys.clear()
+            keyCount = 0
+        }
+        for (i in keyCount until count) {
+            rowKeys.add(i.asValue())
         }
-        return defaultIndex[index.asValue()]
+        keyCount = count
     }
 
     override val keys: NavigableSet<Value>
-        get() = defaultIndex.navigableKeySet()
+        get() {
+            if (rowKeys.isEmpty()) {
+                updateIndex()
+            }
+            return Collections.unmodifiableNavigableSet(rowKeys)
+        }
 
-    override suspend fun get(key: Value): Values? {
-        return getOffset(key.int)?.let {
-            synchronized(data) {
-                reader(data.buffer.apply { position(it.toInt()) }, format)
+    override suspend fun get(key: Value): Values? = getRow(key.int)
+
+    /**
+     * Read a row with given number. Each call uses its own cursor, so no locking is required.
+     */
+    fun getRow(row: Int): Values? {
+        if (row < 0) {
+            return null
+        } else if (row >= rowIndex.rowCount) {
+            updateIndex()
+            if (row >= rowIndex.rowCount) {
+                return null
             }
         }
+        val (start, offset) = rowIndex.checkpoint(row)
+        val cursor = cursor(offset, rowIndex.indexedBytes, RowCursor.ROW_WINDOW)
+        repeat(row - start) { cursor.next { reader(it, format) } }
+        return cursor.next { reader(it, format) }
+    }
+
+    /**
+     * Read rows with given numbers in one forward pass over the data. Missing rows are skipped.
+     */
+    internal fun getRows(rows: IntArray): List<Values> {
+        if (rows.isEmpty()) {
+            return emptyList()
+        }
+        if (rows.maxOrNull()!! >= rowIndex.rowCount) {
+            updateIndex()
+        }
+        val rowCount = rowIndex.rowCount
+        val end = rowIndex.indexedBytes
+        val found = HashMap<Int, Values>()
+        var rowCursor: RowCursor? = null
+        var current = -1
+        rows.filter { it in 0 until rowCount }.sorted().forEach { row ->
+            if (!found.containsKey(row)) {
+                val (start, offset) = rowIndex.checkpoint(row)
+                //jump only if the checkpoint is ahead of current position
+                val cursor = rowCursor?.takeIf { start <= current } ?: cursor(offset, end).also {
+                    rowCursor = it
+                    current = start
+                }
+                while (current < row) {
+                    cursor.next { reader(it, format) }
+                    current++
+                }
+                cursor.next { reader(it, format) }?.let { found[row] = it }
+                current++
+            }
+        }
+        return rows.mapNotNull { found[it] }
+    }
+
+    override suspend fun getRange(from: Value, to: Value): List<Values> {
+        val first = maxOf(from.int, 0)
+        val last = minOf(to.int, rowCount - 1)
+        return if (first > last) {
+            emptyList()
+        } else {
+            getRows(IntArray(last - first + 1) { first + it })
+        }
     }
 
 
@@ -98,67 +237,136 @@ open class FileTableLoader internal constructor(
     }
 
     override fun indexed(meta: Meta): IndexedTableLoader {
-        return if (meta.isEmpty) {
+        return if (meta.isEmpty || !meta.hasValue("field")) {
             this
         } else {
-            IndexedFileTableLoader(this, meta.getString("field"))
-        }
-    }
-
-    private fun fillIndex(index: TreeMap<Value, Long>) {
-        val sequence = if (index.isEmpty()) {
-            readAll()
-        } else {
-            readAll(index.lastKey().int)
-        }
-        sequence.forEach {
-            index.putIfAbsent(it.index.asValue(), it.offset)
+            secondaryIndices.computeIfAbsent(meta.getString("field")) { IndexedFileTableLoader(this, it) }
         }
     }
 
     override fun updateIndex() {
-        fillIndex(defaultIndex)
+        updateRows(rowIndex)
+        fillKeys(rowIndex.rowCount)
+        secondaryIndices.values.forEach { it.updateValueIndex() }
     }
 
 
     override fun readAll(startIndex: Int): Sequence<Entry> {
-        val offset = getOffset(startIndex) ?: throw Error("The index value is unavailable")
-        synchronized(data) {
-            var counter = startIndex
-            val buffer = data.buffer
-            buffer.position(offset.toInt())
-            return sequence {
-                while (buffer.remaining() > 0) {
-                    yield(Entry(counter, buffer.position().toLong(), reader(buffer, format)))
-                    counter++
+        val (start, offset) = rowIndex.checkpoint(startIndex)
+        val end = dataSize(FileStamp.of(path))
+        return sequence {
+            val cursor = cursor(offset, end)
+            var counter = start
+            while (cursor.hasNext) {
+                val position = cursor.offset
+                //the last row is not completely written yet
+                val value = cursor.next { reader(it, format) } ?: break
+                if (counter >= startIndex) {
+                    yield(Entry(counter, position, value))
                 }
+                counter++
             }
         }
     }
 }
 
 /**
- * File table loader with alternate index
+ * A forward reader of table rows starting from given data offset. The data is read in windows, a window is reloaded
+ * from the current row and grown if the row does not fit it.
+ *
+ * @param readData reads a block of data with given offset and size. The block could be shorter at the end of data.
+ * @param end the end of data available to the cursor
+ */
+internal class RowCursor(
+        private val readData: (offset: Long, size: Int) -> ByteBuffer,
+        private val end: Long,
+        offset: Long,
+        private val windowSize: Int = DEFAULT_WINDOW
+) {
+    private var window: ByteBuffer = ByteBuffer.allocate(0)
+    private var windowStart: Long = offset
+    private var requested: Int = 0
+
+    /**
+     * The offset of the next row
+     */
+    var offset: Long = offset
+        private set
+
+    val hasNext: Boolean get() = offset < end
+
+    /**
+     * Read the next row and move to the one after it. Return null if the rest of the data is an incomplete row.
+     */
+    fun <T> next(read: (ByteBuffer) -> T): T? {
+        var size = windowSize
+        while (true) {
+            val relative = offset - windowStart
+            if (relative >= 0 && relative <= window.limit()) {
+                window.position(relative.toInt())
+                try {
+                    val res = read(window)
+                    offset = windowStart + window.position()
+                    return res
+                } catch (ex: BufferUnderflowException) {
+                    if (windowStart + window.limit() >= end || window.limit() < requested) {
+                        return null
+                    }
+                    size = maxOf(size, (window.limit() - relative).toInt() * 2)
+                }
+            }
+            windowStart = offset
+            requested = minOf(size.toLong(), end - offset).toInt()
+            window = readData(offset, requested)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW = 64 * 1024
+        const val ROW_WINDOW = 4 * 1024
+    }
+}
+
+/**
+ * File table loader with alternate index. The index is stored in a sidecar file and updated incrementally, for
+ * duplicate values of the index field the last row is used.
  */
 class IndexedFileTableLoader(val loader: FileTableLoader, val indexField: String) : IndexedTableLoader by loader {
 
-    //TODO implement index caching
-    private val secondaryIndex: TreeMap<Value, Value> by lazy {
-        TreeMap<Value, Value>().apply {
-            loader.forEachIndexed { index, values ->
-                this[values.getValue(indexField)] = index.asValue()
+    private val valueIndex: ValueIndex by lazy {
+        ValueIndex.load(loader.indexFile(indexField), FileStamp.of(loader.path)).also { index ->
+            if (index.rowCount > loader.rowCount) {
+                loader.logger.warn("Index for field $indexField is ahead of the table. Rebuilding index.")
+                index.reset()
             }
+            update(index)
         }
     }
 
-    override fun updateIndex() {
-        loader.forEachIndexed { index, values ->
-            secondaryIndex[values.getValue(indexField)] = index.asValue()
+    private fun update(index: ValueIndex) {
+        index.update(FileStamp.of(loader.path)) { from ->
+            loader.indexedSequence(from).map { IndexedValue(it.index, it.value.getValue(indexField)) }
         }
     }
 
+    internal fun updateValueIndex() {
+        update(valueIndex)
+    }
+
+    override val keys: NavigableSet<Value>
+        get() = Collections.unmodifiableNavigableSet(valueIndex.keys)
+
+    override fun updateIndex() {
+        loader.updateIndex()
+        updateValueIndex()
+    }
+
     override suspend fun get(key: Value): Values? {
-        return secondaryIndex[key]?.let { loader.get(it) }
+        return valueIndex[key]?.let { loader.getRow(it) }
+    }
+
+    override suspend fun getRange(from: Value, to: Value): List<Values> {
+        return loader.getRows(valueIndex.range(from, to).toIntArray())
     }
 }
 
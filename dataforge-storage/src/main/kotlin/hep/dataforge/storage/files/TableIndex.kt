@@ -0,0 +1,339 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.storage.files
+
+import hep.dataforge.values.Value
+import hep.dataforge.values.getValue
+import hep.dataforge.values.writeValue
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.*
+import java.util.concurrent.ConcurrentSkipListMap
+
+/**
+ * Extension of sidecar index files. Files with this extension are not treated as storage elements.
+ */
+const val TABLE_INDEX_EXTENSION = ".index"
+
+/**
+ * Size and modification time of a table file. Persisted indices store the stamp of the file they were built for and
+ * are rebuilt if the file does not match it.
+ */
+internal data class FileStamp(val size: Long, val modified: Long) {
+
+    fun write(buffer: ByteBuffer) {
+        buffer.putLong(size)
+        buffer.putLong(modified)
+    }
+
+    companion object {
+        const val SIZE = 16
+
+        fun of(path: Path): FileStamp = Files.readAttributes(path, BasicFileAttributes::class.java).let {
+            FileStamp(it.size(), it.lastModifiedTime().toMillis())
+        }
+
+        fun read(buffer: ByteBuffer): FileStamp = FileStamp(buffer.long, buffer.long)
+    }
+}
+
+/**
+ * A sparse index of row offsets in the data block of a table. The offset of each [stride]-th row is stored, so
+ * random access requires decoding at most `stride - 1` rows. The index is persisted in a sidecar file and updated
+ * incrementally: new checkpoints are appended to the end of the file and the header is rewritten.
+ *
+ * Readers get a consistent snapshot without locking, updates are synchronized.
+ */
+internal class RowOffsetIndex private constructor(private val file: Path?, val stride: Int) {
+
+    private class State(val rowCount: Int, val indexedBytes: Long, val checkpoints: LongArray, val checkpointCount: Int)
+
+    @Volatile
+    private var state = State(0, 0, LongArray(INITIAL_CAPACITY), 0)
+
+    /**
+     * The number of indexed rows
+     */
+    val rowCount: Int get() = state.rowCount
+
+    /**
+     * The offset of the end of the last indexed row
+     */
+    val indexedBytes: Long get() = state.indexedBytes
+
+    /**
+     * The nearest indexed row at or before given row and its offset
+     */
+    fun checkpoint(row: Int): Pair<Int, Long> {
+        val state = this.state
+        return if (row >= state.rowCount) {
+            state.rowCount to state.indexedBytes
+        } else {
+            val n = row / stride
+            n * stride to state.checkpoints[n]
+        }
+    }
+
+    /**
+     * The stamp of the table file the index is consistent with
+     */
+    @Volatile
+    private var stamp: FileStamp? = null
+
+    /**
+     * Index rows from the end of indexed part to the end of data. Only the new part of the data is scanned.
+     *
+     * @param stamp the current stamp of the table file
+     * @param dataSize the current size of table data
+     * @param scan provides end offsets of complete rows starting from given offset. An incomplete row at the end of
+     * data must not be included.
+     */
+    @Synchronized
+    fun update(stamp: FileStamp, dataSize: Long, scan: (from: Long) -> Sequence<Long>) {
+        var state = this.state
+        if (dataSize < state.indexedBytes) {
+            LoggerFactory.getLogger(javaClass).warn("Table data is shorter than indexed part. Rebuilding index.")
+            state = State(0, 0, LongArray(INITIAL_CAPACITY), 0)
+        }
+        var checkpoints = state.checkpoints
+        var checkpointCount = state.checkpointCount
+        var rowCount = state.rowCount
+        var indexedBytes = state.indexedBytes
+        scan(indexedBytes).forEach { end ->
+            if (rowCount % stride == 0) {
+                if (checkpointCount == checkpoints.size) {
+                    checkpoints = checkpoints.copyOf(checkpoints.size * 2)
+                }
+                checkpoints[checkpointCount++] = indexedBytes
+            }
+            rowCount++
+            indexedBytes = end
+        }
+        if (rowCount != state.rowCount || state !== this.state || stamp != this.stamp) {
+            val persisted = if (state === this.state) state.checkpointCount else 0
+            this.state = State(rowCount, indexedBytes, checkpoints, checkpointCount)
+            this.stamp = stamp
+            persist(persisted, stamp)
+        }
+    }
+
+    /**
+     * Write new checkpoints and then the header, so that interrupted write does not break existing index
+     */
+    private fun persist(from: Int, stamp: FileStamp) {
+        if (file == null) return
+        val state = this.state
+        try {
+            FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE).use { channel ->
+                if (from == 0) {
+                    channel.truncate(0)
+                }
+                val body = ByteBuffer.allocate((state.checkpointCount - from) * 8)
+                for (i in from until state.checkpointCount) {
+                    body.putLong(state.checkpoints[i])
+                }
+                body.flip()
+                channel.write(body, HEADER_SIZE + from * 8L)
+                val header = ByteBuffer.allocate(HEADER_SIZE).apply {
+                    putInt(ROW_INDEX_MAGIC)
+                    putInt(stride)
+                    putInt(state.rowCount)
+                    putInt(state.checkpointCount)
+                    putLong(state.indexedBytes)
+                    stamp.write(this)
+                    flip()
+                }
+                channel.write(header, 0)
+            }
+        } catch (ex: IOException) {
+            LoggerFactory.getLogger(javaClass).warn("Failed to persist table index to $file", ex)
+        }
+    }
+
+    companion object {
+        private const val ROW_INDEX_MAGIC = 0x44465232 // "DFR2"
+        private const val HEADER_SIZE = 24 + FileStamp.SIZE
+        private const val INITIAL_CAPACITY = 64
+        const val DEFAULT_STRIDE = 16
+
+        /**
+         * Load persisted index or create an empty one. Invalid index files and index files built for a different
+         * state of the table file are ignored.
+         *
+         * @param stamp the current stamp of the table file
+         */
+        fun load(file: Path?, stamp: FileStamp, stride: Int = DEFAULT_STRIDE): RowOffsetIndex {
+            val index = RowOffsetIndex(file, stride)
+            if (file != null && Files.exists(file)) {
+                try {
+                    val buffer = ByteBuffer.wrap(Files.readAllBytes(file))
+                    if (buffer.int == ROW_INDEX_MAGIC && buffer.int == stride) {
+                        val rowCount = buffer.int
+                        val checkpointCount = buffer.int
+                        val indexedBytes = buffer.long
+                        if (FileStamp.read(buffer) != stamp) {
+                            LoggerFactory.getLogger(RowOffsetIndex::class.java).info("Table index $file is outdated. Rebuilding index.")
+                            return index
+                        }
+                        val checkpoints = LongArray(maxOf(checkpointCount, INITIAL_CAPACITY))
+                        for (i in 0 until checkpointCount) {
+                            checkpoints[i] = buffer.long
+                        }
+                        index.state = State(rowCount, indexedBytes, checkpoints, checkpointCount)
+                        index.stamp = stamp
+                    }
+                } catch (ex: Exception) {
+                    LoggerFactory.getLogger(RowOffsetIndex::class.java).warn("Failed to read table index from $file", ex)
+                }
+            }
+            return index
+        }
+    }
+}
+
+/**
+ * A persistent index of values of a single field. For duplicate values the last row wins. New entries are appended
+ * to the sidecar file in the order of rows, so replaying the file restores the same index.
+ */
+internal class ValueIndex private constructor(private val file: Path?) {
+
+    private val map = ConcurrentSkipListMap<Value, Int>()
+
+    /**
+     * The number of indexed rows
+     */
+    @Volatile
+    var rowCount: Int = 0
+        private set
+
+    val keys: NavigableSet<Value> get() = map.navigableKeySet()
+
+    operator fun get(key: Value): Int? = map[key]
+
+    /**
+     * Rows with keys in given inclusive range
+     */
+    fun range(from: Value, to: Value): Collection<Int> = map.subMap(from, true, to, true).values
+
+    /**
+     * The stamp of the table file the index is consistent with
+     */
+    @Volatile
+    private var stamp: FileStamp? = null
+
+    @Synchronized
+    fun reset() {
+        map.clear()
+        rowCount = 0
+        stamp = null
+        file?.let { Files.deleteIfExists(it) }
+    }
+
+    /**
+     * Add new rows to the index
+     *
+     * @param stamp the current stamp of the table file
+     * @param rows provides a sequence of indexed values for rows starting from given one
+     */
+    @Synchronized
+    fun update(stamp: FileStamp, rows: (from: Int) -> Sequence<IndexedValue<Value>>) {
+        val baos = ByteArrayOutputStream()
+        val stream = DataOutputStream(baos)
+        var count = rowCount
+        rows(rowCount).forEach { (row, value) ->
+            map[value] = row
+            stream.writeInt(row)
+            stream.writeValue(value)
+            count = row + 1
+        }
+        if (count != rowCount || stamp != this.stamp) {
+            rowCount = count
+            this.stamp = stamp
+            stream.flush()
+            persist(baos.toByteArray(), stamp)
+        }
+    }
+
+    private fun persist(entries: ByteArray, stamp: FileStamp) {
+        if (file == null) return
+        try {
+            FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE).use { channel ->
+                val size = channel.size()
+                val position = if (size < HEADER_SIZE) HEADER_SIZE.toLong() else size
+                channel.write(ByteBuffer.wrap(entries), position)
+                val header = ByteBuffer.allocate(HEADER_SIZE).apply {
+                    putInt(VALUE_INDEX_MAGIC)
+                    putInt(rowCount)
+                    stamp.write(this)
+                    flip()
+                }
+                channel.write(header, 0)
+            }
+        } catch (ex: IOException) {
+            LoggerFactory.getLogger(javaClass).warn("Failed to persist table index to $file", ex)
+        }
+    }
+
+    companion object {
+        private const val VALUE_INDEX_MAGIC = 0x44465632 // "DFV2"
+        private const val HEADER_SIZE = 8 + FileStamp.SIZE
+
+        /**
+         * Load persisted index or create an empty one. Invalid index files and index files built for a different
+         * state of the table file are removed.
+         *
+         * @param stamp the current stamp of the table file
+         */
+        fun load(file: Path?, stamp: FileStamp): ValueIndex {
+            val index = ValueIndex(file)
+            if (file != null && Files.exists(file)) {
+                try {
+                    val buffer = ByteBuffer.wrap(Files.readAllBytes(file))
+                    if (buffer.int != VALUE_INDEX_MAGIC) {
+                        index.reset()
+                    } else {
+                        val rowCount = buffer.int
+                        if (FileStamp.read(buffer) != stamp) {
+                            LoggerFactory.getLogger(ValueIndex::class.java).info("Table index $file is outdated. Rebuilding index.")
+                            index.reset()
+                            return index
+                        }
+                        var last = -1
+                        while (buffer.hasRemaining() && last < rowCount - 1) {
+                            last = buffer.int
+                            index.map[buffer.getValue()] = last
+                        }
+                        index.rowCount = last + 1
+                        index.stamp = stamp
+                    }
+                } catch (ex: Exception) {
+                    LoggerFactory.getLogger(ValueIndex::class.java).warn("Failed to read table index from $file", ex)
+                    index.reset()
+                }
+            }
+            return index
+        }
+    }
+}
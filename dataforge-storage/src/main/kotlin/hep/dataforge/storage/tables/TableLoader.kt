@@ -21,6 +21,7 @@ import hep.dataforge.context.async
 import hep.dataforge.io.envelopes.Envelope
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.buildMeta
+import hep.dataforge.nullable
 import hep.dataforge.storage.AppendableLoader
 import hep.dataforge.storage.IndexedLoader
 import hep.dataforge.storage.Loader
@@ -66,17 +67,38 @@ interface IndexedTableLoader : TableLoader, IndexedLoader<Value, Values> {
      * Notify loader that it should update index for this loader
      */
     fun updateIndex()
+
+    /**
+     * Get values for all keys in given inclusive range in the order of keys
+     */
+    suspend fun getRange(from: Value, to: Value): List<Values> {
+        return keys.subSet(from, true, to, true).map { get(it)!! }
+    }
 }
 
 /**
  * Select a range from this table loade
  */
 suspend fun IndexedTableLoader.select(from: Value, to: Value): Table {
-    return ListTable(format, keys.subSet(from, true, to, true).map { get(it)!! })
+    return ListTable(format, getRange(from, to))
 }
 
+/**
+ * Select a range using query meta. The query could contain `field` to select by secondary index and `from` and `to`
+ * inclusive boundaries. Missing boundaries are replaced by first and last keys.
+ */
 fun IndexedTableLoader.select(query: Meta): Deferred<Table> {
-    TODO("To be implemented")
+    val loader = if (query.hasValue("field")) indexed(query) else this
+    return async {
+        val keys = loader.keys
+        if (keys.isEmpty()) {
+            ListTable(format, emptyList())
+        } else {
+            val from = query.optValue("from").nullable ?: keys.first()
+            val to = query.optValue("to").nullable ?: keys.last()
+            loader.select(from, to)
+        }
+    }
 }
 
 
@@ -0,0 +1,150 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package hep.dataforge.storage
+
+import hep.dataforge.context.Global
+import hep.dataforge.meta.buildMeta
+import hep.dataforge.storage.files.*
+import hep.dataforge.tables.MetaTableFormat
+import hep.dataforge.values.ValueMap
+import hep.dataforge.values.asValue
+import kotlinx.coroutines.runBlocking
+import org.junit.AfterClass
+import org.junit.Assert.*
+import org.junit.BeforeClass
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class TableIndexTest {
+    private val tableLoaderType = TableLoaderType()
+    private val format = MetaTableFormat.forNames("a", "b", "c")
+
+    companion object {
+        lateinit var dir: Path
+
+        @BeforeClass
+        @JvmStatic
+        fun setup() {
+            dir = Files.createTempDirectory(Global.tmpDir, "table-index-test")
+        }
+
+        @AfterClass
+        @JvmStatic
+        fun tearDown() {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    private fun rows(range: IntRange) = range.map { ValueMap.of(format.namesAsArray(), it, it + 1, it * 2) }
+
+    private fun createTable(name: String, n: Int): Path {
+        val path = dir.resolve(name)
+        val loader = tableLoaderType.create(Global, path, format)
+        val writer = loader.mutable()
+        writer.appendAll(rows(0 until n))
+        writer.close()
+        loader.close()
+        return path
+    }
+
+    private fun indexFile(path: Path): Path = path.resolveSibling(path.fileName.toString() + TABLE_INDEX_EXTENSION)
+
+    /**
+     * The number of rows in the persisted index which is consistent with the current state of the file
+     */
+    private fun persistedRows(path: Path): Int = RowOffsetIndex.load(indexFile(path), FileStamp.of(path)).rowCount
+
+    @Test
+    fun testIndexPersisted() {
+        val path = createTable("persisted.df", 100)
+        val loader = tableLoaderType.read(Global, path)
+        assertTrue(Files.exists(indexFile(path)))
+        assertEquals(100, persistedRows(path))
+
+        assertEquals(100, loader.rowCount)
+        assertEquals(57, loader.getRow(57)?.getInt("a"))
+        assertNull(loader.getRow(100))
+        assertEquals((0 until 100).toList(), loader.indexedSequence().map { it.value.getInt("a") }.toList())
+        loader.close()
+    }
+
+    @Test
+    fun testAppendVisibleToOpenLoader() {
+        val path = createTable("append.df", 10)
+        val loader = tableLoaderType.read(Global, path)
+        assertEquals(10, loader.rowCount)
+        val writer = loader.mutable()
+        runBlocking {
+            writer.append(10, 11, 20)
+        }
+        assertEquals(11, loader.rowCount)
+        assertEquals(20, loader.getRow(10)?.getInt("c"))
+        assertEquals(11, persistedRows(path))
+        writer.close()
+        loader.close()
+    }
+
+    @Test
+    fun testRebuildOnAppend() {
+        val path = createTable("stale-append.df", 50)
+        // append bypassing the loader, so the index is not updated
+        MutableFileEnvelope.readExisting(path).use { envelope ->
+            envelope.appendAll(rows(50 until 70).map { TableLoaderType.binaryTableWriter(it, format) })
+        }
+        assertEquals(0, persistedRows(path))
+
+        val loader = tableLoaderType.read(Global, path)
+        assertEquals(70, loader.rowCount)
+        assertEquals(65, loader.getRow(65)?.getInt("a"))
+        assertEquals(70, persistedRows(path))
+        loader.close()
+    }
+
+    @Test
+    fun testRebuildOnModification() {
+        val path = createTable("stale-modified.df", 50)
+        Files.setLastModifiedTime(path, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() + 60_000))
+        assertEquals(0, persistedRows(path))
+
+        val loader = tableLoaderType.read(Global, path)
+        assertEquals(50, loader.rowCount)
+        assertEquals(49, loader.getRow(49)?.getInt("a"))
+        loader.close()
+    }
+
+    @Test
+    fun testValueIndexReopen() {
+        val path = createTable("value-index.df", 40)
+        val field = buildMeta { "field" to "c" }.build()
+
+        val loader = tableLoaderType.read(Global, path)
+        assertEquals(15, runBlocking { loader.indexed(field).get(30.asValue()) }?.getInt("a"))
+        loader.close()
+        assertTrue(Files.exists(loader.indexFile("c")))
+
+        MutableFileEnvelope.readExisting(path).use { envelope ->
+            envelope.appendAll(rows(40 until 45).map { TableLoaderType.binaryTableWriter(it, format) })
+        }
+        val reopened = tableLoaderType.read(Global, path)
+        val indexed = reopened.indexed(field)
+        assertEquals(42, runBlocking { indexed.get(84.asValue()) }?.getInt("a"))
+        assertEquals(45, indexed.keys.size)
+        reopened.close()
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.control.dante
+
+import hep.dataforge.context.Global
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.*
+import org.slf4j.LoggerFactory
+
+/**
+ * List mode ingestion of a single point from [DanteSimulator] via loopback. Each invocation is a whole acquisition, so
+ * the score is the acquisition time including the drain margin. Packet statistics are logged after each trial.
+ */
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+open class DanteIngestionBenchmark {
+
+    /**
+     * Total event rate in events per second
+     */
+    @Param("1e6", "4e6")
+    lateinit var rate: String
+
+    /**
+     * Acquisition time in milliseconds
+     */
+    @Param("2000")
+    var length: Int = 2000
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    private lateinit var simulator: DanteSimulator
+    private lateinit var client: DanteClient
+
+    private var receivedEvents = 0L
+
+    @Setup(Level.Trial)
+    fun setup() {
+        simulator = DanteSimulator(basePort = BASE_PORT, eventRate = rate.toDouble())
+        simulator.start()
+        client = DanteClient(Global, "localhost", simulator.boards, BASE_PORT)
+        client.open()
+        receivedEvents = 0
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        logger.info(
+            "Rate {}: sent {} events, received {}. Packets: {}, dropped: {}, stalled: {}, malformed: {}",
+            rate, simulator.sentEvents, receivedEvents, client.receivedPackets, client.droppedPackets,
+            client.stalledPackets, client.malformedPackets
+        )
+        client.close()
+        simulator.close()
+    }
+
+    @Benchmark
+    fun readPoint(): Long = runBlocking {
+        client.readPoint(length).blocks.sumOf { it.events.count() }.also { receivedEvents += it }
+    }
+
+    companion object {
+        private const val BASE_PORT = 18000
+    }
+}
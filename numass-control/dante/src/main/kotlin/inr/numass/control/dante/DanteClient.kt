@@ -21,23 +21,23 @@ import hep.dataforge.context.ContextAware
 import hep.dataforge.context.launch
 import hep.dataforge.meta.Meta
 import hep.dataforge.meta.buildMeta
-import hep.dataforge.orElse
 import inr.numass.control.dante.DanteClient.Companion.CommandType.*
 import inr.numass.control.dante.DanteClient.Companion.Register.*
-import inr.numass.data.NumassProto
 import inr.numass.data.ProtoNumassPoint
 import inr.numass.data.api.NumassPoint
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
-import java.io.DataInputStream
-import java.io.OutputStream
-import java.net.Socket
+import java.io.IOException
+import java.net.InetSocketAddress
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
+import java.nio.channels.SocketChannel
 import java.time.Duration
 import java.time.Instant
 import java.util.*
 import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
 import kotlin.math.ceil
 import kotlin.math.pow
 
@@ -69,8 +69,16 @@ internal val ByteArray.hex
     get() = this.joinToString(separator = "") { it.positive.toString(16).padStart(2, '0') }
 
 
+/**
+ * @param basePort the port of the first connection, the device uses four consecutive ports
+ */
 //TODO implement using Device
-class DanteClient(override val  context: Context,val ip: String, chainLength: Int) : AutoCloseable, ContextAware {
+class DanteClient @JvmOverloads constructor(
+        override val context: Context,
+        val ip: String,
+        chainLength: Int,
+        val basePort: Int = 8000
+) : AutoCloseable, ContextAware {
     private val RESET_COMMAND = byteArrayOf(0xDD.toByte(), 0x55, 0xDD.toByte(), 0xEE.toByte())
 
     private val packetNumber = AtomicLong(0)
@@ -78,22 +86,63 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
     private val parentJob: Job = SupervisorJob()
     private val pool = newFixedThreadPoolContext(8, "Dante") + parentJob
 
-    private val connections: MutableMap<Int, Pair<Socket, Job>> = HashMap()
+    private val connections: MutableMap<Int, Pair<SocketChannel, Job>> = HashMap()
 
-    private val sendChannel = Channel<ByteArray>(capacity = Channel.UNLIMITED)
-    private lateinit var output: OutputStream
+    /**
+     * Outgoing commands. Senders are suspended when the queue is full.
+     */
+    private val sendChannel = Channel<ByteArray>(capacity = COMMAND_QUEUE_SIZE)
+    private lateinit var output: SocketChannel
     private lateinit var outputJob: Job
 
     /**
-     * Synchronous reading and writing of registers
+     * Synchronous reading and writing of registers. Stale responses which were not requested are dropped.
+     */
+    private val comChannel = Channel<DanteMessage>(capacity = COMMAND_QUEUE_SIZE, onBufferOverflow = BufferOverflow.DROP_OLDEST)
+
+    /**
+     * Data packets between socket readers and the decoder
+     */
+    private val dataRing = PacketRing(DATA_RING_SIZE)
+
+    /**
+     * Current list mode acquisition. Data packets arriving when there is no acquisition are dropped as residual.
+     */
+    @Volatile
+    private var acquisition: ListModeAcquisition? = null
+
+    private val residualCounter = LongAdder()
+    private val malformedCounter = LongAdder()
+
+    /**
+     * Maximum number of events per board in a single point
+     */
+    var maxEventsPerBoard: Int = 1 shl 24
+
+    /**
+     * Total number of received data packets
      */
-    private val comChannel = Channel<DanteMessage>(capacity = Channel.UNLIMITED)
+    val receivedPackets: Long get() = dataRing.offered
 
     /**
-     * Data packets channel
+     * Data packets dropped because the decoder did not keep up
      */
-    private val dataChannel = Channel<DanteMessage>(capacity = Channel.UNLIMITED)
-    //private val statisticsChannel = Channel<Communications.DanteMessage>(capacity = Channel.UNLIMITED)
+    val droppedPackets: Long get() = dataRing.dropped
+
+    /**
+     * Number of times socket readers waited for the decoder
+     */
+    val stalledPackets: Long get() = dataRing.stalls
+
+    /**
+     * Data packets received outside of acquisition
+     */
+    val residualPackets: Long get() = residualCounter.sum()
+
+    /**
+     * Packets with unknown command code
+     */
+    val malformedPackets: Long get() = malformedCounter.sum()
 
     /**
      * @param num number
@@ -110,6 +159,7 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
         (0..3).forEach {
             openPort(it)
         }
+        startDecoder()
     }
 
     override fun close() {
@@ -148,18 +198,21 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
             it.second.cancel()
         }
 
-        val socket = Socket(ip, 8000 + port)
+        val socket = SocketChannel.open(InetSocketAddress(ip, basePort + port))
 
-        logger.info("Opened socket {}", "${socket.inetAddress}:${socket.port}")
+        logger.info("Opened socket {}", socket.remoteAddress)
 
         //Create command queue on port 0
         if (port == 0) {
             //outputJob.cancel()
-            output = socket.getOutputStream()
+            output = socket
             outputJob = launch(pool) {
                 while (true) {
                     val command = sendChannel.receive()
-                    output.write(command)
+                    val buffer = ByteBuffer.wrap(command)
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer)
+                    }
                     logger.trace("Sent {}", command.hex)
                 }
             }
@@ -167,41 +220,59 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
 
 
         val job = launch(pool) {
-            val stream = socket.getInputStream()
-            while (true) {
-                if (stream.read() == PACKET_HEADER_START_BYTES[0] && stream.read() == PACKET_HEADER_START_BYTES[1]) {
-                    // second check is not executed unless first one is true
-                    val header = ByteArray(6)
-                    stream.read(header)
-                    val command = CommandType.values().find { it.byte == header[0] }
-                            ?: throw RuntimeException("Unknown command code: ${header[0]}")
-                    val board = header[1]
-                    val packet = header[2]
-                    val length = (header[3].positive * 0x100 + header[4].positive * 0x010 + header[5].positive) * 4
-                    if (length > 8) {
-                        logger.trace("Received long message with header $header")
-                    }
-                    val payload = ByteArray(length)
-                    DataInputStream(stream).readFully(payload)
-                    handle(DanteMessage(command, board.positive, packet.positive, payload))
+            val reader = DanteFrameReader(socket)
+            try {
+                while (isActive) {
+                    reader.read(::handle)
                 }
+            } catch (ex: IOException) {
+                if (isActive) {
+                    logger.error("Connection on port {} failed", basePort + port, ex)
+                }
+                //TODO reconnect
+            } finally {
+                malformedCounter.add(reader.malformedPackets)
             }
-            //TODO handle errors and reconnect
         }
 
         connections[port] = Pair(socket, job)
     }
 
+    /**
+     * Decode data packets in a single thread
+     */
+    private fun startDecoder() {
+        launch(pool) {
+            while (isActive) {
+                dataRing.poll(DECODER_POLL_TIMEOUT) { slot ->
+                    val acquisition = this@DanteClient.acquisition
+                    when {
+                        acquisition == null -> residualCounter.increment()
+                        slot.command != LIST_MODE -> logger.warn("Unexpected packet type: {}", slot.command.name)
+                        else -> acquisition.accept(slot.board, slot.payload)
+                    }
+                }
+            }
+        }
+    }
+
     private suspend fun send(command: CommandType, board: Int, packet: Int, register: Int, data: ByteArray = ByteArray(0), length: Int = (data.size / 4)) {
         logger.debug("Sending {}[{}, {}] of size {}*4 to {}", command.name, board, packet, length, register)
         sendChannel.send(wrapCommand(command, board, packet, register, length, data))
     }
 
-    private suspend fun handle(response: DanteMessage) {
-        logger.debug("Received {}", response.toString())
-        when (response.command) {
-            READ, WRITE -> comChannel.send(response)
-            SINGLE_SPECTRUM_MODE, MAP_MODE, LIST_MODE, WAVEFORM_MODE -> dataChannel.send(response)
+    /**
+     * Handle a packet on socket reader thread. Payload is valid only during the call.
+     */
+    private fun handle(command: CommandType, board: Int, packet: Int, payload: ByteBuffer) {
+        when (command) {
+            READ, WRITE -> {
+                val bytes = ByteArray(payload.remaining()).also { payload.get(it) }
+                val response = DanteMessage(command, board, packet, bytes)
+                logger.debug("Received {}", response.toString())
+                comChannel.trySend(response)
+            }
+            SINGLE_SPECTRUM_MODE, MAP_MODE, LIST_MODE, WAVEFORM_MODE -> dataRing.offer(command, board, packet, payload)
         }
     }
 
@@ -363,14 +434,21 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
      * Clear unused data
      */
     private suspend fun clearData() {
-        while (!dataChannel.isEmpty) {
-            logger.warn("Dumping residual data packet {}", dataChannel.receive().toString())
+        acquisition = null
+        val residual = residualPackets
+        //packets are dropped by the decoder while there is no acquisition
+        while (!dataRing.isEmpty) {
+            delay(1)
+        }
+        if (residualPackets > residual) {
+            logger.warn("Dumped {} residual data packets", residualPackets - residual)
         }
     }
 
-    private suspend fun clearCommunications() {
-        while (!dataChannel.isEmpty) {
-            logger.debug("Dumping residual communication packet {}", dataChannel.receive().toString())
+    private fun clearCommunications() {
+        while (true) {
+            val message = comChannel.tryReceive().getOrNull() ?: break
+            logger.debug("Dumping residual communication packet {}", message.toString())
         }
     }
 
@@ -402,77 +480,51 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
             }
         }
 
-        writeRegister(0, ACQUISITION_STATUS.code, 0x00000001, 0x00000001)
-
+        val received = receivedPackets
+        val dropped = droppedPackets
         val start = Instant.now()
-        val builder = NumassProto.Point.newBuilder()
+        val acquisition = ListModeAcquisition(start, length, maxEventsPerBoard, this::handleStatistics)
+        this.acquisition = acquisition
 
-        //collecting packages
+        writeRegister(0, ACQUISITION_STATUS.code, 0x00000001, 0x00000001)
+
+        //packets are collected by the decoder, waiting for the end of acquisition with a margin
+        delay(length + 2000L)
 
-        while (Duration.between(start, Instant.now()) < Duration.ofMillis(length + 2000L)) {
-            try {
-                //Waiting for a packet for a second. If it is not there, returning and checking time condition
-                val packet = withTimeout(1000) { dataChannel.receive() }
-                if (packet.command != LIST_MODE) {
-                    logger.warn("Unexpected packet type: {}", packet.command.name)
-                    continue
-                }
-                val channel = packet.board
-                // get or create new channel block
-                val channelBuilder = builder.channelsBuilderList.find { it.id.toInt() == channel }
-                        .orElse {
-                            builder.addChannelsBuilder().setId(channel.toLong())
-                                    .also {
-                                        //initializing single block
-                                        it.addBlocksBuilder().also {
-                                            it.time = (start.epochSecond * 1e9 + start.nano).toLong()
-                                            it.binSize = 8 // tick in nanos
-                                            it.length = (length * 1e6).toLong() //block length in nanos
-                                        }
-                                    }
-                        }
-                val blockBuilder = channelBuilder.getBlocksBuilder(0)
-                val eventsBuilder = blockBuilder.eventsBuilder
-
-                val buffer = ByteBuffer.wrap(packet.payload)
-                while (buffer.hasRemaining()) {
-                    val firstWord = buffer.getInt()
-                    val secondWord = buffer.getInt()
-                    if (firstWord == STATISTIC_HEADER && secondWord == STATISTIC_HEADER) {
-                        if (buffer.remaining() < 128) {
-                            logger.error("Can't read statistics from list message, 128 bytes expected, but {} found", buffer.remaining())
-                            break
-                        } else {
-                            val statistics = ByteArray(32 * 4)
-                            buffer.get(statistics)
-                            //TODO use statistics for meta
-                            handleStatistics(channel, ByteBuffer.wrap(statistics))
-                        }
-                    } else if (firstWord == 0) {
-                        //TODO handle zeros
-                        logger.info("Received zero packet from board {}", channel)
-                    } else {
-                        val time: Long = secondWord.positive shl 14 + firstWord ushr 18
-                        val amp: Short = (firstWord and 0x0000FFFF).toShort()
-                        eventsBuilder.addTimes(time * 8)
-                        eventsBuilder.addAmplitudes(amp.toLong())
-                    }
-                }
-            } catch (ex: Exception) {
-                if (ex !is CancellationException) {
-                    logger.error("Exception raised during packet gathering", ex)
-                }
-            }
-        }
         //Stopping acquisition just in case
         writeRegister(0, ACQUISITION_STATUS.code, 0x00000001, 0x00000000)
 
+        //packets already in the ring still belong to this acquisition
+        val drainDeadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos()
+        while (!dataRing.isEmpty && System.nanoTime() < drainDeadline) {
+            delay(1)
+        }
+
+        //build waits for the packet being decoded, packets decoded after it are counted as late
+        val proto = acquisition.build()
+        this.acquisition = null
+
+        if (droppedPackets > dropped || acquisition.droppedEvents > 0) {
+            logger.warn("Lost {} data packets and {} events during acquisition", droppedPackets - dropped, acquisition.droppedEvents)
+        }
+        if (acquisition.latePackets > 0) {
+            logger.warn("{} data packets arrived after the end of acquisition", acquisition.latePackets)
+        }
+        if (acquisition.zeroWords > 0) {
+            logger.info("Received {} zero words", acquisition.zeroWords)
+        }
+
         val meta = buildMeta {
             boards.first().meta?.let {
                 putNode("dpp", it)
             }
+            "ingestion" to {
+                "packets" to receivedPackets - received
+                "droppedPackets" to droppedPackets - dropped
+                "droppedEvents" to acquisition.droppedEvents
+                "latePackets" to acquisition.latePackets
+            }
         }
-        val proto = builder.build()
 
         return ProtoNumassPoint(meta) { proto }
     }
@@ -480,6 +532,11 @@ class DanteClient(override val  context: Context,val ip: String, chainLength: In
     companion object {
         const val STATISTIC_HEADER: Int = 0xC0000000.toInt()
 
+        private const val COMMAND_QUEUE_SIZE = 1024
+        private const val DATA_RING_SIZE = 256
+        private val DECODER_POLL_TIMEOUT = Duration.ofMillis(100)
+        private val DRAIN_TIMEOUT = Duration.ofSeconds(1)
+
         val PACKET_HEADER_START_BYTES = arrayOf(0xAA, 0xEE)
 
         enum class Register(val code: Int) {
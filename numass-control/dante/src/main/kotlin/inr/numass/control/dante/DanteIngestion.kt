@@ -0,0 +1,355 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.control.dante
+
+import inr.numass.control.dante.DanteClient.Companion.CommandType
+import inr.numass.control.dante.DanteClient.Companion.STATISTIC_HEADER
+import inr.numass.data.NumassProto
+import org.slf4j.LoggerFactory
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.channels.ReadableByteChannel
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Reads Dante packets from a channel into a reusable direct buffer. Payloads are passed to the handler as a view of
+ * this buffer, so the view is valid only during the call.
+ */
+internal class DanteFrameReader(private val channel: ReadableByteChannel, initialSize: Int = 1 shl 20) {
+
+    private var buffer: ByteBuffer = ByteBuffer.allocateDirect(initialSize).apply { flip() }
+    private var view: ByteBuffer = buffer.duplicate()
+
+    /**
+     * The number of packets with unknown command code
+     */
+    var malformedPackets = 0L
+        private set
+
+    /**
+     * Move position to the start of next header. If header is not found, keep only the last byte.
+     */
+    private fun findHeader(): Int? {
+        val end = buffer.limit() - 1
+        for (i in buffer.position() until end) {
+            if (buffer.get(i) == HEADER_0 && buffer.get(i + 1) == HEADER_1) {
+                buffer.position(i)
+                return i
+            }
+        }
+        buffer.position(maxOf(buffer.position(), end))
+        return null
+    }
+
+    private fun ensureCapacity(size: Int) {
+        if (size > buffer.capacity()) {
+            val newBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(size) * 2)
+            newBuffer.put(buffer).flip()
+            buffer = newBuffer
+            view = newBuffer.duplicate()
+        }
+    }
+
+    /**
+     * Read available data from the channel and pass all complete packets to the handler
+     */
+    fun read(handler: (command: CommandType, board: Int, packet: Int, payload: ByteBuffer) -> Unit) {
+        buffer.compact()
+        if (channel.read(buffer) < 0) {
+            throw EOFException("Dante connection is closed")
+        }
+        buffer.flip()
+        while (true) {
+            val start = findHeader() ?: break
+            if (buffer.remaining() < HEADER_SIZE) {
+                break
+            }
+            val command = COMMANDS[buffer.get(start + 2).positive]
+            if (command == null) {
+                malformedPackets++
+                buffer.position(start + 2)
+                continue
+            }
+            val board = buffer.get(start + 3).positive
+            val packet = buffer.get(start + 4).positive
+            val length = (buffer.get(start + 5).positive * 0x100 + buffer.get(start + 6).positive * 0x010 + buffer.get(start + 7).positive) * 4
+            if (buffer.remaining() < HEADER_SIZE + length) {
+                ensureCapacity(HEADER_SIZE + length)
+                break
+            }
+            view.limit(start + HEADER_SIZE + length).position(start + HEADER_SIZE)
+            handler(command, board, packet, view)
+            buffer.position(start + HEADER_SIZE + length)
+        }
+    }
+
+    companion object {
+        const val HEADER_SIZE = 8
+        private val HEADER_0 = DanteClient.PACKET_HEADER_START_BYTES[0].toByte()
+        private val HEADER_1 = DanteClient.PACKET_HEADER_START_BYTES[1].toByte()
+
+        private val COMMANDS = arrayOfNulls<CommandType>(256).apply {
+            CommandType.values().forEach { this[it.byte.positive] = it }
+        }
+    }
+}
+
+/**
+ * A bounded ring of Dante data packets between socket readers and the decoder. Payloads are copied into reusable
+ * slot buffers, so nothing is allocated per packet. Several producers are allowed, but only one consumer.
+ *
+ * When the ring is full, producer waits at most [offerTimeout] and then drops the packet. Both waits and drops are
+ * counted.
+ */
+class PacketRing(val capacity: Int, private val offerTimeout: Duration = Duration.ofMillis(100), slotSize: Int = 64 * 1024) {
+
+    class Slot(size: Int) {
+        lateinit var command: CommandType
+            internal set
+        var board: Int = 0
+            internal set
+        var packet: Int = 0
+            internal set
+
+        private var buffer: ByteBuffer = ByteBuffer.allocateDirect(size)
+
+        /**
+         * Payload of the packet. Valid only until the slot is released.
+         */
+        val payload: ByteBuffer
+            get() = buffer
+
+        internal fun set(command: CommandType, board: Int, packet: Int, payload: ByteBuffer) {
+            this.command = command
+            this.board = board
+            this.packet = packet
+            if (payload.remaining() > buffer.capacity()) {
+                buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(payload.remaining()) * 2)
+            }
+            buffer.clear()
+            buffer.put(payload)
+            buffer.flip()
+        }
+    }
+
+    private val slots = Array(capacity) { Slot(slotSize) }
+
+    /**
+     * The index of next slot to consume
+     */
+    private val head = AtomicLong()
+
+    /**
+     * The index of next slot to publish
+     */
+    private val tail = AtomicLong()
+
+    private val producerLock = ReentrantLock()
+
+    private val offeredCounter = LongAdder()
+    private val droppedCounter = LongAdder()
+    private val stallCounter = LongAdder()
+
+    /**
+     * Total number of offered packets
+     */
+    val offered: Long get() = offeredCounter.sum()
+
+    /**
+     * Number of packets dropped because the ring stayed full
+     */
+    val dropped: Long get() = droppedCounter.sum()
+
+    /**
+     * Number of times producer had to wait for free slot
+     */
+    val stalls: Long get() = stallCounter.sum()
+
+    val size: Int get() = (tail.get() - head.get()).toInt()
+
+    val isEmpty: Boolean get() = size == 0
+
+    /**
+     * Copy the packet into the ring
+     * @return false if the packet is dropped
+     */
+    fun offer(command: CommandType, board: Int, packet: Int, payload: ByteBuffer): Boolean {
+        offeredCounter.increment()
+        producerLock.withLock {
+            val index = tail.get()
+            if (index - head.get() >= capacity) {
+                stallCounter.increment()
+                val deadline = System.nanoTime() + offerTimeout.toNanos()
+                while (index - head.get() >= capacity) {
+                    if (System.nanoTime() >= deadline) {
+                        droppedCounter.increment()
+                        return false
+                    }
+                    LockSupport.parkNanos(WAIT_NANOS)
+                }
+            }
+            slots[(index % capacity).toInt()].set(command, board, packet, payload)
+            //volatile write publishes slot content to the consumer
+            tail.set(index + 1)
+        }
+        return true
+    }
+
+    /**
+     * Process next packet if it becomes available during given time. The slot is released after the action.
+     * @return true if a packet is processed
+     */
+    fun poll(timeout: Duration, action: (Slot) -> Unit): Boolean {
+        val index = head.get()
+        val deadline = System.nanoTime() + timeout.toNanos()
+        while (tail.get() <= index) {
+            if (System.nanoTime() >= deadline) {
+                return false
+            }
+            LockSupport.parkNanos(WAIT_NANOS)
+        }
+        try {
+            action(slots[(index % capacity).toInt()])
+        } finally {
+            head.set(index + 1)
+        }
+        return true
+    }
+
+    companion object {
+        private const val WAIT_NANOS = 20_000L
+    }
+}
+
+/**
+ * Accumulates list mode events of all boards during single point acquisition. Events are decoded directly from packet
+ * payloads into primitive arrays and converted into [NumassProto.Point] only once in [build].
+ *
+ * @param maxEvents maximum number of events per board, the rest are dropped and counted
+ */
+internal class ListModeAcquisition(
+        val start: Instant,
+        val length: Int,
+        private val maxEvents: Int,
+        private val statisticsHandler: (board: Int, statistics: ByteBuffer) -> Unit
+) {
+    private class BoardEvents {
+        var times = LongArray(INITIAL_CAPACITY)
+        var amplitudes = ShortArray(INITIAL_CAPACITY)
+        var size = 0
+
+        fun add(time: Long, amplitude: Short) {
+            if (size == times.size) {
+                times = times.copyOf(size * 2)
+                amplitudes = amplitudes.copyOf(size * 2)
+            }
+            times[size] = time
+            amplitudes[size] = amplitude
+            size++
+        }
+    }
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    private val boards = arrayOfNulls<BoardEvents>(256)
+
+    private var closed = false
+
+    var packets = 0L
+        private set
+
+    var droppedEvents = 0L
+        private set
+
+    var zeroWords = 0L
+        private set
+
+    /**
+     * Number of packets arrived after the acquisition was built
+     */
+    @Volatile
+    var latePackets = 0L
+        private set
+
+    @Synchronized
+    fun accept(board: Int, payload: ByteBuffer) {
+        if (closed) {
+            latePackets++
+            return
+        }
+        packets++
+        val events = boards[board] ?: BoardEvents().also { boards[board] = it }
+        while (payload.remaining() >= 8) {
+            val firstWord = payload.int
+            val secondWord = payload.int
+            if (firstWord == STATISTIC_HEADER && secondWord == STATISTIC_HEADER) {
+                if (payload.remaining() < STATISTICS_SIZE) {
+                    logger.error("Can't read statistics from list message, {} bytes expected, but {} found", STATISTICS_SIZE, payload.remaining())
+                    break
+                } else {
+                    val statistics = payload.slice().limit(STATISTICS_SIZE)
+                    payload.position(payload.position() + STATISTICS_SIZE)
+                    statisticsHandler(board, statistics)
+                }
+            } else if (firstWord == 0) {
+                //TODO handle zeros
+                zeroWords++
+            } else if (events.size >= maxEvents) {
+                droppedEvents++
+            } else {
+                val time: Long = (secondWord.positive shl 14) + (firstWord ushr 18)
+                val amp: Short = (firstWord and 0x0000FFFF).toShort()
+                events.add(time * 8, amp)
+            }
+        }
+    }
+
+    /**
+     * Build the point. Packets accepted after this call are ignored.
+     */
+    @Synchronized
+    fun build(): NumassProto.Point {
+        closed = true
+        val builder = NumassProto.Point.newBuilder()
+        boards.forEachIndexed { board, events ->
+            if (events != null) {
+                builder.addChannelsBuilder().setId(board.toLong()).addBlocksBuilder().also { block ->
+                    block.time = (start.epochSecond * 1e9 + start.nano).toLong()
+                    block.binSize = 8 // tick in nanos
+                    block.length = (length * 1e6).toLong() //block length in nanos
+                    val eventsBuilder = block.eventsBuilder
+                    for (i in 0 until events.size) {
+                        eventsBuilder.addTimes(events.times[i])
+                        eventsBuilder.addAmplitudes(events.amplitudes[i].toLong())
+                    }
+                }
+            }
+        }
+        return builder.build()
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 4096
+        private const val STATISTICS_SIZE = 32 * 4
+    }
+}
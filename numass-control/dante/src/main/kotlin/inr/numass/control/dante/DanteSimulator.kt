@@ -0,0 +1,240 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.control.dante
+
+import inr.numass.control.dante.DanteClient.Companion.AcquisitionMode
+import inr.numass.control.dante.DanteClient.Companion.CommandType
+import inr.numass.control.dante.DanteClient.Companion.Register
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import kotlin.concurrent.thread
+import kotlin.math.ln
+
+/**
+ * A local TCP stand-in for the Dante digitizer chain. Registers could be read and written with regular commands.
+ * When acquisition is started in list mode, random events are streamed from all boards with given total rate for
+ * the time set in [Register.ACQUISITION_TIME].
+ *
+ * Commands are accepted on [basePort], data is sent via `basePort + 1` if it is connected.
+ *
+ * @param eventRate total event rate of all boards in events per second
+ * @param eventsPerPacket number of events in a single list mode packet
+ */
+class DanteSimulator(
+        val basePort: Int = 8000,
+        val boards: Int = 8,
+        val eventRate: Double = 1e6,
+        val eventsPerPacket: Int = 1024
+) : AutoCloseable {
+
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    private val registers = Array(boards) { LongArray(16) }
+
+    private val servers = ArrayList<ServerSocketChannel>()
+    private val clients = arrayOfNulls<SocketChannel>(4)
+
+    @Volatile
+    private var running = false
+
+    private val sentEventsCounter = AtomicLong()
+
+    /**
+     * Total number of events sent
+     */
+    val sentEvents: Long get() = sentEventsCounter.get()
+
+    fun start() {
+        running = true
+        (0 until 4).forEach { index ->
+            val server = ServerSocketChannel.open().bind(InetSocketAddress(basePort + index))
+            servers.add(server)
+            thread(name = "dante-simulator-$index", isDaemon = true) {
+                try {
+                    while (running) {
+                        val client = server.accept()
+                        clients[index]?.close()
+                        clients[index] = client
+                        if (index == 0) {
+                            thread(name = "dante-simulator-commands", isDaemon = true) { serveCommands(client) }
+                        }
+                    }
+                } catch (ex: IOException) {
+                    if (running) {
+                        logger.error("Simulator port {} failed", basePort + index, ex)
+                    }
+                }
+            }
+        }
+        logger.info("Dante simulator started on port {}", basePort)
+    }
+
+    private val dataChannel: SocketChannel?
+        get() = clients[1] ?: clients[0]
+
+    /**
+     * Read escaped commands framed by `DD AA` and `DD 55`
+     */
+    private fun serveCommands(channel: SocketChannel) {
+        val input = ByteBuffer.allocate(4096)
+        val frame = ArrayList<Byte>()
+        var inFrame = false
+        var escape = false
+        try {
+            while (running && channel.read(input) >= 0) {
+                input.flip()
+                while (input.hasRemaining()) {
+                    val byte = input.get()
+                    if (escape) {
+                        escape = false
+                        when (byte) {
+                            0xAA.toByte() -> {
+                                inFrame = true
+                                frame.clear()
+                            }
+                            0x55.toByte() -> {
+                                if (inFrame) {
+                                    execute(channel, frame.toByteArray())
+                                }
+                                inFrame = false
+                            }
+                            0xDD.toByte() -> if (inFrame) frame.add(byte)
+                            //reset and other control sequences are ignored
+                            else -> inFrame = false
+                        }
+                    } else if (byte == 0xDD.toByte()) {
+                        escape = true
+                    } else if (inFrame) {
+                        frame.add(byte)
+                    }
+                }
+                input.clear()
+            }
+        } catch (ex: IOException) {
+            if (running) {
+                logger.error("Simulator command connection failed", ex)
+            }
+        }
+    }
+
+    private fun execute(channel: SocketChannel, frame: ByteArray) {
+        val command = CommandType.values().find { it.byte == frame[2] } ?: return
+        val board = frame[3].positive
+        val packet = frame[4].positive
+        val start = frame[5].positive
+        val length = frame[6].positive
+        val boardRegisters = registers.getOrNull(board) ?: return
+        when (command) {
+            CommandType.READ -> {
+                val payload = ByteBuffer.allocate(length * 4)
+                (start until start + length).forEach { payload.putInt(boardRegisters.getOrElse(it) { 0L }.toInt()) }
+                payload.flip()
+                synchronized(channel) { write(channel, command, board, packet, payload) }
+            }
+            CommandType.WRITE -> {
+                val data = ByteBuffer.wrap(frame, DanteFrameReader.HEADER_SIZE, length * 4)
+                (start until start + length).forEach { boardRegisters[it] = data.int.positive }
+                synchronized(channel) { write(channel, command, board, packet, ByteBuffer.allocate(0)) }
+                if (start == Register.ACQUISITION_STATUS.code && (boardRegisters[start] and 1L) == 1L
+                        && registers[0][Register.ACQUISITION_SETTINGS.code] == AcquisitionMode.LIST_MODE.long) {
+                    val time = registers[0][Register.ACQUISITION_TIME.code]
+                    thread(name = "dante-simulator-data", isDaemon = true) { stream(time) }
+                }
+            }
+            else -> logger.warn("Unsupported command {}", command)
+        }
+    }
+
+    /**
+     * Write a packet using the same header layout the client expects
+     */
+    private fun write(channel: SocketChannel, command: CommandType, board: Int, packet: Int, payload: ByteBuffer) {
+        val words = payload.remaining() / 4
+        val header = ByteBuffer.allocate(DanteFrameReader.HEADER_SIZE).apply {
+            put(DanteClient.PACKET_HEADER_START_BYTES[0].toByte())
+            put(DanteClient.PACKET_HEADER_START_BYTES[1].toByte())
+            put(command.byte)
+            put(board.toByte())
+            put(packet.toByte())
+            put((words / 0x100).toByte())
+            put((words % 0x100 / 0x10).toByte())
+            put((words % 0x10).toByte())
+            flip()
+        }
+        val buffers = arrayOf(header, payload)
+        while (payload.hasRemaining() || header.hasRemaining()) {
+            channel.write(buffers)
+        }
+    }
+
+    /**
+     * Stream list mode events with Poisson arrival times for given time in milliseconds
+     */
+    private fun stream(time: Long) {
+        val channel = dataChannel ?: return
+        val random = SplittableRandom()
+        //mean interval between events on single board in 8 ns ticks
+        val meanTicks = boards / eventRate * 1.25e8
+        val packetNanos = (eventsPerPacket / eventRate * 1e9).toLong()
+        val ticks = LongArray(boards)
+        val payload = ByteBuffer.allocateDirect(eventsPerPacket * 8)
+        val start = System.nanoTime()
+        val end = start + time * 1_000_000
+        var packetCount = 0L
+        logger.info("Streaming list mode data for {} ms", time)
+        try {
+            while (running && System.nanoTime() < end) {
+                val board = (packetCount % boards).toInt()
+                payload.clear()
+                repeat(eventsPerPacket) {
+                    ticks[board] += 1 + (-ln(1.0 - random.nextDouble()) * meanTicks).toLong()
+                    val amplitude = 1 + random.nextInt(4095)
+                    payload.putInt(((ticks[board] and 0x3FFFL) shl 18).toInt() or amplitude)
+                    payload.putInt((ticks[board] ushr 14).toInt())
+                }
+                payload.flip()
+                synchronized(channel) {
+                    write(channel, CommandType.LIST_MODE, board, (packetCount % 256).toInt(), payload)
+                }
+                sentEventsCounter.addAndGet(eventsPerPacket.toLong())
+                packetCount++
+                //keep the average rate
+                val ahead = start + packetCount * packetNanos - System.nanoTime()
+                if (ahead > 0) {
+                    LockSupport.parkNanos(ahead)
+                }
+            }
+        } catch (ex: IOException) {
+            logger.error("Simulator data stream failed", ex)
+        }
+        registers.forEach { it[Register.ACQUISITION_STATUS.code] = 0 }
+        logger.info("Finished streaming, {} packets sent", packetCount)
+    }
+
+    override fun close() {
+        running = false
+        clients.forEach { it?.close() }
+        servers.forEach { it.close() }
+    }
+}
@@ -20,6 +20,7 @@ import hep.dataforge.context.Context
 import hep.dataforge.context.launch
 import hep.dataforge.control.devices.AbstractDevice
 import hep.dataforge.control.ports.GenericPortController
+import hep.dataforge.control.ports.PhraseFramer
 import hep.dataforge.control.ports.PortFactory
 import hep.dataforge.control.ports.PortHelper
 import hep.dataforge.meta.Meta
@@ -37,7 +38,7 @@ import kotlin.experimental.and
 class IT6800Device(context: Context, meta: Meta) : AbstractDevice(context, meta) {
     private val portHelper = PortHelper(this) { context, meta ->
         val port = PortFactory.build(meta)
-        GenericPortController(context, port) { it.length == 26 }
+        GenericPortController(context, port, PhraseFramer.fixedSize(26), Charsets.ISO_8859_1)
     }.apply {
         debug = true
     }
@@ -74,7 +75,7 @@ class IT6800Device(context: Context, meta: Meta) : AbstractDevice(context, meta)
         connectedState.set(true)
         remoteState.set(true)
         portHelper.connection.onAnyPhrase(this) {
-            val buffer = ByteBuffer.wrap(it.toByteArray(Charsets.US_ASCII))
+            val buffer = ByteBuffer.wrap(it.toByteArray(Charsets.ISO_8859_1))
             buffer.order(ByteOrder.LITTLE_ENDIAN)
 
             if (buffer.get(1) != address) {
@@ -28,7 +28,7 @@ class CM32Device(context: Context, meta: Meta) : PortSensor(context, meta) {
         } else {
             PortFactory.build(meta)
         }
-        return GenericPortController(context, port) { it.endsWith("T--\r") }
+        return GenericPortController(context, port, "T--\r")
     }
 
 
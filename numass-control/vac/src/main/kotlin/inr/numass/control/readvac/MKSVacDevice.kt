@@ -61,7 +61,7 @@ class MKSVacDevice(context: Context, meta: Meta) : PortSensor(context, meta) {
     override fun buildConnection(meta: Meta): GenericPortController {
         val port: Port = PortFactory.build(meta)
         logger.info("Connecting to port {}", port.name)
-        return GenericPortController(context, port) { it.endsWith(";FF") }
+        return GenericPortController(context, port, ";FF")
     }
 
 
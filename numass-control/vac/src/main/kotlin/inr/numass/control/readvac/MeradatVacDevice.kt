@@ -32,7 +32,7 @@ class MeradatVacDevice(context: Context, meta: Meta) : PortSensor(context, meta)
         val port: Port = PortFactory.build(meta)
         logger.info("Connecting to port {}", port.name)
 
-        return GenericPortController(context, port) { it.endsWith("\r\n") }
+        return GenericPortController(context, port, "\r\n")
     }
 
     override val type: String
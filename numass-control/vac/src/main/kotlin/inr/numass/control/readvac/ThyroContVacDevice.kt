@@ -20,7 +20,7 @@ class ThyroContVacDevice(context: Context, meta: Meta) : PortSensor(context, met
     override fun buildConnection(meta: Meta): GenericPortController {
         val port: Port = PortFactory.build(meta)
         logger.info("Connecting to port {}", port.name)
-        return GenericPortController(context, port) { it.endsWith("\r") }
+        return GenericPortController(context, port, "\r")
     }
 
     private fun String.checksum(): Char = (sumOf { it.code } % 64 + 64).toChar()
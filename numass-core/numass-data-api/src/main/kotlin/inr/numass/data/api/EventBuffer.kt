@@ -0,0 +1,187 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.api
+
+import java.io.Serializable
+import java.util.stream.IntStream
+import java.util.stream.Stream
+
+/**
+ * A columnar primitive storage for numass events. Amplitudes are stored as unsigned 16-bit values, time offsets are in
+ * nanoseconds relative to block start. Event with index `i` is represented by `amplitudes[i]` and `timeOffsets[i]`.
+ *
+ * The buffer does not create [NumassEvent] objects unless explicitly asked via [events].
+ */
+class EventBuffer(private val amplitudes: ShortArray, val timeOffsets: LongArray) : Serializable {
+
+    init {
+        require(amplitudes.size == timeOffsets.size) {
+            "The number of amplitudes (${amplitudes.size}) does not match the number of times (${timeOffsets.size})"
+        }
+    }
+
+    val size: Int get() = timeOffsets.size
+
+    /**
+     * Unsigned amplitude of event with given index
+     */
+    fun amplitude(index: Int): Int = amplitudes[index].toInt() and 0xFFFF
+
+    fun timeOffset(index: Int): Long = timeOffsets[index]
+
+    /**
+     * Count events with amplitude in given range
+     */
+    fun count(range: IntRange = 0..Int.MAX_VALUE): Long {
+        if (range.first <= 0 && range.last >= 0xFFFF) return size.toLong()
+        var count = 0L
+        for (i in 0 until size) {
+            if (amplitude(i) in range) count++
+        }
+        return count
+    }
+
+    /**
+     * Create a new buffer containing only events with amplitude in given range
+     */
+    fun window(range: IntRange): EventBuffer {
+        if (range.first <= 0 && range.last >= 0xFFFF) return this
+        val count = count(range).toInt()
+        val newAmplitudes = ShortArray(count)
+        val newTimes = LongArray(count)
+        var j = 0
+        for (i in 0 until size) {
+            if (amplitude(i) in range) {
+                newAmplitudes[j] = amplitudes[i]
+                newTimes[j] = timeOffsets[i]
+                j++
+            }
+        }
+        return EventBuffer(newAmplitudes, newTimes)
+    }
+
+    /**
+     * Create a new buffer containing events with given indices in given order
+     */
+    fun select(indices: IntArray): EventBuffer = EventBuffer(
+        ShortArray(indices.size) { amplitudes[indices[it]] },
+        LongArray(indices.size) { timeOffsets[indices[it]] }
+    )
+
+    /**
+     * Count events into amplitude histogram. Bin `i` of the result corresponds to amplitude `from + i`.
+     * Events outside of `[from, until)` are ignored.
+     */
+    fun histogram(from: Int = 0, until: Int = 0x10000): LongArray {
+        val res = LongArray(maxOf(until - from, 0))
+        for (i in 0 until size) {
+            val bin = amplitude(i) - from
+            if (bin >= 0 && bin < res.size) {
+                res[bin]++
+            }
+        }
+        return res
+    }
+
+    /**
+     * Check if time offsets are not decreasing
+     */
+    val isSorted: Boolean
+        get() {
+            for (i in 1 until size) {
+                if (timeOffsets[i] < timeOffsets[i - 1]) return false
+            }
+            return true
+        }
+
+    /**
+     * Return the buffer with events sorted by time offset. Returns this buffer if it is already sorted.
+     */
+    fun sortedByTime(): EventBuffer {
+        if (isSorted) return this
+        val order = IntArray(size) { it }
+        sortIndices(order, IntArray(size), 0, size)
+        return EventBuffer(
+            ShortArray(size) { amplitudes[order[it]] },
+            LongArray(size) { timeOffsets[order[it]] }
+        )
+    }
+
+    /**
+     * Stable merge sort of event indices by time offset without boxing
+     */
+    private fun sortIndices(indices: IntArray, buffer: IntArray, from: Int, until: Int) {
+        if (until - from < 2) return
+        val middle = (from + until) ushr 1
+        sortIndices(indices, buffer, from, middle)
+        sortIndices(indices, buffer, middle, until)
+        if (timeOffsets[indices[middle - 1]] <= timeOffsets[indices[middle]]) return
+        System.arraycopy(indices, from, buffer, from, until - from)
+        var left = from
+        var right = middle
+        for (k in from until until) {
+            indices[k] = if (right >= until || (left < middle && timeOffsets[buffer[left]] <= timeOffsets[buffer[right]])) {
+                buffer[left++]
+            } else {
+                buffer[right++]
+            }
+        }
+    }
+
+    /**
+     * Materialize events with given owner
+     */
+    fun events(owner: NumassBlock): Stream<NumassEvent> = IntStream.range(0, size).mapToObj { i ->
+        NumassEvent(amplitudes[i].toUShort(), timeOffsets[i], owner)
+    }
+
+    companion object {
+        val EMPTY = EventBuffer(ShortArray(0), LongArray(0))
+
+        /**
+         * Collect a stream of events into a buffer
+         */
+        fun of(events: Stream<out OrphanNumassEvent>): EventBuffer = of(events.iterator().asSequence().toList())
+
+        fun of(events: Collection<OrphanNumassEvent>): EventBuffer {
+            val amplitudes = ShortArray(events.size)
+            val times = LongArray(events.size)
+            events.forEachIndexed { index, event ->
+                amplitudes[index] = event.amplitude.toShort()
+                times[index] = event.timeOffset
+            }
+            return EventBuffer(amplitudes, times)
+        }
+
+        /**
+         * Join several buffers in given order
+         */
+        fun concat(buffers: List<EventBuffer>): EventBuffer {
+            if (buffers.size == 1) return buffers.first()
+            val total = buffers.sumOf { it.size }
+            val amplitudes = ShortArray(total)
+            val times = LongArray(total)
+            var position = 0
+            buffers.forEach { buffer ->
+                System.arraycopy(buffer.amplitudes, 0, amplitudes, position, buffer.size)
+                System.arraycopy(buffer.timeOffsets, 0, times, position, buffer.size)
+                position += buffer.size
+            }
+            return EventBuffer(amplitudes, times)
+        }
+    }
+}
@@ -32,6 +32,12 @@ class MetaBlock(override val blocks: List<NumassBlock>) : ParentBlock {
     override val events: Stream<NumassEvent>
         get() = blocks.sortedBy { it.startTime }.stream().flatMap { it.events }
 
+    /**
+     * Joined buffer of all blocks, sorted by block time but not sorted by event time
+     */
+    override val eventBuffer: EventBuffer
+        get() = EventBuffer.concat(blocks.sortedBy { it.startTime }.map { it.eventBuffer })
+
     override val frames: Stream<NumassFrame>
         get() = blocks.sortedBy { it.startTime }.stream().flatMap { it.frames }
 
@@ -79,6 +79,13 @@ interface NumassBlock {
      */
     val events: Stream<NumassEvent>
 
+    /**
+     * Isolated events in columnar primitive form. The default implementation collects [events],
+     * implementations are expected to override it to avoid creating event objects.
+     */
+    val eventBuffer: EventBuffer
+        get() = EventBuffer.of(events)
+
     /**
      * Stream of frames. Could be empty
      */
@@ -108,6 +115,8 @@ class SimpleBlock(
     override val events: Stream<NumassEvent>
         get() = eventList.stream()
 
+    override val eventBuffer: EventBuffer by lazy { EventBuffer.of(eventList) }
+
     companion object {
         suspend fun produce(startTime: Instant, length: Duration, producer: suspend () -> Iterable<OrphanNumassEvent>): SimpleBlock {
             return SimpleBlock(startTime, length, producer())
@@ -19,6 +19,7 @@ package inr.numass.data.api
 import hep.dataforge.meta.Metoid
 import hep.dataforge.providers.Provider
 import hep.dataforge.providers.Provides
+import java.nio.file.Path
 import java.time.Duration
 import java.time.Instant
 import java.util.stream.Stream
@@ -74,6 +75,13 @@ interface NumassPoint : Metoid, ParentBlock, Provider {
     val index: Int
         get() = meta.getInt(INDEX_KEY, -1)
 
+    /**
+     * The file this point was read from or null if the point is not backed by a file.
+     * Used to identify point content in persistent caches.
+     */
+    val file: Path?
+        get() = null
+
     /**
      * Get the first block if it exists. Throw runtime exception otherwise.
      *
@@ -110,6 +118,12 @@ interface NumassPoint : Metoid, ParentBlock, Provider {
     override val events: Stream<NumassEvent>
         get() = blocks.stream().flatMap { it.events }
 
+    /**
+     * Events of all blocks joined in a single buffer in the same order as [events]
+     */
+    override val eventBuffer: EventBuffer
+        get() = EventBuffer.concat(blocks.map { it.eventBuffer })
+
     /**
      * Get all frames in all blocks as a single sequence
      *
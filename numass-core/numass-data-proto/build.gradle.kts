@@ -6,6 +6,7 @@ plugins {
     idea
     kotlin("jvm")
     id("com.google.protobuf") version "0.8.16"
+    id("me.champeau.jmh") version "0.6.6"
 }
 
 
@@ -0,0 +1,93 @@
+package inr.numass.data
+
+import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.io.envelopes.EnvelopeBuilder
+import hep.dataforge.meta.buildMeta
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.io.ByteArrayOutputStream
+import java.util.zip.DeflaterOutputStream
+import kotlin.random.Random
+
+/**
+ * Compare repeated access to a multi-channel point with and without [ProtoPointCache]
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+open class ProtoPointCacheBenchmark {
+
+    private lateinit var envelope: Envelope
+
+    @Setup
+    fun setup() {
+        envelope = generatePointEnvelope(channels = 7, blocks = 4, eventsPerBlock = 50_000)
+    }
+
+    @TearDown
+    fun tearDown() {
+        ProtoPointCache.invalidate()
+    }
+
+    private fun consume(point: ProtoNumassPoint, blackhole: Blackhole) {
+        point.channels.values.forEach { channel ->
+            blackhole.consume(channel.events.count())
+        }
+        point.blocks.forEach { block ->
+            blackhole.consume(block.events.count())
+        }
+    }
+
+    @Benchmark
+    fun reparse(blackhole: Blackhole) {
+        consume(ProtoNumassPoint(envelope.meta) { ProtoNumassPoint.parseEnvelope(envelope) }, blackhole)
+    }
+
+    @Benchmark
+    fun cached(blackhole: Blackhole) {
+        consume(ProtoNumassPoint.fromEnvelope(envelope), blackhole)
+    }
+
+    companion object {
+        /**
+         * Generate zlib-compressed synthetic point
+         */
+        fun generatePointEnvelope(channels: Int, blocks: Int, eventsPerBlock: Int): Envelope {
+            val random = Random(42)
+            val point = NumassProto.Point.newBuilder().apply {
+                repeat(channels) { channelIndex ->
+                    addChannels(NumassProto.Point.Channel.newBuilder().apply {
+                        id = channelIndex.toLong()
+                        repeat(blocks) { blockIndex ->
+                            addBlocks(NumassProto.Point.Channel.Block.newBuilder().apply {
+                                time = blockIndex * 1_000_000_000L
+                                length = 1_000_000_000L
+                                events = NumassProto.Point.Channel.Block.Events.newBuilder().apply {
+                                    var time = 0L
+                                    repeat(eventsPerBlock) {
+                                        time += random.nextLong(1, 20_000)
+                                        addTimes(time)
+                                        addAmplitudes(random.nextLong(0, 4096))
+                                    }
+                                }.build()
+                            })
+                        }
+                    })
+                }
+            }.build()
+
+            val bytes = ByteArrayOutputStream().also { bos ->
+                DeflaterOutputStream(bos).use { point.writeTo(it) }
+            }.toByteArray()
+
+            return EnvelopeBuilder()
+                .meta(buildMeta {
+                    "compression" to "zlib"
+                    "acquisition_time" to blocks
+                })
+                .data(bytes)
+                .build()
+        }
+    }
+}
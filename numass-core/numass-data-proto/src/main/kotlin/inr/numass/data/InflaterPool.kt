@@ -0,0 +1,56 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data
+
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * A bounded pool of [Inflater] instances. Inflaters hold native memory, so creating one per point is expensive.
+ */
+internal object InflaterPool {
+
+    private const val BUFFER_SIZE = 64 * 1024
+
+    private val pool = ArrayBlockingQueue<Inflater>(Runtime.getRuntime().availableProcessors() * 2)
+
+    private fun borrow(): Inflater = pool.poll() ?: Inflater()
+
+    private fun release(inflater: Inflater) {
+        inflater.reset()
+        if (!pool.offer(inflater)) {
+            inflater.end()
+        }
+    }
+
+    /**
+     * Create inflating stream over given compressed input. The inflater is returned to the pool when the stream is closed.
+     */
+    fun inflate(input: InputStream): InputStream = object : InflaterInputStream(input, borrow(), BUFFER_SIZE) {
+        private var released = false
+
+        override fun close() {
+            if (!released) {
+                released = true
+                release(inf)
+            }
+            super.close()
+        }
+    }
+}
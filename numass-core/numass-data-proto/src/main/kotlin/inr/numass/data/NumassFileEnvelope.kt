@@ -16,26 +16,28 @@
 
 package inr.numass.data
 
+import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.io.envelopes.MetaCache
 import hep.dataforge.meta.Meta
 import hep.dataforge.storage.files.MutableFileEnvelope
-import java.nio.ByteBuffer
+import hep.dataforge.values.asValue
 import java.nio.file.Files
 import java.nio.file.Path
-import java.nio.file.StandardOpenOption
 
 class NumassFileEnvelope(path: Path) : MutableFileEnvelope(path) {
 
-    private val tag by lazy { Files.newByteChannel(path, StandardOpenOption.READ).use { NumassEnvelopeType.LegacyTag().read(it) } }
+    private val tag by lazy { readTag(NumassEnvelopeType.LegacyTag()) }
 
     override val dataOffset: Long by lazy { (tag.length + tag.metaSize).toLong() }
 
-    override var dataLength: Int
-        get() = tag.dataSize
+    /**
+     * Declared data length. Lengths not fitting the tag are written as undefined, in this case data lasts till the
+     * end of file.
+     */
+    override var dataLength: Long
+        get() = tag.dataLength.takeIf { it >= 0 } ?: (Files.size(path) - dataOffset)
         set(value) {
-            if (value > Int.MAX_VALUE) {
-                throw RuntimeException("Too large data block")
-            }
-            tag.dataSize = value
+            tag.values[Envelope.DATA_LENGTH_PROPERTY] = value.asValue()
             if (channel.write(tag.toBytes(), 0L) < tag.length) {
                 throw error("Tag is not overwritten.")
             }
@@ -43,10 +45,10 @@ class NumassFileEnvelope(path: Path) : MutableFileEnvelope(path) {
 
 
     override val meta: Meta by lazy {
-        val buffer = ByteBuffer.allocate(tag.metaSize).also {
-            channel.read(it, tag.length.toLong())
-        }
-        tag.metaType.reader.readBuffer(buffer)
+        MetaCache.get(path) {
+            val buffer = read(tag.length.toLong(), tag.metaSize)
+            tag.metaType.reader.readBuffer(buffer)
+        }!!
     }
 }
 
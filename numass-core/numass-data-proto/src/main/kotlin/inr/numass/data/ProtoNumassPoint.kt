@@ -16,40 +16,83 @@
 
 package inr.numass.data
 
+import com.google.protobuf.CodedInputStream
+import hep.dataforge.io.ByteBufferInputStream
 import hep.dataforge.io.envelopes.Envelope
 import hep.dataforge.meta.Meta
+import hep.dataforge.storage.files.FileEnvelope
 import inr.numass.data.api.*
 import org.slf4j.LoggerFactory
-import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
 import java.io.InputStream
 import java.nio.file.Path
 import java.time.Duration
 import java.time.Instant
 import java.util.stream.IntStream
 import java.util.stream.Stream
-import java.util.zip.Inflater
+import kotlin.math.min
 
 /**
  * Protobuf based numass point
  * Created by darksnake on 09.07.2017.
+ *
+ * @param source if present, blocks are decoded one by one from indexed data instead of parsing the whole point
+ * @param file the file the point was read from if it is known
  */
-class ProtoNumassPoint(override val meta: Meta, val protoBuilder: () -> NumassProto.Point) : NumassPoint {
+class ProtoNumassPoint(
+    override val meta: Meta,
+    private val source: IndexedSource? = null,
+    override val file: Path? = null,
+    val protoBuilder: () -> NumassProto.Point
+) : NumassPoint {
+
+    /**
+     * Block index of the point together with a way to decode a single block. Both are resolved on each access,
+     * so they could be cached externally.
+     */
+    class IndexedSource(
+        private val indexProvider: () -> ProtoPointIndex,
+        private val blockReader: (channel: Int, block: Int, entry: ProtoPointIndex.BlockEntry) -> NumassProto.Point.Channel.Block
+    ) {
+        val index: ProtoPointIndex get() = indexProvider()
+
+        /**
+         * Decode a block given its position in the index
+         */
+        fun readBlock(channel: Int, block: Int, entry: ProtoPointIndex.BlockEntry): NumassProto.Point.Channel.Block =
+            blockReader(channel, block, entry)
+    }
 
     val proto: NumassProto.Point
         get() = protoBuilder()
 
+    private fun ProtoPointIndex.ChannelEntry.lazyBlocks(source: IndexedSource, channelIndex: Int): List<ProtoBlock> =
+        blocks.mapIndexed { blockIndex, entry ->
+            ProtoBlock(id, entry.time, { source.readBlock(channelIndex, blockIndex, entry) }, this@ProtoNumassPoint)
+        }
+
     override val blocks: List<NumassBlock>
-        get() = proto.channelsList
-            .flatMap { channel ->
-                channel.blocksList
-                    .map { block -> ProtoBlock(channel.id.toInt(), block, this) }
-                    .sortedBy { it.startTime }
+        get() = if (source != null) {
+            source.index.channels.flatMapIndexed { channelIndex, channel ->
+                channel.lazyBlocks(source, channelIndex).sortedBy { it.startTime }
             }
+        } else {
+            proto.channelsList
+                .flatMap { channel ->
+                    channel.blocksList
+                        .map { block -> ProtoBlock(channel.id.toInt(), block, this) }
+                        .sortedBy { it.startTime }
+                }
+        }
 
     override val channels: Map<Int, NumassBlock>
-        get() = proto.channelsList.groupBy { it.id.toInt() }.mapValues { entry ->
-            MetaBlock(entry.value.flatMap { it.blocksList }.map { ProtoBlock(entry.key, it, this) })
+        get() = if (source != null) {
+            source.index.channels.withIndex().groupBy { it.value.id }.mapValues { entry ->
+                MetaBlock(entry.value.flatMap { it.value.lazyBlocks(source, it.index) })
+            }
+        } else {
+            proto.channelsList.groupBy { it.id.toInt() }.mapValues { entry ->
+                MetaBlock(entry.value.flatMap { it.blocksList }.map { ProtoBlock(entry.key, it, this) })
+            }
         }
 
     override val voltage: Double = meta.getDouble("external_meta.HV1_value", super.voltage)
@@ -76,42 +119,55 @@ class ProtoNumassPoint(override val meta: Meta, val protoBuilder: () -> NumassPr
         }
 
 
+        private fun Envelope.isCompressed(): Boolean = meta.getString("compression", "none") == "zlib"
+
         /**
-         * Get valid data stream utilizing compression if it is present
+         * Get valid data stream utilizing compression if it is present. Compressed data is inflated on the fly
+         * directly from the data buffer (memory mapped for file envelopes) without intermediate copies.
          */
-        private fun Envelope.dataStream(): InputStream = if (this.meta.getString("compression", "none") == "zlib") {
-            //TODO move to new type of data
-            val inflatter = Inflater()
-            val array: ByteArray = with(data.buffer) {
-                if (hasArray()) {
-                    array()
-                } else {
-                    ByteArray(this.limit()).also {
-                        this.position(0)
-                        get(it)
-                    }
-                }
-            }
-            inflatter.setInput(array)
-            val bos = ByteArrayOutputStream()
-            val buffer = ByteArray(8192)
-            while (!inflatter.finished()) {
-                val size = inflatter.inflate(buffer)
-                bos.write(buffer, 0, size)
-            }
-            val unzippeddata = bos.toByteArray()
-            inflatter.end()
-            ByteArrayInputStream(unzippeddata)
+        private fun Envelope.dataStream(): InputStream = if (isCompressed()) {
+            InflaterPool.inflate(ByteBufferInputStream(data.buffer))
         } else {
             this.data.stream
         }
 
-        fun fromEnvelope(envelope: Envelope): ProtoNumassPoint = ProtoNumassPoint(envelope.meta) {
-            envelope.dataStream().use {
-                NumassProto.Point.parseFrom(it)
+        /**
+         * Read point from envelope. The block index and parsed point are shared via [ProtoPointCache], so the data is
+         * not re-read on each access.
+         *
+         * Uncompressed blocks are decoded one by one from the envelope data (memory mapped for file envelopes) using
+         * [ProtoPointIndex]. Compressed points are not indexed, since block access would require inflating the data
+         * again. They are parsed in a single pass while inflating the data as a stream.
+         */
+        fun fromEnvelope(envelope: Envelope): ProtoNumassPoint {
+            val key = ProtoPointCache.keyFor(envelope)
+            val path = (envelope as? FileEnvelope)?.path
+            if (envelope.isCompressed()) {
+                return ProtoNumassPoint(envelope.meta, null, path) {
+                    ProtoPointCache.get(key) { parseEnvelope(envelope) }
+                }
             }
+            val proto: () -> NumassProto.Point = {
+                ProtoPointCache.get(key) { NumassProto.Point.parseFrom(envelope.data.buffer) }
+            }
+            val index: () -> ProtoPointIndex = {
+                ProtoPointCache.get<ProtoPointIndex>(key, "index", ProtoPointIndex::size) {
+                    ProtoPointIndex.resolve(envelope) { ProtoPointIndex.build(envelope.data.buffer) }
+                }
+            }
+            val source = IndexedSource(index) { _, _, entry -> ProtoPointIndex.readBlock(envelope.data.buffer, entry) }
+            return ProtoNumassPoint(envelope.meta, source, path, proto)
+        }
+
+        /**
+         * Parse the point from envelope without caching
+         */
+        fun parseEnvelope(envelope: Envelope): NumassProto.Point = envelope.dataStream().use {
+            NumassProto.Point.parseFrom(CodedInputStream.newInstance(it, PARSE_BUFFER_SIZE))
         }
 
+        private const val PARSE_BUFFER_SIZE = 64 * 1024
+
 //        fun readFile(path: String, context: Context = Global): ProtoNumassPoint {
 //            return readFile(context.getFile(path).absolutePath)
 //        }
@@ -124,28 +180,41 @@ class ProtoNumassPoint(override val meta: Meta, val protoBuilder: () -> NumassPr
     }
 }
 
+/**
+ * A block of proto point. The block message is decoded on first access.
+ *
+ * @param blockTime block start in epoch nanos
+ */
 class ProtoBlock(
     override val channel: Int,
-    private val block: NumassProto.Point.Channel.Block,
+    private val blockTime: Long,
+    blockProvider: () -> NumassProto.Point.Channel.Block,
     val parent: NumassPoint? = null
 ) : NumassBlock {
 
+    constructor(channel: Int, block: NumassProto.Point.Channel.Block, parent: NumassPoint? = null) :
+            this(channel, block.time, { block }, parent)
+
+    private val block: NumassProto.Point.Channel.Block by lazy(blockProvider)
+
     override val startTime: Instant
-        get() = ProtoNumassPoint.ofEpochNanos(block.time)
-
-    override val length: Duration = when {
-        block.length > 0 -> Duration.ofNanos(block.length)
-        parent?.meta?.hasValue("acquisition_time") ?: false ->
-            Duration.ofMillis((parent!!.meta.getDouble("acquisition_time") * 1000).toLong())
-        parent?.meta?.hasValue("params.b_size") ?: false ->
-            Duration.ofNanos((parent!!.meta.getDouble("params.b_size") * 320).toLong())
-        else -> {
-            error("No length information on block")
+        get() = ProtoNumassPoint.ofEpochNanos(blockTime)
+
+    override val length: Duration by lazy {
+        when {
+            block.length > 0 -> Duration.ofNanos(block.length)
+            parent?.meta?.hasValue("acquisition_time") ?: false ->
+                Duration.ofMillis((parent!!.meta.getDouble("acquisition_time") * 1000).toLong())
+            parent?.meta?.hasValue("params.b_size") ?: false ->
+                Duration.ofNanos((parent!!.meta.getDouble("params.b_size") * 320).toLong())
+            else -> {
+                error("No length information on block")
 //            LoggerFactory.getLogger(javaClass).warn("No length information on block. Trying to infer from first and last events")
 //            val times = events.map { it.timeOffset }.toList()
 //            val nanos = (times.max()!! - times.min()!!)
 //            Duration.ofNanos(nanos)
 //            Duration.ofMillis(380)
+            }
         }
     }
 
@@ -162,6 +231,22 @@ class ProtoBlock(
             Stream.empty()
         }
 
+    override val eventBuffer: EventBuffer
+        get() = if (block.hasEvents()) {
+            val events = block.events
+            if (events.timesCount != events.amplitudesCount) {
+                LoggerFactory.getLogger(javaClass)
+                    .error("The block is broken. Number of times is ${events.timesCount} and number of amplitudes is ${events.amplitudesCount}")
+            }
+            val size = min(events.timesCount, events.amplitudesCount)
+            EventBuffer(
+                ShortArray(size) { events.getAmplitudes(it).toShort() },
+                LongArray(size) { events.getTimes(it) }
+            )
+        } else {
+            EventBuffer.EMPTY
+        }
+
 
     override val frames: Stream<NumassFrame>
         get() {
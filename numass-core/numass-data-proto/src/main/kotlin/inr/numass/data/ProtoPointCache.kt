@@ -0,0 +1,180 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data
+
+import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.storage.files.FileEnvelope
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.SoftReference
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A memory-bounded cache of parsed [NumassProto.Point] messages and point block indexes. Values are held via soft references,
+ * so the garbage collector could reclaim them under memory pressure, and the total size of resident values is limited
+ * by [maxResidentBytes]. Least recently used values are evicted first.
+ *
+ * The size of a point is estimated by its serialized (uncompressed) size.
+ */
+object ProtoPointCache {
+
+    /**
+     * The key for points read from files. Modification of the file invalidates the key.
+     */
+    private data class FileKey(val path: Path, val size: Long, val lastModified: Long)
+
+    /**
+     * A key for a secondary value (like block index) associated with the point
+     */
+    private data class TypedKey(val key: Any, val type: String)
+
+    private class Entry(
+        val key: Any,
+        value: Any,
+        val size: Long,
+        queue: ReferenceQueue<Any>
+    ) : SoftReference<Any>(value, queue)
+
+    private val queue = ReferenceQueue<Any>()
+
+    private val entries = LinkedHashMap<Any, Entry>(16, 0.75f, true)
+
+    private val _hits = AtomicLong(0)
+    private val _misses = AtomicLong(0)
+    private val _evictions = AtomicLong(0)
+    private val _residentBytes = AtomicLong(0)
+
+    /**
+     * Maximum total estimated size of cached values in bytes. Zero or negative value disables caching.
+     */
+    @Volatile
+    var maxResidentBytes: Long = 512L * 1024 * 1024
+        set(value) {
+            field = value
+            synchronized(entries) {
+                evict()
+            }
+        }
+
+    val hits: Long get() = _hits.get()
+
+    val misses: Long get() = _misses.get()
+
+    /**
+     * Number of entries removed either due to memory budget or due to garbage collection
+     */
+    val evictions: Long get() = _evictions.get()
+
+    /**
+     * Estimated size of currently cached values in bytes
+     */
+    val residentBytes: Long get() = _residentBytes.get()
+
+    /**
+     * Cache key for the given envelope. File envelopes are identified by path, size and modification time,
+     * all other envelopes by identity.
+     */
+    fun keyFor(envelope: Envelope): Any = if (envelope is FileEnvelope) {
+        val path = envelope.path
+        FileKey(path, Files.size(path), Files.getLastModifiedTime(path).toMillis())
+    } else {
+        envelope
+    }
+
+    /**
+     * Get cached point for given key or parse it using [loader].
+     * Parsing is done outside of cache lock, so concurrent requests for the same point could parse it twice.
+     */
+    fun get(key: Any, loader: () -> NumassProto.Point): NumassProto.Point =
+        getOrLoad(key, loader) { it.serializedSize.toLong() }
+
+    /**
+     * Get cached value of given [type] associated with the point [key] or load it using [loader].
+     *
+     * @param weight estimated size of the value in bytes
+     */
+    fun <T : Any> get(key: Any, type: String, weight: (T) -> Long, loader: () -> T): T =
+        getOrLoad(TypedKey(key, type), loader, weight)
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T : Any> getOrLoad(key: Any, loader: () -> T, weight: (T) -> Long): T {
+        if (maxResidentBytes <= 0) {
+            _misses.incrementAndGet()
+            return loader()
+        }
+        synchronized(entries) {
+            expunge()
+            entries[key]?.get()?.let {
+                _hits.incrementAndGet()
+                return it as T
+            }
+        }
+        _misses.incrementAndGet()
+        val value = loader()
+        val size = weight(value)
+        synchronized(entries) {
+            entries.put(key, Entry(key, value, size, queue))?.let { remove(it) }
+            _residentBytes.addAndGet(size)
+            evict()
+        }
+        return value
+    }
+
+    /**
+     * Remove all cached values
+     */
+    fun invalidate() {
+        synchronized(entries) {
+            entries.values.forEach { it.clear() }
+            entries.clear()
+            _residentBytes.set(0)
+        }
+    }
+
+    private fun remove(entry: Entry) {
+        _residentBytes.addAndGet(-entry.size)
+        _evictions.incrementAndGet()
+    }
+
+    /**
+     * Remove entries cleared by garbage collector
+     */
+    private fun expunge() {
+        while (true) {
+            val entry = queue.poll() as Entry? ?: break
+            if (entries[entry.key] === entry) {
+                entries.remove(entry.key)
+                remove(entry)
+            }
+        }
+    }
+
+    /**
+     * Remove least recently used entries until the budget is satisfied
+     */
+    private fun evict() {
+        expunge()
+        val iterator = entries.values.iterator()
+        while (_residentBytes.get() > maxResidentBytes && iterator.hasNext()) {
+            val entry = iterator.next()
+            iterator.remove()
+            entry.clear()
+            remove(entry)
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data
+
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.WireFormat
+import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.storage.files.FileEnvelope
+import org.slf4j.LoggerFactory
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * An index of byte ranges of [NumassProto.Point.Channel.Block] messages inside decoded (uncompressed) point data.
+ * The index allows to decode a single block without parsing the whole point.
+ *
+ * Offsets are given relative to the beginning of decoded data.
+ */
+class ProtoPointIndex(val channels: List<ChannelEntry>) {
+
+    class ChannelEntry(val id: Int, val blocks: List<BlockEntry>)
+
+    /**
+     * @property time block start time in epoch nanos, stored in the index in order to sort blocks without decoding them
+     */
+    class BlockEntry(val offset: Int, val length: Int, val time: Long)
+
+    /**
+     * Estimated size of the index in memory
+     */
+    val size: Long
+        get() = channels.sumOf { 32L + it.blocks.size * 32L }
+
+    private fun write(path: Path, sourceSize: Long, sourceModified: Long) {
+        DataOutputStream(Files.newOutputStream(path).buffered()).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeLong(sourceSize)
+            out.writeLong(sourceModified)
+            out.writeInt(channels.size)
+            channels.forEach { channel ->
+                out.writeInt(channel.id)
+                out.writeInt(channel.blocks.size)
+                channel.blocks.forEach { block ->
+                    out.writeInt(block.offset)
+                    out.writeInt(block.length)
+                    out.writeLong(block.time)
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x4E50494E // NPIN
+        private const val VERSION = 1
+
+        private const val SCAN_BUFFER_SIZE = 64 * 1024
+
+        /**
+         * If true, the index of file points is stored in a hidden file next to the point and reused by later reads
+         */
+        @Volatile
+        var persist: Boolean = false
+
+        /**
+         * Decode a single block from the decoded point data
+         */
+        fun readBlock(data: ByteBuffer, entry: BlockEntry): NumassProto.Point.Channel.Block {
+            val slice = data.duplicate()
+            slice.position(entry.offset)
+            slice.limit(entry.offset + entry.length)
+            return NumassProto.Point.Channel.Block.parseFrom(slice.slice())
+        }
+
+        /**
+         * Scan decoded point data and record positions of blocks. Only block times are decoded.
+         */
+        fun build(data: ByteBuffer): ProtoPointIndex {
+            val buffer = data.duplicate()
+            buffer.position(0)
+            return build(CodedInputStream.newInstance(buffer))
+        }
+
+        /**
+         * Scan decoded point data from the stream (for example an inflating one) without holding it in memory.
+         * The stream is not closed.
+         */
+        fun build(stream: InputStream): ProtoPointIndex = build(CodedInputStream.newInstance(stream, SCAN_BUFFER_SIZE))
+
+        private fun build(input: CodedInputStream): ProtoPointIndex {
+            val channels = ArrayList<ChannelEntry>()
+            while (true) {
+                val tag = input.readTag()
+                if (tag == 0) break
+                if (isMessage(tag, NumassProto.Point.CHANNELS_FIELD_NUMBER)) {
+                    val limit = input.pushLimit(input.readRawVarint32())
+                    channels.add(readChannel(input))
+                    input.popLimit(limit)
+                } else {
+                    input.skipField(tag)
+                }
+            }
+            return ProtoPointIndex(channels)
+        }
+
+        private fun isMessage(tag: Int, field: Int): Boolean =
+            WireFormat.getTagFieldNumber(tag) == field && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED
+
+        private fun readChannel(input: CodedInputStream): ChannelEntry {
+            var id = 0
+            val blocks = ArrayList<BlockEntry>()
+            while (true) {
+                val tag = input.readTag()
+                if (tag == 0) break
+                when {
+                    WireFormat.getTagFieldNumber(tag) == NumassProto.Point.Channel.ID_FIELD_NUMBER -> {
+                        id = input.readUInt64().toInt()
+                    }
+                    isMessage(tag, NumassProto.Point.Channel.BLOCKS_FIELD_NUMBER) -> {
+                        val length = input.readRawVarint32()
+                        val offset = input.totalBytesRead
+                        val limit = input.pushLimit(length)
+                        blocks.add(BlockEntry(offset, length, readBlockTime(input)))
+                        input.popLimit(limit)
+                    }
+                    else -> input.skipField(tag)
+                }
+            }
+            return ChannelEntry(id, blocks)
+        }
+
+        private fun readBlockTime(input: CodedInputStream): Long {
+            var time = 0L
+            while (true) {
+                val tag = input.readTag()
+                if (tag == 0) break
+                if (WireFormat.getTagFieldNumber(tag) == NumassProto.Point.Channel.Block.TIME_FIELD_NUMBER) {
+                    time = input.readUInt64()
+                } else {
+                    input.skipField(tag)
+                }
+            }
+            return time
+        }
+
+        private fun indexPath(path: Path): Path = path.resolveSibling(".${path.fileName}.index")
+
+        private fun read(path: Path, sourceSize: Long, sourceModified: Long): ProtoPointIndex? {
+            return DataInputStream(Files.newInputStream(path).buffered()).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION ||
+                    input.readLong() != sourceSize || input.readLong() != sourceModified
+                ) {
+                    return null
+                }
+                val channels = List(input.readInt()) {
+                    val id = input.readInt()
+                    val blocks = List(input.readInt()) {
+                        BlockEntry(input.readInt(), input.readInt(), input.readLong())
+                    }
+                    ChannelEntry(id, blocks)
+                }
+                ProtoPointIndex(channels)
+            }
+        }
+
+        /**
+         * Get the index for given envelope. For file envelopes the persisted index is used if it is present and
+         * up to date. Otherwise the index is built with [builder] and persisted if [persist] is true.
+         */
+        fun resolve(envelope: Envelope, builder: () -> ProtoPointIndex): ProtoPointIndex {
+            if (envelope !is FileEnvelope) {
+                return builder()
+            }
+            val path = envelope.path
+            val indexPath = indexPath(path)
+            val sourceSize = Files.size(path)
+            val sourceModified = Files.getLastModifiedTime(path).toMillis()
+            if (Files.exists(indexPath)) {
+                try {
+                    read(indexPath, sourceSize, sourceModified)?.let { return it }
+                } catch (ex: IOException) {
+                    LoggerFactory.getLogger(ProtoPointIndex::class.java).warn("Failed to read point index $indexPath", ex)
+                }
+            }
+            return builder().also { index ->
+                if (persist) {
+                    try {
+                        index.write(indexPath, sourceSize, sourceModified)
+                    } catch (ex: IOException) {
+                        LoggerFactory.getLogger(ProtoPointIndex::class.java).warn("Failed to write point index $indexPath", ex)
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data
+
+import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.io.envelopes.EnvelopeBuilder
+import hep.dataforge.meta.buildMeta
+import inr.numass.data.api.NumassBlock
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.stream.Collectors
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.random.Random
+
+class ProtoPointIndexTest {
+
+    private val point: NumassProto.Point = generatePoint()
+
+    @After
+    fun cleanup() {
+        ProtoPointCache.invalidate()
+    }
+
+    private fun envelope(compressed: Boolean): Envelope {
+        val bytes = if (compressed) {
+            ByteArrayOutputStream().also { bos -> DeflaterOutputStream(bos).use { point.writeTo(it) } }.toByteArray()
+        } else {
+            point.toByteArray()
+        }
+        return EnvelopeBuilder()
+            .meta(buildMeta {
+                "compression" to if (compressed) "zlib" else "none"
+                "acquisition_time" to 4
+            })
+            .data(bytes)
+            .build()
+    }
+
+    private fun NumassBlock.summary(): List<Any> {
+        val events = events.map { "${it.amplitude}:${it.timeOffset}" }.collect(Collectors.toList())
+        return listOf(channel, startTime, length, events)
+    }
+
+    private fun checkPoint(envelope: Envelope) {
+        val indexed = ProtoNumassPoint.fromEnvelope(envelope)
+        val parsed = ProtoNumassPoint(envelope.meta) { ProtoNumassPoint.parseEnvelope(envelope) }
+
+        assertEquals(parsed.blocks.map { it.summary() }, indexed.blocks.map { it.summary() })
+        assertEquals(parsed.channels.keys, indexed.channels.keys)
+        parsed.channels.forEach { (id, block) ->
+            assertEquals(block.events.count(), indexed.channels.getValue(id).events.count())
+        }
+        assertEquals(point, indexed.proto)
+    }
+
+    @Test
+    fun testIndexEntries() {
+        val index = ProtoPointIndex.build(ByteBuffer.wrap(point.toByteArray()))
+        assertEquals(point.channelsList.map { it.id.toInt() }, index.channels.map { it.id })
+        index.channels.forEachIndexed { channelIndex, channel ->
+            val blocks = point.getChannels(channelIndex).blocksList
+            assertEquals(blocks.map { it.time }, channel.blocks.map { it.time })
+            channel.blocks.forEachIndexed { blockIndex, entry ->
+                val block = ProtoPointIndex.readBlock(ByteBuffer.wrap(point.toByteArray()), entry)
+                assertEquals(blocks[blockIndex], block)
+            }
+        }
+    }
+
+    @Test
+    fun testStreamIndex() {
+        val compressed = ByteArrayOutputStream().also { bos ->
+            DeflaterOutputStream(bos).use { point.writeTo(it) }
+        }.toByteArray()
+
+        val fromBuffer = ProtoPointIndex.build(ByteBuffer.wrap(point.toByteArray()))
+        val fromStream = InflaterInputStream(compressed.inputStream()).use { ProtoPointIndex.build(it) }
+
+        assertEquals(fromBuffer.channels.size, fromStream.channels.size)
+        fromBuffer.channels.zip(fromStream.channels).forEach { (expected, actual) ->
+            assertEquals(expected.id, actual.id)
+            assertEquals(expected.blocks.map { it.offset }, actual.blocks.map { it.offset })
+            assertEquals(expected.blocks.map { it.length }, actual.blocks.map { it.length })
+            assertEquals(expected.blocks.map { it.time }, actual.blocks.map { it.time })
+        }
+    }
+
+    @Test
+    fun testUncompressedPoint() {
+        checkPoint(envelope(false))
+    }
+
+    @Test
+    fun testCompressedPoint() {
+        checkPoint(envelope(true))
+    }
+
+    @Test
+    fun testWithoutCache() {
+        val budget = ProtoPointCache.maxResidentBytes
+        ProtoPointCache.maxResidentBytes = 0
+        try {
+            checkPoint(envelope(false))
+            checkPoint(envelope(true))
+        } finally {
+            ProtoPointCache.maxResidentBytes = budget
+        }
+    }
+
+    companion object {
+        /**
+         * A point with several channels, one of them repeated, and blocks written out of time order
+         */
+        fun generatePoint(): NumassProto.Point {
+            val random = Random(12)
+            return NumassProto.Point.newBuilder().apply {
+                listOf(0L, 3L, 1L, 3L).forEach { channelId ->
+                    addChannels(NumassProto.Point.Channel.newBuilder().apply {
+                        id = channelId
+                        listOf(2, 0, 3, 1).forEach { blockIndex ->
+                            addBlocks(NumassProto.Point.Channel.Block.newBuilder().apply {
+                                time = blockIndex * 1_000_000_000L
+                                length = 1_000_000_000L
+                                events = NumassProto.Point.Channel.Block.Events.newBuilder().apply {
+                                    var time = 0L
+                                    repeat(random.nextInt(0, 2000)) {
+                                        time += random.nextLong(1, 20_000)
+                                        addTimes(time)
+                                        addAmplitudes(random.nextLong(0, 4096))
+                                    }
+                                }.build()
+                            })
+                        }
+                    })
+                }
+            }.build()
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.analyzers
+
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.MetaBuilder
+import hep.dataforge.meta.buildMeta
+import hep.dataforge.tables.Table
+import inr.numass.data.api.*
+import org.openjdk.jmh.annotations.*
+import org.slf4j.LoggerFactory
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ForkJoinPool
+import kotlin.random.Random
+
+/**
+ * Analysis of a synthetic set with different execution modes. Run with `-t` or different
+ * `-Djava.util.concurrent.ForkJoinPool.common.parallelism` values to see scaling with the number of cores.
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@State(Scope.Benchmark)
+open class AnalyzerExecutionBenchmark {
+
+    @Param("SEQUENTIAL", "FORK_JOIN", "COROUTINES")
+    lateinit var mode: String
+
+    private lateinit var set: NumassSet
+    private lateinit var config: Meta
+
+    @Setup
+    fun setup() {
+        set = generateSet(points = 24, blocks = 4, eventsPerBlock = 200_000)
+        config = buildMeta {
+            "t0" to 3000
+            "window.lo" to 500
+            "window.up" to 3000
+            "parallel" to mode
+        }.build()
+        LoggerFactory.getLogger(javaClass).info("Common pool parallelism: {}", ForkJoinPool.commonPool().parallelism)
+    }
+
+    @Benchmark
+    fun analyzeSet(): Table = TimeAnalyzer().analyzeSet(set, config)
+
+    companion object {
+        fun generateSet(points: Int, blocks: Int, eventsPerBlock: Int): NumassSet {
+            val random = Random(42)
+            val start = Instant.EPOCH
+            val pointList = List(points) { pointIndex ->
+                val blockList = List(blocks) { blockIndex ->
+                    var time = 0L
+                    val events = List(eventsPerBlock) {
+                        time += random.nextLong(1, 20_000)
+                        OrphanNumassEvent(random.nextInt(0, 4096).toUShort(), time)
+                    }
+                    SimpleBlock(start.plusSeconds(blockIndex.toLong()), Duration.ofNanos(time), events)
+                }
+                SimpleNumassPoint.build(blockList, 14000.0 + pointIndex * 100, pointIndex)
+            }
+            return object : NumassSet {
+                override val points: List<NumassPoint> = pointList
+                override val meta: Meta = MetaBuilder("set")
+                override val name: String = "benchmark"
+                override suspend fun getHvData(): Table? = null
+            }
+        }
+    }
+}
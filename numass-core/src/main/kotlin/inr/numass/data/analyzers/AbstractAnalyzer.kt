@@ -16,22 +16,40 @@
 
 package inr.numass.data.analyzers
 
+import hep.dataforge.description.ValueDef
 import hep.dataforge.meta.Meta
 import hep.dataforge.tables.Adapters.*
 import hep.dataforge.tables.ListTable
 import hep.dataforge.tables.Table
 import hep.dataforge.tables.TableFormat
 import hep.dataforge.tables.TableFormatBuilder
+import hep.dataforge.values.ValueType
+import hep.dataforge.values.Values
+import hep.dataforge.values.getEnum
+import inr.numass.data.api.EventBuffer
 import inr.numass.data.api.NumassBlock
 import inr.numass.data.api.NumassEvent
+import inr.numass.data.api.NumassPoint
 import inr.numass.data.api.NumassPoint.Companion.HV_KEY
 import inr.numass.data.api.NumassSet
 import inr.numass.data.api.SignalProcessor
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import java.util.stream.Collectors
 import java.util.stream.Stream
 
 /**
  * Created by darksnake on 11.07.2017.
  */
+@ValueDef(
+    key = "parallel",
+    type = [ValueType.STRING],
+    def = "SEQUENTIAL",
+    allowed = ["SEQUENTIAL", "FORK_JOIN", "COROUTINES"],
+    info = "Execution mode for analysis of points in a set and blocks in a point"
+)
 abstract class AbstractAnalyzer @JvmOverloads constructor(private val processor: SignalProcessor? = null) :
     NumassAnalyzer {
 
@@ -50,6 +68,17 @@ abstract class AbstractAnalyzer @JvmOverloads constructor(private val processor:
         }.toList()
     }
 
+    override fun getEventBuffer(block: NumassBlock, meta: Meta): EventBuffer {
+        return getAllEventBuffer(block).window(meta.getRange())
+    }
+
+    /**
+     * Count events in the window without creating event objects
+     */
+    protected fun countEvents(block: NumassBlock, meta: Meta): Long {
+        return getAllEventBuffer(block).count(meta.getRange())
+    }
+
     protected fun Meta.getRange(): IntRange {
         val loChannel = getInt("window.lo", 0)
         val upChannel = getInt("window.up", Integer.MAX_VALUE)
@@ -64,6 +93,16 @@ abstract class AbstractAnalyzer @JvmOverloads constructor(private val processor:
         }
     }
 
+    protected fun getAllEventBuffer(block: NumassBlock): EventBuffer {
+        return when {
+            block.frames.count() == 0L -> block.eventBuffer
+            processor == null -> block.eventBuffer
+            else -> EventBuffer.concat(
+                listOf(block.eventBuffer, EventBuffer.of(block.frames.flatMap { processor.process(block, it) }))
+            )
+        }
+    }
+
     /**
      * Get table format for summary table
      *
@@ -83,15 +122,88 @@ abstract class AbstractAnalyzer @JvmOverloads constructor(private val processor:
     }
 
 
+    /**
+     * Persistent cache for point analysis results. If null, results are not cached.
+     */
+    var resultCache: AnalysisCache? = null
+
+    /**
+     * The version of the analysis algorithm. It is a part of [resultCache] key, so it must be increased each time
+     * the analyzer code is changed in a way that changes results.
+     */
+    open val version: Int get() = 1
+
+    /**
+     * Identity of the analyzer code for [resultCache]. Includes the analyzer and processor classes, [version] and
+     * the version of the library the analyzer is loaded from if it is known.
+     *
+     * Analyzers which delegate to other analyzers must include identities of delegates.
+     */
+    open val analyzerId: String
+        get() = buildString {
+            append(javaClass.name).append('@').append(version)
+            javaClass.`package`?.implementationVersion?.let { append('/').append(it) }
+            processor?.let { append(':').append(it.javaClass.name) }
+        }
+
+    /**
+     * The same as [analyzeParent], but the result is taken from [resultCache] if it is present
+     */
+    fun analyzePoint(point: NumassPoint, config: Meta): Values {
+        return resultCache?.getOrPut(point, analyzerId, config) { analyzeParent(point, config) }
+            ?: analyzeParent(point, config)
+    }
+
     override fun analyzeSet(set: NumassSet, config: Meta): Table {
         val format = getTableFormat(config)
 
         return ListTable.Builder(format)
-            .rows(set.points.map { point -> analyzeParent(point, config) })
+            .rows(set.points.mapInParallel(config) { point -> analyzePoint(point, config) })
             .build()
     }
 
+    /**
+     * The way independent items (points or blocks) are analyzed
+     */
+    enum class ExecutionMode {
+        SEQUENTIAL,
+        FORK_JOIN,
+        COROUTINES
+    }
+
+    /**
+     * Map the list using execution mode from the "parallel" value of [config]. The order of results is always the
+     * same as the order of items, so results combined from them do not depend on the mode.
+     *
+     * In coroutine mode nested calls are evaluated sequentially in order not to block all dispatcher threads.
+     */
+    protected fun <T, R> List<T>.mapInParallel(config: Meta, transform: (T) -> R): List<R> {
+        if (size < 2) return map(transform)
+        return when (config.getEnum("parallel", ExecutionMode.SEQUENTIAL)) {
+            ExecutionMode.SEQUENTIAL -> map(transform)
+            ExecutionMode.FORK_JOIN -> parallelStream().map(transform).collect(Collectors.toList())
+            ExecutionMode.COROUTINES -> if (insideCoroutine.get()) {
+                map(transform)
+            } else {
+                runBlocking {
+                    map { item ->
+                        async(Dispatchers.Default) {
+                            insideCoroutine.set(true)
+                            try {
+                                transform(item)
+                            } finally {
+                                insideCoroutine.set(false)
+                            }
+                        }
+                    }.awaitAll()
+                }
+            }
+        }
+    }
+
     companion object {
+        private val insideCoroutine = ThreadLocal.withInitial { false }
+
         val NAME_LIST = arrayOf(
             NumassAnalyzer.LENGTH_KEY,
             NumassAnalyzer.COUNT_KEY,
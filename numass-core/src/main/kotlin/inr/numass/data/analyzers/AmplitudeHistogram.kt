@@ -0,0 +1,187 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.analyzers
+
+import hep.dataforge.meta.Meta
+import hep.dataforge.tables.Adapters.*
+import hep.dataforge.tables.ColumnarTable
+import hep.dataforge.tables.Table
+import hep.dataforge.tables.TableFormatBuilder
+import inr.numass.data.api.EventBuffer
+import kotlin.math.sqrt
+
+/**
+ * A histogram of event counts by amplitude channel. Bin `i` corresponds to channel `from + i`.
+ * Partial histograms (for example for different blocks) could be merged with [plus].
+ *
+ * Conversion to [Table] is done with [toTable] and [withBinning].
+ */
+class AmplitudeHistogram(val from: Int, private val counts: LongArray) {
+
+    /**
+     * Exclusive upper channel
+     */
+    val until: Int get() = from + counts.size
+
+    /**
+     * Total number of counts
+     */
+    val total: Long get() = counts.sum()
+
+    /**
+     * Number of counts in given channel. Zero if channel is outside of the histogram
+     */
+    operator fun get(channel: Int): Long {
+        val bin = channel - from
+        return if (bin >= 0 && bin < counts.size) counts[bin] else 0
+    }
+
+    /**
+     * The lowest channel with non-zero count or null if histogram is empty
+     */
+    val minChannel: Int?
+        get() = counts.indexOfFirst { it > 0 }.takeIf { it >= 0 }?.let { it + from }
+
+    /**
+     * The highest channel with non-zero count or null if histogram is empty
+     */
+    val maxChannel: Int?
+        get() = counts.indexOfLast { it > 0 }.takeIf { it >= 0 }?.let { it + from }
+
+    /**
+     * Count events with channel in `[loChannel, upChannel)`
+     */
+    fun countInWindow(loChannel: Int, upChannel: Int): Long {
+        var sum = 0L
+        for (channel in maxOf(loChannel, from) until minOf(upChannel, until)) {
+            sum += counts[channel - from]
+        }
+        return sum
+    }
+
+    /**
+     * Merge two histograms into new one covering both ranges
+     */
+    operator fun plus(other: AmplitudeHistogram): AmplitudeHistogram {
+        if (other.counts.isEmpty()) return this
+        if (counts.isEmpty()) return other
+        val newFrom = minOf(from, other.from)
+        val res = LongArray(maxOf(until, other.until) - newFrom)
+        for (i in counts.indices) {
+            res[from - newFrom + i] += counts[i]
+        }
+        for (i in other.counts.indices) {
+            res[other.from - newFrom + i] += other.counts[i]
+        }
+        return AmplitudeHistogram(newFrom, res)
+    }
+
+    /**
+     * The range of channels presented in the spectrum table. Window from config is used if it is present,
+     * otherwise the range spans from the lowest non-empty channel (inclusive) to the highest non-empty one (exclusive).
+     */
+    fun channelRange(config: Meta = Meta.empty()): IntRange {
+        val lo = config.getInt("window.lo") { minChannel ?: 0 }
+        val up = config.getInt("window.up") { maxChannel ?: 4096 }
+        return lo until up
+    }
+
+    /**
+     * Convert histogram to amplitude spectrum table spanning [channelRange]
+     *
+     * @param length length in seconds, used for count rate calculation
+     */
+    fun toTable(length: Double, config: Meta = Meta.empty()): Table {
+        val format = TableFormatBuilder()
+            .addNumber(NumassAnalyzer.CHANNEL_KEY, X_VALUE_KEY)
+            .addNumber(NumassAnalyzer.COUNT_KEY)
+            .addNumber(NumassAnalyzer.COUNT_RATE_KEY, Y_VALUE_KEY)
+            .addNumber(NumassAnalyzer.COUNT_RATE_ERROR_KEY, Y_ERROR_KEY)
+            .updateMeta { metaBuilder -> metaBuilder.setNode("config", config) }
+            .build()
+
+        val builder = ColumnarTable.Builder(format)
+        for (channel in channelRange(config)) {
+            val value = get(channel)
+            builder.row(
+                channel,
+                value,
+                value.toDouble() / length,
+                sqrt(value.toDouble()) / length
+            )
+        }
+        return builder.build()
+    }
+
+    /**
+     * Produce binned spectrum in a single pass. The result is the same as [Table.withBinning] applied to [toTable].
+     *
+     * @param binSize
+     * @param length length in seconds, used for count rate calculation
+     * @param loChannel the lowest non-empty channel if null
+     * @param upChannel the channel before the highest non-empty one if null
+     */
+    fun withBinning(binSize: Int, length: Double, loChannel: Int? = null, upChannel: Int? = null): Table {
+        val builder = ColumnarTable.Builder(binnedFormat())
+        val lo = loChannel ?: minChannel ?: 0
+        val top = upChannel ?: maxChannel?.minus(1) ?: 1
+
+        var chan = lo
+        while (chan < top - binSize) {
+            val count = countInWindow(chan, chan + binSize)
+            builder.row(
+                chan.toDouble() + binSize.toDouble() / 2.0,
+                count,
+                count.toDouble() / length,
+                sqrt(count.toDouble()) / length,
+                binSize
+            )
+            chan += binSize
+        }
+        return builder.build()
+    }
+
+    companion object {
+        val EMPTY = AmplitudeHistogram(0, LongArray(0))
+
+        /**
+         * Fill histogram from event buffer. If [from] or [until] are not defined, the range of amplitudes in the buffer is used.
+         */
+        fun of(buffer: EventBuffer, from: Int? = null, until: Int? = null): AmplitudeHistogram {
+            if (buffer.size == 0 && (from == null || until == null)) return EMPTY
+            var min = Int.MAX_VALUE
+            var max = Int.MIN_VALUE
+            if (from == null || until == null) {
+                for (i in 0 until buffer.size) {
+                    val amplitude = buffer.amplitude(i)
+                    if (amplitude < min) min = amplitude
+                    if (amplitude > max) max = amplitude
+                }
+            }
+            val lo = from ?: min
+            val up = until ?: (max + 1)
+            return AmplitudeHistogram(lo, buffer.histogram(lo, up))
+        }
+
+        internal fun binnedFormat() = TableFormatBuilder()
+            .addNumber(NumassAnalyzer.CHANNEL_KEY, X_VALUE_KEY)
+            .addNumber(NumassAnalyzer.COUNT_KEY, Y_VALUE_KEY)
+            .addNumber(NumassAnalyzer.COUNT_RATE_KEY)
+            .addNumber(NumassAnalyzer.COUNT_RATE_ERROR_KEY)
+            .addNumber("binSize")
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.analyzers
+
+import hep.dataforge.context.Context
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.digest
+import hep.dataforge.values.*
+import inr.numass.data.api.NumassPoint
+import org.slf4j.LoggerFactory
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A persistent cache of point analysis results. Results are addressed by the content of the point file and a canonical
+ * hash of the analyzer configuration, so the same results are reused by different analyzer instances and processes.
+ *
+ * Content hashes of point files are remembered together with file size and modification time, so unchanged files
+ * are hashed only once.
+ *
+ * @param directory the directory for cache files
+ */
+class AnalysisCache(val directory: Path) {
+
+    private class Fingerprint(val size: Long, val modified: Long, val hash: String)
+
+    private val fingerprints = ConcurrentHashMap<Path, Fingerprint>()
+
+    private val fingerprintFile: Path = directory.resolve(FINGERPRINTS_FILE)
+
+    private val _hits = AtomicLong(0)
+    private val _misses = AtomicLong(0)
+
+    val hits: Long get() = _hits.get()
+
+    val misses: Long get() = _misses.get()
+
+    init {
+        Files.createDirectories(directory)
+        loadFingerprints()
+    }
+
+    private fun loadFingerprints() {
+        if (!Files.exists(fingerprintFile)) return
+        try {
+            DataInputStream(Files.newInputStream(fingerprintFile).buffered()).use { input ->
+                while (input.available() > 0) {
+                    val path = directory.fileSystem.getPath(input.readUTF())
+                    fingerprints[path] = Fingerprint(input.readLong(), input.readLong(), input.readUTF())
+                }
+            }
+        } catch (ex: IOException) {
+            logger.warn("Failed to read point fingerprints from $fingerprintFile", ex)
+        }
+    }
+
+    @Synchronized
+    private fun appendFingerprint(path: Path, fingerprint: Fingerprint) {
+        try {
+            DataOutputStream(
+                Files.newOutputStream(fingerprintFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND).buffered()
+            ).use { out ->
+                out.writeUTF(path.toString())
+                out.writeLong(fingerprint.size)
+                out.writeLong(fingerprint.modified)
+                out.writeUTF(fingerprint.hash)
+            }
+        } catch (ex: IOException) {
+            logger.warn("Failed to write point fingerprint to $fingerprintFile", ex)
+        }
+    }
+
+    /**
+     * Content hash of the file. The file is read only if its size or modification time changed since the last hashing.
+     */
+    private fun contentHash(file: Path): String {
+        val path = file.toAbsolutePath().normalize()
+        val size = Files.size(path)
+        val modified = Files.getLastModifiedTime(path).toMillis()
+        fingerprints[path]?.let {
+            if (it.size == size && it.modified == modified) return it.hash
+        }
+        val digest = MessageDigest.getInstance(HASH_ALGORITHM)
+        FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            val buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE)
+            while (channel.read(buffer) >= 0) {
+                buffer.flip()
+                digest.update(buffer)
+                buffer.clear()
+            }
+        }
+        val fingerprint = Fingerprint(size, modified, digest.digest().toHex())
+        fingerprints[path] = fingerprint
+        appendFingerprint(path, fingerprint)
+        return fingerprint.hash
+    }
+
+    /**
+     * The cache key for given point and configuration or null if the point is not backed by a file
+     */
+    private fun key(point: NumassPoint, analyzerId: String, config: Meta): String? {
+        val file = point.file ?: return null
+        val digest = MessageDigest.getInstance(HASH_ALGORITHM)
+        digest.update(FORMAT_VERSION.toByte())
+        digest.update(contentHash(file).toByteArray())
+        digest.update(analyzerId.toByteArray())
+        digest.update(config.digest())
+        return digest.digest().toHex()
+    }
+
+    private fun resultPath(key: String): Path = directory.resolve(key.substring(0, 2)).resolve("$key.values")
+
+    private fun read(path: Path): Values? {
+        if (!Files.exists(path)) return null
+        return try {
+            DataInputStream(Files.newInputStream(path).buffered()).use { input ->
+                if (input.readInt() != MAGIC) return null
+                val map = LinkedHashMap<String, Value>()
+                repeat(input.readShort().toInt()) {
+                    map[input.readUTF()] = input.readValue()
+                }
+                ValueMap(map)
+            }
+        } catch (ex: IOException) {
+            logger.warn("Failed to read cached analysis result from $path. Deleting corrupted file.", ex)
+            Files.deleteIfExists(path)
+            null
+        }
+    }
+
+    private fun write(path: Path, values: Values) {
+        try {
+            Files.createDirectories(path.parent)
+            val tmp = Files.createTempFile(path.parent, path.fileName.toString(), ".tmp")
+            DataOutputStream(Files.newOutputStream(tmp).buffered()).use { out ->
+                val entries = values.toList()
+                out.writeInt(MAGIC)
+                out.writeShort(entries.size)
+                entries.forEach { entry ->
+                    out.writeUTF(entry.name)
+                    out.writeValue(entry.anonymous)
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (ex: IOException) {
+            logger.warn("Failed to write analysis result to $path", ex)
+        }
+    }
+
+    /**
+     * Get cached analysis result for the point or compute and store it. Points without files are always computed.
+     *
+     * @param analyzerId identity and version of the analyzer code including everything that affects results besides [config]
+     */
+    fun getOrPut(point: NumassPoint, analyzerId: String, config: Meta, compute: () -> Values): Values {
+        val key = try {
+            key(point, analyzerId, config)
+        } catch (ex: IOException) {
+            logger.warn("Failed to compute cache key for point ${point.file}", ex)
+            null
+        } ?: return compute()
+        val path = resultPath(key)
+        read(path)?.let {
+            _hits.incrementAndGet()
+            return it
+        }
+        _misses.incrementAndGet()
+        return compute().also { write(path, it) }
+    }
+
+    /**
+     * Remove all cached results and fingerprints
+     */
+    @Synchronized
+    fun invalidate() {
+        fingerprints.clear()
+        directory.toFile().deleteRecursively()
+        Files.createDirectories(directory)
+    }
+
+    companion object {
+        private const val MAGIC = 0x4E415243 // NARC
+
+        /**
+         * The version of result encoding and key layout. Changing it invalidates all stored results.
+         */
+        private const val FORMAT_VERSION = 2
+        private const val HASH_ALGORITHM = "SHA-256"
+        private const val HASH_BUFFER_SIZE = 1024 * 1024
+        private const val FINGERPRINTS_FILE = "fingerprints"
+
+        const val CACHE_NAME = "numass-analysis"
+
+        private val logger = LoggerFactory.getLogger(AnalysisCache::class.java)
+
+        private val caches = ConcurrentHashMap<Path, AnalysisCache>()
+
+        /**
+         * Shared cache in the cache directory of the context
+         */
+        fun forContext(context: Context): AnalysisCache {
+            val dir = context.tmpDir.resolve("cache").resolve(CACHE_NAME).toAbsolutePath().normalize()
+            return caches.getOrPut(dir) { AnalysisCache(dir) }
+        }
+
+        private fun ByteArray.toHex(): String = joinToString("") { String.format("%02x", it) }
+    }
+}
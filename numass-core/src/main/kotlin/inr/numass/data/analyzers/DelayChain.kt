@@ -0,0 +1,80 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.analyzers
+
+/**
+ * A chain of delays between consecutive events computed directly on primitive time offsets.
+ * Delay `i` is the interval between events `i` and `i + 1` (negative intervals are treated as zero).
+ *
+ * @param timeOffsets event times in nanoseconds in the order of the chain
+ */
+class DelayChain(private val timeOffsets: LongArray) {
+
+    /**
+     * The number of delays in the chain
+     */
+    val size: Int get() = maxOf(timeOffsets.size - 1, 0)
+
+    fun delay(index: Int): Long = maxOf(timeOffsets[index + 1] - timeOffsets[index], 0L)
+
+    /**
+     * The number of delays not less than t0 and their total length in nanoseconds
+     */
+    class Sums(val count: Long, val time: Long)
+
+    /**
+     * Sum delays with indices in `[from, until)` which are not less than [t0]
+     */
+    fun sums(t0: Long, from: Int = 0, until: Int = size): Sums {
+        var count = 0L
+        var time = 0L
+        for (i in from until until) {
+            val delay = delay(i)
+            if (delay >= t0) {
+                count++
+                time += delay
+            }
+        }
+        return Sums(count, time)
+    }
+
+    /**
+     * Sums for consecutive chunks of [chunkSize] delays. The last chunk could be smaller.
+     */
+    fun chunkedSums(t0: Long, chunkSize: Int): List<Sums> {
+        require(chunkSize > 0) { "Chunk size must be positive" }
+        return (0 until size step chunkSize).map { from -> sums(t0, from, minOf(from + chunkSize, size)) }
+    }
+
+    /**
+     * Indices of events which delays are not less than [t0]. If [inverted] is true, the delay is attributed to
+     * the later event of the pair, otherwise to the earlier one.
+     */
+    fun select(t0: Long, inverted: Boolean = true): IntArray {
+        val shift = if (inverted) 1 else 0
+        var count = 0
+        for (i in 0 until size) {
+            if (delay(i) >= t0) count++
+        }
+        val res = IntArray(count)
+        var j = 0
+        for (i in 0 until size) {
+            if (delay(i) >= t0) res[j++] = i + shift
+        }
+        return res
+    }
+}
@@ -25,9 +25,8 @@ import hep.dataforge.values.Values
 import inr.numass.data.api.*
 import inr.numass.data.api.NumassPoint.Companion.HV_KEY
 import java.util.*
-import java.util.concurrent.atomic.AtomicLong
-import java.util.concurrent.atomic.AtomicReference
-import java.util.stream.IntStream
+import kotlin.math.pow
+import kotlin.math.sqrt
 import kotlin.streams.asSequence
 
 /**
@@ -76,6 +75,16 @@ interface NumassAnalyzer {
      */
     fun getEvents(block: NumassBlock, meta: Meta = Meta.empty()): List<NumassEvent>
 
+    /**
+     * Return the same events as [getEvents] in columnar primitive form
+     *
+     * @param block
+     * @return
+     */
+    fun getEventBuffer(block: NumassBlock, meta: Meta = Meta.empty()): EventBuffer {
+        return EventBuffer.of(getEvents(block, meta))
+    }
+
     /**
      * Analyze the whole set. And return results as a table
      *
@@ -107,9 +116,20 @@ interface NumassAnalyzer {
         return analyze(block, config).getValue(LENGTH_KEY).number.toLong()
     }
 
+    /**
+     * Get amplitude histogram of events returned by [getEventBuffer]
+     *
+     * @param block
+     * @param config
+     * @return
+     */
+    fun getAmplitudeHistogram(block: NumassBlock, config: Meta = Meta.empty()): AmplitudeHistogram {
+        return AmplitudeHistogram.of(getEventBuffer(block, config))
+    }
+
     fun getAmplitudeSpectrum(block: NumassBlock, config: Meta = Meta.empty()): Table {
         val seconds = block.length.toMillis().toDouble() / 1000.0
-        return getEvents(block, config).asSequence().getAmplitudeSpectrum(seconds, config)
+        return getAmplitudeHistogram(block, config).toTable(seconds, config)
     }
 
     companion object {
@@ -153,42 +173,19 @@ fun Table.countInWindow(loChannel: Short, upChannel: Short): Long {
 fun Sequence<NumassEvent>.getAmplitudeSpectrum(
     length: Double,
     config: Meta = Meta.empty()
-): Table {
-    val format = TableFormatBuilder()
-        .addNumber(NumassAnalyzer.CHANNEL_KEY, X_VALUE_KEY)
-        .addNumber(NumassAnalyzer.COUNT_KEY)
-        .addNumber(NumassAnalyzer.COUNT_RATE_KEY, Y_VALUE_KEY)
-        .addNumber(NumassAnalyzer.COUNT_RATE_ERROR_KEY, Y_ERROR_KEY)
-        .updateMeta { metaBuilder -> metaBuilder.setNode("config", config) }
-        .build()
+): Table = EventBuffer.of(toList()).getAmplitudeSpectrum(length, config)
 
-    //optimized for fastest computation
-    val spectrum: MutableMap<Int, AtomicLong> = HashMap()
-    forEach { event ->
-        val channel = event.amplitude.toInt()
-        spectrum.getOrPut(channel) {
-            AtomicLong(0)
-        }.incrementAndGet()
-    }
-
-
-    val minChannel = config.getInt("window.lo") { spectrum.keys.minOrNull() ?: 0 }
-    val maxChannel = config.getInt("window.up") { spectrum.keys.maxOrNull() ?: 4096 }
-
-    return ListTable.Builder(format)
-        .rows(IntStream.range(minChannel, maxChannel)
-            .mapToObj { i ->
-                val value = spectrum[i]?.get() ?: 0
-                ValueMap.of(
-                    format.namesAsArray(),
-                    i,
-                    value,
-                    value.toDouble() / length,
-                    Math.sqrt(value.toDouble()) / length
-                )
-            }
-        ).build()
-}
+/**
+ * Calculate the amplitude spectrum for a given event buffer without creating event objects
+ *
+ * @param length length in seconds, used for count rate calculation
+ * @param config
+ * @return
+ */
+fun EventBuffer.getAmplitudeSpectrum(
+    length: Double,
+    config: Meta = Meta.empty()
+): Table = AmplitudeHistogram.of(this).toTable(length, config)
 
 /**
  * Apply window and binning to a spectrum. Empty bins are filled with zeroes
@@ -200,49 +197,43 @@ fun Sequence<NumassEvent>.getAmplitudeSpectrum(
  */
 @JvmOverloads
 fun Table.withBinning(binSize: Int, loChannel: Int? = null, upChannel: Int? = null): Table {
-    val format = TableFormatBuilder()
-        .addNumber(NumassAnalyzer.CHANNEL_KEY, X_VALUE_KEY)
-        .addNumber(NumassAnalyzer.COUNT_KEY, Y_VALUE_KEY)
-        .addNumber(NumassAnalyzer.COUNT_RATE_KEY)
-        .addNumber(NumassAnalyzer.COUNT_RATE_ERROR_KEY)
-        .addNumber("binSize")
-    val builder = ListTable.Builder(format)
+    val builder = ListTable.Builder(AmplitudeHistogram.binnedFormat())
 
-    var chan = loChannel
+    val lo = loChannel
         ?: this.getColumn(NumassAnalyzer.CHANNEL_KEY).stream().mapToInt { it.int }.min().orElse(0)
 
     val top = upChannel
         ?: this.getColumn(NumassAnalyzer.CHANNEL_KEY).stream().mapToInt { it.int }.max().orElse(1)
 
-    while (chan < top - binSize) {
-        val count = AtomicLong(0)
-        val countRate = AtomicReference(0.0)
-        val countRateDispersion = AtomicReference(0.0)
+    // bins start at lo and the last bin must end before top
+    val binNum = if (top - binSize > lo) (top - binSize - lo + binSize - 1) / binSize else 0
 
-        val binLo = chan
-        val binUp = chan + binSize
+    val counts = LongArray(binNum)
+    val countRates = DoubleArray(binNum)
+    val countRateDispersions = DoubleArray(binNum)
 
-        this.rows.filter { row ->
-            row.getInt(NumassAnalyzer.CHANNEL_KEY) in binLo..(binUp - 1)
-        }.forEach { row ->
-            count.addAndGet(row.getValue(NumassAnalyzer.COUNT_KEY, 0).long)
-            countRate.accumulateAndGet(row.getDouble(NumassAnalyzer.COUNT_RATE_KEY, 0.0)) { d1, d2 -> d1 + d2 }
-            countRateDispersion.accumulateAndGet(
-                Math.pow(
-                    row.getDouble(NumassAnalyzer.COUNT_RATE_ERROR_KEY, 0.0),
-                    2.0
-                )
-            ) { d1, d2 -> d1 + d2 }
+    //single pass over rows
+    this.rows.forEach { row ->
+        val channel = row.getInt(NumassAnalyzer.CHANNEL_KEY)
+        if (channel >= lo) {
+            val bin = (channel - lo) / binSize
+            if (bin < binNum) {
+                counts[bin] += row.getValue(NumassAnalyzer.COUNT_KEY, 0).long
+                countRates[bin] += row.getDouble(NumassAnalyzer.COUNT_RATE_KEY, 0.0)
+                countRateDispersions[bin] += row.getDouble(NumassAnalyzer.COUNT_RATE_ERROR_KEY, 0.0).pow(2.0)
+            }
         }
-        val bin = Math.min(binSize, top - chan)
+    }
+
+    for (bin in 0 until binNum) {
+        val chan = lo + bin * binSize
         builder.row(
-            chan.toDouble() + bin.toDouble() / 2.0,
-            count.get(),
-            countRate.get(),
-            Math.sqrt(countRateDispersion.get()),
-            bin
+            chan.toDouble() + binSize.toDouble() / 2.0,
+            counts[bin],
+            countRates[bin],
+            sqrt(countRateDispersions[bin]),
+            binSize
         )
-        chan += binSize
     }
     return builder.build()
 }
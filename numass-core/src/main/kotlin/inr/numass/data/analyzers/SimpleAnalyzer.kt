@@ -22,6 +22,7 @@ import hep.dataforge.values.ValueMap
 import hep.dataforge.values.ValueType
 import hep.dataforge.values.Values
 import inr.numass.data.api.NumassBlock
+import inr.numass.data.api.ParentBlock
 import inr.numass.data.api.SignalProcessor
 
 /**
@@ -36,7 +37,7 @@ class SimpleAnalyzer @JvmOverloads constructor(private val processor: SignalProc
         val loChannel = config.getInt("window.lo", 0)
         val upChannel = config.getInt("window.up", Integer.MAX_VALUE)
 
-        val count = getEvents(block, config).count()
+        val count = countEvents(block, config)
         val length = block.length.toNanos().toDouble() / 1e9
 
         val deadTime = config.getDouble("deadTime", 0.0)
@@ -58,5 +59,18 @@ class SimpleAnalyzer @JvmOverloads constructor(private val processor: SignalProc
                 block.startTime)
     }
 
+    /**
+     * Events are filtered independently, so histograms of sub-blocks are filled in parallel and merged
+     */
+    override fun getAmplitudeHistogram(block: NumassBlock, config: Meta): AmplitudeHistogram {
+        return if (block is ParentBlock && block.blocks.size > 1) {
+            block.blocks.parallelStream()
+                .map { getAmplitudeHistogram(it, config) }
+                .reduce(AmplitudeHistogram.EMPTY) { left, right -> left + right }
+        } else {
+            super.getAmplitudeHistogram(block, config)
+        }
+    }
+
 
 }
@@ -30,7 +30,6 @@ import inr.numass.data.analyzers.NumassAnalyzer.Companion.LENGTH_KEY
 import inr.numass.data.analyzers.TimeAnalyzer.AveragingMethod.*
 import inr.numass.data.api.*
 import inr.numass.data.api.NumassPoint.Companion.HV_KEY
-import java.util.concurrent.atomic.AtomicLong
 import kotlin.collections.set
 import kotlin.math.*
 import kotlin.streams.asSequence
@@ -65,7 +64,7 @@ open class TimeAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(p
 
         val chunkSize = config.getInt("chunkSize", -1)
 
-        val count = super.getEvents(block, config).count()
+        val count = countEvents(block, config)
         val length = block.length.toNanos().toDouble() / 1e9
 
         val res = when {
@@ -75,11 +74,11 @@ open class TimeAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(p
                 COUNT_RATE_KEY to count.toDouble() / length,
                 COUNT_RATE_ERROR_KEY to sqrt(count.toDouble()) / length
             )
-            chunkSize > 0 -> getEventsWithDelay(block, config)
-                .chunked(chunkSize) { analyzeSequence(it.asSequence(), t0) }
-                .toList()
+            chunkSize > 0 -> getDelayChain(block, config)
+                .chunkedSums(t0, chunkSize)
+                .map { it.toValues(t0) }
                 .mean(config.getEnum("mean", WEIGHTED))
-            else -> analyzeSequence(getEventsWithDelay(block, config), t0)
+            else -> getDelayChain(block, config).sums(t0).toValues(t0)
         }
 
         return ValueMap.Builder(res)
@@ -91,29 +90,19 @@ open class TimeAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(p
     }
 
 
-    private fun analyzeSequence(sequence: Sequence<Pair<NumassEvent, Long>>, t0: Long): Values {
-        val totalN = AtomicLong(0)
-        val totalT = AtomicLong(0)
-        sequence.filter { pair -> pair.second >= t0 }
-            .forEach { pair ->
-                totalN.incrementAndGet()
-                //TODO add progress listener here
-                totalT.addAndGet(pair.second.toLong())
-            }
-
-        if (totalN.toInt() == 0) {
+    private fun DelayChain.Sums.toValues(t0: Long): Values {
+        if (count == 0L) {
             error("Zero number of intervals")
         }
 
-        val countRate = 1e6 * totalN.get() / (totalT.get() / 1000 - t0.toLong() * totalN.get() / 1000)
+        val countRate = 1e6 * count / (time / 1000 - t0 * count / 1000)
         //1e9 / (totalT.get() / totalN.get() - t0);
-        val countRateError = countRate / sqrt(totalN.get().toDouble())
-        val length = totalT.get() / 1e9
-        val count = (length * countRate).toLong()
+        val countRateError = countRate / sqrt(count.toDouble())
+        val length = time / 1e9
 
         return ValueMap.ofPairs(
             LENGTH_KEY to length,
-            COUNT_KEY to count,
+            COUNT_KEY to (length * countRate).toLong(),
             COUNT_RATE_KEY to countRate,
             COUNT_RATE_ERROR_KEY to countRateError
         )
@@ -122,7 +111,7 @@ open class TimeAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(p
 
     override fun analyzeParent(point: ParentBlock, config: Meta): Values {
         //Average count rates, do not sum events
-        val res = point.blocks.map { it -> analyze(it, config) }
+        val res = point.blocks.mapInParallel(config) { analyze(it, config) }
 
         val map = HashMap(res.mean(config.getEnum("mean", WEIGHTED)).asMap())
         if (point is NumassPoint) {
@@ -210,13 +199,32 @@ open class TimeAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(p
     }
 
     private fun estimateCountRate(block: NumassBlock): Double {
-        return block.events.count().toDouble() / block.length.toMillis() * 1000
+        return block.eventBuffer.size.toDouble() / block.length.toMillis() * 1000
     }
 
     fun zipEvents(block: NumassBlock, config: Meta): Sequence<Pair<NumassEvent, NumassEvent>> {
         return getAllEvents(block).asSequence().zipWithNext()
     }
 
+    /**
+     * Events in the window in the order of the delay chain
+     */
+    private fun getChainBuffer(block: NumassBlock, config: Meta): EventBuffer {
+        //range is included in super.getEventBuffer
+        val buffer = super.getEventBuffer(block, config)
+        return if (config.getBoolean("sortEvents", false) || (block is ParentBlock && !block.isSequential)) {
+            buffer.sortedByTime()
+        } else {
+            buffer
+        }
+    }
+
+    /**
+     * The primitive chain of delays between events in the window
+     */
+    fun getDelayChain(block: NumassBlock, config: Meta): DelayChain =
+        DelayChain(getChainBuffer(block, config).timeOffsets)
+
     /**
      * The chain of event with delays in nanos
      *
@@ -258,6 +266,12 @@ open class TimeAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(p
             .map { it.first }.toList()
     }
 
+    override fun getEventBuffer(block: NumassBlock, meta: Meta): EventBuffer {
+        val t0 = getT0(block, meta)
+        val buffer = getChainBuffer(block, meta)
+        return buffer.select(DelayChain(buffer.timeOffsets).select(t0.toLong(), meta.getBoolean("inverted", true)))
+    }
+
     public override fun getTableFormat(config: Meta): TableFormat {
         return TableFormatBuilder()
             .addNumber(HV_KEY, X_VALUE_KEY)
@@ -0,0 +1,126 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.storage
+
+import inr.numass.data.api.EventBuffer
+import inr.numass.data.api.NumassBlock
+import inr.numass.data.api.NumassEvent
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.*
+import java.util.function.Consumer
+import java.util.stream.IntStream
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+
+/**
+ * A reader for legacy numass event records. Each record is 7 bytes long and consists of little-endian 16-bit amplitude,
+ * 32-bit unsigned time in ticks and a status byte, which is ignored.
+ *
+ * The reader works directly on the given buffer (usually memory mapped file region) using absolute reads, so it could be
+ * safely shared between threads. An incomplete trailing record is ignored.
+ *
+ * @param data the buffer containing records starting from its position
+ * @param timeCoef tick size in nanoseconds
+ */
+class ClassicEventReader(data: ByteBuffer, private val timeCoef: Double) {
+
+    private val buffer: ByteBuffer = data.slice().order(ByteOrder.LITTLE_ENDIAN)
+
+    /**
+     * Number of complete records
+     */
+    val size: Int = buffer.limit() / RECORD_SIZE
+
+    fun amplitude(index: Int): Short = buffer.getShort(index * RECORD_SIZE)
+
+    fun timeOffset(index: Int): Long =
+        (Integer.toUnsignedLong(buffer.getInt(index * RECORD_SIZE + 2)) * timeCoef).toLong()
+
+    /**
+     * Decode all records into primitive arrays. Large buffers are decoded in parallel if [parallel] is true.
+     */
+    fun read(parallel: Boolean = false): EventBuffer {
+        val amplitudes = ShortArray(size)
+        val times = LongArray(size)
+        val chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE
+        val stream = IntStream.range(0, chunks).let { if (parallel) it.parallel() else it }
+        stream.forEach { chunk ->
+            val until = minOf((chunk + 1) * CHUNK_SIZE, size)
+            for (i in chunk * CHUNK_SIZE until until) {
+                amplitudes[i] = amplitude(i)
+                times[i] = timeOffset(i)
+            }
+        }
+        return EventBuffer(amplitudes, times)
+    }
+
+    /**
+     * A spliterator over events which splits on record boundaries
+     */
+    fun spliterator(owner: NumassBlock): Spliterator<NumassEvent> = RecordSpliterator(owner, 0, size)
+
+    fun events(owner: NumassBlock, parallel: Boolean = false): Stream<NumassEvent> =
+        StreamSupport.stream(spliterator(owner), parallel)
+
+    private inner class RecordSpliterator(
+        private val owner: NumassBlock,
+        private var from: Int,
+        private val until: Int
+    ) : Spliterator<NumassEvent> {
+
+        override fun tryAdvance(action: Consumer<in NumassEvent>): Boolean {
+            return if (from < until) {
+                action.accept(event(from++))
+                true
+            } else {
+                false
+            }
+        }
+
+        override fun forEachRemaining(action: Consumer<in NumassEvent>) {
+            while (from < until) {
+                action.accept(event(from++))
+            }
+        }
+
+        override fun trySplit(): Spliterator<NumassEvent>? {
+            val middle = (from + until) ushr 1
+            if (middle - from < CHUNK_SIZE) return null
+            return RecordSpliterator(owner, from, middle).also { from = middle }
+        }
+
+        override fun estimateSize(): Long = (until - from).toLong()
+
+        override fun characteristics(): Int = Spliterator.ORDERED or Spliterator.SIZED or Spliterator.SUBSIZED or
+                Spliterator.IMMUTABLE or Spliterator.NONNULL
+
+        private fun event(index: Int) = NumassEvent(amplitude(index).toUShort(), timeOffset(index), owner)
+    }
+
+    companion object {
+        /**
+         * The size of a single event record in bytes
+         */
+        const val RECORD_SIZE = 7
+
+        /**
+         * Minimal number of records processed by a single task
+         */
+        private const val CHUNK_SIZE = 1 shl 14
+    }
+}
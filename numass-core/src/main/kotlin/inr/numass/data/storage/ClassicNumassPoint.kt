@@ -2,20 +2,18 @@ package inr.numass.data.storage
 
 import hep.dataforge.io.envelopes.Envelope
 import hep.dataforge.meta.Meta
+import hep.dataforge.storage.files.FileEnvelope
 import inr.numass.data.NumassFileEnvelope
+import inr.numass.data.api.EventBuffer
 import inr.numass.data.api.NumassBlock
 import inr.numass.data.api.NumassEvent
 import inr.numass.data.api.NumassFrame
 import inr.numass.data.api.NumassPoint
-import org.slf4j.LoggerFactory
-import java.io.IOException
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
 import java.nio.file.Path
 import java.time.Duration
 import java.time.Instant
+import java.util.*
 import java.util.stream.Stream
-import java.util.stream.StreamSupport
 
 /**
  * Created by darksnake on 08.07.2017.
@@ -28,6 +26,8 @@ class ClassicNumassPoint(private val envelope: Envelope) : NumassPoint {
 
     override val index: Int = meta.getInt("external_meta.point_index", super.index)
 
+    override val file: Path? = (envelope as? FileEnvelope)?.path
+
     override val blocks: List<NumassBlock> by lazy {
         val length: Long = if (envelope.meta.hasValue("external_meta.acquisition_time")) {
             envelope.meta.getValue("external_meta.acquisition_time").long
@@ -45,60 +45,42 @@ class ClassicNumassPoint(private val envelope: Envelope) : NumassPoint {
         }
 
 
+    private val timeCoef: Double = envelope.meta.getDouble("time_coeff", 50.0)
+
+    /**
+     * Data which does not fit a single buffer is read sequentially through a channel
+     */
+    private val fitsBuffer: Boolean
+        get() = envelope.data.size <= Int.MAX_VALUE
+
+    /**
+     * Event reader over the data block. For file envelopes the data is a memory-mapped region of the file, so no copy is made.
+     */
+    private val reader: ClassicEventReader
+        get() = ClassicEventReader(envelope.data.buffer, timeCoef)
+
+    private fun channelReader(): ClassicRecordChannelReader = ClassicRecordChannelReader(envelope.data.channel, timeCoef)
+
     //TODO split blocks using meta
     private inner class ClassicBlock(
         override val startTime: Instant,
         override val length: Duration
     ) : NumassBlock, Iterable<NumassEvent> {
 
+        /**
+         * Stream of events. The stream could be safely turned parallel, since it is split on record boundaries
+         */
         override val events: Stream<NumassEvent>
-            get() = StreamSupport.stream(this.spliterator(), false)
-
-        override fun iterator(): Iterator<NumassEvent> {
-            val timeCoef = envelope.meta.getDouble("time_coeff", 50.0)
-            try {
-                val buffer = ByteBuffer.allocate(7000)
-                buffer.order(ByteOrder.LITTLE_ENDIAN)
-                val channel = envelope.data.channel
-                channel.read(buffer)
-                buffer.flip()
-                return object : Iterator<NumassEvent> {
-
-                    override fun hasNext(): Boolean {
-                        try {
-                            return if (buffer.hasRemaining()) {
-                                true
-                            } else {
-                                buffer.flip()
-                                val num = channel.read(buffer)
-                                if (num > 0) {
-                                    buffer.flip()
-                                    true
-                                } else {
-                                    false
-                                }
-                            }
-                        } catch (e: IOException) {
-                            LoggerFactory.getLogger(this@ClassicNumassPoint.javaClass)
-                                .error("Unexpected IOException when reading block", e)
-                            return false
-                        }
-
-                    }
-
-                    override fun next(): NumassEvent {
-                        val amp = buffer.short.toUShort()
-                        val time = Integer.toUnsignedLong(buffer.int)
-                        val status = buffer.get() // status is ignored
-                        return NumassEvent(amp, (time * timeCoef).toLong(), this@ClassicBlock)
-                    }
-                }
-            } catch (ex: IOException) {
-                throw RuntimeException(ex)
-            }
+            get() = if (fitsBuffer) reader.events(this) else channelReader().events(this)
 
+        override fun iterator(): Iterator<NumassEvent> = if (fitsBuffer) {
+            Spliterators.iterator(reader.spliterator(this))
+        } else {
+            Spliterators.iterator(channelReader().spliterator(this))
         }
 
+        override val eventBuffer: EventBuffer
+            get() = if (fitsBuffer) reader.read(true) else channelReader().use { it.read() }
 
         override val frames: Stream<NumassFrame>
             get() = Stream.empty()
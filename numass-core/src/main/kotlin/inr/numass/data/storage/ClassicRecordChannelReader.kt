@@ -0,0 +1,128 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.storage
+
+import inr.numass.data.api.EventBuffer
+import inr.numass.data.api.NumassBlock
+import inr.numass.data.api.NumassEvent
+import inr.numass.data.storage.ClassicEventReader.Companion.RECORD_SIZE
+import java.io.Closeable
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.ReadableByteChannel
+import java.util.*
+import java.util.function.Consumer
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+
+/**
+ * A sequential reader for legacy numass event records which is used when the data could not be represented as a single
+ * buffer. Records are read through a buffer of fixed size. A record split between two reads is moved to the beginning
+ * of the buffer before the refill, so it is decoded as a whole. An incomplete trailing record is ignored.
+ *
+ * The channel is closed when the end of data is reached or on [close].
+ *
+ * @param channel the channel containing records
+ * @param timeCoef tick size in nanoseconds
+ * @param bufferSize the size of the read buffer in bytes
+ */
+class ClassicRecordChannelReader(
+    private val channel: ReadableByteChannel,
+    private val timeCoef: Double,
+    bufferSize: Int = DEFAULT_BUFFER_SIZE
+) : Closeable {
+
+    private val buffer: ByteBuffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN).apply { flip() }
+
+    init {
+        require(bufferSize >= RECORD_SIZE) { "Buffer size $bufferSize is less than record size" }
+    }
+
+    /**
+     * Read the next record and pass its amplitude and time offset to the [action]. Return false at the end of data.
+     */
+    fun next(action: (amplitude: Short, timeOffset: Long) -> Unit): Boolean {
+        if (buffer.remaining() < RECORD_SIZE && !refill()) {
+            return false
+        }
+        val amplitude = buffer.short
+        val ticks = Integer.toUnsignedLong(buffer.int)
+        buffer.get() // status byte
+        action(amplitude, (ticks * timeCoef).toLong())
+        return true
+    }
+
+    private fun refill(): Boolean {
+        if (!channel.isOpen) return false
+        buffer.compact()
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                channel.close()
+                break
+            }
+        }
+        buffer.flip()
+        return buffer.remaining() >= RECORD_SIZE
+    }
+
+    /**
+     * Decode all remaining records into primitive arrays
+     */
+    fun read(): EventBuffer {
+        var amplitudes = ShortArray(INITIAL_CAPACITY)
+        var times = LongArray(INITIAL_CAPACITY)
+        var size = 0
+        while (next { amplitude, timeOffset ->
+                if (size == amplitudes.size) {
+                    amplitudes = amplitudes.copyOf(size * 2)
+                    times = times.copyOf(size * 2)
+                }
+                amplitudes[size] = amplitude
+                times[size] = timeOffset
+                size++
+            }) {
+            // all work is done in action
+        }
+        return EventBuffer(amplitudes.copyOf(size), times.copyOf(size))
+    }
+
+    /**
+     * A sequential stream of remaining events. The channel is closed when the stream is closed.
+     */
+    fun events(owner: NumassBlock): Stream<NumassEvent> =
+        StreamSupport.stream(spliterator(owner), false).onClose { close() }
+
+    fun spliterator(owner: NumassBlock): Spliterator<NumassEvent> =
+        object : Spliterators.AbstractSpliterator<NumassEvent>(
+            Long.MAX_VALUE,
+            Spliterator.ORDERED or Spliterator.IMMUTABLE or Spliterator.NONNULL
+        ) {
+            override fun tryAdvance(action: Consumer<in NumassEvent>): Boolean = next { amplitude, timeOffset ->
+                action.accept(NumassEvent(amplitude.toUShort(), timeOffset, owner))
+            }
+        }
+
+    override fun close() {
+        channel.close()
+    }
+
+    companion object {
+        const val DEFAULT_BUFFER_SIZE = 1 shl 16
+
+        private const val INITIAL_CAPACITY = 1 shl 12
+    }
+}
@@ -19,6 +19,7 @@ import hep.dataforge.connections.ConnectionHelper
 import hep.dataforge.context.Context
 import hep.dataforge.io.ColumnedDataReader
 import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.io.envelopes.MetaCache
 import hep.dataforge.meta.Meta
 import hep.dataforge.providers.Provider
 import hep.dataforge.storage.Loader
@@ -58,7 +59,7 @@ class NumassDataLoader(
 
     override val meta: Meta get() {
         val metaPath = path.resolve("meta")
-        return NumassEnvelopeType.infer(metaPath)?.reader?.read(metaPath)?.meta ?: Meta.empty()
+        return MetaCache.get(metaPath) { NumassEnvelopeType.infer(it)?.reader?.read(it)?.meta } ?: Meta.empty()
     }
 
     override suspend fun getHvData(): Table? {
@@ -21,6 +21,7 @@ import hep.dataforge.context.Global
 import hep.dataforge.events.Event
 import hep.dataforge.events.EventBuilder
 import hep.dataforge.io.envelopes.Envelope
+import hep.dataforge.io.envelopes.MetaCache
 import hep.dataforge.meta.Meta
 import hep.dataforge.nullable
 import hep.dataforge.storage.StorageElement
@@ -60,7 +61,9 @@ class NumassDirectory : FileStorage.Directory() {
         parent: StorageElement?,
         readMeta: Meta?,
     ): FileStorageElement? {
-        val meta = readMeta ?: FileStorage.resolveMeta(path) { NumassEnvelopeType.infer(it)?.reader?.read(it)?.meta }
+        val meta = readMeta ?: FileStorage.resolveMeta(path) { file ->
+            MetaCache.get(file) { NumassEnvelopeType.infer(it)?.reader?.read(it)?.meta }
+        }
         return if (Files.isDirectory(path) && meta != null) {
             NumassDataLoader(context, parent, path.fileName.toString(), path)
         } else {
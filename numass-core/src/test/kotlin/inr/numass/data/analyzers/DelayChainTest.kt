@@ -0,0 +1,137 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.analyzers
+
+import hep.dataforge.meta.Meta
+import hep.dataforge.meta.buildMeta
+import inr.numass.data.analyzers.NumassAnalyzer.Companion.COUNT_KEY
+import inr.numass.data.analyzers.NumassAnalyzer.Companion.COUNT_RATE_KEY
+import inr.numass.data.analyzers.NumassAnalyzer.Companion.LENGTH_KEY
+import inr.numass.data.api.NumassBlock
+import inr.numass.data.api.OrphanNumassEvent
+import inr.numass.data.api.SimpleBlock
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.time.Duration
+import java.time.Instant
+import kotlin.random.Random
+
+/**
+ * Compare [DelayChain] with the object based delay sequence of [TimeAnalyzer.getEventsWithDelay]
+ */
+class DelayChainTest {
+
+    private val analyzer = TimeAnalyzer()
+
+    private fun block(events: Int, seed: Int = 42): NumassBlock {
+        val random = Random(seed)
+        var time = 0L
+        val list = List(events) {
+            // occasional backward steps produce negative intervals which are treated as zero
+            time += if (random.nextInt(50) == 0) -random.nextLong(0, 5_000) else random.nextLong(1, 20_000)
+            OrphanNumassEvent(random.nextInt(0, 4096).toUShort(), time)
+        }
+        return SimpleBlock(Instant.EPOCH, Duration.ofNanos(time), list)
+    }
+
+    private fun config(t0: Int, inverted: Boolean = true, chunkSize: Int = -1): Meta = buildMeta {
+        "t0" to t0
+        "window.lo" to 500
+        "window.up" to 3000
+        "inverted" to inverted
+        "chunkSize" to chunkSize
+    }.build()
+
+    /**
+     * The reference count and total time of the intervals passing the cut
+     */
+    private fun baselineSums(delays: List<Long>, t0: Long): Pair<Long, Long> {
+        val passed = delays.filter { it >= t0 }
+        return Pair(passed.size.toLong(), passed.sum())
+    }
+
+    @Test
+    fun testDelays() {
+        val block = block(10_000)
+        val config = config(0)
+        val baseline = analyzer.getEventsWithDelay(block, config).map { it.second }.toList()
+        val chain = analyzer.getDelayChain(block, config)
+        assertEquals(baseline.size, chain.size)
+        assertEquals(baseline, List(chain.size) { chain.delay(it) })
+    }
+
+    @Test
+    fun testSums() {
+        val block = block(10_000)
+        listOf(0, 3000, 10_000, 1_000_000).forEach { t0 ->
+            val config = config(t0)
+            val baseline = baselineSums(analyzer.getEventsWithDelay(block, config).map { it.second }.toList(), t0.toLong())
+            val sums = analyzer.getDelayChain(block, config).sums(t0.toLong())
+            assertEquals(baseline.first, sums.count)
+            assertEquals(baseline.second, sums.time)
+        }
+    }
+
+    @Test
+    fun testChunkedSums() {
+        val block = block(10_000)
+        val t0 = 3000
+        val config = config(t0)
+        val baseline = analyzer.getEventsWithDelay(block, config).map { it.second }.toList()
+            .chunked(700) { baselineSums(it, t0.toLong()) }
+        val chunks = analyzer.getDelayChain(block, config).chunkedSums(t0.toLong(), 700)
+        assertEquals(baseline, chunks.map { Pair(it.count, it.time) })
+    }
+
+    @Test
+    fun testSelection() {
+        val block = block(10_000)
+        listOf(true, false).forEach { inverted ->
+            val config = config(3000, inverted)
+            val baseline = analyzer.getEvents(block, config)
+            val buffer = analyzer.getEventBuffer(block, config)
+            assertEquals(baseline.size, buffer.size)
+            assertArrayEquals(baseline.map { it.timeOffset }.toLongArray(), LongArray(buffer.size) { buffer.timeOffset(it) })
+            assertArrayEquals(baseline.map { it.amplitude.toInt() }.toIntArray(), IntArray(buffer.size) { buffer.amplitude(it) })
+        }
+    }
+
+    @Test
+    fun testAnalyze() {
+        val block = block(20_000)
+        val t0 = 3000L
+        val config = config(t0.toInt())
+        val (count, time) = baselineSums(analyzer.getEventsWithDelay(block, config).map { it.second }.toList(), t0)
+        val countRate = 1e6 * count / (time / 1000 - t0 * count / 1000)
+        val length = time / 1e9
+
+        val res = analyzer.analyze(block, config)
+        assertEquals(countRate, res.getDouble(COUNT_RATE_KEY), 0.0)
+        assertEquals(length, res.getDouble(LENGTH_KEY), 0.0)
+        assertEquals((length * countRate).toLong(), res.getValue(COUNT_KEY).number.toLong())
+    }
+
+    @Test
+    fun testEmptyChain() {
+        val chain = DelayChain(LongArray(0))
+        assertEquals(0, chain.size)
+        assertEquals(0L, chain.sums(0).count)
+        assertEquals(0, chain.select(0).size)
+        assertEquals(0, chain.chunkedSums(0, 10).size)
+    }
+}
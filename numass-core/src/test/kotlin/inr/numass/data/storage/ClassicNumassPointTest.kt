@@ -0,0 +1,210 @@
+/*
+ * Copyright  2018 Alexander Nozik.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package inr.numass.data.storage
+
+import hep.dataforge.io.envelopes.xmlMetaType
+import hep.dataforge.meta.buildMeta
+import inr.numass.data.NumassEnvelopeType
+import org.junit.AfterClass
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.ReadableByteChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.stream.Collectors
+
+class ClassicNumassPointTest {
+
+    companion object {
+        /**
+         * The size of the channel reader buffer. It is not a multiple of record size, so records are split between
+         * refills.
+         */
+        private const val REFILL_BUFFER_SIZE = 1000
+
+        private const val TIME_COEFF = 50.0
+
+        /**
+         * More than one parallel decoding chunk
+         */
+        private const val RECORDS = 40_000
+
+        lateinit var dir: Path
+
+        @BeforeClass
+        @JvmStatic
+        fun setup() {
+            dir = Files.createTempDirectory("classic-point-test")
+        }
+
+        @AfterClass
+        @JvmStatic
+        fun tearDown() {
+            dir.toFile().deleteRecursively()
+        }
+
+        fun amplitude(index: Int): Int = (index * 31) % 4096
+
+        /**
+         * Unsigned ticks, some of them above [Int.MAX_VALUE]
+         */
+        fun ticks(index: Int): Long = (index.toLong() * 107_374L) and 0xFFFFFFFFL
+
+        fun records(count: Int, partialTail: Int = 0): ByteBuffer {
+            val buffer = ByteBuffer.allocate(count * ClassicEventReader.RECORD_SIZE + partialTail).order(ByteOrder.LITTLE_ENDIAN)
+            for (i in 0 until count) {
+                buffer.putShort(amplitude(i).toShort())
+                buffer.putInt(ticks(i).toInt())
+                buffer.put(0)
+            }
+            repeat(partialTail) { buffer.put(1) }
+            return buffer.flip()
+        }
+
+        /**
+         * Write legacy envelope with `#!` tag, xml meta and given data
+         */
+        fun writeLegacyPoint(path: Path, data: ByteBuffer) {
+            val meta = buildMeta("point") {
+                "time_coeff" to TIME_COEFF
+                "acquisition_time" to 10
+            }
+            val metaBytes = ByteArrayOutputStream().also { xmlMetaType.writer.write(it, meta) }.toByteArray()
+            val tag = ByteBuffer.allocate(30).apply {
+                put(NumassEnvelopeType.LEGACY_START_SEQUENCE)
+                putInt(0)
+                putInt(0)
+                putShort(xmlMetaType.codes[0])
+                putShort(0)
+                putInt(metaBytes.size)
+                putInt(0)
+                putInt(data.remaining())
+                put(NumassEnvelopeType.LEGACY_END_SEQUENCE)
+                flip()
+            }
+            Files.newByteChannel(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).use {
+                it.write(tag)
+                it.write(ByteBuffer.wrap(metaBytes))
+                it.write(data)
+            }
+        }
+    }
+
+    /**
+     * A channel which returns at most [chunk] bytes on each read
+     */
+    private fun chunkedChannel(data: ByteBuffer, chunk: Int): ReadableByteChannel = object : ReadableByteChannel {
+        private var open = true
+
+        override fun read(dst: ByteBuffer): Int {
+            if (!data.hasRemaining()) return -1
+            val size = minOf(chunk, data.remaining(), dst.remaining())
+            val slice = data.slice().limit(size)
+            dst.put(slice)
+            data.position(data.position() + size)
+            return size
+        }
+
+        override fun isOpen(): Boolean = open
+
+        override fun close() {
+            open = false
+        }
+    }
+
+    @Test
+    fun testRecordSplitAcrossRefill() {
+        // the first record crossing the refill boundary
+        val split = REFILL_BUFFER_SIZE / ClassicEventReader.RECORD_SIZE
+        assertTrue(REFILL_BUFFER_SIZE % ClassicEventReader.RECORD_SIZE != 0)
+
+        // whole buffer reads and short reads which do not fill the buffer at once
+        for (chunk in listOf(REFILL_BUFFER_SIZE, 333)) {
+            val channel = chunkedChannel(records(RECORDS, partialTail = 4), chunk)
+            val reader = ClassicRecordChannelReader(channel, TIME_COEFF, REFILL_BUFFER_SIZE)
+            val decoded = reader.read()
+            assertEquals(RECORDS, decoded.size)
+            for (i in listOf(0, split - 1, split, split + 1, RECORDS - 1)) {
+                assertEquals("Record $i", amplitude(i), decoded.amplitude(i))
+                assertEquals("Record $i", (ticks(i) * TIME_COEFF).toLong(), decoded.timeOffset(i))
+            }
+            for (i in 0 until RECORDS) {
+                assertEquals(amplitude(i), decoded.amplitude(i))
+                assertEquals((ticks(i) * TIME_COEFF).toLong(), decoded.timeOffset(i))
+            }
+            assertFalse(channel.isOpen)
+        }
+    }
+
+    @Test
+    fun testShiftedBuffer() {
+        val shifted = ByteBuffer.allocate(3 + RECORDS * ClassicEventReader.RECORD_SIZE)
+        shifted.position(3)
+        shifted.put(records(RECORDS))
+        shifted.position(3)
+
+        val reader = ClassicEventReader(shifted, TIME_COEFF)
+        assertEquals(RECORDS, reader.size)
+        assertEquals(amplitude(RECORDS - 1).toShort(), reader.amplitude(RECORDS - 1))
+
+        val sequential = reader.read(false)
+        val parallel = reader.read(true)
+        for (i in 0 until RECORDS) {
+            assertEquals(amplitude(i), sequential.amplitude(i))
+            assertEquals((ticks(i) * TIME_COEFF).toLong(), sequential.timeOffset(i))
+            assertEquals(sequential.amplitude(i), parallel.amplitude(i))
+            assertEquals(sequential.timeOffset(i), parallel.timeOffset(i))
+        }
+    }
+
+    @Test
+    fun testPartialTrailingRecord() {
+        val reader = ClassicEventReader(records(10, partialTail = 4), TIME_COEFF)
+        assertEquals(10, reader.size)
+        assertEquals(10, reader.read().size)
+    }
+
+    @Test
+    fun testReadFile() {
+        val path = dir.resolve("p1")
+        writeLegacyPoint(path, records(RECORDS))
+        val point = ClassicNumassPoint.readFile(path)
+        val block = point.blocks.single()
+
+        val events = block.events.collect(Collectors.toList())
+        assertEquals(RECORDS, events.size)
+        events.forEachIndexed { i, event ->
+            assertEquals(amplitude(i).toShort(), event.amplitude.toShort())
+            assertEquals((ticks(i) * TIME_COEFF).toLong(), event.timeOffset)
+        }
+
+        // parallel stream is split on record boundaries
+        val parallelAmplitudes = block.events.parallel().mapToLong { it.amplitude.toLong() }.sum()
+        assertEquals(events.sumOf { it.amplitude.toLong() }, parallelAmplitudes)
+
+        val buffer = block.eventBuffer
+        assertEquals(RECORDS, buffer.size)
+        assertEquals(events.last().timeOffset, buffer.timeOffset(RECORDS - 1))
+    }
+}
@@ -0,0 +1,53 @@
+package inr.numass.models.sterile
+
+import hep.dataforge.stat.parametric.ParameterVector
+import hep.dataforge.values.ValueMap
+import hep.dataforge.values.Values
+import inr.numass.models.FSS
+import org.openjdk.jmh.annotations.*
+
+/**
+ * FSS-weighted beta spectrum at a single electron energy as it is computed for each integrand node in
+ * [SterileNeutrinoSpectrum]
+ */
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+open class FSSBenchmark {
+
+    @Param("0.0", "0.09")
+    var u2: Double = 0.0
+
+    private val beta = NumassBeta()
+
+    private lateinit var fss: FSS
+    private lateinit var binnedFSS: FSS
+    private lateinit var set: Values
+    private lateinit var pars: ParameterVector
+
+    private val eIn = 18000.0
+
+    @Setup
+    fun setup() {
+        fss = FSS(javaClass.classLoader.getResourceAsStream("data/FS.txt")!!)
+        binnedFSS = fss.rebin(1.0)
+        set = ValueMap.of(arrayOf("E0", "mnu2", "msterile2", "U2"), 18575.0, 0.0, 1000.0 * 1000.0, u2)
+        pars = ParameterVector.of(set)
+    }
+
+    @Benchmark
+    fun lineByLine(): Double {
+        return (0 until fss.size()).sumOf { fss.getP(it) * beta.value(fss.getE(it), eIn, set) }
+    }
+
+    @Benchmark
+    fun batch(): Double {
+        return beta.sumByFSS(fss.energies, fss.probabilities, eIn, pars)
+    }
+
+    @Benchmark
+    fun binnedBatch(): Double {
+        return beta.sumByFSS(binnedFSS.energies, binnedFSS.probabilities, eIn, pars)
+    }
+}
@@ -21,50 +21,153 @@ import hep.dataforge.values.Values;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
 
 /**
+ * Final state spectrum. Line energies and probabilities are stored in primitive arrays.
+ *
  * @author Darksnake
  */
 public class FSS {
-    private final ArrayList<Double> ps = new ArrayList<>();
-    private final ArrayList<Double> es = new ArrayList<>();
-    private double norm;
+    private final double[] es;
+    private final double[] ps;
+    /**
+     * Normalized probabilities
+     */
+    private final double[] probs;
 
     public FSS(InputStream stream) {
         ValuesSource data = IOUtils.readColumnedData(stream, "E", "P");
-        norm = 0;
+        List<Double> eList = new ArrayList<>();
+        List<Double> pList = new ArrayList<>();
         for (Values dp : data) {
-            es.add(dp.getDouble("E"));
-            double p = dp.getDouble("P");
-            ps.add(p);
-            norm += p;
+            eList.add(dp.getDouble("E"));
+            pList.add(dp.getDouble("P"));
         }
-        if (ps.isEmpty()) {
+        if (pList.isEmpty()) {
             throw new RuntimeException("Error reading FSS FILE. No points.");
         }
+        this.es = eList.stream().mapToDouble(e -> e).toArray();
+        this.ps = pList.stream().mapToDouble(p -> p).toArray();
+        this.probs = normalize(ps);
+    }
+
+    /**
+     * @param es line energies
+     * @param ps line weights, not necessarily normalized
+     */
+    public FSS(double[] es, double[] ps) {
+        if (es.length != ps.length) {
+            throw new IllegalArgumentException("The number of energies does not match the number of probabilities");
+        }
+        if (ps.length == 0) {
+            throw new IllegalArgumentException("Empty FSS");
+        }
+        this.es = es.clone();
+        this.ps = ps.clone();
+        this.probs = normalize(ps);
+    }
+
+    private static double[] normalize(double[] ps) {
+        double norm = 0;
+        for (double p : ps) {
+            norm += p;
+        }
+        double[] res = new double[ps.length];
+        for (int i = 0; i < ps.length; i++) {
+            res[i] = ps[i] / norm;
+        }
+        return res;
     }
 
     public double getE(int n) {
-        return this.es.get(n);
+        return this.es[n];
     }
 
     public double getP(int n) {
-        return this.ps.get(n) / norm;
+        return this.probs[n];
     }
 
     public boolean isEmpty() {
-        return ps.isEmpty();
+        return ps.length == 0;
     }
 
     public int size() {
-        return ps.size();
+        return ps.length;
     }
 
     public double[] getPs() {
-        return ps.stream().mapToDouble(p -> p).toArray();
+        return ps.clone();
     }
 
     public double[] getEs() {
-        return es.stream().mapToDouble(p -> p).toArray();
+        return es.clone();
+    }
+
+    /**
+     * Line energies. The array is not copied and must not be modified.
+     *
+     * @return
+     */
+    public double[] getEnergies() {
+        return es;
+    }
+
+    /**
+     * Normalized line probabilities. The array is not copied and must not be modified.
+     *
+     * @return
+     */
+    public double[] getProbabilities() {
+        return probs;
+    }
+
+    /**
+     * Probability-weighted sum of function values in line energies
+     *
+     * @param function
+     * @return
+     */
+    public double sum(DoubleUnaryOperator function) {
+        double sum = 0;
+        for (int i = 0; i < es.length; i++) {
+            sum += probs[i] * function.applyAsDouble(es[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Merge lines which are closer than {@code resolution} to the first line of the group. A merged line is placed
+     * into the probability-weighted mean energy of the group.
+     *
+     * @param resolution
+     * @return
+     */
+    public FSS rebin(double resolution) {
+        int[] order = IntStream.range(0, es.length).boxed()
+                .sorted(Comparator.comparingDouble(i -> es[i]))
+                .mapToInt(i -> i).toArray();
+        double[] newEs = new double[es.length];
+        double[] newPs = new double[es.length];
+        int bins = 0;
+        int i = 0;
+        while (i < order.length) {
+            double start = es[order[i]];
+            double weight = 0;
+            double moment = 0;
+            while (i < order.length && es[order[i]] - start < resolution) {
+                weight += ps[order[i]];
+                moment += ps[order[i]] * es[order[i]];
+                i++;
+            }
+            newEs[bins] = weight == 0 ? start : moment / weight;
+            newPs[bins] = weight;
+            bins++;
+        }
+        return new FSS(Arrays.copyOf(newEs, bins), Arrays.copyOf(newPs, bins));
     }
 }
@@ -8,7 +8,7 @@ package inr.numass.utils;
 import groovy.lang.Binding;
 import groovy.lang.GroovyShell;
 import groovy.lang.Script;
-import hep.dataforge.utils.Misc;
+import hep.dataforge.utils.LRUCache;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
 
@@ -18,7 +18,7 @@ import java.util.Map;
  * @author Alexander Nozik
  */
 public class ExpressionUtils {
-    private static final Map<String, Script> cache = Misc.getLRUCache(100);
+    private static final Map<String, Script> cache = new LRUCache<>(100);
     private static final GroovyShell shell;
 
     static {
@@ -39,19 +39,19 @@ public class ExpressionUtils {
 
 
     public static double function(String expression, Map<String, ?> binding) {
-        synchronized (cache) {
-            Binding b = new Binding(binding);
-            Script script = getScript(expression);
-            script.setBinding(b);
+        Script script = getScript(expression);
+        // script binding is mutable, so the same script could not be evaluated concurrently
+        synchronized (script) {
+            script.setBinding(new Binding(binding));
             return ((Number) script.run()).doubleValue();
         }
     }
 
     public static boolean condition(String expression, Map<String, ?> binding){
-        synchronized (cache) {
-            Binding b = new Binding(binding);
-            Script script = getScript(expression);
-            script.setBinding(b);
+        Script script = getScript(expression);
+        // script binding is mutable, so the same script could not be evaluated concurrently
+        synchronized (script) {
+            script.setBinding(new Binding(binding));
             return (boolean) script.run();
         }
     }
@@ -28,7 +28,6 @@ import hep.dataforge.stat.fit.FitResult
 import hep.dataforge.stat.models.XYModel
 import hep.dataforge.tables.Adapters
 import hep.dataforge.tables.ValuesAdapter
-import java.util.stream.StreamSupport
 
 /**
  * @author darksnake
@@ -64,8 +63,7 @@ object PlotFitResultAction : OneToOneAction<FitResult, FitResult>("plotFit", Fit
         fit.density = 100
         fit.smoothing = true
         // ensuring all data points are calculated explicitly
-        StreamSupport.stream(data.spliterator(), false)
-                .map { dp -> Adapters.getXValue(adapter, dp).double }.sorted().forEach{ fit.calculateIn(it) }
+        Adapters.getXDoubles(adapter, data).sorted().forEach { fit.calculateIn(it) }
 
         context.plot(listOf(fit,DataPlot.plot("data", data, adapter)), name, this.name)
 
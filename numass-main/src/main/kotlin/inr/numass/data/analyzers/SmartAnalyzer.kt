@@ -37,6 +37,13 @@ class SmartAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(proce
     private val debunchAnalyzer = DebunchAnalyzer(processor)
     private val timeAnalyzer = TimeAnalyzer(processor)
 
+    /**
+     * Results depend on the delegate analyzers, so their identities are included
+     */
+    override val analyzerId: String
+        get() = listOf(simpleAnalyzer, debunchAnalyzer, timeAnalyzer)
+            .joinToString(prefix = "${super.analyzerId}[", postfix = "]") { it.analyzerId }
+
     private fun getAnalyzer(config: Meta): NumassAnalyzer {
         return if (config.hasValue("type")) {
             when (config.getString("type")) {
@@ -65,6 +72,14 @@ class SmartAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(proce
         return getAnalyzer(meta).getEvents(block, meta)
     }
 
+    override fun getEventBuffer(block: NumassBlock, meta: Meta): EventBuffer {
+        return getAnalyzer(meta).getEventBuffer(block, meta)
+    }
+
+    override fun getAmplitudeHistogram(block: NumassBlock, config: Meta): AmplitudeHistogram {
+        return getAnalyzer(config).getAmplitudeHistogram(block, config)
+    }
+
     override fun getTableFormat(config: Meta): TableFormat {
         return if (config.hasValue(TimeAnalyzer.T0_KEY) || config.hasMeta(TimeAnalyzer.T0_KEY)) {
             timeAnalyzer.getTableFormat(config)
@@ -91,12 +106,12 @@ class SmartAnalyzer(processor: SignalProcessor? = null) : AbstractAnalyzer(proce
         val format = getTableFormat(config)
 
         return ListTable.Builder(format)
-            .rows(set.points.map { point ->
+            .rows(set.points.mapInParallel(config) { point ->
                 val newConfig = config.builder.apply{
                     setValue("window.lo", lo.computeExpression(point))
                     setValue("window.up", up.computeExpression(point))
                 }
-                analyzeParent(point, newConfig)
+                analyzePoint(point, newConfig)
             })
             .build()
     }
@@ -17,6 +17,7 @@ package inr.numass.models
 
 import hep.dataforge.names.NamesUtils.combineNamesWithEquals
 import hep.dataforge.stat.parametric.AbstractParametricFunction
+import hep.dataforge.stat.parametric.ParameterVector
 import hep.dataforge.stat.parametric.ParametricFunction
 import hep.dataforge.utils.MultiCounter
 import hep.dataforge.values.ValueProvider
@@ -61,6 +62,11 @@ open class NBkgSpectrum(
         return getN(set) * source.value(x, set) + getBkg(set)
     }
 
+    override fun value(x: Double, pars: ParameterVector): Double {
+        this.counter.increase("value")
+        return getN(pars) * source.value(x, pars) + getBkg(pars)
+    }
+
     override fun getDefaultParameter(name: String): Double {
         return when (name) {
             "bkg" -> 0.0
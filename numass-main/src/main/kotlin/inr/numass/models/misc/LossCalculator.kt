@@ -15,19 +15,25 @@
  */
 package inr.numass.models.misc
 
-import hep.dataforge.maths.functions.FunctionCaching
+import hep.dataforge.maths.GridCalculator
 import hep.dataforge.maths.integration.GaussRuleIntegrator
 import hep.dataforge.plots.PlotFrame
 import hep.dataforge.plots.data.XYFunctionPlot
-import hep.dataforge.utils.Misc
 import hep.dataforge.values.Values
-import kotlinx.coroutines.*
 import org.apache.commons.math3.analysis.BivariateFunction
 import org.apache.commons.math3.analysis.UnivariateFunction
+import org.apache.commons.math3.analysis.interpolation.SplineInterpolator
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction
 import org.apache.commons.math3.exception.OutOfRangeException
 import org.slf4j.LoggerFactory
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
 import java.lang.Math.exp
+import java.nio.file.Files
+import java.nio.file.Path
 import java.util.*
+import java.util.stream.IntStream
 
 /**
  * Вычисление произвольного порядка функции рассеяния. Не учитывается
@@ -36,22 +42,25 @@ import java.util.*
  * @author Darksnake
  */
 object LossCalculator {
-    private val cache = HashMap<Int, Deferred<UnivariateFunction>>()
-
     private const val ION_POTENTIAL = 15.4//eV
 
     val adjustX = true
 
 
-    private fun getX(set: Values, eIn: Double): Double {
+    /**
+     * Effective X for given electron energy
+     */
+    fun adjustX(x: Double, eIn: Double): Double {
         return if (adjustX) {
             //From our article
-            set.getDouble("X") * Math.log(eIn / ION_POTENTIAL) * eIn * ION_POTENTIAL / 1.9580741410115568e6
+            x * Math.log(eIn / ION_POTENTIAL) * eIn * ION_POTENTIAL / 1.9580741410115568e6
         } else {
-            set.getDouble("X")
+            x
         }
     }
 
+    private fun getX(set: Values, eIn: Double): Double = adjustX(set.getDouble("X"), eIn)
+
     fun p0(set: Values, eIn: Double): Double {
         return LossCalculator.getLossProbability(0, getX(set, eIn))
     }
@@ -86,30 +95,40 @@ object LossCalculator {
     }
 
 
-    private fun CoroutineScope.getCachedSpectrum(order: Int): Deferred<UnivariateFunction> {
-        return when {
-            order <= 0 -> error("Non-positive loss cache order")
-            order == 1 -> CompletableDeferred(singleScatterFunction)
-            else -> cache.getOrPut(order) {
-                async {
-                    LoggerFactory.getLogger(javaClass)
-                            .debug("Scatter cache of order {} not found. Updating", order)
-                    getNextLoss(getMargin(order), getCachedSpectrum(order - 1).await())
-                }
-            }
-        }
-    }
-
     /**
-     * Ленивое рекурсивное вычисление функции потерь через предыдущие
+     * Loss function of given order. Missing orders are computed on first request
      *
      * @param order
      * @return
      */
     private fun getLoss(order: Int): UnivariateFunction {
-        return runBlocking { getCachedSpectrum(order).await() }
+        if (order <= 0) error("Non-positive loss order")
+        val functions = lossFunctions
+        return if (order <= functions.size) {
+            functions[order - 1]
+        } else {
+            computeOrders(order)[order - 1]
+        }
     }
 
+    /**
+     * Compute all loss orders up to [maxOrder]. Orders are computed one after another since each one is a convolution
+     * of the previous one, but the nodes of each order are computed in parallel.
+     */
+    @Synchronized
+    private fun computeOrders(maxOrder: Int): Array<UnivariateFunction> {
+        val functions = lossFunctions
+        if (functions.size >= maxOrder) {
+            return functions
+        }
+        val res = functions.toMutableList()
+        while (res.size < maxOrder) {
+            val order = res.size + 1
+            LoggerFactory.getLogger(javaClass).debug("Scatter cache of order {} not found. Updating", order)
+            res.add(getNextLoss(getMargin(order), res.last()))
+        }
+        return res.toTypedArray().also { lossFunctions = it }
+    }
     fun getLossFunction(order: Int): BivariateFunction {
         assert(order > 0)
         return BivariateFunction { Ei: Double, Ef: Double -> getLossValue(order, Ei, Ef) }
@@ -165,7 +184,14 @@ object LossCalculator {
         return res
     }
 
-    fun getLossProbabilities(x: Double): List<Double> = lossProbCache.getOrPut(x) { calculateLossProbabilities(x) }
+    fun getLossProbabilities(x: Double): List<Double> {
+        val table = getProbabilityTable()
+        return if (table.contains(x)) {
+            (0 until table.getOrderCount(x)).map { table.getProbability(it, x) }
+        } else {
+            calculateLossProbabilities(x)
+        }
+    }
 
     fun getLossProbability(order: Int, X: Double): Double {
         if (order == 0) {
@@ -175,7 +201,11 @@ object LossCalculator {
                 1.0
             }
         }
-        val probs = getLossProbabilities(X)
+        val table = getProbabilityTable()
+        if (table.contains(X)) {
+            return if (order >= table.getOrderCount(X)) 0.0 else table.getProbability(order, X)
+        }
+        val probs = calculateLossProbabilities(X)
         return if (order >= probs.size) {
             0.0
         } else {
@@ -224,20 +254,31 @@ object LossCalculator {
      * @param loss
      * @return
      */
-    private fun getNextLoss(margin: Double, loss: UnivariateFunction?): UnivariateFunction {
-        val res = { x: Double ->
+    private fun getNextLoss(margin: Double, loss: UnivariateFunction): UnivariateFunction {
+        val grid = GridCalculator.getUniformUnivariateGrid(0.0, margin, LOSS_NODES)
+        val values = DoubleArray(grid.size)
+        IntStream.range(0, grid.size).parallel().forEach { i ->
+            val x = grid[i]
             val integrand = UnivariateFunction { y: Double ->
                 try {
-                    loss!!.value(x - y) * singleScatterFunction.value(y)
+                    loss.value(x - y) * singleScatterFunction.value(y)
                 } catch (ex: OutOfRangeException) {
                     0.0
                 }
             }
-            integrator.integrate(5.0, margin, integrand)
+            values[i] = integrator.integrate(5.0, margin, integrand)
         }
+        return TabulatedLoss(margin, values)
+    }
 
-        return FunctionCaching.cacheUnivariateFunction(0.0, margin, 200, res)
+    /**
+     * Loss function of order > 1 interpolated from values on a uniform grid over [0, margin]
+     */
+    private class TabulatedLoss(val margin: Double, val values: DoubleArray) : UnivariateFunction {
+        private val spline: PolynomialSplineFunction =
+                SplineInterpolator().interpolate(GridCalculator.getUniformUnivariateGrid(0.0, margin, values.size), values)
 
+        override fun value(x: Double): Double = spline.value(x)
     }
 
     fun getTotalLossBivariateFunction(X: Double): BivariateFunction {
@@ -277,10 +318,14 @@ object LossCalculator {
      * @return
      */
     fun getTotalLossValue(x: Double, Ei: Double, Ef: Double): Double {
-        return if (x == 0.0) {
-            0.0
+        if (x == 0.0 || Ei - Ef < 5.0) {
+            return 0.0
+        }
+        val table = getProbabilityTable()
+        return if (table.contains(x)) {
+            table.getTotalLoss(x, Ei - Ef)
         } else {
-            val probs = getLossProbabilities(x)
+            val probs = calculateLossProbabilities(x)
             (1 until probs.size).sumOf { i ->
                 probs[i] * getLossValue(i, Ei, Ef)
             }
@@ -295,7 +340,170 @@ object LossCalculator {
      */
     private const val SCATTERING_PROBABILITY_THRESHOLD = 1e-3
     private val integrator = GaussRuleIntegrator(100)
-    private val lossProbCache = Misc.getLRUCache<Double, List<Double>>(100)
+
+    /**
+     * Number of nodes in tabulated loss functions
+     */
+    private const val LOSS_NODES = 200
+
+    private const val DEFAULT_X_MAX = 2.0
+    const val DEFAULT_X_STEP = 0.005
+
+    private const val LOSS_FILE_MAGIC = 0x4c4f5353 // "LOSS"
+
+    private fun getProbabilityTable(): LossProbabilityTable {
+        return probabilityTable ?: synchronized(this) {
+            probabilityTable ?: LossProbabilityTable(DEFAULT_X_MAX, DEFAULT_X_STEP).also { probabilityTable = it }
+        }
+    }
+
+    /**
+     * Tabulate loss probabilities for X in [0, xMax] and compute all loss orders required for this range, so that
+     * [getTotalLossValue] does not compute anything lazily. If [file] is provided, loss functions are loaded from it
+     * if it exists and saved to it otherwise.
+     *
+     * @param xMax maximum effective X
+     * @param xStep X grid step
+     * @param file persistent storage for loss functions
+     */
+    @JvmOverloads
+    fun precompute(xMax: Double, xStep: Double = DEFAULT_X_STEP, file: Path? = null) {
+        val table = LossProbabilityTable(xMax, xStep)
+        if (file != null && Files.exists(file)) {
+            try {
+                loadLossFunctions(file)
+            } catch (ex: IOException) {
+                LoggerFactory.getLogger(javaClass).error("Failed to load loss functions from $file", ex)
+            }
+        }
+        val loaded = lossFunctions.size
+        computeOrders(table.maxOrderCount)
+        if (file != null && lossFunctions.size > loaded) {
+            try {
+                saveLossFunctions(file)
+            } catch (ex: IOException) {
+                LoggerFactory.getLogger(javaClass).error("Failed to save loss functions to $file", ex)
+            }
+        }
+        probabilityTable = table
+    }
+
+    /**
+     * Save tabulated loss functions of all computed orders
+     */
+    @Synchronized
+    fun saveLossFunctions(file: Path) {
+        DataOutputStream(Files.newOutputStream(file).buffered()).use { stream ->
+            val tabulated = lossFunctions.drop(1).map { it as TabulatedLoss }
+            stream.writeInt(LOSS_FILE_MAGIC)
+            stream.writeInt(tabulated.size)
+            tabulated.forEach { loss ->
+                stream.writeDouble(loss.margin)
+                stream.writeInt(loss.values.size)
+                loss.values.forEach { stream.writeDouble(it) }
+            }
+        }
+    }
+
+    /**
+     * Load tabulated loss functions saved by [saveLossFunctions]. Orders already computed are replaced.
+     */
+    @Synchronized
+    fun loadLossFunctions(file: Path) {
+        DataInputStream(Files.newInputStream(file).buffered()).use { stream ->
+            if (stream.readInt() != LOSS_FILE_MAGIC) {
+                throw IOException("Not a loss function file: $file")
+            }
+            val res = ArrayList<UnivariateFunction>()
+            res.add(singleScatterFunction)
+            repeat(stream.readInt()) { i ->
+                val margin = stream.readDouble()
+                if (margin != getMargin(i + 2)) {
+                    throw IOException("Loss function margin mismatch in $file")
+                }
+                val values = DoubleArray(stream.readInt()) { stream.readDouble() }
+                res.add(TabulatedLoss(margin, values))
+            }
+            lossFunctions = res.toTypedArray()
+        }
+    }
+
+    /**
+     * Loss probabilities and their derivatives on a uniform X grid. Probabilities are interpolated with cubic
+     * Hermite splines, so they are smooth in X. The number of orders in each bin follows
+     * [SCATTERING_PROBABILITY_THRESHOLD] at the upper border of the bin.
+     */
+    private class LossProbabilityTable(val xMax: Double, val xStep: Double) {
+        private val nodes = Math.ceil(xMax / xStep).toInt() + 1
+        val maxOrderCount = calculateLossProbabilities(xStep * (nodes - 1)).size
+        private val probs = DoubleArray(nodes * maxOrderCount)
+        private val derivs = DoubleArray(nodes * maxOrderCount)
+        private val orderCounts = IntArray(nodes)
+
+        init {
+            for (k in 0 until nodes) {
+                val x = k * xStep
+                val offset = k * maxOrderCount
+                if (x == 0.0) {
+                    probs[offset] = 1.0
+                    derivs[offset] = -0.5
+                    if (maxOrderCount > 1) derivs[offset + 1] = 0.5
+                    orderCounts[k] = 1
+                } else {
+                    // all orders up to maximum are stored to make interpolation in bins valid
+                    val expX = Math.exp(-x)
+                    var prob = 1 / x * (1 - expX)
+                    var delta = expX
+                    probs[offset] = prob
+                    derivs[offset] = (delta - prob) / x
+                    for (n in 1 until maxOrderCount) {
+                        delta *= x / n
+                        prob -= delta / x
+                        probs[offset + n] = prob
+                        derivs[offset + n] = (delta - prob) / x
+                    }
+                    orderCounts[k] = calculateLossProbabilities(x).size
+                }
+            }
+        }
+
+        fun contains(x: Double): Boolean = x >= 0 && x < xStep * (nodes - 1)
+
+        private fun bin(x: Double): Int = Math.min((x / xStep).toInt(), nodes - 2)
+
+        fun getOrderCount(x: Double): Int = orderCounts[bin(x) + 1]
+
+        fun getProbability(order: Int, x: Double): Double {
+            val k = bin(x)
+            return interpolate(k, order, (x - k * xStep) / xStep)
+        }
+
+        private fun interpolate(k: Int, order: Int, t: Double): Double {
+            val i = k * maxOrderCount + order
+            val j = i + maxOrderCount
+            val t2 = t * t
+            val t3 = t2 * t
+            return (2 * t3 - 3 * t2 + 1) * probs[i] + (t3 - 2 * t2 + t) * xStep * derivs[i] +
+                    (-2 * t3 + 3 * t2) * probs[j] + (t3 - t2) * xStep * derivs[j]
+        }
+
+        /**
+         * Total loss for energy loss [eps]. Does not allocate memory if loss orders are already computed.
+         */
+        fun getTotalLoss(x: Double, eps: Double): Double {
+            val k = bin(x)
+            val t = (x - k * xStep) / xStep
+            val orderCount = orderCounts[k + 1]
+            val functions = lossFunctions.let { if (it.size >= orderCount) it else computeOrders(orderCount) }
+            var sum = 0.0
+            for (order in 1 until orderCount) {
+                if (eps < getMargin(order)) {
+                    sum += interpolate(k, order, t) * functions[order - 1].value(eps)
+                }
+            }
+            return sum
+        }
+    }
 
 
     private val A1 = 0.204
@@ -320,6 +528,19 @@ object LossCalculator {
         }
     }
 
+    /**
+     * Loss functions by order starting from the first one. The array is replaced as a whole when new orders are
+     * computed, so reading does not require locking
+     */
+    @Volatile
+    private var lossFunctions: Array<UnivariateFunction> = arrayOf(singleScatterFunction)
+
+    /**
+     * Tabulated loss probabilities. Null until [precompute] is called or default table is requested
+     */
+    @Volatile
+    private var probabilityTable: LossProbabilityTable? = null
+
 
     /**
      * A generic loss function for numass experiment in "Lobashev"
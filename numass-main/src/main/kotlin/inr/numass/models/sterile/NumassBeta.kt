@@ -8,6 +8,7 @@ package inr.numass.models.sterile
 import hep.dataforge.exceptions.NotDefinedException
 import hep.dataforge.stat.parametric.AbstractParametricBiFunction
 import hep.dataforge.stat.parametric.AbstractParametricFunction
+import hep.dataforge.stat.parametric.ParameterVector
 import hep.dataforge.stat.parametric.ParametricFunction
 import hep.dataforge.values.Values
 
@@ -140,9 +141,19 @@ class NumassBeta : AbstractParametricBiFunction(list) {
      * @return
      */
     private fun root(E0: Double, mnu2: Double, E: Double): Double {
+        return factor(E) * reducedRoot(E0 - E, mnu2)
+    }
+
+    /**
+     * Bare beta spectrum without [factor], which depends only on electron energy and is always positive
+     *
+     * @param delta E0 - E
+     * @param mnu2
+     * @return
+     */
+    private fun reducedRoot(delta: Double, mnu2: Double): Double {
         //bare beta-spectrum
-        val delta = E0 - E
-        val bare = factor(E) * delta * sqrt(Math.max(delta * delta - mnu2, 0.0))
+        val bare = delta * sqrt(Math.max(delta * delta - mnu2, 0.0))
         return when {
             mnu2 >= 0 -> Math.max(bare, 0.0)
             delta == 0.0 -> 0.0
@@ -166,7 +177,10 @@ class NumassBeta : AbstractParametricBiFunction(list) {
         val mnu2 = getParameter("mnu2", pars)
         val mst2 = getParameter("msterile2", pars)
         val u2 = getParameter("U2", pars)
+        return rootsterile(E, E0, mnu2, mst2, u2)
+    }
 
+    private fun rootsterile(E: Double, E0: Double, mnu2: Double, mst2: Double, u2: Double): Double {
         return if (u2 == 0.0) {
             root(E0, mnu2, E)
         } else {
@@ -192,6 +206,46 @@ class NumassBeta : AbstractParametricBiFunction(list) {
         return rootsterile(eIn, e0 - fs, pars)
     }
 
+    override fun value(fs: Double, eIn: Double, pars: ParameterVector): Double {
+        val e0 = getParameter(E0_INDEX, pars)
+        return rootsterile(
+            eIn,
+            e0 - fs,
+            getParameter(MNU2_INDEX, pars),
+            getParameter(MSTERILE2_INDEX, pars),
+            getParameter(U2_INDEX, pars)
+        )
+    }
+
+    /**
+     * Spectrum summed over final states with given energies and normalized probabilities. Parameters are read and
+     * the energy-dependent factor is computed only once, the sum itself is a primitive loop.
+     *
+     * @param energies final state energies
+     * @param probabilities final state probabilities
+     * @param eIn electron energy
+     * @param pars
+     * @return
+     */
+    fun sumByFSS(energies: DoubleArray, probabilities: DoubleArray, eIn: Double, pars: ParameterVector): Double {
+        val e0 = getParameter(E0_INDEX, pars)
+        val mnu2 = getParameter(MNU2_INDEX, pars)
+        val mst2 = getParameter(MSTERILE2_INDEX, pars)
+        val u2 = getParameter(U2_INDEX, pars)
+        var sum = 0.0
+        if (u2 == 0.0) {
+            for (i in energies.indices) {
+                sum += probabilities[i] * reducedRoot(e0 - energies[i] - eIn, mnu2)
+            }
+        } else {
+            for (i in energies.indices) {
+                val delta = e0 - energies[i] - eIn
+                sum += probabilities[i] * (u2 * reducedRoot(delta, mst2) + (1 - u2) * reducedRoot(delta, mnu2))
+            }
+        }
+        return factor(eIn) * sum
+    }
+
     /**
      * Get univariate spectrum with given final state
      */
@@ -220,6 +274,10 @@ class NumassBeta : AbstractParametricBiFunction(list) {
 
         private const val K = 1E-23
         private val list = arrayOf("E0", "mnu2", "msterile2", "U2")
+        private const val E0_INDEX = 0
+        private const val MNU2_INDEX = 1
+        private const val MSTERILE2_INDEX = 2
+        private const val U2_INDEX = 3
     }
 
 }
@@ -9,6 +9,7 @@ import hep.dataforge.context.Context
 import hep.dataforge.maths.functions.FunctionLibrary
 import hep.dataforge.meta.Meta
 import hep.dataforge.stat.parametric.AbstractParametricBiFunction
+import hep.dataforge.stat.parametric.ParameterVector
 import hep.dataforge.values.Values
 import inr.numass.models.misc.LossCalculator
 import inr.numass.utils.ExpressionUtils
@@ -42,6 +43,14 @@ class NumassTransmission(context: Context, meta: Meta) : AbstractParametricBiFun
             LoggerFactory.getLogger(javaClass).warn("Trapping function not defined. Using default")
             trapFunc = FunctionLibrary.buildFrom(context).buildBivariateFunction("numass.trap.nominal")
         }
+
+        meta.optMeta("lossTable").ifPresent { table ->
+            LossCalculator.precompute(
+                    table.getDouble("xMax"),
+                    table.getDouble("xStep", LossCalculator.DEFAULT_X_STEP),
+                    table.optString("file").map { context.workDir.resolve(it) }.orElse(null)
+            )
+        }
     }
 
     override fun derivValue(parName: String, eIn: Double, eOut: Double, set: Values): Double {
@@ -76,9 +85,18 @@ class NumassTransmission(context: Context, meta: Meta) : AbstractParametricBiFun
         return loss + trap
     }
 
+    override fun value(eIn: Double, eOut: Double, pars: ParameterVector): Double {
+        val x = LossCalculator.adjustX(getParameter(X_INDEX, pars), eIn)
+        val loss = LossCalculator.getTotalLossValue(x, eIn, eOut)
+        val trap = getParameter(TRAP_INDEX, pars) * trapFunc.value(eIn, eOut)
+        return loss + trap
+    }
+
     companion object {
 
         private val list = arrayOf("trap", "X")
+        private const val TRAP_INDEX = 0
+        private const val X_INDEX = 1
     }
 
 }
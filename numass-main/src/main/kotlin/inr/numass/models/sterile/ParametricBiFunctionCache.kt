@@ -16,24 +16,242 @@
 
 package inr.numass.models.sterile
 
-import hep.dataforge.names.NameList
+import hep.dataforge.meta.Meta
+import hep.dataforge.stat.parametric.AbstractParametricBiFunction
+import hep.dataforge.stat.parametric.ParameterLayout
+import hep.dataforge.stat.parametric.ParameterVector
 import hep.dataforge.stat.parametric.ParametricBiFunction
+import hep.dataforge.utils.LRUCache
 import hep.dataforge.values.Values
+import org.apache.commons.math3.analysis.interpolation.BicubicInterpolatingFunction
+import org.apache.commons.math3.analysis.interpolation.BicubicInterpolator
+import org.slf4j.LoggerFactory
+import java.io.Serializable
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.IntStream
+import javax.cache.Cache
+import kotlin.math.abs
 
-class ParametricBiFunctionCache(val function: ParametricBiFunction): ParametricBiFunction {
-    override fun derivValue(parName: String?, x: Double, y: Double, set: Values?): Double {
-        TODO("not implemented") //To change body of created functions use File | Settings | File Templates.
+/**
+ * A tabulated version of a parametric bi-function. For each set of parameter values the function is computed on a
+ * rectangular grid and then interpolated with bicubic interpolation, so the grid is recomputed only when parameters
+ * of the function change. Points outside the grid are computed directly. Derivatives are not tabulated.
+ *
+ * A grid is built only for parameter sets which are requested at least [buildThreshold] times, before that the function
+ * is computed directly, so parameter sets visited only briefly (like steps of a fit) do not pay for tabulation.
+ * Concurrent requests for the same parameters wait for a single grid computation. Each grid is checked against the
+ * direct function at several points between nodes and is not used if the relative error exceeds [tolerance].
+ *
+ * If [cache] is provided, grids are additionally stored there with [id], [FORMAT_VERSION] and parameter values as
+ * a key, so they survive between fits. [id] must include the version of the function code.
+ *
+ * @param function the function to tabulate
+ * @param xGrid strictly increasing grid nodes for the first argument
+ * @param yGrid strictly increasing grid nodes for the second argument
+ * @param cache persistent storage for grids
+ * @param id the identity of the function in persistent storage
+ * @param buildThreshold the number of requests for the same parameters after which the grid is built
+ * @param tolerance maximum interpolation error relative to the maximum absolute value on the grid
+ */
+class ParametricBiFunctionCache @JvmOverloads constructor(
+        val function: ParametricBiFunction,
+        private val xGrid: DoubleArray,
+        private val yGrid: DoubleArray,
+        private val cache: Cache<Meta, Grid>? = null,
+        private val id: Meta = Meta.empty(),
+        private val buildThreshold: Int = xGrid.size * yGrid.size,
+        private val tolerance: Double = 1e-3
+) : AbstractParametricBiFunction(function) {
+
+    /**
+     * Function values on a grid
+     */
+    class Grid(val x: DoubleArray, val y: DoubleArray, val values: Array<DoubleArray>) : Serializable {
+
+        @Volatile
+        @Transient
+        private var interpolator: BicubicInterpolatingFunction? = null
+
+        private fun getInterpolator(): BicubicInterpolatingFunction {
+            return interpolator ?: BicubicInterpolator().interpolate(x, y, values).also { interpolator = it }
+        }
+
+        fun contains(x: Double, y: Double): Boolean = getInterpolator().isValidPoint(x, y)
+
+        fun value(x: Double, y: Double): Double = getInterpolator().value(x, y)
     }
 
-    override fun getNames(): NameList {
-        TODO("not implemented") //To change body of created functions use File | Settings | File Templates.
+    /**
+     * The state of tabulation for one set of parameters
+     */
+    private inner class Slot(private val parameters: DoubleArray) {
+        private val requests = AtomicInteger()
+
+        /**
+         * True if the grid is built or it is known that it could not be used
+         */
+        @Volatile
+        private var resolved = false
+
+        /**
+         * The grid or null if the function should be computed directly
+         */
+        @Volatile
+        private var grid: Grid? = null
+
+        fun grid(): Grid? {
+            if (resolved) {
+                return grid
+            }
+            // the first request checks persistent storage, later ones wait for the threshold
+            val count = requests.incrementAndGet()
+            if (count in 2 until buildThreshold) {
+                return null
+            }
+            synchronized(this) {
+                if (!resolved) {
+                    resolve(count)
+                }
+                return grid
+            }
+        }
+
+        private fun resolve(count: Int) {
+            val set = ParameterVector(layout, parameters)
+            if (count == 1 && cache != null) {
+                val persisted = cache.get(persistentKey(parameters))
+                if (persisted != null && persisted.matches() && check(persisted, set)) {
+                    grid = persisted
+                    resolved = true
+                    return
+                }
+            }
+            if (count < buildThreshold) {
+                return
+            }
+            val computed = computeGrid(parameters)
+            if (check(computed, set)) {
+                cache?.put(persistentKey(parameters), computed)
+                grid = computed
+            }
+            resolved = true
+        }
     }
 
-    override fun value(x: Double, y: Double, set: Values?): Double {
-        TODO("not implemented") //To change body of created functions use File | Settings | File Templates.
+    private class Entry(val parameters: DoubleArray, val slot: Slot)
+
+    @Volatile
+    private var last: Entry? = null
+
+    private val layout = ParameterLayout.of(function)
+
+    private val slots = LRUCache<List<Double>, Slot>(SLOT_CACHE_SIZE)
+
+    init {
+        if (xGrid.size < 2 || yGrid.size < 2) {
+            throw IllegalArgumentException("At least two grid nodes are required for each axis")
+        }
     }
 
-    override fun providesDeriv(name: String?): Boolean {
-        TODO("not implemented") //To change body of created functions use File | Settings | File Templates.
+    private fun getGrid(parameters: DoubleArray): Grid? {
+        val cached = last
+        if (cached != null && cached.parameters.contentEquals(parameters)) {
+            return cached.slot.grid()
+        }
+        val key = parameters.toList()
+        val slot = slots[key] ?: Slot(parameters).let { slots.putIfAbsent(key, it) ?: it }
+        last = Entry(parameters, slot)
+        return slot.grid()
+    }
+
+    private fun persistentKey(parameters: DoubleArray): Meta = id.builder.apply {
+        setValue("format", FORMAT_VERSION)
+        setValue("function", function.javaClass.name)
+        names.forEachIndexed { i, name -> setValue("parameters.$name", parameters[i]) }
+        setValue("grid.x", xGrid.toList())
+        setValue("grid.y", yGrid.toList())
+    }.build()
+
+    private fun Grid.matches(): Boolean = x.contentEquals(xGrid) && y.contentEquals(yGrid) &&
+            values.size == xGrid.size && values.all { it.size == yGrid.size }
+
+    /**
+     * Compare interpolated values with the direct function at points between grid nodes
+     */
+    private fun check(grid: Grid, set: ParameterVector): Boolean {
+        val scale = grid.values.maxOf { row -> row.maxOf { abs(it) } }.takeIf { it > 0 } ?: return true
+        for (k in 1..CHECK_POINTS) {
+            val i = k * (xGrid.size - 1) / (CHECK_POINTS + 1)
+            val j = (k * 7) % (yGrid.size - 1)
+            val x = (xGrid[i] + xGrid[i + 1]) / 2
+            val y = (yGrid[j] + yGrid[j + 1]) / 2
+            val error = abs(grid.value(x, y) - function.value(x, y, set)) / scale
+            if (error > tolerance) {
+                LoggerFactory.getLogger(javaClass).warn(
+                        "Interpolation error $error at ($x, $y) exceeds tolerance $tolerance for parameters $set. " +
+                                "The function is computed directly."
+                )
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Compute function on the grid. Rows are computed in parallel
+     */
+    private fun computeGrid(parameters: DoubleArray): Grid {
+        val set = ParameterVector(layout, parameters)
+        val values = Array(xGrid.size) { DoubleArray(yGrid.size) }
+        IntStream.range(0, xGrid.size).parallel().forEach { i ->
+            for (j in yGrid.indices) {
+                values[i][j] = function.value(xGrid[i], yGrid[j], set)
+            }
+        }
+        return Grid(xGrid, yGrid, values)
+    }
+
+    private fun getParameters(set: ParameterVector): DoubleArray = DoubleArray(names.size()) { getParameter(it, set) }
+
+    override fun value(x: Double, y: Double, set: Values): Double = value(x, y, ParameterVector.of(set))
+
+    override fun value(x: Double, y: Double, set: ParameterVector): Double {
+        val grid = getGrid(getParameters(set))
+        return if (grid != null && grid.contains(x, y)) {
+            grid.value(x, y)
+        } else {
+            function.value(x, y, set)
+        }
+    }
+
+    override fun derivValue(parName: String, x: Double, y: Double, set: Values): Double =
+            function.derivValue(parName, x, y, set)
+
+    override fun providesDeriv(name: String): Boolean = function.providesDeriv(name)
+
+    companion object {
+        /**
+         * The version of grid layout in persistent cache. Changing it invalidates all persisted grids.
+         */
+        const val FORMAT_VERSION = 2
+
+        private const val SLOT_CACHE_SIZE = 16
+
+        /**
+         * The number of points between nodes used to check interpolation accuracy
+         */
+        private const val CHECK_POINTS = 5
+
+        /**
+         * Uniform grid with given number of nodes
+         */
+        fun uniformGrid(from: Double, to: Double, nodes: Int): DoubleArray =
+                DoubleArray(nodes) { from + (to - from) * it / (nodes - 1) }
+
+        /**
+         * A grid which is quadratically condensed towards [from]
+         */
+        fun condensedGrid(from: Double, to: Double, nodes: Int): DoubleArray =
+                DoubleArray(nodes) { from + (to - from) * Math.pow(it.toDouble() / (nodes - 1), 2.0) }
     }
-}
\ No newline at end of file
+}
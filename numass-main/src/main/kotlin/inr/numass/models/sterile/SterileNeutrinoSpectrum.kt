@@ -5,6 +5,7 @@
  */
 package inr.numass.models.sterile
 
+import hep.dataforge.cache.CachePlugin
 import hep.dataforge.context.Context
 import hep.dataforge.description.NodeDef
 import hep.dataforge.description.NodeDefs
@@ -13,10 +14,13 @@ import hep.dataforge.description.ValueDefs
 import hep.dataforge.exceptions.NotDefinedException
 import hep.dataforge.maths.integration.UnivariateIntegrator
 import hep.dataforge.meta.Meta
+import hep.dataforge.meta.buildMeta
 import hep.dataforge.stat.parametric.AbstractParametricBiFunction
 import hep.dataforge.stat.parametric.AbstractParametricFunction
+import hep.dataforge.stat.parametric.ParameterVector
 import hep.dataforge.stat.parametric.ParametricBiFunction
 import hep.dataforge.values.ValueType.BOOLEAN
+import hep.dataforge.values.ValueType.NUMBER
 import hep.dataforge.values.Values
 import inr.numass.getFSS
 import inr.numass.models.FSS
@@ -30,11 +34,13 @@ import inr.numass.utils.NumassIntegrator
  */
 @NodeDefs(
         NodeDef(key = "resolution"),
-        NodeDef(key = "transmission")
+        NodeDef(key = "transmission"),
+        NodeDef(key = "transResGrid", info = "Opt-in tabulation of trans-res kernel. Values: enabled, deltaMax, deltaNodes, uMin, uMax, uNodes")
 )
 @ValueDefs(
         ValueDef(key = "fssFile", info = "The name for external FSS file. By default internal FSS file is used"),
-        ValueDef(key = "useFSS", type = arrayOf(BOOLEAN))
+        ValueDef(key = "useFSS", type = arrayOf(BOOLEAN)),
+        ValueDef(key = "fssResolution", type = arrayOf(NUMBER), info = "If defined, FSS lines closer than this value are merged")
 )
 
 /**
@@ -52,24 +58,36 @@ class SterileNeutrinoSpectrum @JvmOverloads constructor(
 ) : AbstractParametricFunction(*list) {
 
 
+    //    private boolean useMC;
+    private val fast: Boolean = configuration.getBoolean("fast", true)
+
     /**
      * auxiliary function for trans-res convolution
      */
-    private val transRes: ParametricBiFunction = TransRes()
-    private val fss: FSS? = getFSS(context, configuration)
-    //    private boolean useMC;
-    private val fast: Boolean = configuration.getBoolean("fast", true)
+    private val transRes: ParametricBiFunction = if (configuration.getBoolean("transResGrid.enabled", false)) {
+        TabulatedTransRes(context, configuration)
+    } else {
+        TransRes()
+    }
+    private val fss: FSS? = getFSS(context, configuration)?.let { fss ->
+        if (configuration.hasValue("fssResolution")) fss.rebin(configuration.getDouble("fssResolution")) else fss
+    }
 
     override fun derivValue(parName: String, u: Double, set: Values): Double {
+        val pars = ParameterVector.of(set)
         return when (parName) {
-            "U2", "msterile2", "mnu2", "E0" -> integrate(u, source.derivative(parName), transRes, set)
-            "X", "trap" -> integrate(u, source, transRes.derivative(parName), set)
+            "U2", "msterile2", "mnu2", "E0" -> integrate(u, source.derivative(parName), transRes, pars)
+            "X", "trap" -> integrate(u, source, transRes.derivative(parName), pars)
             else -> throw NotDefinedException()
         }
     }
 
     override fun value(u: Double, set: Values): Double {
-        return integrate(u, source, transRes, set)
+        return integrate(u, source, transRes, ParameterVector.of(set))
+    }
+
+    override fun value(u: Double, pars: ParameterVector): Double {
+        return integrate(u, source, transRes, pars)
     }
 
     override fun providesDeriv(name: String): Boolean {
@@ -78,7 +96,7 @@ class SterileNeutrinoSpectrum @JvmOverloads constructor(
 
 
     /**
-     * Direct Gauss-Legendre integration
+     * Direct Gauss-Legendre integration. Parameters are compiled, so the integrand does not look them up by name.
      *
      * @param u
      * @param sourceFunction
@@ -90,7 +108,7 @@ class SterileNeutrinoSpectrum @JvmOverloads constructor(
             u: Double,
             sourceFunction: ParametricBiFunction,
             transResFunction: ParametricBiFunction,
-            set: Values): Double {
+            set: ParameterVector): Double {
 
         val eMax = set.getDouble("E0") + 5.0
 
@@ -112,11 +130,11 @@ class SterileNeutrinoSpectrum @JvmOverloads constructor(
         return integrator.integrate(u, eMax) { eIn -> sumByFSS(eIn, sourceFunction, set) * transResFunction.value(eIn, u, set) }
     }
 
-    private fun sumByFSS(eIn: Double, sourceFunction: ParametricBiFunction, set: Values): Double {
-        return if (fss == null) {
-            sourceFunction.value(0.0, eIn, set)
-        } else {
-            (0 until fss.size()).sumOf { fss.getP(it) * sourceFunction.value(fss.getE(it), eIn, set) }
+    private fun sumByFSS(eIn: Double, sourceFunction: ParametricBiFunction, set: ParameterVector): Double {
+        return when {
+            fss == null -> sourceFunction.value(0.0, eIn, set)
+            sourceFunction is NumassBeta -> sourceFunction.sumByFSS(fss.energies, fss.probabilities, eIn, set)
+            else -> fss.sum { sourceFunction.value(it, eIn, set) }
         }
     }
 
@@ -131,18 +149,22 @@ class SterileNeutrinoSpectrum @JvmOverloads constructor(
         override fun derivValue(parName: String, eIn: Double, u: Double, set: Values): Double {
             return when (parName) {
                 "X" -> throw NotDefinedException()//TODO implement p0 derivative
-                "trap" -> lossRes(transmission.derivative(parName), eIn, u, set)
+                "trap" -> lossRes(transmission.derivative(parName), eIn, u, ParameterVector.of(set))
                 else -> super.derivValue(parName, eIn, u, set)
             }
         }
 
         override fun value(eIn: Double, u: Double, set: Values): Double {
+            return value(eIn, u, ParameterVector.of(set))
+        }
 
-            val p0 = LossCalculator.p0(set, eIn)
+        override fun value(eIn: Double, u: Double, set: ParameterVector): Double {
+            val x = LossCalculator.adjustX(getParameter(TRANS_RES_X_INDEX, set), eIn)
+            val p0 = LossCalculator.getLossProbability(0, x)
             return p0 * resolution.value(eIn, u, set) + lossRes(transmission, eIn, u, set)
         }
 
-        private fun lossRes(transFunc: ParametricBiFunction, eIn: Double, u: Double, set: Values): Double {
+        private fun lossRes(transFunc: ParametricBiFunction, eIn: Double, u: Double, set: ParameterVector): Double {
             val integrand = { eOut: Double -> transFunc.value(eIn, eOut, set) * resolution.value(eOut, u, set) }
 
             val border = u + 30
@@ -161,9 +183,56 @@ class SterileNeutrinoSpectrum @JvmOverloads constructor(
 
     }
 
+    /**
+     * Trans-res kernel tabulated on a grid over `(eIn - u, u)`. The kernel depends only on "X" and "trap", so the grid
+     * is recomputed only when they change. Grids are stored in context cache if cache plugin is loaded.
+     */
+    private inner class TabulatedTransRes(context: Context, configuration: Meta) : AbstractParametricBiFunction(arrayOf("X", "trap")) {
+        private val direct = TransRes()
+
+        private val kernel: ParametricBiFunction = configuration.getMetaOrEmpty("transResGrid").let { grid ->
+            ParametricBiFunctionCache(
+                    object : AbstractParametricBiFunction(direct) {
+                        override fun value(delta: Double, u: Double, set: Values): Double = direct.value(u + delta, u, set)
+
+                        override fun value(delta: Double, u: Double, set: ParameterVector): Double = direct.value(u + delta, u, set)
+
+                        override fun providesDeriv(name: String): Boolean = false
+                    },
+                    ParametricBiFunctionCache.condensedGrid(0.0, grid.getDouble("deltaMax", 7000.0), grid.getInt("deltaNodes", 400)),
+                    ParametricBiFunctionCache.uniformGrid(grid.getDouble("uMin", 12000.0), grid.getDouble("uMax", 19000.0), grid.getInt("uNodes", 36)),
+                    context[CachePlugin::class.java]?.getCache("numass.transRes", ParametricBiFunctionCache.Grid::class.java),
+                    buildMeta("transRes") {
+                        "version" to TRANS_RES_VERSION
+                        "resolution" to configuration.getMetaOrEmpty("resolution")
+                        "transmission" to configuration.getMetaOrEmpty("transmission")
+                        "resolutionType" to resolution.javaClass.name
+                        "transmissionType" to transmission.javaClass.name
+                        "fast" to fast
+                    }
+            )
+        }
+
+        override fun providesDeriv(name: String): Boolean = true
+
+        override fun derivValue(parName: String, eIn: Double, u: Double, set: Values): Double =
+                direct.derivValue(parName, eIn, u, set)
+
+        override fun value(eIn: Double, u: Double, set: Values): Double = kernel.value(eIn - u, u, set)
+
+        override fun value(eIn: Double, u: Double, set: ParameterVector): Double = kernel.value(eIn - u, u, set)
+    }
+
     companion object {
 
+        /**
+         * The version of trans-res kernel code. Persisted kernel grids are keyed by it, so it must be increased each
+         * time [TransRes], resolution or transmission code is changed in a way that changes kernel values.
+         */
+        const val TRANS_RES_VERSION = 1
+
         private val list = arrayOf("X", "trap", "E0", "mnu2", "msterile2", "U2")
+        private const val TRANS_RES_X_INDEX = 0 // index of "X" in TransRes parameters
     }
 
 }
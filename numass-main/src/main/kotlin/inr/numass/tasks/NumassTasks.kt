@@ -19,7 +19,6 @@ import hep.dataforge.tables.*
 import hep.dataforge.useMeta
 import hep.dataforge.useValue
 import hep.dataforge.values.ValueType
-import hep.dataforge.values.Values
 import hep.dataforge.values.asValue
 import hep.dataforge.values.edit
 import hep.dataforge.workspace.tasks.task
@@ -28,10 +27,9 @@ import inr.numass.actions.MergeDataAction
 import inr.numass.actions.MergeDataAction.MERGE_NAME
 import inr.numass.actions.TransformDataAction
 import inr.numass.addSetMarkers
+import inr.numass.data.analyzers.AnalysisCache
 import inr.numass.data.analyzers.NumassAnalyzer.Companion.CHANNEL_KEY
-import inr.numass.data.analyzers.NumassAnalyzer.Companion.COUNT_KEY
 import inr.numass.data.analyzers.SmartAnalyzer
-import inr.numass.data.analyzers.countInWindow
 import inr.numass.data.api.MetaBlock
 import inr.numass.data.api.NumassPoint
 import inr.numass.data.api.NumassSet
@@ -42,8 +40,9 @@ import java.io.PrintWriter
 import java.util.*
 import java.util.concurrent.atomic.AtomicLong
 import java.util.function.Predicate
-import java.util.stream.StreamSupport
 import kotlin.collections.set
+import kotlin.math.max
+import kotlin.math.min
 
 private val filterForward = DataFilter.byMetaValue("iteration_info.reverse") {
     !(it?.boolean ?: false)
@@ -81,6 +80,12 @@ val selectTask = task("select") {
 val analyzeTask = task("analyze") {
     descriptor {
         info = "Count the number of events for each voltage and produce a table with the results"
+        value(
+            "cache",
+            types = listOf(ValueType.BOOLEAN),
+            defaultValue = false,
+            info = "Reuse point results from the persistent analysis cache"
+        )
     }
     model { meta ->
         dependsOn(selectTask, meta)
@@ -89,7 +94,12 @@ val analyzeTask = task("analyze") {
         }
     }
     pipe<NumassSet, Table> { set ->
-        val res = SmartAnalyzer().analyzeSet(set, meta.getMeta("analyzer"))
+        val analyzer = SmartAnalyzer().apply {
+            if (meta.getBoolean("cache", false)) {
+                resultCache = AnalysisCache.forContext(context)
+            }
+        }
+        val res = analyzer.analyzeSet(set, meta.getMeta("analyzer"))
         val outputMeta = meta.builder.putNode("data", set.meta)
         context.output.render(res, stage = "numass.analyze", name = name, meta = outputMeta)
         return@pipe res
@@ -297,8 +307,7 @@ val plotFitTask = task("plotFit") {
         }
 
         // ensuring all data points are calculated explicitly
-        StreamSupport.stream<Values>(data.spliterator(), false)
-            .map { dp -> Adapters.getXValue(adapter, dp).double }.sorted().forEach { fit.calculateIn(it) }
+        Adapters.getXDoubles(adapter, data).sorted().forEach { fit.calculateIn(it) }
 
         val dataPlot = DataPlot.plot("data", data, adapter)
 
@@ -353,16 +362,14 @@ val histogramTask = task("histogram") {
             .filter { points == null || points.contains(it.voltage) }
             .groupBy { it.voltage }
             .mapValues { (_, value) ->
-                analyzer.getAmplitudeSpectrum(MetaBlock(value), meta.getMetaOrEmpty("analyzer"))
+                analyzer.getAmplitudeHistogram(MetaBlock(value), meta.getMetaOrEmpty("analyzer"))
             }
-            .forEach { (u, spectrum) ->
+            .forEach { (u, histogram) ->
                 log.report("Aggregating data from U = $u")
-                spectrum.forEach {
-                    val channel = it[CHANNEL_KEY].int
-                    val count = it[COUNT_KEY].long
+                for (channel in histogram.channelRange(meta.getMetaOrEmpty("analyzer"))) {
                     aggregator.getOrPut(channel) { HashMap() }
                         .getOrPut(u) { AtomicLong() }
-                        .addAndGet(count)
+                        .addAndGet(histogram[channel])
                 }
                 names.add("U$u")
             }
@@ -456,14 +463,15 @@ val sliceTask = task("slice") {
                 }
 
                 if (point != null) {
-                    val amplitudeSpectrum = analyzer.getAmplitudeSpectrum(point, meta.getMetaOrEmpty("analyzer"))
+                    val histogram = analyzer.getAmplitudeHistogram(point, meta.getMetaOrEmpty("analyzer"))
+                    val window = histogram.channelRange(meta.getMetaOrEmpty("analyzer"))
                     val map = HashMap<String, Any>()
                     map["set"] = setName
                     map["time"] = point.startTime
                     slices.mapValuesTo(map) { (_, range) ->
-                        amplitudeSpectrum.countInWindow(
-                            range.start.toShort(),
-                            range.endInclusive.toShort()
+                        histogram.countInWindow(
+                            max(range.first, window.first),
+                            min(range.last, window.last + 1)
                         )
                     }
 
@@ -9,7 +9,6 @@ import hep.dataforge.plots.data.DataPlot
 import hep.dataforge.plots.jfreechart.JFreeChartFrame
 import hep.dataforge.tables.Adapters
 import inr.numass.data.analyzers.NumassAnalyzer
-import inr.numass.data.analyzers.withBinning
 import javafx.beans.binding.DoubleBinding
 import javafx.beans.property.SimpleBooleanProperty
 import javafx.beans.property.SimpleIntegerProperty
@@ -119,12 +118,12 @@ class AmplitudeView : View(title = "Numass amplitude spectrum plot", icon = Imag
             }
             val adapter = Adapters.buildXYAdapter(NumassAnalyzer.CHANNEL_KEY, valueAxis)
 
-            val channels = point.channelSpectra.await()
+            val channels = point.getChannelSpectra(binning)
 
             val plot = if (channels.size == 1) {
                 DataPlot.plot(
                     key,
-                    channels.values.first().withBinning(binning),
+                    channels.values.first(),
                     adapter
                 )
             } else {
@@ -132,7 +131,7 @@ class AmplitudeView : View(title = "Numass amplitude spectrum plot", icon = Imag
                 channels.forEach { (key, spectrum) ->
                     val plot = DataPlot.plot(
                         key.toString(),
-                        spectrum.withBinning(binning),
+                        spectrum,
                         adapter
                     )
                     group.add(plot)
@@ -8,8 +8,9 @@ import hep.dataforge.tables.Adapters
 import hep.dataforge.tables.ListTable
 import hep.dataforge.tables.Table
 import hep.dataforge.tables.TableFormatBuilder
-import hep.dataforge.utils.Misc
+import hep.dataforge.utils.LRUCache
 import hep.dataforge.values.ValueMap
+import inr.numass.data.analyzers.AmplitudeHistogram
 import inr.numass.data.analyzers.NumassAnalyzer
 import inr.numass.data.analyzers.TimeAnalyzer
 import inr.numass.data.api.NumassPoint
@@ -40,18 +41,34 @@ class DataController : Controller(), ContextAware {
 
         val meta = point.meta
 
-        val channelSpectra: Deferred<Map<Int, Table>> = context.async(start = CoroutineStart.LAZY) {
-            point.channels.mapValues { (_, value) -> analyzer.getAmplitudeSpectrum(value) }
+        /**
+         * Amplitude histograms for each channel together with channel length in seconds
+         */
+        private val channelHistograms: Deferred<Map<Int, Pair<AmplitudeHistogram, Double>>> =
+            context.async(start = CoroutineStart.LAZY) {
+                point.channels.mapValues { (_, value) ->
+                    Pair(analyzer.getAmplitudeHistogram(value), value.length.toMillis().toDouble() / 1000.0)
+                }
+            }
+
+        val histogram: Deferred<AmplitudeHistogram> = context.async(start = CoroutineStart.LAZY) {
+            analyzer.getAmplitudeHistogram(point)
         }
 
-        val spectrum: Deferred<Table> = context.async(start = CoroutineStart.LAZY){
-            analyzer.getAmplitudeSpectrum(point)
+        val spectrum: Deferred<Table> = context.async(start = CoroutineStart.LAZY) {
+            histogram.await().toTable(point.length.toMillis().toDouble() / 1000.0)
         }
 
+        /**
+         * Binned amplitude spectra for each channel
+         */
+        suspend fun getChannelSpectra(binning: Int): Map<Int, Table> =
+            channelHistograms.await().mapValues { (_, value) ->
+                value.first.withBinning(binning, value.second)
+            }
+
         val timeSpectrum: Deferred<Table> = context.async(start = CoroutineStart.LAZY) {
-            val cr = spectrum.await().sumOf {
-                it.getValue(NumassAnalyzer.COUNT_KEY).int
-            }.toDouble() / point.length.toMillis() * 1000
+            val cr = histogram.await().total.toDouble() / point.length.toMillis() * 1000
 
             val binNum = 200
             //inputMeta.getInt("binNum", 1000);
@@ -75,15 +92,15 @@ class DataController : Controller(), ContextAware {
         }
     }
 
-    private val cache = Misc.getLRUCache<Name, CachedPoint>(400)
+    private val cache = LRUCache<Name, CachedPoint>(400)
 
     fun getCachedPoint(id: Name, point: NumassPoint): CachedPoint = cache.getOrPut(id) { CachedPoint(point) }
 
     fun getSpectrumAsync(id: Name, point: NumassPoint): Deferred<Table> =
         getCachedPoint(id, point).spectrum
 
-    suspend fun getChannelSpectra(id: Name, point: NumassPoint): Map<Int, Table> =
-        getCachedPoint(id, point).channelSpectra.await()
+    suspend fun getChannelSpectra(id: Name, point: NumassPoint, binning: Int): Map<Int, Table> =
+        getCachedPoint(id, point).getChannelSpectra(binning)
 
     val sets: ObservableMap<Name, NumassSet> = FXCollections.observableHashMap()
     val points: ObservableMap<Name, CachedPoint> = FXCollections.observableHashMap()